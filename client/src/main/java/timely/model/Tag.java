@@ -1,36 +1,38 @@
 package timely.model;
 
 import com.fasterxml.jackson.annotation.JsonAnyGetter;
-import com.fasterxml.jackson.annotation.JsonAnySetter;
+import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonRootName;
-import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import timely.model.parse.TagParser;
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.Map;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 /**
- * Tag consists of key value pair
+ * Tag consists of key value pair. Tags are immutable and compare field by
+ * field, in the same order as their key=value strings, so they can be used as
+ * keys of hash based collections and sorted without creating strings.
  */
 @JsonRootName("tag")
 public class Tag implements Comparable<Tag>, Serializable {
 
-    private static final Joiner equalJoiner = Joiner.on("=");
+    private static final long serialVersionUID = -1129520458224734249L;
     private static final TagParser tagParser = new TagParser();
+    private static final Interner<String> strings = Interners.newWeakInterner();
 
-    private String key;
-    private String value;
-
-    public Tag() {
-    }
+    private final String key;
+    private final String value;
+    private final transient int hash;
 
     public Tag(Tag other) {
-        this.setKey(other.getKey());
-        this.setValue(other.getValue());
+        this.key = other.key;
+        this.value = other.value;
+        this.hash = other.hash;
     }
 
     public Tag(String tag) {
@@ -40,19 +42,54 @@ public class Tag implements Comparable<Tag>, Serializable {
     public Tag(String key, String value) {
         Preconditions.checkNotNull(key);
         Preconditions.checkNotNull(value);
-        this.setKey(key);
-        this.setValue(value);
+        this.key = key;
+        this.value = value;
+        this.hash = 31 * key.hashCode() + value.hashCode();
     }
 
-    @JsonAnyGetter
-    public Map<String, String> get() {
-        return Stream.of(this).collect(Collectors.toMap(Tag::getKey, Tag::getValue));
+    /**
+     * Create a tag whose key and value are taken from a pool of strings, so
+     * that the many tags with the same keys and values parsed from input share
+     * one copy of each string
+     *
+     * @param key
+     *            tag key
+     * @param value
+     *            tag value
+     * @return tag
+     */
+    public static Tag of(String key, String value) {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(value);
+        return new Tag(strings.intern(key), strings.intern(value));
     }
 
-    @JsonAnySetter
-    public void set(String key, String value) {
-        this.key = key;
-        this.value = value;
+    /**
+     * Read a tag from its JSON form, {"k":"v"} or {"key":"k","value":"v"}
+     */
+    @JsonCreator(mode = JsonCreator.Mode.DELEGATING)
+    static Tag fromMap(Map<String, String> map) {
+        if (map.size() == 2 && map.containsKey("key") && map.containsKey("value")) {
+            return of(map.get("key"), map.get("value"));
+        }
+        if (map.size() != 1) {
+            throw new IllegalArgumentException("Invalid tag format: " + map);
+        }
+        Map.Entry<String, String> entry = map.entrySet().iterator().next();
+        return of(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * Serialized tags hold the key and value, the hash is computed again. Tags
+     * written before the hash was cached are read the same way.
+     */
+    private Object readResolve() {
+        return of(key, value);
+    }
+
+    @JsonAnyGetter
+    public Map<String, String> get() {
+        return Collections.singletonMap(key, value);
     }
 
     @JsonIgnore
@@ -60,36 +97,28 @@ public class Tag implements Comparable<Tag>, Serializable {
         return key;
     }
 
-    public void setKey(String key) {
-        this.key = key;
-    }
-
     @JsonIgnore
     public String getValue() {
         return value;
     }
 
-    public void setValue(String value) {
-        this.value = value;
-    }
-
     /**
      * Joins key and value into key=value
-     * 
+     *
      * @return
      */
     public String join() {
-        return equalJoiner.join(key, value);
+        return key + '=' + value;
     }
 
     @Override
     public String toString() {
-        return "Tag{" + equalJoiner.join(this.getKey(), this.getValue()) + "}";
+        return "Tag{" + join() + "}";
     }
 
     @Override
     public int hashCode() {
-        return this.toString().hashCode();
+        return hash;
     }
 
     @Override
@@ -99,11 +128,42 @@ public class Tag implements Comparable<Tag>, Serializable {
         if (null == o || getClass() != o.getClass())
             return false;
 
-        return this.toString().equals(o.toString());
+        Tag other = (Tag) o;
+        return hash == other.hash && key.equals(other.key) && value.equals(other.value);
     }
 
     @Override
     public int compareTo(Tag other) {
-        return this.toString().compareTo(other.toString());
+        if (this == other) {
+            return 0;
+        }
+        if (key.equals(other.key)) {
+            return value.compareTo(other.value);
+        }
+        // compare key=value without joining, a key can be the start of another
+        // key and '=' sorts before letters but after other characters
+        int length = key.length() + 1 + value.length();
+        int otherLength = other.key.length() + 1 + other.value.length();
+        int min = Math.min(length, otherLength);
+        for (int i = 0; i < min; i++) {
+            char c = charAt(i);
+            char o = other.charAt(i);
+            if (c != o) {
+                return c - o;
+            }
+        }
+        if (length != otherLength) {
+            return length - otherLength;
+        }
+        // same key=value with an '=' in a key, keep consistent with equals
+        return key.length() - other.key.length();
+    }
+
+    private char charAt(int i) {
+        int keyLength = key.length();
+        if (i < keyLength) {
+            return key.charAt(i);
+        }
+        return i == keyLength ? '=' : value.charAt(i - keyLength - 1);
     }
 }
@@ -15,6 +15,6 @@ public class TagParser implements Parser<Tag> {
         if (parts.size() != 2) {
             throw new IllegalArgumentException("Invalid tag format: " + t);
         }
-        return new Tag(parts.get(0), parts.get(1));
+        return Tag.of(parts.get(0), parts.get(1));
     }
 }
@@ -0,0 +1,118 @@
+package timely.model;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TagTest {
+
+    @Test
+    public void testEqualsAndHashCode() {
+        Tag t1 = new Tag("host", "r01n01");
+        Tag t2 = new Tag(new String("host"), new String("r01n01"));
+        assertEquals(t1, t2);
+        assertEquals(t1.hashCode(), t2.hashCode());
+        assertEquals(t1, new Tag(t1));
+        assertEquals(t1, new Tag("host=r01n01"));
+        assertNotEquals(t1, new Tag("host", "r01n02"));
+        assertNotEquals(t1, new Tag("hos", "tr01n01"));
+
+        Set<Tag> tags = new HashSet<>();
+        tags.add(t1);
+        tags.add(t2);
+        assertEquals(1, tags.size());
+    }
+
+    @Test
+    public void testCompareToMatchesJoinedOrder() {
+        List<Tag> tags = new ArrayList<>();
+        String[] keys = { "a", "a.b", "a-b", "ab", "a_b", "b", "A", "" };
+        String[] values = { "", "1", "=", ".x", "z", "a=b" };
+        for (String k : keys) {
+            for (String v : values) {
+                tags.add(new Tag(k, v));
+            }
+        }
+        List<Tag> expected = new ArrayList<>(tags);
+        expected.sort(Comparator.comparing(Tag::join));
+        Collections.shuffle(tags);
+        Collections.sort(tags);
+        for (int i = 0; i < tags.size(); i++) {
+            assertEquals(expected.get(i).join(), tags.get(i).join());
+        }
+    }
+
+    @Test
+    public void testCompareToConsistentWithEquals() {
+        Tag t1 = new Tag("a=b", "c");
+        Tag t2 = new Tag("a", "b=c");
+        assertEquals(t1.join(), t2.join());
+        assertNotEquals(t1, t2);
+        assertTrue(t1.compareTo(t2) > 0);
+        assertTrue(t2.compareTo(t1) < 0);
+        assertEquals(0, t1.compareTo(new Tag("a=b", "c")));
+    }
+
+    @Test
+    public void testInterned() {
+        Tag t1 = Tag.of(new String("host"), new String("r01n01"));
+        Tag t2 = Tag.of(new String("host"), new String("r01n01"));
+        assertSame(t1.getKey(), t2.getKey());
+        assertSame(t1.getValue(), t2.getValue());
+        assertSame(t1.getKey(), new Tag("host=r01n02").getKey());
+    }
+
+    @Test
+    public void testJson() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        Tag tag = new Tag("k1", "v1");
+        String json = mapper.writeValueAsString(tag);
+        assertEquals("{\"k1\":\"v1\"}", json);
+        assertEquals(tag, mapper.readValue(json, Tag.class));
+        assertEquals(tag, mapper.readValue("{\"key\":\"k1\",\"value\":\"v1\"}", Tag.class));
+    }
+
+    @Test
+    public void testSerialization() throws Exception {
+        Tag tag = new Tag("host", "r01n01");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(tag);
+        }
+        Tag read = deserialize(bytes.toByteArray());
+        assertEquals(tag, read);
+        assertEquals(tag.hashCode(), read.hashCode());
+    }
+
+    @Test
+    public void testSerializedBeforeHash() throws Exception {
+        // Tag("host", "r01n01") written by the mutable Tag without the hash
+        String old = "rO0ABXNyABB0aW1lbHkubW9kZWwuVGFn8FMjILD6b9cCAAJMAANrZXl0ABJMamF2YS9sYW5nL1N0cmluZztMAAV2YWx1ZXEAfgABeHB0AARob3N0dAAGcjAxbjAx";
+        Tag read = deserialize(Base64.getDecoder().decode(old));
+        Tag tag = new Tag("host", "r01n01");
+        assertEquals(tag, read);
+        assertEquals(tag.hashCode(), read.hashCode());
+    }
+
+    private static Tag deserialize(byte[] bytes) throws Exception {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (Tag) in.readObject();
+        }
+    }
+}
@@ -49,6 +49,27 @@ public class Configuration {
     @Valid
     @NestedConfigurationProperty
     private Websocket websocket = new Websocket();
+    @Valid
+    @NestedConfigurationProperty
+    private Query query = new Query();
+    @Valid
+    @NestedConfigurationProperty
+    private QueryCache queryCache = new QueryCache();
+    @Valid
+    @NestedConfigurationProperty
+    private Ingest ingest = new Ingest();
+    @Valid
+    @NestedConfigurationProperty
+    private UidDictionary uidDictionary = new UidDictionary();
+    @Valid
+    @NestedConfigurationProperty
+    private TimeBlocks timeBlocks = new TimeBlocks();
+    @Valid
+    @NestedConfigurationProperty
+    private Rollups rollups = new Rollups();
+    @Valid
+    @NestedConfigurationProperty
+    private TagIndex tagIndex = new TagIndex();
 
     public String getMetricsTable() {
         return metricsTable;
@@ -109,10 +130,38 @@ public class Configuration {
         return metaCache;
     }
 
+    public Query getQuery() {
+        return query;
+    }
+
     public VisibilityCache getVisibilityCache() {
         return visibilityCache;
     }
 
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
+
+    public Ingest getIngest() {
+        return ingest;
+    }
+
+    public UidDictionary getUidDictionary() {
+        return uidDictionary;
+    }
+
+    public TimeBlocks getTimeBlocks() {
+        return timeBlocks;
+    }
+
+    public Rollups getRollups() {
+        return rollups;
+    }
+
+    public TagIndex getTagIndex() {
+        return tagIndex;
+    }
+
     public class Accumulo {
 
         @NotBlank
@@ -175,11 +224,20 @@ public class Configuration {
         }
     }
 
+    /**
+     * Metrics are written through a fixed number of metric and meta table
+     * writer pairs, which share the buffer size between them. The number of
+     * writers should be at least the number of ingest writer threads. With
+     * multiTable each pair is one MultiTableBatchWriter with a single buffer
+     * and set of write threads for both tables.
+     */
     public class Write {
 
         private String latency = "5s";
         private int threads;
         private String bufferSize;
+        private int writers = 4;
+        private boolean multiTable = false;
 
         public Write() {
             BatchWriterConfig config = new BatchWriterConfig();
@@ -213,11 +271,30 @@ public class Configuration {
             this.bufferSize = bufferSize;
             return Configuration.this;
         }
+
+        public int getWriters() {
+            return writers;
+        }
+
+        public Configuration setWriters(int writers) {
+            this.writers = writers;
+            return Configuration.this;
+        }
+
+        public boolean isMultiTable() {
+            return multiTable;
+        }
+
+        public Configuration setMultiTable(boolean multiTable) {
+            this.multiTable = multiTable;
+            return Configuration.this;
+        }
     }
 
     public class Scan {
 
         private int threads = 4;
+        private int downsampleBatchSize = 1000;
 
         public int getThreads() {
             return threads;
@@ -227,6 +304,15 @@ public class Configuration {
             this.threads = threads;
             return Configuration.this;
         }
+
+        public int getDownsampleBatchSize() {
+            return downsampleBatchSize;
+        }
+
+        public Configuration setDownsampleBatchSize(int downsampleBatchSize) {
+            this.downsampleBatchSize = downsampleBatchSize;
+            return Configuration.this;
+        }
     }
 
     public class Security {
@@ -635,4 +721,352 @@ public class Configuration {
             return Configuration.this;
         }
     }
+
+    public class Query {
+
+        private int parallelism = Runtime.getRuntime().availableProcessors();
+        private int executorThreads = 16;
+        private int executorQueueSize = 256;
+        private int maxConcurrentPerUser = 8;
+        private boolean streamResponses = true;
+        private int streamChunkSize = 65536;
+
+        public int getParallelism() {
+            return parallelism;
+        }
+
+        public Configuration setParallelism(int parallelism) {
+            this.parallelism = parallelism;
+            return Configuration.this;
+        }
+
+        public int getExecutorThreads() {
+            return executorThreads;
+        }
+
+        public Configuration setExecutorThreads(int executorThreads) {
+            this.executorThreads = executorThreads;
+            return Configuration.this;
+        }
+
+        public int getExecutorQueueSize() {
+            return executorQueueSize;
+        }
+
+        public Configuration setExecutorQueueSize(int executorQueueSize) {
+            this.executorQueueSize = executorQueueSize;
+            return Configuration.this;
+        }
+
+        public int getMaxConcurrentPerUser() {
+            return maxConcurrentPerUser;
+        }
+
+        public Configuration setMaxConcurrentPerUser(int maxConcurrentPerUser) {
+            this.maxConcurrentPerUser = maxConcurrentPerUser;
+            return Configuration.this;
+        }
+
+        public boolean isStreamResponses() {
+            return streamResponses;
+        }
+
+        public Configuration setStreamResponses(boolean streamResponses) {
+            this.streamResponses = streamResponses;
+            return Configuration.this;
+        }
+
+        public int getStreamChunkSize() {
+            return streamChunkSize;
+        }
+
+        public Configuration setStreamChunkSize(int streamChunkSize) {
+            this.streamChunkSize = streamChunkSize;
+            return Configuration.this;
+        }
+    }
+
+    /**
+     * Caches the downsampled buckets of queries so that repeated queries over a
+     * sliding window only scan the newest buckets. When enabled, downsample
+     * buckets start at multiples of the downsample period instead of at the
+     * start of the query.
+     */
+    public class QueryCache {
+
+        private boolean enabled = false;
+        private long expirationMinutes = 60;
+        private long maxSamples = 5000000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public Configuration setEnabled(boolean enabled) {
+            this.enabled = enabled;
+            return Configuration.this;
+        }
+
+        public long getExpirationMinutes() {
+            return expirationMinutes;
+        }
+
+        public Configuration setExpirationMinutes(long expirationMinutes) {
+            this.expirationMinutes = expirationMinutes;
+            return Configuration.this;
+        }
+
+        public long getMaxSamples() {
+            return maxSamples;
+        }
+
+        public Configuration setMaxSamples(long maxSamples) {
+            this.maxSamples = maxSamples;
+            return Configuration.this;
+        }
+    }
+
+    /**
+     * How the writer threads of the ingest pipeline wait for new metrics, from
+     * the least to the most CPU used while idle
+     */
+    public enum IngestWaitStrategy {
+        BLOCKING, SLEEPING, YIELDING, BUSY_SPIN
+    }
+
+    /**
+     * What to do with metrics that arrive while the ring buffer is full
+     */
+    public enum IngestOverflowPolicy {
+        /**
+         * wait on the I/O thread until the slowest writer has made room, which
+         * stalls reads while Accumulo pushes back
+         */
+        BLOCK,
+        /** drop the metrics and count them */
+        DROP
+    }
+
+    /**
+     * Passes TCP and UDP puts from the Netty I/O threads to a fixed set of
+     * writer threads through a ring buffer, which absorbs short BatchWriter
+     * stalls. Under sustained back-pressure the I/O threads wait with the BLOCK
+     * overflow policy. The ring buffer size must be a power of two.
+     */
+    public class Ingest {
+
+        private boolean enabled = true;
+        private int ringBufferSize = 65536;
+        private int writerThreads = 4;
+        @NotNull
+        private IngestWaitStrategy waitStrategy = IngestWaitStrategy.BLOCKING;
+        @NotNull
+        private IngestOverflowPolicy overflowPolicy = IngestOverflowPolicy.BLOCK;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public Configuration setEnabled(boolean enabled) {
+            this.enabled = enabled;
+            return Configuration.this;
+        }
+
+        public int getRingBufferSize() {
+            return ringBufferSize;
+        }
+
+        public Configuration setRingBufferSize(int ringBufferSize) {
+            this.ringBufferSize = ringBufferSize;
+            return Configuration.this;
+        }
+
+        public int getWriterThreads() {
+            return writerThreads;
+        }
+
+        public Configuration setWriterThreads(int writerThreads) {
+            this.writerThreads = writerThreads;
+            return Configuration.this;
+        }
+
+        public IngestWaitStrategy getWaitStrategy() {
+            return waitStrategy;
+        }
+
+        public Configuration setWaitStrategy(IngestWaitStrategy waitStrategy) {
+            this.waitStrategy = waitStrategy;
+            return Configuration.this;
+        }
+
+        public IngestOverflowPolicy getOverflowPolicy() {
+            return overflowPolicy;
+        }
+
+        public Configuration setOverflowPolicy(IngestOverflowPolicy overflowPolicy) {
+            this.overflowPolicy = overflowPolicy;
+            return Configuration.this;
+        }
+    }
+
+    /**
+     * When enabled, new metrics are written with UIDs from a dictionary in the
+     * meta table in place of the tag keys and values in the column family and
+     * column qualifier. Both formats are read, whether or not this is enabled,
+     * so it can be turned on or off for existing tables. The max capacity is
+     * the number of UIDs cached in each direction.
+     */
+    public class UidDictionary {
+
+        private boolean enabled = false;
+        private long maxCapacity = 100000;
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public Configuration setEnabled(boolean enabled) {
+            this.enabled = enabled;
+            return Configuration.this;
+        }
+
+        public long getMaxCapacity() {
+            return maxCapacity;
+        }
+
+        public Configuration setMaxCapacity(long maxCapacity) {
+            this.maxCapacity = maxCapacity;
+            return Configuration.this;
+        }
+    }
+
+    /**
+     * Packs the points of each series older than the minimum age into one
+     * compressed entry per period of the metrics table. Points are packed when
+     * a tablet is fully compacted, for example with the Accumulo shell compact
+     * command. Queries read both points and packed blocks.
+     */
+    public class TimeBlocks {
+
+        private boolean enabled = false;
+        private String period = "1h";
+        private String minAge = "2h";
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public Configuration setEnabled(boolean enabled) {
+            this.enabled = enabled;
+            return Configuration.this;
+        }
+
+        public String getPeriod() {
+            return period;
+        }
+
+        public Configuration setPeriod(String period) {
+            this.period = period;
+            return Configuration.this;
+        }
+
+        public String getMinAge() {
+            return minAge;
+        }
+
+        public Configuration setMinAge(String minAge) {
+            this.minAge = minAge;
+            return Configuration.this;
+        }
+    }
+
+    /**
+     * Keeps the sum, count, minimum and maximum of each series per period in
+     * one table per period, named after the metrics table and the period, such
+     * as timely.metrics_1h. Queries with a downsample period that is a multiple
+     * of a rollup period read the rollup table with the longest such period
+     * instead of the points. The rollup tables are aged off like the metrics
+     * table, with the default number of days replaced by the age off of the
+     * period when one is set. Rollup tables added to an existing metrics table
+     * hold the points written after they were created, queries that start
+     * before then read the points. The table property
+     * table.custom.timely.rollup.start holds that time and can be lowered after
+     * the earlier points are written to the rollup table.
+     */
+    public class Rollups {
+
+        private boolean enabled = false;
+        private List<String> periods = Lists.newArrayList("1m", "5m", "1h", "1d");
+        private HashMap<String, Integer> ageOffDays = new HashMap<>();
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public Configuration setEnabled(boolean enabled) {
+            this.enabled = enabled;
+            return Configuration.this;
+        }
+
+        public List<String> getPeriods() {
+            return periods;
+        }
+
+        public Configuration setPeriods(List<String> periods) {
+            this.periods = periods;
+            return Configuration.this;
+        }
+
+        public HashMap<String, Integer> getAgeOffDays() {
+            return ageOffDays;
+        }
+
+        public Configuration setAgeOffDays(HashMap<String, Integer> ageOffDays) {
+            this.ageOffDays = ageOffDays;
+            return Configuration.this;
+        }
+    }
+
+    /**
+     * Keeps the tag values of the meta table in memory to expand the tags of
+     * queries and subscriptions. The index is reloaded from the meta table
+     * periodically, tag values written by other servers are seen after the next
+     * reload. Until then, with more than one server, queries with a regular
+     * expression tag or without tags can leave out the series of the values
+     * written through the other servers. Metrics that do not fit into the
+     * maximum number of values are read from the meta table.
+     */
+    public class TagIndex {
+
+        private boolean enabled = true;
+        private long maxValues = 1000000;
+        private String refresh = "10m";
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        public Configuration setEnabled(boolean enabled) {
+            this.enabled = enabled;
+            return Configuration.this;
+        }
+
+        public long getMaxValues() {
+            return maxValues;
+        }
+
+        public Configuration setMaxValues(long maxValues) {
+            this.maxValues = maxValues;
+            return Configuration.this;
+        }
+
+        public String getRefresh() {
+            return refresh;
+        }
+
+        public Configuration setRefresh(String refresh) {
+            this.refresh = refresh;
+            return Configuration.this;
+        }
+    }
 }
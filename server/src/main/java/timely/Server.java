@@ -90,7 +90,9 @@ import timely.netty.websocket.timeseries.WSSearchLookupRequestHandler;
 import timely.netty.websocket.timeseries.WSSuggestRequestHandler;
 import timely.store.DataStore;
 import timely.store.DataStoreFactory;
+import timely.store.IngestPipeline;
 import timely.store.MetaCacheFactory;
+import timely.store.QueryExecutor;
 
 public class Server {
 
@@ -119,6 +121,8 @@ public class Server {
     protected Channel wsChannelHandle = null;
     protected Channel udpChannelHandle = null;
     protected DataStore dataStore = null;
+    protected QueryExecutor queryExecutor = null;
+    protected IngestPipeline ingestPipeline = null;
     protected volatile boolean shutdown = false;
 
     private static boolean useEpoll() {
@@ -248,6 +252,12 @@ public class Server {
             }
         });
 
+        LOG.info("Shutting down queryExecutor");
+        queryExecutor.shutdown();
+
+        LOG.info("Shutting down ingestPipeline");
+        ingestPipeline.shutdown();
+
         try {
             LOG.info("Flushing datastore.");
             dataStore.flush();
@@ -275,9 +285,9 @@ public class Server {
 
     public void run() throws Exception {
 
-        int nettyThreads = Math.max(1,
-                SystemPropertyUtil.getInt("io.netty.eventLoopThreads", Runtime.getRuntime().availableProcessors() * 2));
-        dataStore = DataStoreFactory.create(config, nettyThreads);
+        dataStore = DataStoreFactory.create(config);
+        queryExecutor = new QueryExecutor(config, dataStore);
+        ingestPipeline = new IngestPipeline(config, dataStore);
         // Initialize the MetaCache
         MetaCacheFactory.getCache(config);
         // initialize the auth cache
@@ -458,9 +468,9 @@ public class Server {
                 ch.pipeline().addLast("doLogin", new BasicAuthLoginRequestHandler(config));
                 ch.pipeline().addLast("aggregators", new HttpAggregatorsRequestHandler());
                 ch.pipeline().addLast("metrics", new HttpMetricsRequestHandler(config));
-                ch.pipeline().addLast("query", new HttpQueryRequestHandler(dataStore));
-                ch.pipeline().addLast("search", new HttpSearchLookupRequestHandler(dataStore));
-                ch.pipeline().addLast("suggest", new HttpSuggestRequestHandler(dataStore));
+                ch.pipeline().addLast("query", new HttpQueryRequestHandler(dataStore, queryExecutor, config));
+                ch.pipeline().addLast("search", new HttpSearchLookupRequestHandler(dataStore, queryExecutor));
+                ch.pipeline().addLast("suggest", new HttpSuggestRequestHandler(dataStore, queryExecutor));
                 ch.pipeline().addLast("version", new HttpVersionRequestHandler());
                 ch.pipeline().addLast("put", new HttpMetricPutHandler(dataStore));
                 ch.pipeline().addLast("error", new TimelyExceptionHandler());
@@ -478,7 +488,7 @@ public class Server {
                 ch.pipeline().addLast("buffer", new MetricsBufferDecoder());
                 ch.pipeline().addLast("frame", new DelimiterBasedFrameDecoder(8192, true, Delimiters.lineDelimiter()));
                 ch.pipeline().addLast("putDecoder", new UdpDecoder());
-                ch.pipeline().addLast(udpWorkerGroup, "putHandler", new TcpPutHandler(dataStore));
+                ch.pipeline().addLast(udpWorkerGroup, "putHandler", new TcpPutHandler(ingestPipeline));
             }
         };
     }
@@ -491,7 +501,7 @@ public class Server {
                 ch.pipeline().addLast("buffer", new MetricsBufferDecoder());
                 ch.pipeline().addLast("frame", new DelimiterBasedFrameDecoder(8192, true, Delimiters.lineDelimiter()));
                 ch.pipeline().addLast("putDecoder", new TcpDecoder());
-                ch.pipeline().addLast("putHandler", new TcpPutHandler(dataStore));
+                ch.pipeline().addLast("putHandler", new TcpPutHandler(ingestPipeline));
                 ch.pipeline().addLast("versionHandler", new TcpVersionHandler());
             }
         };
@@ -511,9 +521,9 @@ public class Server {
                 ch.pipeline().addLast("wsDecoder", new WebSocketRequestDecoder(config));
                 ch.pipeline().addLast("aggregators", new WSAggregatorsRequestHandler());
                 ch.pipeline().addLast("metrics", new WSMetricsRequestHandler(config));
-                ch.pipeline().addLast("query", new WSQueryRequestHandler(dataStore));
-                ch.pipeline().addLast("lookup", new WSSearchLookupRequestHandler(dataStore));
-                ch.pipeline().addLast("suggest", new WSSuggestRequestHandler(dataStore));
+                ch.pipeline().addLast("query", new WSQueryRequestHandler(dataStore, queryExecutor));
+                ch.pipeline().addLast("lookup", new WSSearchLookupRequestHandler(dataStore, queryExecutor));
+                ch.pipeline().addLast("suggest", new WSSuggestRequestHandler(dataStore, queryExecutor));
                 ch.pipeline().addLast("version", new WSVersionRequestHandler());
                 ch.pipeline().addLast("put", new WSMetricPutHandler(dataStore));
                 ch.pipeline().addLast("create", new WSCreateSubscriptionRequestHandler(dataStore, config));
@@ -8,16 +8,17 @@ import org.apache.accumulo.core.data.Mutation;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.security.ColumnVisibility;
 import org.apache.accumulo.core.util.ComparablePair;
+import timely.auth.VisibilityCache;
 import timely.model.Metric;
 import timely.model.Tag;
 import timely.model.parse.TagListParser;
 import timely.model.parse.TagParser;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.function.Function;
 
 /**
  * Creates Accumulo data structures from {@link timely.model.Metric}
@@ -33,25 +34,106 @@ public class MetricAdapter {
     public static final ColumnVisibility EMPTY_VISIBILITY = new ColumnVisibility();
     public static final String VISIBILITY_TAG = "viz";
 
+    /**
+     * Create the mutation for a metric. The column family of each entry is one
+     * tag and the column qualifier the other tags, both in sorted order. The
+     * sorted tags are joined once and each column qualifier is cut out of that
+     * string, so the work is linear in the size of the qualifiers.
+     *
+     * @param metric
+     *            metric, its tags are sorted
+     * @return mutation
+     */
     public static Mutation toMutation(Metric metric) {
-        final Mutation mutation = new Mutation(encodeRowKey(metric));
+        return toMutation(metric, Tag::join);
+    }
+
+    /**
+     * Create the mutation for a metric with the tags written in the form
+     * returned by the encoder, such as
+     * {@link timely.store.UidDictionary#encode(Tag)}
+     *
+     * @param metric
+     *            metric, its tags are sorted
+     * @param encoder
+     *            returns the column family form of a tag
+     * @return mutation
+     */
+    public static Mutation toMutation(Metric metric, Function<Tag, String> encoder) {
+        return toMutation(metric, encoder, encodeRowKey(metric), metric.getValue().getTimestamp(), extractValue(metric));
+    }
+
+    /**
+     * Create the mutation that adds a metric to its period of a rollup table.
+     * The entries have the columns of {@link #toMutation(Metric, Function)}, a
+     * row and timestamp at the start of the period and a {@link RollupCodec}
+     * value with the one point.
+     *
+     * @param metric
+     *            metric, its tags are sorted
+     * @param encoder
+     *            returns the column family form of a tag
+     * @param period
+     *            length of a period in ms, periods start at multiples of it
+     * @return mutation
+     */
+    public static Mutation toRollupMutation(Metric metric, Function<Tag, String> encoder, long period) {
+        long ts = metric.getValue().getTimestamp();
+        long start = ts - Math.floorMod(ts, period);
+        return toMutation(metric, encoder, encodeRowKey(metric.getName(), start), start,
+                new Value(RollupCodec.encode(metric.getValue().getMeasure())));
+    }
+
+    private static Mutation toMutation(Metric metric, Function<Tag, String> encoder, byte[] row, long ts, Value value) {
+        final Mutation mutation = new Mutation(row);
 
         List<Tag> tags = metric.getTags();
         Collections.sort(tags);
 
-        for (final Tag entry : tags) {
-            if (entry.getKey().equals(VISIBILITY_TAG))
+        ColumnVisibility visibility = EMPTY_VISIBILITY;
+        int size = tags.size();
+        String[] joined = new String[size];
+        int[] start = new int[size];
+        StringBuilder all = new StringBuilder();
+        int n = 0;
+        for (Tag tag : tags) {
+            if (tag.getKey().equals(VISIBILITY_TAG)) {
+                if (visibility == EMPTY_VISIBILITY) {
+                    visibility = VisibilityCache.getColumnVisibility(tag.getValue());
+                }
                 continue;
+            }
+            if (n > 0) {
+                all.append(',');
+            }
+            joined[n] = encoder.apply(tag);
+            start[n] = all.length();
+            all.append(joined[n]);
+            n++;
+        }
 
-            final String cf = entry.join();
-            // @formatter:off
-            String cq = tags.stream().filter(inner -> !inner.equals(entry))
-                    .filter(inner -> !inner.getKey().equals(VISIBILITY_TAG))
-                    .map(Tag::join)
-                    .collect(Collectors.joining(","));
-            // @formatter:on
-
-            mutation.put(cf, cq, extractVisibility(tags), metric.getValue().getTimestamp(), extractValue(metric));
+        int i = 0;
+        while (i < n) {
+            // equal tags are next to each other, none of them is in the column
+            // qualifier of the others
+            int end = i + 1;
+            while (end < n && joined[end].equals(joined[i])) {
+                end++;
+            }
+            StringBuilder cq = new StringBuilder(all.length());
+            if (i > 0) {
+                cq.append(all, 0, start[i] - 1);
+            }
+            if (end < n) {
+                if (i > 0) {
+                    cq.append(',');
+                }
+                cq.append(all, start[end], all.length());
+            }
+            String cqString = cq.toString();
+            for (; i < end; i++) {
+                mutation.put(joined[i], cqString, visibility, ts, value);
+            }
         }
         return mutation;
     }
@@ -64,27 +146,71 @@ public class MetricAdapter {
         return new Value(b);
     }
 
-    private static ColumnVisibility extractVisibility(List<Tag> tags) {
-        // @formatter:off
-        Optional<Tag> visTag = tags.stream()
-                .filter(t -> t.getKey().equals(VISIBILITY_TAG))
-                .findFirst();
-        return visTag.isPresent() ? new ColumnVisibility(visTag.get().getValue()) : EMPTY_VISIBILITY;
-        // @formatter:on
-    }
-
     public static Metric parse(Key k, Value v) {
         ComparablePair<String, Long> row = rowCoder.decode(k.getRow().getBytes());
         // @formatter:off
         Metric.Builder builder = Metric.newBuilder()
                 .name(row.getFirst())
-                .value(row.getSecond(), ByteBuffer.wrap(v.get()).getDouble())
+                .value(row.getSecond(), decodeValue(v.get()))
                 .tag(tagParser.parse(k.getColumnFamily().toString()));
         // @formatter:on
         tagListParser.parse(k.getColumnQualifier().toString()).forEach(builder::tag);
         return builder.build();
     }
 
+    /**
+     * Parse the metrics of an entry, the single point or each point of a block
+     * written by the {@link TimeBlockCodec}
+     *
+     * @param k
+     *            key
+     * @param v
+     *            value
+     * @return metrics in timestamp order
+     */
+    public static List<Metric> parseAll(Key k, Value v) {
+        if (!TimeBlockCodec.isEncoded(v.get())) {
+            return Collections.singletonList(parse(k, v));
+        }
+        String name = rowCoder.decode(k.getRow().getBytes()).getFirst();
+        List<Tag> tags = new ArrayList<>();
+        tags.add(tagParser.parse(k.getColumnFamily().toString()));
+        tags.addAll(tagListParser.parse(k.getColumnQualifier().toString()));
+        List<Metric> metrics = new ArrayList<>(TimeBlockCodec.count(v.get()));
+        TimeBlockCodec.decode(v.get(),
+                (ts, measure) -> metrics.add(Metric.newBuilder().name(name).value(ts, measure).tags(tags).build()));
+        return metrics;
+    }
+
+    /**
+     * Parse the tags from the column family and column qualifier of a key
+     *
+     * @param k
+     *            key
+     * @return tags
+     */
+    public static List<Tag> parseTags(Key k) {
+        List<Tag> tags = tagListParser.parse(k.getColumnQualifier().toString());
+        tags.add(tagParser.parse(k.getColumnFamily().toString()));
+        return tags;
+    }
+
+    /**
+     * Decode the measure written by {@link #toMutation(Metric)} without
+     * wrapping the value bytes.
+     *
+     * @param v
+     *            value bytes
+     * @return measure
+     */
+    public static double decodeValue(byte[] v) {
+        long bits = 0;
+        for (int i = 0; i < Double.BYTES; i++) {
+            bits = (bits << 8) | (v[i] & 0xFF);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
     public static byte[] encodeRowKey(String metricName, Long timestamp) {
         return rowCoder.encode(new ComparablePair<>(metricName, timestamp));
     }
@@ -92,4 +218,13 @@ public class MetricAdapter {
     public static byte[] encodeRowKey(Metric metric) {
         return encodeRowKey(metric.getName(), metric.getValue().getTimestamp());
     }
+
+    /**
+     * @param row
+     *            row written by {@link #encodeRowKey(String, Long)}
+     * @return metric name and timestamp
+     */
+    public static ComparablePair<String, Long> decodeRowKey(byte[] row) {
+        return rowCoder.decode(row);
+    }
 }
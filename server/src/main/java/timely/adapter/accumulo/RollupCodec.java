@@ -0,0 +1,72 @@
+package timely.adapter.accumulo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Value of an entry in a rollup table, the sum, count, minimum and maximum of
+ * the points of one series in one period. The layout is:
+ *
+ * <pre>
+ * 8 bytes  sum
+ * 8 bytes  count
+ * 8 bytes  minimum
+ * 8 bytes  maximum
+ * </pre>
+ */
+public class RollupCodec {
+
+    public static final int LENGTH = 4 * Long.BYTES;
+
+    private static final int SUM = 0;
+    private static final int COUNT = Long.BYTES;
+    private static final int MIN = 2 * Long.BYTES;
+    private static final int MAX = 3 * Long.BYTES;
+
+    private RollupCodec() {
+    }
+
+    /**
+     * @param value
+     *            value of a single point
+     * @return encoded bytes of a period with one point
+     */
+    public static byte[] encode(double value) {
+        return encode(value, 1, value, value);
+    }
+
+    /**
+     * @param sum
+     *            sum of the points
+     * @param count
+     *            number of points
+     * @param min
+     *            smallest point
+     * @param max
+     *            largest point
+     * @return encoded bytes
+     */
+    public static byte[] encode(double sum, long count, double min, double max) {
+        ByteBuffer bb = ByteBuffer.allocate(LENGTH);
+        bb.putDouble(SUM, sum);
+        bb.putLong(COUNT, count);
+        bb.putDouble(MIN, min);
+        bb.putDouble(MAX, max);
+        return bb.array();
+    }
+
+    public static double getSum(byte[] value) {
+        return ByteBuffer.wrap(value).getDouble(SUM);
+    }
+
+    public static long getCount(byte[] value) {
+        return ByteBuffer.wrap(value).getLong(COUNT);
+    }
+
+    public static double getMin(byte[] value) {
+        return ByteBuffer.wrap(value).getDouble(MIN);
+    }
+
+    public static double getMax(byte[] value) {
+        return ByteBuffer.wrap(value).getDouble(MAX);
+    }
+}
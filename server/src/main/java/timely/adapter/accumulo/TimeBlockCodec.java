@@ -0,0 +1,267 @@
+package timely.adapter.accumulo;
+
+import java.util.Arrays;
+
+/**
+ * Compressed encoding of the points of one series over a block of time, stored
+ * as a single value in the metrics table in place of one entry per point. The
+ * layout is a stream of bits:
+ *
+ * <pre>
+ * 8 bits   version
+ * 32 bits  number of points
+ * 64 bits  first timestamp
+ * 64 bits  first value
+ * per following point:
+ *   timestamp delta of delta
+ *     '0'                      0
+ *     '10'    7 bits           -64 to 63
+ *     '110'   9 bits           -256 to 255
+ *     '1110'  12 bits          -2048 to 2047
+ *     '11110' 32 bits
+ *     '11111' 64 bits
+ *   value XOR previous value
+ *     '0'                      same value
+ *     '10'    meaningful bits  within the leading and trailing zeros of the
+ *                              previous XOR
+ *     '11'    5 bits leading zeros, 6 bits meaningful length - 1,
+ *             meaningful bits
+ * </pre>
+ *
+ * This is the scheme of Facebook's Gorilla with wider timestamp buckets, as
+ * Timely timestamps are in milliseconds. Points with regular intervals take a
+ * bit or two for the timestamp and slowly changing values a few bits more. A
+ * single point is always written as an 8 byte double and an encoded block is
+ * always longer, so the two are told apart by their length.
+ */
+public class TimeBlockCodec {
+
+    public static final byte VERSION = 1;
+
+    private static final int HEADER_BYTES = 21;
+
+    private TimeBlockCodec() {
+    }
+
+    /**
+     * Receives the decoded points of a block
+     */
+    public interface PointConsumer {
+
+        void accept(long timestamp, double value);
+    }
+
+    /**
+     * @param value
+     *            value of an entry in the metrics table
+     * @return true if value is a block written by this codec, false if it is a
+     *         single point
+     */
+    public static boolean isEncoded(byte[] value) {
+        return value.length != Double.BYTES;
+    }
+
+    /**
+     * Encode points
+     *
+     * @param timestamps
+     *            timestamps in increasing order
+     * @param values
+     *            values
+     * @param count
+     *            number of points, at least one
+     * @return encoded bytes
+     */
+    public static byte[] encode(long[] timestamps, double[] values, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("A time block needs at least one point");
+        }
+        BitWriter out = new BitWriter(HEADER_BYTES + count * 2);
+        out.write(VERSION, 8);
+        out.write(count, 32);
+        out.write(timestamps[0], 64);
+        long previousBits = Double.doubleToRawLongBits(values[0]);
+        out.write(previousBits, 64);
+        long previousDelta = 0;
+        int leading = -1;
+        int trailing = 0;
+        for (int i = 1; i < count; i++) {
+            long delta = timestamps[i] - timestamps[i - 1];
+            long dod = delta - previousDelta;
+            previousDelta = delta;
+            if (dod == 0) {
+                out.write(0, 1);
+            } else if (fits(dod, 7)) {
+                out.write(0b10, 2);
+                out.write(dod, 7);
+            } else if (fits(dod, 9)) {
+                out.write(0b110, 3);
+                out.write(dod, 9);
+            } else if (fits(dod, 12)) {
+                out.write(0b1110, 4);
+                out.write(dod, 12);
+            } else if (fits(dod, 32)) {
+                out.write(0b11110, 5);
+                out.write(dod, 32);
+            } else {
+                out.write(0b11111, 5);
+                out.write(dod, 64);
+            }
+
+            long bits = Double.doubleToRawLongBits(values[i]);
+            long xor = bits ^ previousBits;
+            previousBits = bits;
+            if (xor == 0) {
+                out.write(0, 1);
+                continue;
+            }
+            int xorLeading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int xorTrailing = Long.numberOfTrailingZeros(xor);
+            if (leading >= 0 && xorLeading >= leading && xorTrailing >= trailing) {
+                out.write(0b10, 2);
+                out.write(xor >>> trailing, 64 - leading - trailing);
+            } else {
+                leading = xorLeading;
+                trailing = xorTrailing;
+                int length = 64 - leading - trailing;
+                out.write(0b11, 2);
+                out.write(leading, 5);
+                out.write(length - 1, 6);
+                out.write(xor >>> trailing, length);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static boolean fits(long value, int bits) {
+        long limit = 1L << (bits - 1);
+        return value >= -limit && value < limit;
+    }
+
+    /**
+     * @param block
+     *            encoded bytes
+     * @return number of points in the block
+     */
+    public static int count(byte[] block) {
+        BitReader in = new BitReader(block);
+        checkVersion(in);
+        return (int) in.read(32);
+    }
+
+    /**
+     * Decode the points of a block in timestamp order
+     *
+     * @param block
+     *            encoded bytes
+     * @param consumer
+     *            called with each point
+     */
+    public static void decode(byte[] block, PointConsumer consumer) {
+        BitReader in = new BitReader(block);
+        checkVersion(in);
+        int count = (int) in.read(32);
+        long timestamp = in.read(64);
+        long bits = in.read(64);
+        consumer.accept(timestamp, Double.longBitsToDouble(bits));
+        long delta = 0;
+        int leading = 0;
+        int trailing = 0;
+        for (int i = 1; i < count; i++) {
+            if (in.readBit()) {
+                if (!in.readBit()) {
+                    delta += in.readSigned(7);
+                } else if (!in.readBit()) {
+                    delta += in.readSigned(9);
+                } else if (!in.readBit()) {
+                    delta += in.readSigned(12);
+                } else if (!in.readBit()) {
+                    delta += in.readSigned(32);
+                } else {
+                    delta += in.read(64);
+                }
+            }
+            timestamp += delta;
+            if (in.readBit()) {
+                if (in.readBit()) {
+                    leading = (int) in.read(5);
+                    trailing = 64 - leading - ((int) in.read(6) + 1);
+                }
+                bits ^= in.read(64 - leading - trailing) << trailing;
+            }
+            consumer.accept(timestamp, Double.longBitsToDouble(bits));
+        }
+    }
+
+    private static void checkVersion(BitReader in) {
+        int version = (int) in.read(8);
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unknown time block version " + version);
+        }
+    }
+
+    private static final class BitWriter {
+
+        private byte[] buffer;
+        private int position = 0;
+
+        BitWriter(int size) {
+            buffer = new byte[size];
+        }
+
+        /**
+         * Write the low bits of value, most significant first
+         */
+        void write(long value, int bits) {
+            while (bits > 0) {
+                int index = position >>> 3;
+                if (index == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int free = 8 - (position & 7);
+                int n = Math.min(free, bits);
+                int chunk = (int) (value >>> (bits - n)) & ((1 << n) - 1);
+                buffer[index] |= chunk << (free - n);
+                position += n;
+                bits -= n;
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, (position + 7) >>> 3);
+        }
+    }
+
+    private static final class BitReader {
+
+        private final byte[] buffer;
+        private int position = 0;
+
+        BitReader(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        boolean readBit() {
+            boolean bit = ((buffer[position >>> 3] >>> (7 - (position & 7))) & 1) != 0;
+            position++;
+            return bit;
+        }
+
+        long read(int bits) {
+            long result = 0;
+            while (bits > 0) {
+                int available = 8 - (position & 7);
+                int n = Math.min(available, bits);
+                int chunk = (buffer[position >>> 3] >>> (available - n)) & ((1 << n) - 1);
+                result = (result << n) | chunk;
+                position += n;
+                bits -= n;
+            }
+            return result;
+        }
+
+        long readSigned(int bits) {
+            return (read(bits) << (64 - bits)) >> (64 - bits);
+        }
+    }
+}
@@ -2,8 +2,17 @@ package timely.api.annotation;
 
 import io.github.lukehutch.fastclasspathscanner.FastClasspathScanner;
 
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,6 +36,17 @@ public class AnnotationResolver {
     private static List<Class<?>> wsClasses = new ArrayList<>();
     private static List<Class<?>> udpClasses = new ArrayList<>();
 
+    /*
+     * Dispatch tables from operation or path to a factory for the request,
+     * built once from the classes above so that a message does not scan the
+     * classes or create the request reflectively.
+     */
+    private static final Map<String, Supplier<TcpRequest>> tcpOperations;
+    private static final Map<String, Supplier<HttpGetRequest>> httpGetPaths;
+    private static final Map<String, Supplier<HttpPostRequest>> httpPostPaths;
+    private static final Map<String, Supplier<WebSocketRequest>> wsOperations;
+    private static final Map<String, Supplier<UdpRequest>> udpOperations;
+
     private AnnotationResolver() {
     }
 
@@ -79,6 +99,55 @@ public class AnnotationResolver {
             }
         }
         LOG.trace("Loaded udp classes: {}", tcpClasses);
+
+        tcpOperations = dispatchTable(tcpClasses, TcpRequest.class, c -> c.getAnnotation(Tcp.class).operation());
+        httpGetPaths = dispatchTable(httpClasses, HttpGetRequest.class, c -> c.getAnnotation(Http.class).path());
+        httpPostPaths = dispatchTable(httpClasses, HttpPostRequest.class, c -> c.getAnnotation(Http.class).path());
+        wsOperations = dispatchTable(wsClasses, WebSocketRequest.class, c -> c.getAnnotation(WebSocket.class)
+                .operation());
+        udpOperations = dispatchTable(udpClasses, UdpRequest.class, c -> c.getAnnotation(Udp.class).operation());
+    }
+
+    private static <T> Map<String, Supplier<T>> dispatchTable(List<Class<?>> classes, Class<T> type,
+            Function<Class<?>, String> key) {
+        Map<String, Supplier<T>> table = new HashMap<>();
+        for (Class<?> c : classes) {
+            if (type.isAssignableFrom(c)) {
+                // the first class for an operation wins, as with the linear
+                // search this replaces
+                table.putIfAbsent(key.apply(c), factory(c.asSubclass(type)));
+            }
+        }
+        return Collections.unmodifiableMap(table);
+    }
+
+    /**
+     * @return a Supplier that calls the no argument constructor of c directly
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Supplier<T> factory(Class<? extends T> c) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle constructor = lookup.findConstructor(c, MethodType.methodType(void.class));
+            return (Supplier<T>) LambdaMetafactory
+                    .metafactory(lookup, "get", MethodType.methodType(Supplier.class),
+                            MethodType.methodType(Object.class), constructor, MethodType.methodType(c)).getTarget()
+                    .invokeExact();
+        } catch (Throwable t) {
+            LOG.warn("Unable to bind constructor of {}, using reflection: {}", c.getName(), t.getMessage());
+            return () -> {
+                try {
+                    return c.newInstance();
+                } catch (InstantiationException | IllegalAccessException e) {
+                    throw new IllegalStateException("Error creating " + c.getName(), e);
+                }
+            };
+        }
+    }
+
+    private static <T> T create(Map<String, Supplier<T>> table, String key) {
+        Supplier<T> factory = table.get(key);
+        return null == factory ? null : factory.get();
     }
 
     public static List<Class<?>> getTcpClasses() {
@@ -86,42 +155,17 @@ public class AnnotationResolver {
     }
 
     public static TcpRequest getClassForTcpOperation(String operation) throws Exception {
-        for (Class<?> c : tcpClasses) {
-            if (c.getAnnotation(Tcp.class).operation().equals(operation)) {
-                Object o = c.newInstance();
-                if (o instanceof TcpRequest) {
-                    LOG.trace("Returning {} for TCP operation {}", c, operation);
-                    return (TcpRequest) o;
-                }
-            }
-        }
-        return null;
+        return create(tcpOperations, operation);
     }
 
     public static HttpGetRequest getClassForHttpGet(String path) throws Exception {
         LOG.trace("Looking for class that support http get at path: {}", path);
-        for (Class<?> c : httpClasses) {
-            Http http = c.getAnnotation(Http.class);
-            if (http.path().equals(path) && (HttpGetRequest.class.isAssignableFrom(c))) {
-                Object o = c.newInstance();
-                LOG.trace("Returning: {}", c.getName());
-                return (HttpGetRequest) o;
-            }
-        }
-        return null;
+        return create(httpGetPaths, path);
     }
 
     public static HttpPostRequest getClassForHttpPost(String path) throws Exception {
         LOG.trace("Looking for class that support http post at path: {}", path);
-        for (Class<?> c : httpClasses) {
-            Http http = c.getAnnotation(Http.class);
-            if (http.path().equals(path) && (HttpPostRequest.class.isAssignableFrom(c))) {
-                Object o = c.newInstance();
-                LOG.trace("Returning: {}", c.getName());
-                return (HttpPostRequest) o;
-            }
-        }
-        return null;
+        return create(httpPostPaths, path);
     }
 
     public static List<Class<?>> getWebSocketClasses() {
@@ -129,29 +173,11 @@ public class AnnotationResolver {
     }
 
     public static WebSocketRequest getClassForWebSocketOperation(String operation) throws Exception {
-        for (Class<?> c : wsClasses) {
-            if (c.getAnnotation(WebSocket.class).operation().equals(operation)) {
-                Object o = c.newInstance();
-                if (o instanceof WebSocketRequest) {
-                    LOG.trace("Returning {} for WebSocket operation {}", c, operation);
-                    return (WebSocketRequest) o;
-                }
-            }
-        }
-        return null;
+        return create(wsOperations, operation);
     }
 
     public static UdpRequest getClassForUdpOperation(String operation) throws Exception {
-        for (Class<?> c : udpClasses) {
-            if (c.getAnnotation(Udp.class).operation().equals(operation)) {
-                Object o = c.newInstance();
-                if (o instanceof UdpRequest) {
-                    LOG.trace("Returning {} for UDP operation {}", c, operation);
-                    return (UdpRequest) o;
-                }
-            }
-        }
-        return null;
+        return create(udpOperations, operation);
     }
 
 }
@@ -11,6 +11,14 @@ public class Meta implements Comparable<Meta> {
     public static final String METRIC_PREFIX = "m:";
     public static final String TAG_PREFIX = "t:";
     public static final String VALUE_PREFIX = "v:";
+    /** name to UID entries of the UID dictionary */
+    public static final String UID_PREFIX = "u:";
+    /** UID to name entries of the UID dictionary */
+    public static final String UID_NAME_PREFIX = "un:";
+    /** blocks of UIDs claimed by a server */
+    public static final String UID_BLOCK_PREFIX = "ub:";
+    /** distinct value sketches of the tag keys of a metric */
+    public static final String STATISTICS_PREFIX = "s:";
 
     private String metric;
     private String tagKey;
@@ -0,0 +1,157 @@
+package timely.api.response.timeseries;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.builder.ToStringBuilder;
+
+/**
+ * How a sub query was answered, returned with each series when the query sets
+ * showQuery. Time ranges hold null where a tablet boundary is not a time of the
+ * metric.
+ */
+public class QueryPlan {
+
+    public static class TimeRange {
+
+        private Long start;
+        private Long end;
+
+        public TimeRange() {
+        }
+
+        public TimeRange(Long start, Long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public Long getStart() {
+            return start;
+        }
+
+        public void setStart(Long start) {
+            this.start = start;
+        }
+
+        public Long getEnd() {
+            return end;
+        }
+
+        public void setEnd(Long end) {
+            this.end = end;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + ", " + end + "]";
+        }
+    }
+
+    private String metric;
+    private Map<String, String> tags = new HashMap<>();
+    private String aggregator;
+    private long downsample;
+    private String table;
+    private long rollup = 0;
+    private long cachedUntil = 0;
+    private List<TimeRange> ranges = new ArrayList<>();
+
+    public String getMetric() {
+        return metric;
+    }
+
+    public void setMetric(String metric) {
+        this.metric = metric;
+    }
+
+    public Map<String, String> getTags() {
+        return tags;
+    }
+
+    public void setTags(Map<String, String> tags) {
+        this.tags = tags;
+    }
+
+    public String getAggregator() {
+        return aggregator;
+    }
+
+    public void setAggregator(String aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    /**
+     * @return downsample period in ms
+     */
+    public long getDownsample() {
+        return downsample;
+    }
+
+    public void setDownsample(long downsample) {
+        this.downsample = downsample;
+    }
+
+    /**
+     * @return table that was scanned, or null if the result came from the cache
+     */
+    public String getTable() {
+        return table;
+    }
+
+    public void setTable(String table) {
+        this.table = table;
+    }
+
+    /**
+     * @return period of the rollup table in ms, or 0 if the points were read
+     */
+    public long getRollup() {
+        return rollup;
+    }
+
+    public void setRollup(long rollup) {
+        this.rollup = rollup;
+    }
+
+    /**
+     * @return end of the buckets taken from the query result cache, or 0
+     */
+    public long getCachedUntil() {
+        return cachedUntil;
+    }
+
+    public void setCachedUntil(long cachedUntil) {
+        this.cachedUntil = cachedUntil;
+    }
+
+    /**
+     * @return time ranges of the scan, one per tablet
+     */
+    public List<TimeRange> getRanges() {
+        return ranges;
+    }
+
+    public void setRanges(List<TimeRange> ranges) {
+        this.ranges = ranges;
+    }
+
+    public void addRange(Long start, Long end) {
+        this.ranges.add(new TimeRange(start, end));
+    }
+
+    @Override
+    public String toString() {
+        ToStringBuilder tsb = new ToStringBuilder(this);
+        tsb.append("metric", metric);
+        tsb.append("tags", tags);
+        tsb.append("aggregator", aggregator);
+        tsb.append("downsample", downsample);
+        tsb.append("table", table);
+        tsb.append("rollup", rollup);
+        tsb.append("cachedUntil", cachedUntil);
+        tsb.append("ranges", ranges);
+        return tsb.toString();
+    }
+}
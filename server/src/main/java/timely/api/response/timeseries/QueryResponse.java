@@ -1,19 +1,82 @@
 package timely.api.response.timeseries;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.TreeMap;
 
 import org.apache.commons.lang3.builder.ToStringBuilder;
 
+import timely.api.response.timeseries.QueryResponse.QueryResponseSerializer;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+/**
+ * One series of a query result. The data points are held in parallel arrays of
+ * timestamps and values sorted by timestamp and written as the OpenTSDB dps
+ * object without creating a String or Double for each point.
+ */
+@JsonSerialize(using = QueryResponseSerializer.class)
 public class QueryResponse {
 
+    public static class QueryResponseSerializer extends JsonSerializer<QueryResponse> {
+
+        @Override
+        public void serialize(QueryResponse value, JsonGenerator gen, SerializerProvider serializers)
+                throws IOException, JsonProcessingException {
+            gen.writeStartObject();
+            gen.writeStringField("metric", value.metric);
+            gen.writeFieldName("tags");
+            if (null == value.tags) {
+                gen.writeNull();
+            } else {
+                gen.writeStartObject();
+                for (Entry<String, String> tag : value.tags.entrySet()) {
+                    gen.writeStringField(tag.getKey(), tag.getValue());
+                }
+                gen.writeEndObject();
+            }
+            gen.writeFieldName("aggregatedTags");
+            if (null == value.aggregatedTags) {
+                gen.writeNull();
+            } else {
+                gen.writeStartArray();
+                for (String tag : value.aggregatedTags) {
+                    gen.writeString(tag);
+                }
+                gen.writeEndArray();
+            }
+            gen.writeFieldName("dps");
+            gen.writeStartObject();
+            for (int i = 0; i < value.size; i++) {
+                gen.writeFieldName(Long.toString(value.timestamps[i]));
+                gen.writeNumber(value.values[i]);
+            }
+            gen.writeEndObject();
+            if (null != value.query) {
+                serializers.defaultSerializeField("query", value.query, gen);
+            }
+            gen.writeEndObject();
+        }
+    }
+
+    private static final int INITIAL_CAPACITY = 16;
+
     private String metric;
     private Map<String, String> tags = new HashMap<>();
     private List<String> aggregatedTags = new ArrayList<>();
-    private Map<String, Object> dps = new TreeMap<>();
+    private long[] timestamps = new long[0];
+    private double[] values = new double[0];
+    private int size = 0;
+    private QueryPlan query = null;
 
     public String getMetric() {
         return metric;
@@ -47,16 +110,72 @@ public class QueryResponse {
         this.aggregatedTags.add(tag);
     }
 
+    /**
+     * @return plan of the sub query, or null unless showQuery was requested
+     */
+    public QueryPlan getQuery() {
+        return query;
+    }
+
+    public void setQuery(QueryPlan query) {
+        this.query = query;
+    }
+
+    /**
+     * @return copy of the data points keyed by the timestamp as a String
+     */
     public Map<String, Object> getDps() {
+        Map<String, Object> dps = new TreeMap<>();
+        for (int i = 0; i < size; i++) {
+            dps.put(Long.toString(timestamps[i]), values[i]);
+        }
         return dps;
     }
 
     public void setDps(Map<String, Object> dps) {
-        this.dps = dps;
+        this.timestamps = new long[dps.size()];
+        this.values = new double[dps.size()];
+        this.size = 0;
+        dps.forEach(this::putDps);
     }
 
     public void putDps(String key, Object value) {
-        this.dps.put(key, value);
+        // non numeric values such as NaN are written as strings
+        double d = value instanceof Number ? ((Number) value).doubleValue() : Double.parseDouble(value.toString());
+        addDps(Long.parseLong(key), d);
+    }
+
+    /**
+     * Add a data point, replacing the value of an existing timestamp. Adding
+     * points in timestamp order only appends to the arrays.
+     *
+     * @param ts
+     *            timestamp
+     * @param value
+     *            value
+     */
+    public void addDps(long ts, double value) {
+        int pos = size;
+        if (size > 0 && ts <= timestamps[size - 1]) {
+            pos = Arrays.binarySearch(timestamps, 0, size, ts);
+            if (pos >= 0) {
+                values[pos] = value;
+                return;
+            }
+            pos = -pos - 1;
+        }
+        if (size == timestamps.length) {
+            int capacity = Math.max(INITIAL_CAPACITY, size + (size >> 1));
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        if (pos < size) {
+            System.arraycopy(timestamps, pos, timestamps, pos + 1, size - pos);
+            System.arraycopy(values, pos, values, pos + 1, size - pos);
+        }
+        timestamps[pos] = ts;
+        values[pos] = value;
+        size++;
     }
 
     @Override
@@ -65,8 +184,9 @@ public class QueryResponse {
         tsb.append("metric", this.metric);
         tsb.append("tags", this.tags);
         tsb.append("aggregatedTags", this.aggregatedTags);
-        tsb.append("dps", this.dps);
+        tsb.append("dps", this.getDps());
+        tsb.append("query", this.query);
         return tsb.toString();
     }
 
-}
\ No newline at end of file
+}
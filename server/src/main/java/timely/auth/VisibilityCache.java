@@ -22,7 +22,12 @@ public class VisibilityCache {
     }
 
     public static ColumnVisibility getColumnVisibility(String visibilityString) {
-        return CACHE.get(visibilityString, key -> generateNormalizedVisibility(key));
+        Cache<String, ColumnVisibility> cache = CACHE;
+        if (null == cache) {
+            // not initialized, for example outside of the server
+            return generateNormalizedVisibility(visibilityString);
+        }
+        return cache.get(visibilityString, key -> generateNormalizedVisibility(key));
     }
 
     private static final ColumnVisibility generateNormalizedVisibility(String visibilityString) {
@@ -12,41 +12,77 @@ import io.netty.handler.codec.http.HttpVersion;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import timely.Configuration;
 import timely.api.request.timeseries.QueryRequest;
 import timely.api.response.TimelyException;
 import timely.netty.Constants;
 import timely.netty.http.TimelyHttpHandler;
 import timely.store.DataStore;
+import timely.store.QueryExecutor;
 import timely.util.JsonUtil;
 
 public class HttpQueryRequestHandler extends SimpleChannelInboundHandler<QueryRequest> implements TimelyHttpHandler {
 
     private static final Logger LOG = LoggerFactory.getLogger(HttpQueryRequestHandler.class);
     private final DataStore dataStore;
+    private final QueryExecutor queryExecutor;
+    private final boolean streamResponses;
+    private final int streamChunkSize;
 
-    public HttpQueryRequestHandler(DataStore dataStore) {
+    public HttpQueryRequestHandler(DataStore dataStore, QueryExecutor queryExecutor, Configuration conf) {
         this.dataStore = dataStore;
+        this.queryExecutor = queryExecutor;
+        this.streamResponses = conf.getQuery().isStreamResponses();
+        this.streamChunkSize = conf.getQuery().getStreamChunkSize();
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, QueryRequest msg) throws Exception {
-        byte[] buf;
-        try {
-            buf = JsonUtil.getObjectMapper().writeValueAsBytes(dataStore.query(msg));
-        } catch (TimelyException e) {
-            if (e.getMessage().contains("No matching tags")) {
-                LOG.trace(e.getMessage());
+        if (streamResponses) {
+            streamQuery(ctx, msg);
+            return;
+        }
+        queryExecutor.execute(ctx, msg, () -> JsonUtil.getObjectMapper().writeValueAsBytes(dataStore.query(msg)),
+                buf -> {
+                    FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                            HttpResponseStatus.OK, Unpooled.copiedBuffer(buf));
+                    response.headers().set(Names.CONTENT_TYPE, Constants.JSON_TYPE);
+                    response.headers().set(Names.CONTENT_LENGTH, response.content().readableBytes());
+                    sendResponse(ctx, response);
+                }, e -> handleError(ctx, e));
+    }
+
+    /**
+     * Write each series to the client as it is completed instead of holding the
+     * whole response in memory.
+     */
+    private void streamQuery(ChannelHandlerContext ctx, QueryRequest msg) {
+        QueryResponseWriter writer = new QueryResponseWriter(ctx, streamChunkSize);
+        queryExecutor.execute(ctx, msg, () -> {
+            dataStore.query(msg, writer);
+            writer.finish();
+            return writer;
+        }, w -> {
+        }, e -> {
+            writer.release();
+            if (writer.isStarted()) {
+                // the status has been sent, closing the connection is the
+                // only way to tell the client that the response is incomplete
+                LOG.error("Error after the response was started: " + e.getMessage(), e);
+                ctx.close();
             } else {
-                LOG.error(e.getMessage(), e);
+                handleError(ctx, e);
             }
-            this.sendHttpError(ctx, e);
-            return;
+        });
+    }
+
+    private void handleError(ChannelHandlerContext ctx, TimelyException e) throws Exception {
+        if (e.getMessage().contains("No matching tags")) {
+            LOG.trace(e.getMessage());
+        } else {
+            LOG.error(e.getMessage(), e);
         }
-        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
-                Unpooled.copiedBuffer(buf));
-        response.headers().set(Names.CONTENT_TYPE, Constants.JSON_TYPE);
-        response.headers().set(Names.CONTENT_LENGTH, response.content().readableBytes());
-        sendResponse(ctx, response);
+        this.sendHttpError(ctx, e);
     }
 
 }
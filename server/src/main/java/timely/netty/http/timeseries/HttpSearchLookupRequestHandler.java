@@ -13,37 +13,37 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import timely.api.request.timeseries.SearchLookupRequest;
-import timely.api.response.TimelyException;
 import timely.netty.Constants;
 import timely.netty.http.TimelyHttpHandler;
 import timely.store.DataStore;
+import timely.store.QueryExecutor;
 import timely.util.JsonUtil;
 
 public class HttpSearchLookupRequestHandler extends SimpleChannelInboundHandler<SearchLookupRequest> implements
         TimelyHttpHandler {
 
     private static final Logger LOG = LoggerFactory.getLogger(HttpSearchLookupRequestHandler.class);
-    private DataStore dataStore;
+    private final DataStore dataStore;
+    private final QueryExecutor queryExecutor;
 
-    public HttpSearchLookupRequestHandler(DataStore dataStore) {
+    public HttpSearchLookupRequestHandler(DataStore dataStore, QueryExecutor queryExecutor) {
         this.dataStore = dataStore;
+        this.queryExecutor = queryExecutor;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, SearchLookupRequest msg) throws Exception {
-        byte[] buf = null;
-        try {
-            buf = JsonUtil.getObjectMapper().writeValueAsBytes(dataStore.lookup(msg));
-        } catch (TimelyException e) {
-            LOG.error(e.getMessage(), e);
-            this.sendHttpError(ctx, e);
-            return;
-        }
-        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK,
-                Unpooled.copiedBuffer(buf));
-        response.headers().set(Names.CONTENT_TYPE, Constants.JSON_TYPE);
-        response.headers().set(Names.CONTENT_LENGTH, response.content().readableBytes());
-        sendResponse(ctx, response);
+        queryExecutor.execute(ctx, msg, () -> JsonUtil.getObjectMapper().writeValueAsBytes(dataStore.lookup(msg)),
+                buf -> {
+                    FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                            HttpResponseStatus.OK, Unpooled.copiedBuffer(buf));
+                    response.headers().set(Names.CONTENT_TYPE, Constants.JSON_TYPE);
+                    response.headers().set(Names.CONTENT_LENGTH, response.content().readableBytes());
+                    sendResponse(ctx, response);
+                }, e -> {
+                    LOG.error(e.getMessage(), e);
+                    this.sendHttpError(ctx, e);
+                });
     }
 
 }
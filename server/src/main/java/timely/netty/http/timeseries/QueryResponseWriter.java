@@ -0,0 +1,158 @@
+package timely.netty.http.timeseries;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.DefaultHttpContent;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpHeaders.Names;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.function.Consumer;
+
+import timely.api.response.timeseries.QueryResponse;
+import timely.netty.Constants;
+import timely.util.JsonUtil;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Writes the series of a query response as a JSON array using HTTP chunked
+ * transfer encoding. Each series is written into a pooled buffer as soon as it
+ * is passed in and the buffer is sent once it holds at least chunkSize bytes.
+ * The response headers are sent with the first chunk, until then the query can
+ * still fail with an error response. Series may be passed in from several
+ * threads.
+ */
+class QueryResponseWriter implements Consumer<QueryResponse> {
+
+    private final ChannelHandlerContext ctx;
+    private final int chunkSize;
+    private final ObjectMapper mapper = JsonUtil.getObjectMapper();
+    private JsonGenerator generator = null;
+    private ByteBuf buf = null;
+    private boolean started = false;
+    private boolean released = false;
+
+    QueryResponseWriter(ChannelHandlerContext ctx, int chunkSize) {
+        this.ctx = ctx;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public void accept(QueryResponse response) {
+        ChannelFuture f = null;
+        synchronized (this) {
+            try {
+                if (released) {
+                    throw new ClosedChannelException();
+                }
+                if (null == generator) {
+                    generator = mapper.getFactory().createGenerator(new ChunkOutputStream());
+                    generator.writeStartArray();
+                }
+                mapper.writeValue(generator, response);
+                generator.flush();
+                if (buf.readableBytes() >= chunkSize) {
+                    f = sendChunk();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        // Stop producing until a slow client catches up. This waits outside of
+        // the lock as the event loop may need it to release the writer.
+        if (null != f && !ctx.channel().isWritable()) {
+            f.awaitUninterruptibly();
+        }
+    }
+
+    /**
+     * Close the array and send the remaining bytes and the end of the response
+     */
+    synchronized void finish() throws IOException {
+        if (null == generator) {
+            generator = mapper.getFactory().createGenerator(new ChunkOutputStream());
+            generator.writeStartArray();
+        }
+        generator.writeEndArray();
+        generator.close();
+        sendHeaders();
+        LastHttpContent last = new DefaultLastHttpContent(buf);
+        buf = null;
+        ctx.writeAndFlush(last);
+    }
+
+    /**
+     * @return true if the response headers have been sent, after that an error
+     *         can not be returned to the client anymore
+     */
+    synchronized boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Release anything that has not been sent
+     */
+    synchronized void release() {
+        released = true;
+        if (null != buf) {
+            buf.release();
+            buf = null;
+        }
+    }
+
+    private void sendHeaders() {
+        if (!started) {
+            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+            response.headers().set(Names.CONTENT_TYPE, Constants.JSON_TYPE);
+            HttpHeaders.setTransferEncodingChunked(response);
+            ctx.write(response);
+            started = true;
+        }
+    }
+
+    private ChannelFuture sendChunk() throws IOException {
+        if (!ctx.channel().isActive()) {
+            release();
+            throw new ClosedChannelException();
+        }
+        sendHeaders();
+        ChannelFuture f = ctx.writeAndFlush(new DefaultHttpContent(buf));
+        buf = null;
+        return f;
+    }
+
+    /**
+     * Only called while the lock is held, the generator writes into this
+     */
+    private synchronized ByteBuf buffer() {
+        if (null == buf) {
+            buf = ctx.alloc().buffer(chunkSize);
+        }
+        return buf;
+    }
+
+    private class ChunkOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+            buffer().writeByte(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            buffer().writeBytes(b, off, len);
+        }
+    }
+}
@@ -58,7 +58,7 @@ public class MetricsBufferDecoder extends ByteToMessageDecoder {
                 .value(flatMetric.timestamp(), flatMetric.value());
         for (int i = 0; i < flatMetric.tagsLength(); i++) {
             timely.api.flatbuffer.Tag t = flatMetric.tags(i);
-            builder.tag(new Tag(t.key(), t.value()));
+            builder.tag(Tag.of(t.key(), t.value()));
         }
         return builder.build();
     }
@@ -0,0 +1,270 @@
+package timely.netty.tcp;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import io.netty.buffer.ByteBuf;
+
+import timely.model.Metric;
+import timely.model.Tag;
+
+/**
+ * Parses a put line
+ *
+ * <pre>
+ * put &lt;metricName&gt; &lt;timestamp&gt; &lt;value&gt; &lt;tagK=tagV&gt; &lt;tagK=tagV&gt; ...
+ * </pre>
+ *
+ * from the bytes of a frame without splitting it into Strings first. Only the
+ * metric name, tag keys and tag values become Strings, the timestamp and value
+ * are parsed from the bytes. Values that can not be converted exactly from the
+ * digits fall back to {@link Double#parseDouble(String)}. Instances keep a
+ * buffer for frames that are not backed by an array and are not thread safe.
+ */
+public class PutLineParser {
+
+    private static final byte[] PUT = "put ".getBytes(ISO_8859_1);
+
+    /** Powers of ten that are exact doubles */
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+            1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    /** Mantissas up to this value are exact doubles */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private byte[] scratch = new byte[256];
+
+    /**
+     * @param buf
+     *            frame
+     * @return true if the readable bytes of buf start with "put "
+     */
+    public static boolean isPut(ByteBuf buf) {
+        if (buf.readableBytes() < PUT.length) {
+            return false;
+        }
+        int idx = buf.readerIndex();
+        for (int i = 0; i < PUT.length; i++) {
+            if (buf.getByte(idx + i) != PUT[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse the readable bytes of buf, the reader index is not changed
+     *
+     * @param buf
+     *            frame that contains one put line
+     * @return metric
+     * @throws IllegalArgumentException
+     *             if the line is not a valid put
+     */
+    public Metric parse(ByteBuf buf) {
+        int len = buf.readableBytes();
+        byte[] b;
+        int off;
+        if (buf.hasArray()) {
+            b = buf.array();
+            off = buf.arrayOffset() + buf.readerIndex();
+        } else {
+            if (scratch.length < len) {
+                scratch = new byte[Math.max(len, scratch.length * 2)];
+            }
+            buf.getBytes(buf.readerIndex(), scratch, 0, len);
+            b = scratch;
+            off = 0;
+        }
+        return parse(b, off, off + len);
+    }
+
+    /**
+     * Parse a put line from b[start] to b[end - 1]
+     */
+    Metric parse(byte[] b, int start, int end) {
+        // index 0 is put
+        int pos = skipSpaces(b, nextSpace(b, skipSpaces(b, start, end), end), end);
+        int tokenEnd = nextSpace(b, pos, end);
+        if (pos == tokenEnd) {
+            throw new IllegalArgumentException("Missing metric name: " + line(b, start, end));
+        }
+        String name = string(b, pos, tokenEnd);
+
+        pos = skipSpaces(b, tokenEnd, end);
+        tokenEnd = nextSpace(b, pos, end);
+        long timestamp = parseLong(b, pos, tokenEnd);
+
+        pos = skipSpaces(b, tokenEnd, end);
+        tokenEnd = nextSpace(b, pos, end);
+        if (pos == tokenEnd) {
+            throw new IllegalArgumentException("Missing value: " + line(b, start, end));
+        }
+        double value = parseDouble(b, pos, tokenEnd);
+
+        Metric metric = new Metric(name, timestamp, value);
+        pos = skipSpaces(b, tokenEnd, end);
+        while (pos < end) {
+            tokenEnd = nextSpace(b, pos, end);
+            int eq = -1;
+            for (int i = pos; i < tokenEnd; i++) {
+                if (b[i] == '=') {
+                    if (eq != -1) {
+                        eq = -1;
+                        break;
+                    }
+                    eq = i;
+                }
+            }
+            if (eq == -1) {
+                throw new IllegalArgumentException("Invalid tag format: " + string(b, pos, tokenEnd));
+            }
+            metric.getTags().add(Tag.of(string(b, pos, eq), string(b, eq + 1, tokenEnd)));
+            pos = skipSpaces(b, tokenEnd, end);
+        }
+        return metric;
+    }
+
+    private static boolean isSpace(byte c) {
+        // also covers a trailing carriage return, tabs and other control
+        // characters
+        return c >= 0 && c <= ' ';
+    }
+
+    private static int skipSpaces(byte[] b, int pos, int end) {
+        while (pos < end && isSpace(b[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int nextSpace(byte[] b, int pos, int end) {
+        while (pos < end && !isSpace(b[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static String string(byte[] b, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (b[i] < 0) {
+                return new String(b, start, end - start, UTF_8);
+            }
+        }
+        // ASCII decodes the same as ISO-8859-1, which does not need a decoder
+        return new String(b, start, end - start, ISO_8859_1);
+    }
+
+    private static String line(byte[] b, int start, int end) {
+        return new String(b, start, end - start, UTF_8);
+    }
+
+    static long parseLong(byte[] b, int start, int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (b[pos] == '-' || b[pos] == '+')) {
+            negative = b[pos] == '-';
+            pos++;
+        }
+        if (pos == end) {
+            throw new NumberFormatException("Invalid timestamp: " + line(b, start, end));
+        }
+        // accumulate negatively so that Long.MIN_VALUE can be parsed
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long result = 0;
+        for (; pos < end; pos++) {
+            int digit = b[pos] - '0';
+            if (digit < 0 || digit > 9 || result < limit / 10) {
+                throw new NumberFormatException("Invalid timestamp: " + line(b, start, end));
+            }
+            result *= 10;
+            if (result < limit + digit) {
+                throw new NumberFormatException("Invalid timestamp: " + line(b, start, end));
+            }
+            result -= digit;
+        }
+        return negative ? result : -result;
+    }
+
+    static double parseDouble(byte[] b, int start, int end) {
+        int pos = start;
+        boolean negative = false;
+        if (pos < end && (b[pos] == '-' || b[pos] == '+')) {
+            negative = b[pos] == '-';
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigits = false;
+        for (; pos < end && b[pos] >= '0' && b[pos] <= '9'; pos++) {
+            anyDigits = true;
+            if (mantissa != 0 || b[pos] != '0') {
+                mantissa = mantissa * 10 + (b[pos] - '0');
+                digits++;
+            }
+            if (digits > 18) {
+                return fallback(b, start, end);
+            }
+        }
+        if (pos < end && b[pos] == '.') {
+            pos++;
+            for (; pos < end && b[pos] >= '0' && b[pos] <= '9'; pos++) {
+                anyDigits = true;
+                if (mantissa != 0 || b[pos] != '0') {
+                    mantissa = mantissa * 10 + (b[pos] - '0');
+                    digits++;
+                }
+                exponent--;
+                if (digits > 18) {
+                    return fallback(b, start, end);
+                }
+            }
+        }
+        if (!anyDigits) {
+            // NaN, Infinity or invalid
+            return fallback(b, start, end);
+        }
+        if (pos < end && (b[pos] == 'e' || b[pos] == 'E')) {
+            pos++;
+            boolean negativeExp = false;
+            if (pos < end && (b[pos] == '-' || b[pos] == '+')) {
+                negativeExp = b[pos] == '-';
+                pos++;
+            }
+            int exp = 0;
+            int expStart = pos;
+            for (; pos < end && b[pos] >= '0' && b[pos] <= '9'; pos++) {
+                exp = exp * 10 + (b[pos] - '0');
+                if (exp > 1000) {
+                    return fallback(b, start, end);
+                }
+            }
+            if (pos == expStart) {
+                return fallback(b, start, end);
+            }
+            exponent += negativeExp ? -exp : exp;
+        }
+        if (pos != end || mantissa > MAX_EXACT_MANTISSA) {
+            return fallback(b, start, end);
+        }
+        // Both the mantissa and the power of ten are exact doubles, so one
+        // multiplication or division gives the correctly rounded result.
+        double value;
+        if (mantissa == 0) {
+            value = 0.0;
+        } else if (exponent == 0) {
+            value = mantissa;
+        } else if (exponent > 0 && exponent < POWERS_OF_TEN.length) {
+            value = mantissa * POWERS_OF_TEN[exponent];
+        } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+            value = mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            return fallback(b, start, end);
+        }
+        return negative ? -value : value;
+    }
+
+    private static double fallback(byte[] b, int start, int end) {
+        return Double.parseDouble(new String(b, start, end - start, ISO_8859_1));
+    }
+}
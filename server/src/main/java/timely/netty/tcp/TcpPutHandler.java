@@ -6,6 +6,8 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,30 +15,64 @@ import org.slf4j.LoggerFactory;
 import timely.api.request.MetricRequest;
 import timely.model.Metric;
 import timely.netty.Constants;
-import timely.store.DataStore;
+import timely.store.IngestPipeline;
 
+/**
+ * Collects the metrics decoded from one read of the channel and passes them to
+ * the {@link IngestPipeline} with one call when the read completes, or earlier
+ * once MAX_BATCH_SIZE metrics have been collected. A new instance is needed for
+ * each channel.
+ */
 public class TcpPutHandler extends SimpleChannelInboundHandler<MetricRequest> {
 
     private static final Logger LOG = LoggerFactory.getLogger(TcpPutHandler.class);
-    private static final String LOG_ERR_MSG = "Error storing put metric: {}";
+    private static final String LOG_ERR_MSG = "Error storing {} put metrics";
     private static final String ERR_MSG = "Error storing put metric: ";
-    private DataStore store;
+    static final int MAX_BATCH_SIZE = 10000;
+    private final IngestPipeline ingest;
+    private List<Metric> batch = new ArrayList<>();
 
-    public TcpPutHandler(DataStore store) {
-        this.store = store;
+    public TcpPutHandler(IngestPipeline ingest) {
+        this.ingest = ingest;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, MetricRequest msg) throws Exception {
         LOG.trace("Received {}", msg);
+        batch.add(msg.getMetric());
+        if (batch.size() >= MAX_BATCH_SIZE) {
+            storeBatch(ctx);
+        }
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        storeBatch(ctx);
+        super.channelReadComplete(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        storeBatch(ctx);
+        super.channelInactive(ctx);
+    }
+
+    private void storeBatch(ChannelHandlerContext ctx) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<Metric> metrics = batch;
+        batch = new ArrayList<>(metrics.size());
         try {
-            store.store(msg.getMetric());
+            ingest.store(metrics);
         } catch (Exception e) {
-            LOG.error(LOG_ERR_MSG, msg, e);
-            ChannelFuture cf = ctx.writeAndFlush(Unpooled.copiedBuffer((ERR_MSG + e.getMessage() + "\n")
-                    .getBytes(StandardCharsets.UTF_8)));
-            if (!cf.isSuccess()) {
-                LOG.error(Constants.ERR_WRITING_RESPONSE, cf.cause());
+            LOG.error(LOG_ERR_MSG, metrics.size(), e);
+            if (ctx.channel().isActive()) {
+                ChannelFuture cf = ctx.writeAndFlush(Unpooled.copiedBuffer((ERR_MSG + e.getMessage() + "\n")
+                        .getBytes(StandardCharsets.UTF_8)));
+                if (!cf.isSuccess()) {
+                    LOG.error(Constants.ERR_WRITING_RESPONSE, cf.cause());
+                }
             }
         }
     }
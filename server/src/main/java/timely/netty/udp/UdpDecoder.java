@@ -13,15 +13,30 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import timely.api.annotation.AnnotationResolver;
+import timely.api.request.MetricRequest;
 import timely.api.request.UdpRequest;
+import timely.netty.tcp.PutLineParser;
 
 public class UdpDecoder extends ByteToMessageDecoder {
 
     private static final Logger LOG = LoggerFactory.getLogger(UdpDecoder.class);
 
+    private final PutLineParser putParser = new PutLineParser();
+
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
 
+        if (PutLineParser.isPut(in)) {
+            // parse puts from the frame without copying it into a String
+            try {
+                MetricRequest put = new MetricRequest(putParser.parse(in));
+                out.add(put);
+                LOG.trace("Converted put to {}", put);
+            } finally {
+                in.skipBytes(in.readableBytes());
+            }
+            return;
+        }
         ByteBuf buf = in.readBytes(in.readableBytes());
         try {
             if (buf == Unpooled.EMPTY_BUFFER) {
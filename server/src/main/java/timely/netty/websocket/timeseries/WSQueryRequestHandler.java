@@ -9,33 +9,33 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import timely.api.request.timeseries.QueryRequest;
-import timely.api.response.TimelyException;
 import timely.netty.http.timeseries.HttpQueryRequestHandler;
 import timely.store.DataStore;
+import timely.store.QueryExecutor;
 import timely.util.JsonUtil;
 
 public class WSQueryRequestHandler extends SimpleChannelInboundHandler<QueryRequest> {
 
     private static final Logger LOG = LoggerFactory.getLogger(HttpQueryRequestHandler.class);
     private final DataStore dataStore;
+    private final QueryExecutor queryExecutor;
 
-    public WSQueryRequestHandler(DataStore dataStore) {
+    public WSQueryRequestHandler(DataStore dataStore, QueryExecutor queryExecutor) {
         this.dataStore = dataStore;
+        this.queryExecutor = queryExecutor;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, QueryRequest msg) throws Exception {
-        try {
-            String response = JsonUtil.getObjectMapper().writeValueAsString(dataStore.query(msg));
-            ctx.writeAndFlush(new TextWebSocketFrame(response));
-        } catch (TimelyException e) {
-            if (e.getMessage().contains("No matching tags")) {
-                LOG.trace(e.getMessage());
-            } else {
-                LOG.error(e.getMessage(), e);
-            }
-            ctx.writeAndFlush(new CloseWebSocketFrame(1008, e.getMessage()));
-        }
+        queryExecutor.execute(ctx, msg, () -> JsonUtil.getObjectMapper().writeValueAsString(dataStore.query(msg)),
+                response -> ctx.writeAndFlush(new TextWebSocketFrame(response)), e -> {
+                    if (e.getMessage().contains("No matching tags")) {
+                        LOG.trace(e.getMessage());
+                    } else {
+                        LOG.error(e.getMessage(), e);
+                    }
+                    ctx.writeAndFlush(new CloseWebSocketFrame(1008, e.getMessage()));
+                });
     }
 
 }
@@ -9,28 +9,28 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import timely.api.request.timeseries.SearchLookupRequest;
-import timely.api.response.TimelyException;
 import timely.store.DataStore;
+import timely.store.QueryExecutor;
 import timely.util.JsonUtil;
 
 public class WSSearchLookupRequestHandler extends SimpleChannelInboundHandler<SearchLookupRequest> {
 
     private static final Logger LOG = LoggerFactory.getLogger(WSSearchLookupRequestHandler.class);
-    private DataStore dataStore;
+    private final DataStore dataStore;
+    private final QueryExecutor queryExecutor;
 
-    public WSSearchLookupRequestHandler(DataStore dataStore) {
+    public WSSearchLookupRequestHandler(DataStore dataStore, QueryExecutor queryExecutor) {
         this.dataStore = dataStore;
+        this.queryExecutor = queryExecutor;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, SearchLookupRequest msg) throws Exception {
-        try {
-            String response = JsonUtil.getObjectMapper().writeValueAsString(dataStore.lookup(msg));
-            ctx.writeAndFlush(new TextWebSocketFrame(response));
-        } catch (TimelyException e) {
-            LOG.error(e.getMessage(), e);
-            ctx.writeAndFlush(new CloseWebSocketFrame(1008, e.getMessage()));
-        }
+        queryExecutor.execute(ctx, msg, () -> JsonUtil.getObjectMapper().writeValueAsString(dataStore.lookup(msg)),
+                response -> ctx.writeAndFlush(new TextWebSocketFrame(response)), e -> {
+                    LOG.error(e.getMessage(), e);
+                    ctx.writeAndFlush(new CloseWebSocketFrame(1008, e.getMessage()));
+                });
     }
 
 }
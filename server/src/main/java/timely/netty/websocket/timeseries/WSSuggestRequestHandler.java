@@ -9,29 +9,29 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import timely.api.request.timeseries.SuggestRequest;
-import timely.api.response.TimelyException;
 import timely.netty.http.timeseries.HttpSuggestRequestHandler;
 import timely.store.DataStore;
+import timely.store.QueryExecutor;
 import timely.util.JsonUtil;
 
 public class WSSuggestRequestHandler extends SimpleChannelInboundHandler<SuggestRequest> {
 
     private static final Logger LOG = LoggerFactory.getLogger(HttpSuggestRequestHandler.class);
     private final DataStore dataStore;
+    private final QueryExecutor queryExecutor;
 
-    public WSSuggestRequestHandler(DataStore dataStore) {
+    public WSSuggestRequestHandler(DataStore dataStore, QueryExecutor queryExecutor) {
         this.dataStore = dataStore;
+        this.queryExecutor = queryExecutor;
     }
 
     @Override
     protected void channelRead0(ChannelHandlerContext ctx, SuggestRequest msg) throws Exception {
-        try {
-            String response = JsonUtil.getObjectMapper().writeValueAsString(dataStore.suggest(msg));
-            ctx.writeAndFlush(new TextWebSocketFrame(response));
-        } catch (TimelyException e) {
-            LOG.error(e.getMessage(), e);
-            ctx.writeAndFlush(new CloseWebSocketFrame(1008, e.getMessage()));
-        }
+        queryExecutor.execute(ctx, msg, () -> JsonUtil.getObjectMapper().writeValueAsString(dataStore.suggest(msg)),
+                response -> ctx.writeAndFlush(new TextWebSocketFrame(response)), e -> {
+                    LOG.error(e.getMessage(), e);
+                    ctx.writeAndFlush(new CloseWebSocketFrame(1008, e.getMessage()));
+                });
     }
 
 }
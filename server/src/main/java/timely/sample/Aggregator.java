@@ -23,6 +23,25 @@ public interface Aggregator {
      */
     double aggregate(double current, int count, double update);
 
+    /**
+     * Combine two partial results, each the last value returned from aggregate
+     * for some of the items of the same aggregate. By default the second
+     * partial is incorporated as if it were a single value.
+     *
+     * @param current
+     *            first partial result
+     * @param count
+     *            the number of items aggregated into current
+     * @param other
+     *            second partial result
+     * @param otherCount
+     *            the number of items aggregated into other
+     * @return the combination of both partial results
+     */
+    default double merge(double current, int count, double other, int otherCount) {
+        return aggregate(current, count, other);
+    }
+
     /**
      * Compute the final value given the aggregated amount and the number of
      * items in the aggregate.
@@ -0,0 +1,54 @@
+package timely.sample;
+
+/**
+ * Storage for the aggregated value and count of each bucket in a
+ * {@link Downsample}. Buckets with a count of zero are empty.
+ */
+interface Buckets {
+
+    /**
+     * @return total number of buckets, empty or not
+     */
+    int size();
+
+    /**
+     * @return number of non-empty buckets
+     */
+    int nonEmpty();
+
+    /**
+     * @param bucket
+     *            bucket index
+     * @return number of values aggregated into the bucket
+     */
+    int count(int bucket);
+
+    /**
+     * @param bucket
+     *            bucket index
+     * @return aggregated value of the bucket, zero if empty
+     */
+    double value(int bucket);
+
+    /**
+     * @param bucket
+     *            bucket index
+     * @return index of the first non-empty bucket at or after bucket, or
+     *         {@link #size()} if there is none
+     */
+    int next(int bucket);
+
+    /**
+     * Set the value and count of a bucket
+     *
+     * @param bucket
+     *            bucket index
+     * @param value
+     *            aggregated value
+     * @param count
+     *            number of values aggregated, greater than zero
+     * @return the buckets to use from now on, which may be a different
+     *         representation of the same buckets
+     */
+    Buckets set(int bucket, double value, int count);
+}
@@ -0,0 +1,71 @@
+package timely.sample;
+
+/**
+ * Buckets stored in arrays holding every bucket in the range
+ */
+final class DenseBuckets implements Buckets {
+
+    private final double[] values;
+    private final int[] counts;
+    private int nonEmpty;
+
+    DenseBuckets(int size) {
+        this(new double[size], new int[size]);
+    }
+
+    DenseBuckets(double[] values, int[] counts) {
+        this.values = values;
+        this.counts = counts;
+        for (int count : counts) {
+            if (count != 0) {
+                nonEmpty++;
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return counts.length;
+    }
+
+    @Override
+    public int nonEmpty() {
+        return nonEmpty;
+    }
+
+    @Override
+    public int count(int bucket) {
+        return counts[bucket];
+    }
+
+    @Override
+    public double value(int bucket) {
+        return values[bucket];
+    }
+
+    @Override
+    public int next(int bucket) {
+        while (bucket < counts.length && counts[bucket] == 0) {
+            bucket++;
+        }
+        return bucket;
+    }
+
+    @Override
+    public Buckets set(int bucket, double value, int count) {
+        if (counts[bucket] == 0) {
+            nonEmpty++;
+        }
+        values[bucket] = value;
+        counts[bucket] = count;
+        return this;
+    }
+
+    double[] getValues() {
+        return values;
+    }
+
+    int[] getCounts() {
+        return counts;
+    }
+}
@@ -2,11 +2,11 @@ package timely.sample;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
-import java.util.List;
 
 import org.apache.commons.lang3.builder.ToStringBuilder;
 import org.slf4j.Logger;
@@ -22,14 +22,39 @@ public class Downsample implements Iterable<Sample>, Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Java serialized form, dense arrays of every bucket, as written by
+     * previous versions
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("aggregatorClassname", String.class), new ObjectStreamField("start", Long.TYPE),
+            new ObjectStreamField("period", Long.TYPE), new ObjectStreamField("values", double[].class),
+            new ObjectStreamField("counts", int[].class) };
+
     private transient Aggregator aggregator;
-    private final String aggregatorClassname;
-    private final long start;
-    private final long period;
-    private final double[] values;
-    private final int[] counts;
+    private String aggregatorClassname;
+    private long start;
+    private long period;
+    private Buckets buckets;
 
     public Downsample(long start, long end, long period, Aggregator agg) {
+        this(start, end, period, agg, false);
+    }
+
+    /**
+     * @param start
+     *            start of the range
+     * @param end
+     *            end of the range
+     * @param period
+     *            width of each bucket
+     * @param agg
+     *            aggregator
+     * @param sparse
+     *            store only the non-empty buckets until more than half of them
+     *            are in use
+     */
+    public Downsample(long start, long end, long period, Aggregator agg, boolean sparse) {
         Preconditions.checkArgument(start < end, "Start must be < end");
         Preconditions.checkArgument(period >= 1, "period cannot be < 1");
         Preconditions.checkNotNull(agg, "Aggregator object cannot be null");
@@ -41,12 +66,35 @@ public class Downsample implements Iterable<Sample>, Serializable {
         if (buckets > Integer.MAX_VALUE) {
             throw new RuntimeException("Cannot downsample to " + buckets + " items");
         }
-        values = new double[(int) buckets];
-        counts = new int[(int) buckets];
+        this.buckets = sparse ? new SparseBuckets((int) buckets) : new DenseBuckets((int) buckets);
+    }
+
+    Downsample(long start, long period, Aggregator agg, Buckets buckets) {
+        this.start = start;
+        this.period = period;
+        this.aggregator = agg;
+        this.aggregatorClassname = agg.getClass().getName();
+        this.buckets = buckets;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        DenseBuckets dense = buckets instanceof SparseBuckets ? ((SparseBuckets) buckets).toDense()
+                : (DenseBuckets) buckets;
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("aggregatorClassname", aggregatorClassname);
+        fields.put("start", start);
+        fields.put("period", period);
+        fields.put("values", dense.getValues());
+        fields.put("counts", dense.getCounts());
+        out.writeFields();
     }
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
-        in.defaultReadObject();
+        ObjectInputStream.GetField fields = in.readFields();
+        aggregatorClassname = (String) fields.get("aggregatorClassname", null);
+        start = fields.get("start", 0L);
+        period = fields.get("period", 0L);
+        buckets = new DenseBuckets((double[]) fields.get("values", null), (int[]) fields.get("counts", null));
         try {
             aggregator = (Aggregator) getClass().getClassLoader().loadClass(aggregatorClassname).newInstance();
         } catch (Exception ex) {
@@ -55,26 +103,97 @@ public class Downsample implements Iterable<Sample>, Serializable {
     }
 
     public void add(long ts, double value) {
+        int bucket = bucket(ts);
+        int count = buckets.count(bucket);
+        buckets = buckets.set(bucket, aggregator.aggregate(buckets.value(bucket), count, value), count + 1);
+    }
+
+    /**
+     * Add a value that stands for a number of points, such as a period of a
+     * rollup table, in the form returned by the aggregator for them
+     *
+     * @param ts
+     *            timestamp
+     * @param value
+     *            aggregated value of the points
+     * @param count
+     *            number of points
+     */
+    public void add(long ts, double value, int count) {
+        int bucket = bucket(ts);
+        int current = buckets.count(bucket);
+        if (current != 0) {
+            value = aggregator.merge(buckets.value(bucket), current, value, count);
+        }
+        buckets = buckets.set(bucket, value, current + count);
+    }
+
+    private int bucket(long ts) {
         if (ts < start) {
             throw new IllegalArgumentException("timestamp is out of range");
         }
-        int bucket = (int) ((ts - start) / period);
-        if (bucket > values.length) {
+        long bucket = (ts - start) / period;
+        if (bucket >= buckets.size()) {
             throw new IllegalArgumentException("timestamp is out of range");
         }
-        values[bucket] = aggregator.aggregate(values[bucket], counts[bucket], value);
-        counts[bucket]++;
+        return (int) bucket;
     }
 
+    /**
+     * Merge the buckets of another Downsample with the same period into this
+     * one. The other Downsample may start at a different bucket boundary,
+     * buckets that fall outside of this range are ignored.
+     *
+     * @param other
+     *            samples to merge
+     */
     public void merge(Downsample other) {
-        for (int i = 0; i < other.counts.length; i++) {
-            if (other.counts[i] > 0) {
-                counts[i] += other.counts[i];
-                values[i] = aggregator.aggregate(values[i], counts[i], other.values[i]);
+        Preconditions.checkArgument(other.period == period, "Cannot merge period %s into %s", other.period, period);
+        Preconditions.checkArgument((other.start - start) % period == 0, "Start %s is not aligned with %s",
+                other.start, start);
+        long shift = (other.start - start) / period;
+        Buckets o = other.buckets;
+        for (int i = o.next(0); i < o.size(); i = o.next(i + 1)) {
+            long j = i + shift;
+            if (j < 0) {
+                continue;
             }
+            if (j >= buckets.size()) {
+                break;
+            }
+            int bucket = (int) j;
+            int count = buckets.count(bucket);
+            double value = o.value(i);
+            if (count != 0) {
+                value = aggregator.merge(buckets.value(bucket), count, value, o.count(i));
+            }
+            buckets = buckets.set(bucket, value, count + o.count(i));
         }
     }
 
+    public long getStart() {
+        return start;
+    }
+
+    public long getPeriod() {
+        return period;
+    }
+
+    /**
+     * @return true if only the non-empty buckets are stored
+     */
+    public boolean isSparse() {
+        return buckets instanceof SparseBuckets;
+    }
+
+    String getAggregatorClassname() {
+        return aggregatorClassname;
+    }
+
+    Buckets getBuckets() {
+        return buckets;
+    }
+
     @Override
     public Iterator<Sample> iterator() {
         return new Iterator<Sample>() {
@@ -84,15 +203,13 @@ public class Downsample implements Iterable<Sample>, Serializable {
 
             @Override
             public boolean hasNext() {
-                while (next < values.length && counts[next] == 0) {
-                    next++;
-                }
-                return next < values.length;
+                next = buckets.next(next);
+                return next < buckets.size();
             }
 
             @Override
             public Sample next() {
-                double value = aggregator.last(values[next], counts[next]);
+                double value = aggregator.last(buckets.value(next), buckets.count(next));
                 sample.set(start + next * period, value);
                 next++;
                 return sample;
@@ -104,90 +221,92 @@ public class Downsample implements Iterable<Sample>, Serializable {
     public String toString() {
         ToStringBuilder tsb = new ToStringBuilder(this);
         tsb.append("aggregator", this.aggregatorClassname);
-        tsb.append("counts", this.counts);
+        tsb.append("buckets", this.buckets.size());
+        tsb.append("nonEmpty", this.buckets.nonEmpty());
+        tsb.append("sparse", this.isSparse());
         tsb.append("period", this.period);
         tsb.append("start", this.start);
-        tsb.append("values", this.values);
         return tsb.toString();
     }
 
     public static Downsample combine(Collection<Downsample> samples, RateOption rateOption) {
-        List<Downsample> sampleList = new ArrayList<>(samples.size());
         if (samples.isEmpty()) {
             throw new IllegalArgumentException("Empty samples to combine");
         }
+        // interpolate and merge one at a time so that only one interpolated
+        // copy is held in addition to the result
+        Downsample result = null;
         for (Downsample ds : samples) {
             if (rateOption != null && rateOption.isCounter()) {
                 ds = convertCountToRate(ds, rateOption.getResetValue(), rateOption.getCounterMax());
             }
             ds = interpolateMissingValues(ds);
-            sampleList.add(ds);
-        }
-        Iterator<Downsample> iter = sampleList.iterator();
-        Downsample result = iter.next();
-        while (iter.hasNext()) {
-            result.merge(iter.next());
+            if (result == null) {
+                result = ds;
+            } else {
+                result.merge(ds);
+            }
         }
         return result;
     }
 
     private static Downsample interpolateMissingValues(Downsample ds) {
-        Downsample result = new Downsample(ds.start, ds.start + ds.counts.length * ds.period, ds.period, ds.aggregator);
+        Buckets in = ds.buckets;
+        Downsample result = new Downsample(ds.start, ds.start + in.size() * ds.period, ds.period, ds.aggregator,
+                ds.isSparse());
         int lastPos = -1;
-        for (int i = 0; i < ds.counts.length; i++) {
-            if (ds.counts[i] != 0) {
-                result.values[i] = ds.values[i];
-                result.counts[i] = ds.counts[i];
-                if (lastPos >= 0) {
-                    double diff = ds.values[i] - ds.values[lastPos];
-                    for (int j = lastPos + 1; j < i; j++) {
-                        result.values[j] = result.values[j - 1] + diff / (i - lastPos);
-                        result.counts[j] = 1;
-                    }
+        double lastValue = 0;
+        for (int i = in.next(0); i < in.size(); i = in.next(i + 1)) {
+            double value = in.value(i);
+            if (lastPos >= 0) {
+                double step = (value - lastValue) / (i - lastPos);
+                double interpolated = lastValue;
+                for (int j = lastPos + 1; j < i; j++) {
+                    interpolated += step;
+                    result.buckets = result.buckets.set(j, interpolated, 1);
                 }
-                lastPos = i;
             }
+            result.buckets = result.buckets.set(i, value, in.count(i));
+            lastPos = i;
+            lastValue = value;
         }
         LOG.debug("interpolate: {}", result);
         return result;
     }
 
     private static Downsample convertCountToRate(Downsample ds, long resetValue, long counterMax) {
-        Downsample result = new Downsample(ds.start + ds.period, ds.start + ds.counts.length * ds.period, ds.period,
-                ds.aggregator);
-        int lastPos = 0;
-        for (int i = 1; i < ds.counts.length; i++) {
-            if (ds.counts[i] != 0) {
-                if (((Long) counterMax).equals(((Double) ds.values[i]).longValue())) {
-                    result.values[i - 1] = resetValue;
-                    result.counts[i - 1] = 1;
+        Buckets in = ds.buckets;
+        Downsample result = new Downsample(ds.start + ds.period, ds.start + in.size() * ds.period, ds.period,
+                ds.aggregator, ds.isSparse());
+        double lastValue = in.value(0);
+        for (int i = in.next(1); i < in.size(); i = in.next(i + 1)) {
+            double value = in.value(i);
+            if (((Long) counterMax).equals(((Double) value).longValue())) {
+                result.buckets = result.buckets.set(i - 1, resetValue, 1);
+            } else {
+                double diff = value - lastValue;
+                if (diff < 0) {
+                    // wrap around formula from
+                    // https://collectd.org/wiki/index.php/Data_source says
+                    // to do
+                    // the following:
+                    // double wrapValue = (counterMax - ds.values[lastPos] +
+                    // ds.values[i]) / (ds.period);
+                    // When counterMax is not defined it defaults to
+                    // Long.MAX_VALUE which leaves wrapValue
+                    // very close to counterMax. This renders the resulting
+                    // graph useless as it blows up the
+                    // scale, we are going to set the value to -1. If we
+                    // have a constantly decreasing counter,
+                    // which in theory should not happen, then all of the
+                    // values will be -1.
+                    double wrapValue = -1.0;
+                    result.buckets = result.buckets.set(i - 1, wrapValue, 1);
                 } else {
-                    double diff = ds.values[i] - ds.values[lastPos];
-                    if (diff < 0) {
-                        // wrap around formula from
-                        // https://collectd.org/wiki/index.php/Data_source says
-                        // to do
-                        // the following:
-                        // double wrapValue = (counterMax - ds.values[lastPos] +
-                        // ds.values[i]) / (ds.period);
-                        // When counterMax is not defined it defaults to
-                        // Long.MAX_VALUE which leaves wrapValue
-                        // very close to counterMax. This renders the resulting
-                        // graph useless as it blows up the
-                        // scale, we are going to set the value to -1. If we
-                        // have a constantly decreasing counter,
-                        // which in theory should not happen, then all of the
-                        // values will be -1.
-                        double wrapValue = -1.0;
-                        result.values[i - 1] = wrapValue;
-                        result.counts[i - 1] = 1;
-                    } else {
-                        result.values[i - 1] = diff;
-                        result.counts[i - 1] = 1;
-                    }
+                    result.buckets = result.buckets.set(i - 1, diff, 1);
                 }
-                lastPos = i;
             }
+            lastValue = value;
         }
         return result;
     }
@@ -0,0 +1,292 @@
+package timely.sample;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import timely.model.Tag;
+
+/**
+ * Compact binary encoding of the {@code Map<Set<Tag>, Downsample>} results
+ * produced by the DownsampleIterator. The layout is:
+ *
+ * <pre>
+ * byte    version
+ * vint    number of strings, followed by each string (vint length, UTF-8)
+ * vint    number of series
+ * per series:
+ *   vint  number of tags, followed by key and value string indexes
+ *   vint  aggregator class name string index
+ *   vlong start
+ *   vlong period
+ *   vint  number of buckets
+ *   byte  DENSE or SPARSE
+ *   DENSE:  for each bucket, double value and vint count
+ *   SPARSE: vint number of non-empty buckets, then for each the vint
+ *           delta from the previous index, double value and vint count
+ * </pre>
+ *
+ * Tag keys, tag values and aggregator names are written once in the string
+ * table and referenced by index from each series. Variable length integers are
+ * unsigned LEB128 and doubles are written big-endian. The encoded size is
+ * computed up front so that the result is written into a single array.
+ */
+public class DownsampleCodec {
+
+    public static final byte VERSION = 1;
+
+    private static final byte DENSE = 0;
+    private static final byte SPARSE = 1;
+
+    private DownsampleCodec() {
+    }
+
+    /**
+     * @param value
+     *            encoded bytes
+     * @return true if value was written by this codec
+     */
+    public static boolean isEncoded(byte[] value) {
+        return value.length > 0 && value[0] == VERSION;
+    }
+
+    /**
+     * Encode the series
+     *
+     * @param series
+     *            map of tags to samples
+     * @param skipEmptyBuckets
+     *            when true, series with mostly empty buckets are written
+     *            without them
+     * @return encoded bytes
+     */
+    public static byte[] encode(Map<Set<Tag>, Downsample> series, boolean skipEmptyBuckets) {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        List<byte[]> utf8 = new ArrayList<>();
+        int size = 1 + vlongSize(series.size());
+        for (Entry<Set<Tag>, Downsample> entry : series.entrySet()) {
+            size += vlongSize(entry.getKey().size());
+            for (Tag tag : entry.getKey()) {
+                size += vlongSize(intern(strings, utf8, tag.getKey()));
+                size += vlongSize(intern(strings, utf8, tag.getValue()));
+            }
+            Downsample ds = entry.getValue();
+            size += vlongSize(intern(strings, utf8, ds.getAggregatorClassname()));
+            size += bucketsSize(ds, isSparse(ds, skipEmptyBuckets));
+        }
+        size += vlongSize(utf8.size());
+        for (byte[] s : utf8) {
+            size += vlongSize(s.length) + s.length;
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(VERSION);
+        putVLong(out, utf8.size());
+        for (byte[] s : utf8) {
+            putVLong(out, s.length);
+            out.put(s);
+        }
+        putVLong(out, series.size());
+        for (Entry<Set<Tag>, Downsample> entry : series.entrySet()) {
+            putVLong(out, entry.getKey().size());
+            for (Tag tag : entry.getKey()) {
+                putVLong(out, strings.get(tag.getKey()));
+                putVLong(out, strings.get(tag.getValue()));
+            }
+            Downsample ds = entry.getValue();
+            putVLong(out, strings.get(ds.getAggregatorClassname()));
+            putBuckets(out, ds, isSparse(ds, skipEmptyBuckets));
+        }
+        return out.array();
+    }
+
+    private static int intern(Map<String, Integer> strings, List<byte[]> utf8, String s) {
+        Integer idx = strings.get(s);
+        if (null == idx) {
+            idx = utf8.size();
+            strings.put(s, idx);
+            utf8.add(s.getBytes(StandardCharsets.UTF_8));
+        }
+        return idx;
+    }
+
+    private static boolean isSparse(Downsample ds, boolean skipEmptyBuckets) {
+        // a sparse bucket costs an index in addition to the value and count
+        Buckets buckets = ds.getBuckets();
+        return skipEmptyBuckets && buckets.nonEmpty() * 2 < buckets.size();
+    }
+
+    private static int bucketsSize(Downsample ds, boolean sparse) {
+        Buckets buckets = ds.getBuckets();
+        int size = vlongSize(ds.getStart()) + vlongSize(ds.getPeriod()) + vlongSize(buckets.size()) + 1;
+        if (sparse) {
+            size += vlongSize(buckets.nonEmpty());
+            int prev = 0;
+            for (int i = buckets.next(0); i < buckets.size(); i = buckets.next(i + 1)) {
+                size += vlongSize(i - prev) + 8 + vlongSize(buckets.count(i));
+                prev = i;
+            }
+        } else {
+            size += buckets.size() * 8;
+            for (int i = 0; i < buckets.size(); i++) {
+                size += vlongSize(buckets.count(i));
+            }
+        }
+        return size;
+    }
+
+    private static void putBuckets(ByteBuffer out, Downsample ds, boolean sparse) {
+        Buckets buckets = ds.getBuckets();
+        putVLong(out, ds.getStart());
+        putVLong(out, ds.getPeriod());
+        putVLong(out, buckets.size());
+        if (sparse) {
+            out.put(SPARSE);
+            putVLong(out, buckets.nonEmpty());
+            int prev = 0;
+            for (int i = buckets.next(0); i < buckets.size(); i = buckets.next(i + 1)) {
+                putVLong(out, i - prev);
+                out.putDouble(buckets.value(i));
+                putVLong(out, buckets.count(i));
+                prev = i;
+            }
+        } else {
+            out.put(DENSE);
+            for (int i = 0; i < buckets.size(); i++) {
+                out.putDouble(buckets.value(i));
+                putVLong(out, buckets.count(i));
+            }
+        }
+    }
+
+    /**
+     * Decode bytes created by {@link #encode(Map, boolean)}
+     *
+     * @param value
+     *            encoded bytes
+     * @return map of tags to samples
+     */
+    public static Map<Set<Tag>, Downsample> decode(byte[] value) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(value);
+        try {
+            byte version = in.get();
+            if (version != VERSION) {
+                throw new IOException("Unsupported downsample encoding version: " + version);
+            }
+            int numStrings = getVInt(in);
+            List<String> strings = new ArrayList<>(numStrings);
+            for (int i = 0; i < numStrings; i++) {
+                int len = getVInt(in);
+                strings.add(new String(value, in.position(), len, StandardCharsets.UTF_8));
+                in.position(in.position() + len);
+            }
+            Map<String, Class<? extends Aggregator>> aggregators = new HashMap<>();
+            int numSeries = getVInt(in);
+            Map<Set<Tag>, Downsample> result = new HashMap<>(numSeries * 2);
+            for (int i = 0; i < numSeries; i++) {
+                int numTags = getVInt(in);
+                Set<Tag> tags = new HashSet<>(numTags * 2);
+                for (int j = 0; j < numTags; j++) {
+                    String k = strings.get(getVInt(in));
+                    String v = strings.get(getVInt(in));
+                    tags.add(new Tag(k, v));
+                }
+                String aggregator = strings.get(getVInt(in));
+                result.put(tags, getBuckets(in, newAggregator(aggregators, aggregator)));
+            }
+            return result;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated or corrupt downsample encoding", e);
+        }
+    }
+
+    private static Downsample getBuckets(ByteBuffer in, Aggregator agg) throws IOException {
+        long start = getVLong(in);
+        long period = getVLong(in);
+        int size = getVInt(in);
+        byte encoding = in.get();
+        Buckets buckets;
+        if (encoding == SPARSE) {
+            int nonEmpty = getVInt(in);
+            buckets = new SparseBuckets(size, nonEmpty);
+            int idx = 0;
+            for (int i = 0; i < nonEmpty; i++) {
+                idx += getVInt(in);
+                double value = in.getDouble();
+                buckets = buckets.set(idx, value, getVInt(in));
+            }
+        } else if (encoding == DENSE) {
+            double[] values = new double[size];
+            int[] counts = new int[size];
+            for (int i = 0; i < size; i++) {
+                values[i] = in.getDouble();
+                counts[i] = getVInt(in);
+            }
+            buckets = new DenseBuckets(values, counts);
+        } else {
+            throw new IOException("Unknown bucket encoding: " + encoding);
+        }
+        return new Downsample(start, period, agg, buckets);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Aggregator newAggregator(Map<String, Class<? extends Aggregator>> cache, String classname)
+            throws IOException {
+        try {
+            Class<? extends Aggregator> c = cache.get(classname);
+            if (null == c) {
+                c = (Class<? extends Aggregator>) DownsampleCodec.class.getClassLoader().loadClass(classname);
+                cache.put(classname, c);
+            }
+            return c.newInstance();
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+            throw new IOException("Unable to create aggregator " + classname, e);
+        }
+    }
+
+    private static int vlongSize(long v) {
+        int size = 1;
+        while ((v & ~0x7FL) != 0) {
+            v >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVLong(ByteBuffer out, long v) {
+        while ((v & ~0x7FL) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    private static long getVLong(ByteBuffer in) {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return v;
+    }
+
+    private static int getVInt(ByteBuffer in) throws IOException {
+        long v = getVLong(in);
+        if (v < 0 || v > Integer.MAX_VALUE) {
+            throw new IOException("Invalid length or index in downsample encoding: " + v);
+        }
+        return (int) v;
+    }
+}
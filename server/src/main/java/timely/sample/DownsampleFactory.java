@@ -5,21 +5,30 @@ import timely.api.response.TimelyException;
 
 public class DownsampleFactory {
 
+    /**
+     * Ranges with more buckets than this start out sparse. How many buckets a
+     * series fills is not known until it has been scanned, a sparse
+     * {@link Downsample} switches to dense storage once it fills up.
+     */
+    public static final int SPARSE_MIN_BUCKETS = 1024;
+
     private final long start;
     private final long end;
     private final long period;
     private final Class<? extends Aggregator> aggClass;
+    private final boolean sparse;
 
     public DownsampleFactory(long start, long end, long period, Class<? extends Aggregator> aggClass) {
         this.start = start;
         this.end = end;
         this.period = period;
         this.aggClass = aggClass;
+        this.sparse = (end - start) / period + 1 > SPARSE_MIN_BUCKETS;
     }
 
     public Downsample create() throws TimelyException {
         try {
-            return new Downsample(start, end, period, aggClass.newInstance());
+            return new Downsample(start, end, period, aggClass.newInstance(), sparse);
         } catch (InstantiationException | IllegalAccessException e) {
             throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(),
                     "Error creating aggregator class: " + aggClass, e.getMessage(), e);
@@ -0,0 +1,122 @@
+package timely.sample;
+
+import java.util.Arrays;
+
+/**
+ * Buckets stored as parallel arrays of the non-empty bucket indexes, sorted,
+ * with their values and counts. Values are normally added in time order so
+ * appending to the end is the common case. When more than half of the buckets
+ * are in use the dense representation is smaller and {@link #set} returns a
+ * {@link DenseBuckets} copy instead.
+ */
+final class SparseBuckets implements Buckets {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int size;
+    private int[] indexes;
+    private double[] values;
+    private int[] counts;
+    private int nonEmpty;
+
+    SparseBuckets(int size) {
+        this(size, INITIAL_CAPACITY);
+    }
+
+    SparseBuckets(int size, int capacity) {
+        this.size = size;
+        capacity = Math.max(1, Math.min(capacity, size));
+        this.indexes = new int[capacity];
+        this.values = new double[capacity];
+        this.counts = new int[capacity];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public int nonEmpty() {
+        return nonEmpty;
+    }
+
+    @Override
+    public int count(int bucket) {
+        int pos = find(bucket);
+        return pos < 0 ? 0 : counts[pos];
+    }
+
+    @Override
+    public double value(int bucket) {
+        int pos = find(bucket);
+        return pos < 0 ? 0 : values[pos];
+    }
+
+    @Override
+    public int next(int bucket) {
+        int pos = find(bucket);
+        if (pos < 0) {
+            pos = -pos - 1;
+        }
+        return pos < nonEmpty ? indexes[pos] : size;
+    }
+
+    @Override
+    public Buckets set(int bucket, double value, int count) {
+        if (bucket < 0 || bucket >= size) {
+            throw new ArrayIndexOutOfBoundsException(bucket);
+        }
+        int pos = find(bucket);
+        if (pos >= 0) {
+            values[pos] = value;
+            counts[pos] = count;
+            return this;
+        }
+        if (nonEmpty == indexes.length) {
+            int capacity = Math.min(size, indexes.length * 2);
+            if (capacity > size / 2) {
+                return toDense().set(bucket, value, count);
+            }
+            indexes = Arrays.copyOf(indexes, capacity);
+            values = Arrays.copyOf(values, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+        }
+        pos = -pos - 1;
+        int tail = nonEmpty - pos;
+        if (tail > 0) {
+            System.arraycopy(indexes, pos, indexes, pos + 1, tail);
+            System.arraycopy(values, pos, values, pos + 1, tail);
+            System.arraycopy(counts, pos, counts, pos + 1, tail);
+        }
+        indexes[pos] = bucket;
+        values[pos] = value;
+        counts[pos] = count;
+        nonEmpty++;
+        return this;
+    }
+
+    DenseBuckets toDense() {
+        double[] denseValues = new double[size];
+        int[] denseCounts = new int[size];
+        for (int i = 0; i < nonEmpty; i++) {
+            denseValues[indexes[i]] = values[i];
+            denseCounts[indexes[i]] = counts[i];
+        }
+        return new DenseBuckets(denseValues, denseCounts);
+    }
+
+    /**
+     * @return position of bucket in indexes, or (-(insertion point) - 1)
+     */
+    private int find(int bucket) {
+        // check the end first, values usually arrive in time order
+        if (nonEmpty == 0 || indexes[nonEmpty - 1] < bucket) {
+            return -nonEmpty - 1;
+        }
+        if (indexes[nonEmpty - 1] == bucket) {
+            return nonEmpty - 1;
+        }
+        return Arrays.binarySearch(indexes, 0, nonEmpty, bucket);
+    }
+}
@@ -9,6 +9,12 @@ public class Dev implements Aggregator {
         return current + (update * update);
     }
 
+    @Override
+    public double merge(double current, int count, double other, int otherCount) {
+        // both partials are already sums of squares
+        return current + other;
+    }
+
     @Override
     public double last(double current, int count) {
         if (count == 1) {
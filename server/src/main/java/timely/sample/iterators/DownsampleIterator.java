@@ -1,16 +1,18 @@
 package timely.sample.iterators;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.ToDoubleFunction;
 
 import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ByteSequence;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.iterators.IteratorEnvironment;
@@ -18,12 +20,19 @@ import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
 import org.apache.accumulo.core.iterators.WrappingIterator;
 
 import timely.adapter.accumulo.MetricAdapter;
-import timely.model.Metric;
+import timely.adapter.accumulo.RollupCodec;
+import timely.adapter.accumulo.TimeBlockCodec;
 import timely.model.Tag;
 import timely.api.response.TimelyException;
 import timely.sample.Aggregator;
 import timely.sample.Downsample;
+import timely.sample.DownsampleCodec;
 import timely.sample.DownsampleFactory;
+import timely.sample.aggregators.Avg;
+import timely.sample.aggregators.Count;
+import timely.sample.aggregators.Max;
+import timely.sample.aggregators.Min;
+import timely.sample.aggregators.Sum;
 
 public class DownsampleIterator extends WrappingIterator {
 
@@ -31,9 +40,21 @@ public class DownsampleIterator extends WrappingIterator {
     private static final String END = "downsample.end";
     private static final String PERIOD = "downsample.period";
     private static final String AGGCLASS = "downsample.aggclass";
+    private static final String SKIP_EMPTY_BUCKETS = "downsample.skipEmptyBuckets";
+    private static final String BATCH_SIZE = "downsample.batchSize";
+    private static final String ROLLUP = "downsample.rollup";
+    private static final String GROUP_BY = "downsample.groupBy";
 
     private DownsampleFactory factory;
+    private long start;
+    private long end;
+    private boolean skipEmptyBuckets = true;
+    private int batchSize = 0;
+    private ToDoubleFunction<byte[]> rollupValue = null;
+    private Set<String> groupBy = null;
     private final Map<Set<Tag>, Downsample> value = new HashMap<>();
+    private final Map<SeriesKey, Downsample> series = new HashMap<>();
+    private final SeriesKey probe = new SeriesKey();
     private Key last;
 
     @SuppressWarnings("unchecked")
@@ -41,9 +62,18 @@ public class DownsampleIterator extends WrappingIterator {
     public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env)
             throws IOException {
         super.init(source, options, env);
-        long start = Long.parseLong(options.get(START));
-        long end = Long.parseLong(options.get(END));
+        start = Long.parseLong(options.get(START));
+        end = Long.parseLong(options.get(END));
         long period = Long.parseLong(options.get(PERIOD));
+        if (options.containsKey(SKIP_EMPTY_BUCKETS)) {
+            skipEmptyBuckets = Boolean.parseBoolean(options.get(SKIP_EMPTY_BUCKETS));
+        }
+        if (options.containsKey(BATCH_SIZE)) {
+            batchSize = Integer.parseInt(options.get(BATCH_SIZE));
+        }
+        if (options.containsKey(GROUP_BY)) {
+            groupBy = new HashSet<>(Arrays.asList(options.get(GROUP_BY).split(",")));
+        }
         String aggClassname = options.get(AGGCLASS);
         Class<?> aggClass;
         try {
@@ -52,23 +82,87 @@ public class DownsampleIterator extends WrappingIterator {
             throw new RuntimeException(e);
         }
         factory = new DownsampleFactory(start, end, period, (Class<? extends Aggregator>) aggClass);
+        if (Boolean.parseBoolean(options.get(ROLLUP))) {
+            rollupValue = getRollupValue(aggClass);
+            if (null == rollupValue) {
+                throw new IllegalArgumentException("Rollups can not be aggregated with " + aggClassname);
+            }
+        }
+    }
+
+    /**
+     * @return the value of a rollup entry in the form that the aggregator
+     *         returns for its points, or null if the aggregator needs more than
+     *         the sum, count, minimum and maximum
+     */
+    private static ToDoubleFunction<byte[]> getRollupValue(Class<?> aggClass) {
+        if (aggClass == Avg.class || aggClass == Sum.class) {
+            return RollupCodec::getSum;
+        } else if (aggClass == Min.class) {
+            return RollupCodec::getMin;
+        } else if (aggClass == Max.class) {
+            return RollupCodec::getMax;
+        } else if (aggClass == Count.class) {
+            return v -> 0;
+        }
+        return null;
+    }
+
+    /**
+     * @param aggClass
+     *            aggregator
+     * @return true if the aggregator can be computed from rollup entries
+     */
+    public static boolean isRollupSupported(Class<? extends Aggregator> aggClass) {
+        return null != getRollupValue(aggClass);
     }
 
     @Override
     public boolean hasTop() {
         while (super.hasTop()) {
-            last = super.getTopKey();
-            Metric metric = MetricAdapter.parse(super.getTopKey(), super.getTopValue());
-            Set<Tag> tags = new HashSet<Tag>(metric.getTags());
-            Downsample sample = value.get(tags);
+            Key key = super.getTopKey();
+            Downsample sample = series.get(probe.set(key));
             if (sample == null) {
-                try {
-                    value.put(tags, sample = factory.create());
-                } catch (TimelyException e) {
-                    throw new RuntimeException(e);
+                // first time this column has been seen, different columns can
+                // hold the same tags so look for the series by its tags
+                Set<Tag> tags = new HashSet<Tag>(MetricAdapter.parseTags(key));
+                if (null != groupBy) {
+                    // the series of a group share one downsample
+                    tags.removeIf(t -> !groupBy.contains(t.getKey()));
+                }
+                sample = value.get(tags);
+                if (sample == null) {
+                    if (batchSize > 0 && value.size() >= batchSize) {
+                        // emit what we have, this key starts the next batch
+                        return true;
+                    }
+                    try {
+                        value.put(tags, sample = factory.create());
+                    } catch (TimelyException e) {
+                        throw new RuntimeException(e);
+                    }
                 }
+                series.put(probe.copy(), sample);
+            }
+            last = key;
+            byte[] bytes = super.getTopValue().get();
+            if (null != rollupValue) {
+                // the key timestamp is the start of the period
+                sample.add(key.getTimestamp(), rollupValue.applyAsDouble(bytes), (int) RollupCodec.getCount(bytes));
+            } else if (TimeBlockCodec.isEncoded(bytes)) {
+                // a block starts at or before the scan range
+                Downsample block = sample;
+                TimeBlockCodec.decode(bytes, (ts, measure) -> {
+                    if (ts >= start && ts <= end) {
+                        block.add(ts, measure);
+                    }
+                });
+            } else if (key.getTimestamp() >= start && key.getTimestamp() <= end) {
+                // the key timestamp is the metric timestamp, the scan starts
+                // at the start of a block period and can begin before the
+                // range
+                sample.add(key.getTimestamp(), MetricAdapter.decodeValue(bytes));
             }
-            sample.add(metric.getValue().getTimestamp(), metric.getValue().getMeasure());
             try {
                 super.next();
             } catch (IOException e) {
@@ -85,19 +179,14 @@ public class DownsampleIterator extends WrappingIterator {
 
     @Override
     public Value getTopValue() {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                ObjectOutputStream out = new ObjectOutputStream(bos)) {
-            out.writeObject(value);
-            out.flush();
-            return new Value(bos.toByteArray());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return new Value(DownsampleCodec.encode(value, skipEmptyBuckets));
     }
 
     @Override
     public void next() throws IOException {
         last = null;
+        value.clear();
+        series.clear();
     }
 
     public static void setDownsampleOptions(IteratorSetting is, long start, long end, long period, String classname) {
@@ -107,10 +196,134 @@ public class DownsampleIterator extends WrappingIterator {
         is.addOption(AGGCLASS, classname);
     }
 
+    /**
+     * Limit the number of series in each entry returned by this iterator. When
+     * the limit is reached the current series are returned and aggregation
+     * continues into a new entry, so the same series may be returned in more
+     * than one entry and the caller is expected to merge them. A value of zero
+     * or less returns all series in a single entry.
+     *
+     * @param is
+     *            iterator setting
+     * @param batchSize
+     *            maximum number of series per entry
+     */
+    public static void setBatchSize(IteratorSetting is, int batchSize) {
+        is.addOption(BATCH_SIZE, Integer.toString(batchSize));
+    }
+
+    /**
+     * Read the entries of a rollup table instead of points, see
+     * {@link RollupCodec}. The start of the range must be the start of a rollup
+     * period and the downsample period a multiple of the rollup period.
+     *
+     * @param is
+     *            iterator setting
+     */
+    public static void setRollup(IteratorSetting is) {
+        is.addOption(ROLLUP, Boolean.TRUE.toString());
+    }
+
+    /**
+     * Aggregate the series that have the same values of the group by tag keys
+     * into one series with only those tags. Without group by keys every series
+     * is returned.
+     *
+     * @param is
+     *            iterator setting
+     * @param tagKeys
+     *            group by tag keys, in the form written to the table
+     */
+    public static void setGroupBy(IteratorSetting is, Collection<String> tagKeys) {
+        is.addOption(GROUP_BY, String.join(",", tagKeys));
+    }
+
+    public static void setSkipEmptyBuckets(IteratorSetting is, boolean skipEmptyBuckets) {
+        is.addOption(SKIP_EMPTY_BUCKETS, Boolean.toString(skipEmptyBuckets));
+    }
+
     @SuppressWarnings("unchecked")
     public static Map<Set<Tag>, Downsample> decodeValue(Value value) throws IOException, ClassNotFoundException {
+        if (DownsampleCodec.isEncoded(value.get())) {
+            return DownsampleCodec.decode(value.get());
+        }
+        // Java serialized values from tablet servers running an older version
         ByteArrayInputStream bis = new ByteArrayInputStream(value.get());
         ObjectInputStream ois = new ObjectInputStream(bis);
         return (Map<Set<Tag>, Downsample>) ois.readObject();
     }
+
+    /**
+     * The column family and column qualifier bytes of a key. A single instance
+     * is pointed at each key to probe for the series and is only copied when a
+     * new column is found.
+     */
+    private static final class SeriesKey {
+
+        private byte[] cf;
+        private int cfOffset;
+        private int cfLength;
+        private byte[] cq;
+        private int cqOffset;
+        private int cqLength;
+        private int hash;
+
+        SeriesKey set(Key key) {
+            ByteSequence family = key.getColumnFamilyData();
+            ByteSequence qualifier = key.getColumnQualifierData();
+            cf = family.getBackingArray();
+            cfOffset = family.offset();
+            cfLength = family.length();
+            cq = qualifier.getBackingArray();
+            cqOffset = qualifier.offset();
+            cqLength = qualifier.length();
+            int h = cfLength;
+            for (int i = cfOffset; i < cfOffset + cfLength; i++) {
+                h = 31 * h + cf[i];
+            }
+            for (int i = cqOffset; i < cqOffset + cqLength; i++) {
+                h = 31 * h + cq[i];
+            }
+            hash = h;
+            return this;
+        }
+
+        SeriesKey copy() {
+            SeriesKey copy = new SeriesKey();
+            copy.cf = Arrays.copyOfRange(cf, cfOffset, cfOffset + cfLength);
+            copy.cfLength = cfLength;
+            copy.cq = Arrays.copyOfRange(cq, cqOffset, cqOffset + cqLength);
+            copy.cqLength = cqLength;
+            copy.hash = hash;
+            return copy;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) o;
+            return hash == other.hash && cfLength == other.cfLength && cqLength == other.cqLength
+                    && equals(cf, cfOffset, other.cf, other.cfOffset, cfLength)
+                    && equals(cq, cqOffset, other.cq, other.cqOffset, cqLength);
+        }
+
+        private static boolean equals(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+            for (int i = 0; i < length; i++) {
+                if (a[aOffset + i] != b[bOffset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
@@ -0,0 +1,269 @@
+package timely.store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.MultiTableBatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fixed number of metric and meta table writer pairs shared by the threads that
+ * store metrics. A thread borrows a pair for the duration of one store call, so
+ * the number of writers, and with it the memory used for buffered mutations,
+ * does not depend on the number of threads. The configured buffer memory is
+ * divided evenly between all of the writers. In multi table mode both writers
+ * of a pair come from one {@link MultiTableBatchWriter} and share its buffer
+ * and tablet server RPCs. When rollup tables are used each pair also has a
+ * writer for every rollup table.
+ */
+public class BatchWriterPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchWriterPool.class);
+
+    /**
+     * Writers for the metrics and the meta table, used by one thread at a time
+     */
+    public static class Writers {
+
+        private final BatchWriter metrics;
+        private final BatchWriter meta;
+        private final List<BatchWriter> rollups;
+        private final MultiTableBatchWriter multi;
+
+        private Writers(BatchWriter metrics, BatchWriter meta, List<BatchWriter> rollups, MultiTableBatchWriter multi) {
+            this.metrics = metrics;
+            this.meta = meta;
+            this.rollups = rollups;
+            this.multi = multi;
+        }
+
+        public BatchWriter getMetrics() {
+            return metrics;
+        }
+
+        public BatchWriter getMeta() {
+            return meta;
+        }
+
+        /**
+         * @return writers for the rollup tables, in the order of the table
+         *         names given to the pool
+         */
+        public List<BatchWriter> getRollups() {
+            return rollups;
+        }
+
+        private void close() {
+            if (null != multi) {
+                // the writers of a multi table writer can not be closed
+                // separately
+                try {
+                    multi.close();
+                } catch (MutationsRejectedException e) {
+                    LOG.error("Error closing multi table writer", e);
+                }
+                return;
+            }
+            try {
+                metrics.close();
+            } catch (MutationsRejectedException e) {
+                LOG.error("Error closing metric writer", e);
+            }
+            try {
+                meta.close();
+            } catch (MutationsRejectedException e) {
+                LOG.error("Error closing meta writer", e);
+            }
+            for (BatchWriter rollup : rollups) {
+                try {
+                    rollup.close();
+                } catch (MutationsRejectedException e) {
+                    LOG.error("Error closing rollup writer", e);
+                }
+            }
+        }
+    }
+
+    private final Connector connector;
+    private final String metricsTable;
+    private final String metaTable;
+    private final List<String> rollupTables;
+    private final BatchWriterConfig bwConfig;
+    private final boolean multiTable;
+    private final BlockingQueue<Writers> available;
+    private final List<Writers> writers = new CopyOnWriteArrayList<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @param connector
+     *            connector
+     * @param metricsTable
+     *            metrics table
+     * @param metaTable
+     *            meta table
+     * @param bwConfig
+     *            writer configuration, the max memory is the total for all
+     *            writers
+     * @param size
+     *            number of writer pairs
+     * @param multiTable
+     *            true to create each pair from one multi table batch writer
+     * @throws AccumuloException
+     *             if a multi table writer can not be created
+     * @throws AccumuloSecurityException
+     *             if a multi table writer can not be created
+     * @throws TableNotFoundException
+     *             if a table does not exist
+     */
+    public BatchWriterPool(Connector connector, String metricsTable, String metaTable, BatchWriterConfig bwConfig,
+            int size, boolean multiTable) throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+        this(connector, metricsTable, metaTable, Collections.emptyList(), bwConfig, size, multiTable);
+    }
+
+    /**
+     * @param connector
+     *            connector
+     * @param metricsTable
+     *            metrics table
+     * @param metaTable
+     *            meta table
+     * @param rollupTables
+     *            rollup tables
+     * @param bwConfig
+     *            writer configuration, the max memory is the total for all
+     *            writers
+     * @param size
+     *            number of writer pairs
+     * @param multiTable
+     *            true to create each pair from one multi table batch writer
+     * @throws AccumuloException
+     *             if a multi table writer can not be created
+     * @throws AccumuloSecurityException
+     *             if a multi table writer can not be created
+     * @throws TableNotFoundException
+     *             if a table does not exist
+     */
+    public BatchWriterPool(Connector connector, String metricsTable, String metaTable, List<String> rollupTables,
+            BatchWriterConfig bwConfig, int size, boolean multiTable) throws AccumuloException,
+            AccumuloSecurityException, TableNotFoundException {
+        this.connector = connector;
+        this.metricsTable = metricsTable;
+        this.metaTable = metaTable;
+        this.rollupTables = rollupTables;
+        this.bwConfig = new BatchWriterConfig();
+        this.bwConfig.setMaxLatency(bwConfig.getMaxLatency(TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+        this.bwConfig.setMaxWriteThreads(bwConfig.getMaxWriteThreads());
+        this.multiTable = multiTable;
+        // a multi table writer has one buffer for all tables
+        long perPair = multiTable ? 1 : 2L + rollupTables.size();
+        this.bwConfig.setMaxMemory(Math.max(1, bwConfig.getMaxMemory() / (perPair * size)));
+        this.available = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++) {
+            available.add(create());
+        }
+    }
+
+    private Writers create() throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+        Writers w;
+        if (multiTable) {
+            MultiTableBatchWriter multi = connector.createMultiTableBatchWriter(bwConfig);
+            List<BatchWriter> rollups = new ArrayList<>(rollupTables.size());
+            for (String table : rollupTables) {
+                rollups.add(multi.getBatchWriter(table));
+            }
+            w = new Writers(multi.getBatchWriter(metricsTable), multi.getBatchWriter(metaTable), rollups, multi);
+        } else {
+            List<BatchWriter> rollups = new ArrayList<>(rollupTables.size());
+            for (String table : rollupTables) {
+                rollups.add(connector.createBatchWriter(table, bwConfig));
+            }
+            w = new Writers(connector.createBatchWriter(metricsTable, bwConfig), connector.createBatchWriter(metaTable,
+                    bwConfig), rollups, null);
+        }
+        writers.add(w);
+        return w;
+    }
+
+    /**
+     * Wait for a pair of writers, which must be passed to
+     * {@link #release(Writers)} or {@link #replace(Writers)} when done
+     *
+     * @return writers
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     * @throws IllegalStateException
+     *             if the pool has been closed
+     */
+    public Writers borrow() throws InterruptedException {
+        while (!closed) {
+            Writers w = available.poll(1, TimeUnit.SECONDS);
+            if (null != w) {
+                return w;
+            }
+        }
+        throw new IllegalStateException("Batch writer pool is closed");
+    }
+
+    /**
+     * Return writers to the pool
+     *
+     * @param w
+     *            writers from {@link #borrow()}
+     */
+    public void release(Writers w) {
+        if (closed) {
+            return;
+        }
+        available.add(w);
+    }
+
+    /**
+     * Close writers that rejected mutations and put new ones into the pool
+     *
+     * @param w
+     *            writers from {@link #borrow()}
+     * @throws AccumuloException
+     *             if a multi table writer can not be created
+     * @throws AccumuloSecurityException
+     *             if a multi table writer can not be created
+     * @throws TableNotFoundException
+     *             if a table does not exist anymore
+     */
+    public void replace(Writers w) throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+        writers.remove(w);
+        w.close();
+        if (!closed) {
+            available.add(create());
+        }
+    }
+
+    /**
+     * @return number of writer pairs, borrowed or not
+     */
+    public int size() {
+        return writers.size();
+    }
+
+    /**
+     * Close all writers, flushing the mutations they hold
+     */
+    public void close() {
+        closed = true;
+        available.clear();
+        writers.forEach(Writers::close);
+        writers.clear();
+    }
+}
@@ -1,7 +1,9 @@
 package timely.store;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import org.apache.accumulo.core.client.Scanner;
 
@@ -18,15 +20,38 @@ public interface DataStore {
 
     void store(Metric metric) throws TimelyException;
 
+    /**
+     * Store a batch of metrics, such as the puts decoded from one read of a
+     * channel
+     */
+    void store(Collection<Metric> metrics) throws TimelyException;
+
     SuggestResponse suggest(SuggestRequest query) throws TimelyException;
 
     SearchLookupResponse lookup(SearchLookupRequest msg) throws TimelyException;
 
     List<QueryResponse> query(QueryRequest msg) throws TimelyException;
 
+    /**
+     * Run the query and pass each series to the consumer as soon as it is
+     * complete. The consumer may be called concurrently from several threads.
+     */
+    void query(QueryRequest msg, Consumer<QueryResponse> consumer) throws TimelyException;
+
     void flush() throws TimelyException;
 
+    /**
+     * Create a scanner over the entries of a metric from the start time until
+     * the lag before now. Entries may be blocks of points that start before the
+     * start time, see {@link timely.adapter.accumulo.MetricAdapter#parseAll}.
+     */
     Scanner createScannerForMetric(String sessionId, String metric, Map<String, String> tags, long startTime, int lag)
             throws TimelyException;
 
+    /**
+     * Replace the tags written with UIDs in a metric read from a scanner
+     * returned by {@link #createScannerForMetric}
+     */
+    Metric decode(Metric metric) throws TimelyException;
+
 }
@@ -5,8 +5,8 @@ import timely.api.response.TimelyException;
 
 public class DataStoreFactory {
 
-    public static DataStore create(Configuration conf, int numWriteThreads) throws TimelyException {
+    public static DataStore create(Configuration conf) throws TimelyException {
 
-        return new DataStoreImpl(conf, numWriteThreads);
+        return new DataStoreImpl(conf);
     }
 }
@@ -18,20 +18,24 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NavigableMap;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
 import org.apache.accumulo.core.client.BatchScanner;
-import org.apache.accumulo.core.client.BatchWriter;
 import org.apache.accumulo.core.client.BatchWriterConfig;
 import org.apache.accumulo.core.client.ClientConfiguration;
 import org.apache.accumulo.core.client.Connector;
@@ -45,13 +49,14 @@ import org.apache.accumulo.core.client.TableExistsException;
 import org.apache.accumulo.core.client.TableNotFoundException;
 import org.apache.accumulo.core.client.ZooKeeperInstance;
 import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.apache.accumulo.core.conf.Property;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Mutation;
 import org.apache.accumulo.core.data.PartialKey;
 import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Combiner;
 import org.apache.accumulo.core.iterators.IteratorUtil.IteratorScope;
-import org.apache.accumulo.core.iterators.user.RegExFilter;
 import org.apache.accumulo.core.security.Authorizations;
 import org.apache.accumulo.core.util.Pair;
 import org.apache.commons.configuration.BaseConfiguration;
@@ -68,11 +73,13 @@ import timely.model.Metric;
 import timely.model.Tag;
 import timely.api.request.AuthenticatedRequest;
 import timely.api.request.timeseries.QueryRequest;
+import timely.api.request.timeseries.QueryRequest.Filter;
 import timely.api.request.timeseries.QueryRequest.RateOption;
 import timely.api.request.timeseries.QueryRequest.SubQuery;
 import timely.api.request.timeseries.SearchLookupRequest;
 import timely.api.request.timeseries.SuggestRequest;
 import timely.api.response.TimelyException;
+import timely.api.response.timeseries.QueryPlan;
 import timely.api.response.timeseries.QueryResponse;
 import timely.api.response.timeseries.SearchLookupResponse;
 import timely.api.response.timeseries.SearchLookupResponse.Result;
@@ -80,6 +87,7 @@ import timely.api.response.timeseries.SuggestResponse;
 import timely.auth.AuthCache;
 import timely.sample.Aggregator;
 import timely.sample.Downsample;
+import timely.sample.DownsampleFactory;
 import timely.sample.Sample;
 import timely.sample.iterators.DownsampleIterator;
 import timely.util.MetaKeySet;
@@ -92,42 +100,31 @@ public class DataStoreImpl implements DataStore {
     private static final long DEFAULT_DOWNSAMPLE_MS = 60000;
     private static final Pattern REGEX_TEST = Pattern.compile("^\\w+$");
 
-    /*
-     * Pair doesn't implement Comparable
-     */
-    private static class MetricTagK extends Pair<String, String> implements Comparable<MetricTagK> {
-
-        public MetricTagK(String f, String s) {
-            super(f, s);
-        }
-
-        @Override
-        public int compareTo(MetricTagK o) {
-            int result = getFirst().compareTo(o.getFirst());
-            if (result != 0) {
-                return result;
-            }
-            return getSecond().compareTo(o.getSecond());
-        }
-
-    }
-
     private final Connector connector;
     private MetaCache metaCache = null;
-    private final AtomicLong lastCountTime = new AtomicLong(System.currentTimeMillis());
-    private final AtomicReference<SortedMap<MetricTagK, Integer>> metaCounts = new AtomicReference<>(new TreeMap<>());
     private final String metricsTable;
     private final String metaTable;
     private final InternalMetrics internalMetrics = new InternalMetrics();
     private final Timer internalMetricsTimer = new Timer(true);
     private final int scannerThreads;
-    private final BatchWriterConfig bwConfig;
-    private final List<BatchWriter> writers = new ArrayList<>();
-    private final ThreadLocal<BatchWriter> metaWriter = new ThreadLocal<>();
-    private final ThreadLocal<BatchWriter> batchWriter = new ThreadLocal<>();
+    private final int downsampleBatchSize;
+    private final SubQueryRunner subQueryRunner;
+    private final QueryResultCache resultCache;
+    private final QueryPlanner queryPlanner;
+    private final BatchWriterPool writerPool;
+    private final UidDictionary uidDictionary;
+    private final TagIndex tagIndex;
+    private final TagStatistics tagStatistics;
+    private final Timer tagIndexTimer = new Timer(true);
+    private final boolean encodeTags;
+    private final long timeBlockPeriod;
+    // rollup table by period
+    private final NavigableMap<Long, String> rollupTables = new TreeMap<>();
+    // time from which the rollup table holds all points, by period
+    private final Map<Long, Long> rollupStarts = new HashMap<>();
     private boolean anonAccessAllowed = false;
 
-    public DataStoreImpl(Configuration conf, int numWriteThreads) throws TimelyException {
+    public DataStoreImpl(Configuration conf) throws TimelyException {
 
         try {
             final BaseConfiguration apacheConf = new BaseConfiguration();
@@ -138,12 +135,12 @@ public class DataStoreImpl implements DataStore {
             final Instance instance = new ZooKeeperInstance(aconf);
             connector = instance
                     .getConnector(accumuloConf.getUsername(), new PasswordToken(accumuloConf.getPassword()));
-            bwConfig = new BatchWriterConfig();
-            bwConfig.setMaxLatency(getTimeInMillis(accumuloConf.getWrite().getLatency()), TimeUnit.MILLISECONDS);
-            bwConfig.setMaxMemory(getMemoryInBytes(accumuloConf.getWrite().getBufferSize()) / numWriteThreads);
-            bwConfig.setMaxWriteThreads(accumuloConf.getWrite().getThreads());
             scannerThreads = accumuloConf.getScan().getThreads();
+            downsampleBatchSize = accumuloConf.getScan().getDownsampleBatchSize();
             anonAccessAllowed = conf.getSecurity().isAllowAnonymousAccess();
+            subQueryRunner = new SubQueryRunner(conf.getQuery().getParallelism());
+            resultCache = conf.getQueryCache().isEnabled() ? new QueryResultCache(conf) : null;
+            queryPlanner = new QueryPlanner(connector);
 
             metricsTable = conf.getMetricsTable();
             if (metricsTable.contains(".")) {
@@ -159,6 +156,8 @@ public class DataStoreImpl implements DataStore {
                 }
             }
             final Map<String, String> tableIdMap = connector.tableOperations().tableIdMap();
+            // the rollup tables of a new metrics table hold all of its points
+            final long rollupStart = tableIdMap.containsKey(metricsTable) ? System.currentTimeMillis() : 0;
             if (!tableIdMap.containsKey(metricsTable)) {
                 try {
                     LOG.info("Creating table " + metricsTable);
@@ -168,7 +167,33 @@ public class DataStoreImpl implements DataStore {
                 }
             }
             this.removeAgeOffIterators(connector, metricsTable);
-            this.applyAgeOffIterator(connector, metricsTable, conf);
+            this.applyAgeOffIterator(connector, metricsTable, conf.getMetricAgeOffDays());
+            this.applyTimeBlockIterator(connector, metricsTable, conf);
+            timeBlockPeriod = conf.getTimeBlocks().isEnabled() ? getTimeInMillis(conf.getTimeBlocks().getPeriod()) : 0;
+
+            if (conf.getRollups().isEnabled()) {
+                for (String period : conf.getRollups().getPeriods()) {
+                    String rollupTable = metricsTable + "_" + period;
+                    if (!tableIdMap.containsKey(rollupTable)) {
+                        try {
+                            LOG.info("Creating table " + rollupTable);
+                            connector.tableOperations().create(rollupTable);
+                        } catch (final TableExistsException ex) {
+                            // don't care
+                        }
+                    }
+                    Map<String, Integer> ageOffDays = new HashMap<>(conf.getMetricAgeOffDays());
+                    Integer days = conf.getRollups().getAgeOffDays().get(period);
+                    if (null != days) {
+                        ageOffDays.put(MetricAgeOffFilter.DEFAULT_AGEOFF_KEY, days);
+                    }
+                    this.removeAgeOffIterators(connector, rollupTable);
+                    this.applyAgeOffIterator(connector, rollupTable, ageOffDays);
+                    this.applyRollupCombiner(connector, rollupTable);
+                    rollupTables.put(getTimeInMillis(period), rollupTable);
+                    rollupStarts.put(getTimeInMillis(period), getRollupStart(connector, rollupTable, rollupStart));
+                }
+            }
 
             metaTable = conf.getMetaTable();
             if (!tableIdMap.containsKey(metaTable)) {
@@ -180,7 +205,37 @@ public class DataStoreImpl implements DataStore {
                 }
             }
             this.removeAgeOffIterators(connector, metaTable);
-            this.applyAgeOffIterator(connector, metaTable, conf);
+            this.applyAgeOffIterator(connector, metaTable, conf.getMetricAgeOffDays());
+            this.applyTagStatisticsCombiner(connector, metaTable);
+            tagStatistics = new TagStatistics(connector, metaTable);
+            uidDictionary = new UidDictionary(connector, metaTable, conf.getUidDictionary().getMaxCapacity());
+            encodeTags = conf.getUidDictionary().isEnabled();
+            if (conf.getTagIndex().isEnabled()) {
+                tagIndex = new TagIndex(conf.getTagIndex().getMaxValues());
+                internalMetrics.setTagIndex(tagIndex);
+                tagIndexTimer.schedule(new TimerTask() {
+
+                    @Override
+                    public void run() {
+                        try {
+                            tagIndex.load(connector, metaTable);
+                        } catch (Exception e) {
+                            LOG.error("Error loading the tag index", e);
+                        }
+                    }
+
+                }, 0, getTimeInMillis(conf.getTagIndex().getRefresh()));
+            } else {
+                tagIndex = null;
+            }
+
+            final BatchWriterConfig bwConfig = new BatchWriterConfig();
+            bwConfig.setMaxLatency(getTimeInMillis(accumuloConf.getWrite().getLatency()), TimeUnit.MILLISECONDS);
+            bwConfig.setMaxMemory(getMemoryInBytes(accumuloConf.getWrite().getBufferSize()));
+            bwConfig.setMaxWriteThreads(accumuloConf.getWrite().getThreads());
+            writerPool = new BatchWriterPool(connector, metricsTable, metaTable,
+                    new ArrayList<>(rollupTables.values()), bwConfig, accumuloConf.getWrite().getWriters(),
+                    accumuloConf.getWrite().isMultiTable());
 
             internalMetricsTimer.schedule(new TimerTask() {
 
@@ -208,10 +263,10 @@ public class DataStoreImpl implements DataStore {
         }
     }
 
-    private void applyAgeOffIterator(Connector con, String tableName, Configuration config) throws Exception {
+    private void applyAgeOffIterator(Connector con, String tableName, Map<String, Integer> ageOffDays) throws Exception {
         int priority = 100;
         Map<String, String> ageOffOptions = new HashMap<>();
-        for (Entry<String, Integer> e : config.getMetricAgeOffDays().entrySet()) {
+        for (Entry<String, Integer> e : ageOffDays.entrySet()) {
             String ageoff = Long.toString(e.getValue() * 86400000L);
             ageOffOptions.put(MetricAgeOffFilter.AGE_OFF_PREFIX + e.getKey(), ageoff);
         }
@@ -220,40 +275,132 @@ public class DataStoreImpl implements DataStore {
         connector.tableOperations().attachIterator(tableName, ageOffIteratorSettings, AGEOFF_SCOPES);
     }
 
+    private static final String TIME_BLOCK_ITERATOR = "timeblock";
+    private static final EnumSet<IteratorScope> TIME_BLOCK_SCOPES = EnumSet.of(IteratorScope.majc);
+
+    private void applyTimeBlockIterator(Connector con, String tableName, Configuration config) throws Exception {
+        if (con.tableOperations().listIterators(tableName).containsKey(TIME_BLOCK_ITERATOR)) {
+            con.tableOperations().removeIterator(tableName, TIME_BLOCK_ITERATOR, TIME_BLOCK_SCOPES);
+        }
+        if (config.getTimeBlocks().isEnabled()) {
+            IteratorSetting setting = new IteratorSetting(200, TIME_BLOCK_ITERATOR, TimeBlockIterator.class);
+            TimeBlockIterator.setOptions(setting, getTimeInMillis(config.getTimeBlocks().getPeriod()),
+                    getTimeInMillis(config.getTimeBlocks().getMinAge()));
+            con.tableOperations().attachIterator(tableName, setting, TIME_BLOCK_SCOPES);
+        }
+    }
+
+    private static final String ROLLUP_ITERATOR = "rollup";
+    private static final EnumSet<IteratorScope> ROLLUP_SCOPES = EnumSet.allOf(IteratorScope.class);
+
+    /**
+     * The combiner runs before the versioning iterator, which would otherwise
+     * keep only one of the entries written for a period
+     */
+    private void applyRollupCombiner(Connector con, String tableName) throws Exception {
+        if (!con.tableOperations().listIterators(tableName).containsKey(ROLLUP_ITERATOR)) {
+            IteratorSetting setting = new IteratorSetting(10, ROLLUP_ITERATOR, RollupCombiner.class);
+            Combiner.setCombineAllColumns(setting, true);
+            con.tableOperations().attachIterator(tableName, setting, ROLLUP_SCOPES);
+        }
+    }
+
+    private static final String ROLLUP_START_PROPERTY = Property.TABLE_ARBITRARY_PROP_PREFIX.getKey()
+            + "timely.rollup.start";
+
+    /**
+     * The points written before a rollup table was created are only in the
+     * metrics table. The time from which the rollup table holds all points is
+     * kept in a table property, set when the property is missing, and can be
+     * lowered once the earlier points have been added to the rollup table.
+     *
+     * @return time from which the rollup table holds all points
+     */
+    private long getRollupStart(Connector con, String tableName, long start) throws Exception {
+        for (Entry<String, String> property : con.tableOperations().getProperties(tableName)) {
+            if (ROLLUP_START_PROPERTY.equals(property.getKey())) {
+                return Long.parseLong(property.getValue());
+            }
+        }
+        LOG.info("Rollup table {} holds the points from {}", tableName, start);
+        con.tableOperations().setProperty(tableName, ROLLUP_START_PROPERTY, Long.toString(start));
+        return start;
+    }
+
+    private static final String TAG_STATISTICS_ITERATOR = "tagstats";
+
+    /**
+     * The combiner runs before the versioning iterator, which would otherwise
+     * keep only one of the sketches written for a tag key
+     */
+    private void applyTagStatisticsCombiner(Connector con, String tableName) throws Exception {
+        if (!con.tableOperations().listIterators(tableName).containsKey(TAG_STATISTICS_ITERATOR)) {
+            IteratorSetting setting = new IteratorSetting(10, TAG_STATISTICS_ITERATOR, TagStatisticsCombiner.class);
+            Combiner.setCombineAllColumns(setting, true);
+            con.tableOperations().attachIterator(tableName, setting, ROLLUP_SCOPES);
+        }
+    }
+
+    /**
+     * A block of points is written in a row at or after the start of its
+     * period, so scans that may read blocks start at the start of the period
+     */
+    private long getScanStart(long start) {
+        if (timeBlockPeriod > 0) {
+            return start - Math.floorMod(start, timeBlockPeriod);
+        }
+        return start;
+    }
+
     @Override
     public void store(Metric metric) {
-        LOG.trace("Received Store Request for: {}", metric);
-        if (null == metaWriter.get()) {
-            try {
-                BatchWriter w = connector.createBatchWriter(metaTable, bwConfig);
-                metaWriter.set(w);
-                writers.add(w);
-            } catch (TableNotFoundException e) {
-                LOG.error("Error creating meta batch writer", e);
-                return;
-            }
+        store(Collections.singletonList(metric));
+    }
+
+    /**
+     * Store a batch of metrics. The meta cache is checked once per distinct
+     * meta key in the batch and the mutations for each table are added to the
+     * batch writers with one call.
+     */
+    @Override
+    public void store(Collection<Metric> metrics) {
+        LOG.trace("Received Store Request for {} metrics", metrics.size());
+        if (metrics.isEmpty()) {
+            return;
         }
-        if (null == batchWriter.get()) {
+        internalMetrics.incrementMetricsReceived(metrics.size());
+        Map<Tag, String> columns = null;
+        if (encodeTags) {
             try {
-                BatchWriter w = connector.createBatchWriter(metricsTable, bwConfig);
-                batchWriter.set(w);
-                writers.add(w);
-            } catch (TableNotFoundException e) {
-                LOG.error("Error creating metric batch writer", e);
+                columns = encodeTags(metrics);
+            } catch (TimelyException e) {
+                LOG.error("Unable to encode tags, dropping {} metrics", metrics.size(), e);
                 return;
             }
         }
-
-        internalMetrics.incrementMetricsReceived(1);
-        List<Meta> toCache = new ArrayList<>(metric.getTags().size());
-        for (final Tag tag : metric.getTags()) {
-            Meta key = new Meta(metric.getName(), tag.getKey(), tag.getValue());
-            if (!metaCache.contains(key)) {
-                toCache.add(key);
+        Set<Meta> toCache = new HashSet<>();
+        List<Mutation> metricMutations = new ArrayList<>(metrics.size());
+        List<List<Mutation>> rollupMutations = new ArrayList<>(rollupTables.size());
+        rollupTables.forEach((period, table) -> rollupMutations.add(new ArrayList<>(metrics.size())));
+        Function<Tag, String> encoder = null == columns ? Tag::join : columns::get;
+        long metricKeys = 0;
+        for (Metric metric : metrics) {
+            for (final Tag tag : metric.getTags()) {
+                Meta key = new Meta(metric.getName(), tag.getKey(), tag.getValue());
+                if (!toCache.contains(key) && !metaCache.contains(key)) {
+                    toCache.add(key);
+                }
+            }
+            metricMutations.add(MetricAdapter.toMutation(metric, encoder));
+            int i = 0;
+            for (long period : rollupTables.keySet()) {
+                rollupMutations.get(i++).add(MetricAdapter.toRollupMutation(metric, encoder, period));
             }
+            metricKeys += metric.getTags().size();
         }
+        Set<Mutation> metaMutations = null;
         if (!toCache.isEmpty()) {
-            final Set<Mutation> muts = new TreeSet<>(new Comparator<Mutation>() {
+            metaMutations = new TreeSet<>(new Comparator<Mutation>() {
 
                 @Override
                 public int compare(Mutation o1, Mutation o2) {
@@ -271,67 +418,74 @@ public class DataStoreImpl implements DataStore {
             MetaKeySet mks = new MetaKeySet();
             toCache.forEach(m -> mks.addAll(m.toKeys()));
             internalMetrics.incrementMetaKeysInserted(mks.size());
-            muts.addAll(mks.toMutations());
+            metaMutations.addAll(mks.toMutations());
+            metaMutations.addAll(TagStatistics.toMutations(toCache));
+        }
+
+        final BatchWriterPool.Writers w;
+        try {
+            w = writerPool.borrow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("Interrupted waiting for a batch writer, dropping {} metrics", metrics.size());
+            return;
+        }
+        boolean rejected = false;
+        try {
+            if (null != metaMutations) {
+                try {
+                    w.getMeta().addMutations(metaMutations);
+                } catch (MutationsRejectedException e) {
+                    LOG.error("Unable to write to meta table", e);
+                    rejected = true;
+                }
+                metaCache.addAll(toCache);
+                tagStatistics.addAll(toCache);
+                if (null != tagIndex) {
+                    tagIndex.addAll(toCache);
+                }
+            }
             try {
-                metaWriter.get().addMutations(muts);
+                w.getMetrics().addMutations(metricMutations);
+                internalMetrics.incrementMetricKeysInserted(metricKeys);
             } catch (MutationsRejectedException e) {
-                LOG.error("Unable to write to meta table", e);
+                LOG.error("Unable to write to metrics table", e);
+                rejected = true;
+            }
+            for (int i = 0; i < rollupMutations.size(); i++) {
                 try {
-                    try {
-                        final BatchWriter w = metaWriter.get();
-                        metaWriter.remove();
-                        writers.remove(w);
-                        w.close();
-                    } catch (MutationsRejectedException e1) {
-                        LOG.error("Error closing meta writer", e1);
-                    }
-                    final BatchWriter w = connector.createBatchWriter(metaTable, bwConfig);
-                    metaWriter.set(w);
-                    writers.add(w);
-                } catch (TableNotFoundException e1) {
-                    Server.fatal("Unexpected error recreating meta batch writer, shutting down Timely server", e1);
+                    w.getRollups().get(i).addMutations(rollupMutations.get(i));
+                } catch (MutationsRejectedException e) {
+                    LOG.error("Unable to write to rollup table", e);
+                    rejected = true;
                 }
             }
-            metaCache.addAll(toCache);
-        }
-        try {
-
-            batchWriter.get().addMutation(MetricAdapter.toMutation(metric));
-            internalMetrics.incrementMetricKeysInserted(metric.getTags().size());
-        } catch (MutationsRejectedException e) {
-            LOG.error("Unable to write to metrics table", e);
-            try {
+        } finally {
+            if (rejected) {
                 try {
-                    final BatchWriter w = batchWriter.get();
-                    batchWriter.remove();
-                    writers.remove(w);
-                    w.close();
-                } catch (MutationsRejectedException e1) {
-                    LOG.error("Error closing metric writer", e1);
+                    writerPool.replace(w);
+                } catch (AccumuloException | AccumuloSecurityException | TableNotFoundException e1) {
+                    Server.fatal("Unexpected error recreating batch writers, shutting down Timely server", e1);
                 }
-                final BatchWriter w = connector.createBatchWriter(metricsTable, bwConfig);
-                batchWriter.set(w);
-                writers.add(w);
-            } catch (TableNotFoundException e1) {
-                Server.fatal("Unexpected error recreating metrics batch writer, shutting down Timely server", e1);
+            } else {
+                writerPool.release(w);
             }
         }
     }
 
-    private static final long FIVE_MINUTES_IN_MS = TimeUnit.MINUTES.toMillis(5);
-
-    private void updateMetricCounts() {
-        long now = System.currentTimeMillis();
-        if (now - lastCountTime.get() > FIVE_MINUTES_IN_MS) {
-            this.lastCountTime.set(now);
-            SortedMap<MetricTagK, Integer> update = new TreeMap<>();
-            for (Meta meta : this.metaCache) {
-                MetricTagK key = new MetricTagK(meta.getMetric(), meta.getTagKey());
-                Integer count = update.getOrDefault(key, 0);
-                update.put(key, count + 1);
+    /**
+     * Look up or assign the UIDs of the distinct tags of the batch once
+     */
+    private Map<Tag, String> encodeTags(Collection<Metric> metrics) throws TimelyException {
+        Map<Tag, String> columns = new HashMap<>();
+        for (Metric metric : metrics) {
+            for (Tag tag : metric.getTags()) {
+                if (!columns.containsKey(tag) && !tag.getKey().equals(MetricAdapter.VISIBILITY_TAG)) {
+                    columns.put(tag, uidDictionary.encode(tag));
+                }
             }
-            this.metaCounts.set(update);
         }
+        return columns;
     }
 
     @Override
@@ -378,14 +532,10 @@ public class DataStoreImpl implements DataStore {
     @Override
     public void flush() {
         internalMetricsTimer.cancel();
-        writers.forEach(w -> {
-            try {
-                w.close();
-            } catch (final Exception ex) {
-                LOG.warn("Error shutting down batchwriter", ex);
-            }
-
-        });
+        tagIndexTimer.cancel();
+        writerPool.close();
+        uidDictionary.close();
+        subQueryRunner.shutdown();
     }
 
     @Override
@@ -447,59 +597,84 @@ public class DataStoreImpl implements DataStore {
     @Override
     public List<QueryResponse> query(QueryRequest msg) throws TimelyException {
         List<QueryResponse> result = new ArrayList<>();
+        runSubQueries(msg, query -> query(msg, query).collect(Collectors.toList())).forEach(result::addAll);
+        return result;
+    }
+
+    @Override
+    public void query(QueryRequest msg, Consumer<QueryResponse> consumer) throws TimelyException {
+        runSubQueries(msg, query -> {
+            query(msg, query).forEach(consumer);
+            return null;
+        });
+    }
+
+    private <T> List<T> runSubQueries(QueryRequest msg, SubQueryRunner.Call<T> call) throws TimelyException {
+        long now = System.currentTimeMillis();
+        List<T> result = subQueryRunner.run(msg.getQueries(), call);
+        LOG.debug("Query time: {}", (System.currentTimeMillis() - now));
+        return result;
+    }
+
+    private Stream<QueryResponse> query(QueryRequest msg, SubQuery query) throws TimelyException {
         long startTs = msg.getStart();
         long endTs = msg.getEnd();
         try {
-            long now = System.currentTimeMillis();
-            for (SubQuery query : msg.getQueries()) {
-                Map<Set<Tag>, List<Downsample>> allSeries = new HashMap<>();
-                String metric = query.getMetric();
-                BatchScanner scanner = connector.createBatchScanner(metricsTable, getSessionAuthorizations(msg),
-                        scannerThreads);
-                try {
-                    setQueryRange(scanner, metric, startTs, endTs);
-                    List<String> tagOrder = prioritizeTags(query);
-                    Map<String, String> orderedTags = orderTags(tagOrder, query.getTags());
-                    setQueryColumns(scanner, metric, orderedTags);
-                    long downsample = getDownsamplePeriod(query);
-                    if (((endTs - startTs) / downsample + 1) > Integer.MAX_VALUE) {
-                        throw new IOException(
-                                "Downsample not large enough for time range. Decrease time range or increase downsample period.");
-                    }
-                    LOG.trace("Downsample period {}", downsample);
-                    Class<? extends Aggregator> aggClass = getAggregator(query);
-                    LOG.trace("Aggregator type {}", aggClass.getSimpleName());
-                    IteratorSetting is = new IteratorSetting(500, DownsampleIterator.class);
-                    DownsampleIterator.setDownsampleOptions(is, startTs, endTs, downsample, aggClass.getName());
-                    scanner.addScanIterator(is);
-                    // tag -> array of results by period starting at start
-                    for (Entry<Key, Value> encoded : scanner) {
-                        Map<Set<Tag>, Downsample> samples = DownsampleIterator.decodeValue(encoded.getValue());
-                        for (Entry<Set<Tag>, Downsample> entry : samples.entrySet()) {
-                            Set<Tag> key = new HashSet<>();
-                            for (Tag tag : entry.getKey()) {
-                                if (query.getTags().keySet().contains(tag.getKey())) {
-                                    key.add(tag);
-                                }
-                            }
-                            List<Downsample> downsamples = allSeries.getOrDefault(key, new ArrayList<>());
-                            downsamples.add(entry.getValue());
-                            allSeries.put(key, downsamples);
-                        }
+            long downsample = getDownsamplePeriod(query);
+            if (((endTs - startTs) / downsample + 1) > Integer.MAX_VALUE) {
+                throw new IOException(
+                        "Downsample not large enough for time range. Decrease time range or increase downsample period.");
+            }
+            LOG.trace("Downsample period {}", downsample);
+            Class<? extends Aggregator> aggClass = getAggregator(query);
+            LOG.trace("Aggregator type {}", aggClass.getSimpleName());
+            Entry<Long, String> rollup = getRollup(downsample, aggClass, startTs);
+            if (null != rollup) {
+                // the buckets start with a rollup period, with and without
+                // the result cache
+                startTs -= Math.floorMod(startTs, rollup.getKey());
+            }
+            Authorizations auths = getSessionAuthorizations(msg);
+            QueryPlan plan = null;
+            if (msg.isShowQuery()) {
+                plan = new QueryPlan();
+                plan.setMetric(query.getMetric());
+                plan.setTags(query.getTags());
+                plan.setAggregator(aggClass.getSimpleName());
+                plan.setDownsample(downsample);
+            }
+            Map<Set<Tag>, Downsample> series;
+            if (null == resultCache) {
+                series = scan(query, auths, startTs, endTs, downsample, aggClass, rollup, plan);
+            } else {
+                series = cachedScan(query, auths, startTs, endTs, downsample, aggClass, rollup, plan);
+            }
+            // tag -> array of results by period starting at start, the
+            // series of a filter query are grouped on the tablet servers and
+            // each group can be returned by more than one of them
+            Set<String> groupBy = getGroupByKeys(query);
+            Map<Set<Tag>, List<Downsample>> allSeries = new HashMap<>();
+            for (Entry<Set<Tag>, Downsample> entry : series.entrySet()) {
+                Set<Tag> key = new HashSet<>();
+                for (Tag tag : entry.getKey()) {
+                    if (groupBy.contains(tag.getKey())) {
+                        key.add(tag);
                     }
-                    LOG.trace("allSeries: {}", allSeries);
-                } finally {
-                    scanner.close();
-                }
-
-                // TODO groupby here?
-                long tsDivisor = msg.isMsResolution() ? 1 : 1000;
-                for (Entry<Set<Tag>, List<Downsample>> entry : allSeries.entrySet()) {
-                    result.add(convertToQueryResponse(query, entry.getKey(), entry.getValue(), tsDivisor));
                 }
+                List<Downsample> downsamples = allSeries.getOrDefault(key, new ArrayList<>());
+                downsamples.add(entry.getValue());
+                allSeries.put(key, downsamples);
             }
-            LOG.debug("Query time: {}", (System.currentTimeMillis() - now));
-            return result;
+            LOG.trace("allSeries: {}", allSeries);
+
+            long tsDivisor = msg.isMsResolution() ? 1 : 1000;
+            QueryPlan queryPlan = plan;
+            // the caller runs in the sub query pool, so the parallel stream
+            // does too
+            return allSeries
+                    .entrySet()
+                    .parallelStream()
+                    .map(entry -> convertToQueryResponse(query, entry.getKey(), entry.getValue(), tsDivisor, queryPlan));
         } catch (ClassNotFoundException | IOException | TableNotFoundException ex) {
             LOG.error("Error during query: " + ex.getMessage(), ex);
             throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), "Error during query: "
@@ -507,6 +682,157 @@ public class DataStoreImpl implements DataStore {
         }
     }
 
+    /**
+     * Answer the query from the cached buckets of a previous query where
+     * possible and only scan the buckets after them. The buckets start at
+     * startTs, as those of a query without the cache.
+     */
+    private Map<Set<Tag>, Downsample> cachedScan(SubQuery query, Authorizations auths, long startTs, long endTs,
+            long downsample, Class<? extends Aggregator> aggClass, Entry<Long, String> rollup, QueryPlan plan)
+            throws TimelyException, IOException, ClassNotFoundException, TableNotFoundException {
+        long now = System.currentTimeMillis();
+        QueryResultCache.Key cacheKey = new QueryResultCache.Key(query, startTs, downsample, aggClass, auths);
+        QueryResultCache.Entry cached = resultCache.get(cacheKey);
+        long scanStart = startTs;
+        if (null != cached && cached.getStart() <= startTs && cached.getEnd() > startTs) {
+            scanStart = cached.getEnd();
+        } else {
+            cached = null;
+        }
+        LOG.trace("Cached buckets {} scanning from {}", (null == cached ? "none" : cached.getEnd()), scanStart);
+        if (null != plan && null != cached) {
+            plan.setCachedUntil(scanStart);
+        }
+        Map<Set<Tag>, Downsample> scanned = Collections.emptyMap();
+        if (scanStart <= endTs) {
+            // the scan range ends at endTs, the Downsample needs at least two
+            // distinct times
+            scanned = scan(query, auths, scanStart, Math.max(endTs, scanStart + 1), downsample, aggClass, rollup, plan);
+        }
+
+        Map<Set<Tag>, Downsample> series = new HashMap<>();
+        DownsampleFactory factory = new DownsampleFactory(startTs, Math.max(endTs, startTs + 1), downsample, aggClass);
+        if (null != cached) {
+            QueryResultCache.copyInto(series, cached.getSeries(), factory);
+        }
+        QueryResultCache.copyInto(series, scanned, factory);
+
+        // keep the complete buckets of the window that will not change anymore
+        resultCache.update(cacheKey, cached, scanned, startTs, endTs, now, aggClass);
+        return series;
+    }
+
+    /**
+     * Scan the points, or the rollup if not null, of a query, the plan is
+     * filled in if not null
+     */
+    private Map<Set<Tag>, Downsample> scan(SubQuery query, Authorizations auths, long startTs, long endTs,
+            long downsample, Class<? extends Aggregator> aggClass, Entry<Long, String> rollup, QueryPlan plan)
+            throws TimelyException, IOException, ClassNotFoundException, TableNotFoundException {
+        String metric = query.getMetric();
+        String table = metricsTable;
+        long scanStart = getScanStart(startTs);
+        if (null != rollup) {
+            scanStart = startTs;
+            table = rollup.getValue();
+        }
+        LOG.trace("Scanning table {}", table);
+        BatchScanner scanner = connector.createBatchScanner(table, auths, scannerThreads);
+        try {
+            List<Range> ranges = queryPlanner.getRanges(table, metric, scanStart, endTs);
+            LOG.trace("Set query ranges to {}", ranges);
+            scanner.setRanges(ranges);
+            if (null != plan) {
+                plan.setTable(table);
+                plan.setRollup(null == rollup ? 0 : rollup.getKey());
+                QueryPlanner.describe(plan, metric, ranges);
+            }
+            List<String> tagOrder = prioritizeTags(query);
+            Map<String, String> orderedTags = orderTags(tagOrder, query.getTags());
+            setQueryColumns(scanner, metric, orderedTags, query.getFilters());
+            IteratorSetting is = new IteratorSetting(500, DownsampleIterator.class);
+            DownsampleIterator.setDownsampleOptions(is, startTs, endTs, downsample, aggClass.getName());
+            DownsampleIterator.setBatchSize(is, downsampleBatchSize);
+            if (!query.getFilters().isEmpty()
+                    && (null == query.getRateOptions() || !query.getRateOptions().isCounter())) {
+                // series of the same group are aggregated before the gaps are
+                // interpolated, tag queries and counters keep interpolating
+                // and converting each series on its own
+                DownsampleIterator.setGroupBy(is, getEncodedGroupByKeys(query));
+            }
+            if (null != rollup) {
+                DownsampleIterator.setRollup(is);
+            }
+            scanner.addScanIterator(is);
+            // Each entry holds partial results for up to
+            // downsampleBatchSize series, merge them by series as they
+            // arrive so that only one Downsample per series is held.
+            Map<Set<Tag>, Downsample> series = new HashMap<>();
+            for (Entry<Key, Value> encoded : scanner) {
+                Map<Set<Tag>, Downsample> samples = DownsampleIterator.decodeValue(encoded.getValue());
+                for (Entry<Set<Tag>, Downsample> entry : samples.entrySet()) {
+                    // the same series can be written with and without UIDs
+                    Set<Tag> tags = uidDictionary.decode(entry.getKey());
+                    Downsample existing = series.putIfAbsent(tags, entry.getValue());
+                    if (null != existing) {
+                        existing.merge(entry.getValue());
+                    }
+                }
+            }
+            return series;
+        } finally {
+            scanner.close();
+        }
+    }
+
+    /**
+     * @return the rollup table with the longest period that evenly divides the
+     *         downsample period and holds all points from the start of the
+     *         period of startTs, or null if the points have to be read
+     */
+    private Entry<Long, String> getRollup(long downsample, Class<? extends Aggregator> aggClass, long startTs) {
+        if (!DownsampleIterator.isRollupSupported(aggClass)) {
+            return null;
+        }
+        for (Entry<Long, String> rollup : rollupTables.descendingMap().entrySet()) {
+            long period = rollup.getKey();
+            if (downsample % period == 0 && startTs - Math.floorMod(startTs, period) >= rollupStarts.get(period)) {
+                return rollup;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return keys of the tags in the query and of the filters that group by
+     *         their tag, the other tags are aggregated
+     */
+    private static Set<String> getGroupByKeys(SubQuery query) {
+        Set<String> keys = new HashSet<>(query.getTags().keySet());
+        for (Filter filter : query.getFilters()) {
+            if (filter.isGroupBy()) {
+                keys.add(filter.getTagk());
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * @return group by keys in the forms that can be written to the metrics
+     *         table, as given and with UIDs
+     */
+    private Set<String> getEncodedGroupByKeys(SubQuery query) throws TimelyException {
+        Set<String> keys = getGroupByKeys(query);
+        if (!uidDictionary.isInUse() || keys.isEmpty()) {
+            return keys;
+        }
+        Set<String> encoded = new HashSet<>(keys);
+        for (Long uid : uidDictionary.getUids(keys).values()) {
+            encoded.add(UidDictionary.MARKER + UidDictionary.toString(uid));
+        }
+        return encoded;
+    }
+
     private Map<String, String> orderTags(List<String> tagOrder, Map<String, String> tags) {
         Map<String, String> order = new LinkedHashMap<>(tags.size());
         tagOrder.forEach(t -> order.put(t, tags.get(t)));
@@ -535,27 +861,14 @@ public class DataStoreImpl implements DataStore {
             return Collections.singletonList(tags.keySet().iterator().next());
         }
         // favor tags with fewer values
-        Map<String, Integer> priority = new HashMap<>();
-        String metric = query.getMetric();
-        // Count matching tags
-        updateMetricCounts();
+        Map<String, Long> priority = new HashMap<>();
+        Map<String, Long> counts = tagStatistics.getCounts(query.getMetric());
         for (Entry<String, String> entry : tags.entrySet()) {
             String tagk = entry.getKey();
-            String tagv = entry.getValue();
-            if (!isTagValueRegex(tagv)) {
-                MetricTagK start = new MetricTagK(metric, tagk);
-                int count = 0;
-                for (Entry<MetricTagK, Integer> metricCount : metaCounts.get().tailMap(start).entrySet()) {
-                    Pair<String, String> metricTagk = metricCount.getKey();
-                    if (!metricTagk.getFirst().equals(metric) || !metricTagk.getSecond().startsWith(tagk)) {
-                        break;
-                    } else {
-                        count += metricCount.getValue();
-                    }
-                }
-                priority.put(tagk, count);
+            if (!isTagValueRegex(entry.getValue())) {
+                priority.put(tagk, counts.getOrDefault(tagk, 0L));
             } else {
-                priority.put(tagk, Integer.MAX_VALUE);
+                priority.put(tagk, Long.MAX_VALUE);
             }
         }
         List<String> result = new ArrayList<>(tags.keySet());
@@ -564,7 +877,7 @@ public class DataStoreImpl implements DataStore {
             @Override
             public int compare(String o1, String o2) {
                 // greater count lowers priority
-                return priority.get(o1).intValue() - priority.get(o2).intValue();
+                return Long.compare(priority.get(o1), priority.get(o2));
             }
         });
         LOG.trace("Tag priority {}", result);
@@ -572,17 +885,17 @@ public class DataStoreImpl implements DataStore {
     }
 
     private QueryResponse convertToQueryResponse(SubQuery query, Set<Tag> tags, Collection<Downsample> values,
-            long tsDivisor) {
+            long tsDivisor, QueryPlan plan) {
         QueryResponse response = new QueryResponse();
         response.setMetric(query.getMetric());
+        response.setQuery(plan);
         for (Tag tag : tags) {
             response.putTag(tag.getKey(), tag.getValue());
         }
         RateOption rateOptions = query.getRateOptions();
         Downsample combined = Downsample.combine(values, rateOptions);
         for (Sample entry : combined) {
-            long ts = entry.timestamp / tsDivisor;
-            response.putDps(Long.toString(ts), entry.value);
+            response.addDps(entry.timestamp / tsDivisor, entry.value);
         }
         LOG.trace("Created query response {}", response);
         return response;
@@ -592,9 +905,163 @@ public class DataStoreImpl implements DataStore {
         return !REGEX_TEST.matcher(value).matches();
     }
 
-    private void setQueryColumns(ScannerBase scanner, String metric, Map<String, String> tags)
-            throws TableNotFoundException, TimelyException {
+    private void setQueryColumns(ScannerBase scanner, String metric, Map<String, String> tags,
+            Collection<Filter> filters) throws TableNotFoundException, TimelyException {
         LOG.trace("Looking for requested tags: {}", tags);
+        Iterator<Entry<String, String>> tagIter = tags.entrySet().iterator();
+        Entry<String, String> first = tagIter.hasNext() ? tagIter.next() : null;
+        // Expand the tags in the meta table for this metric that match the
+        // pattern of the first tag in the query. The resulting set of tags
+        // will be used to fetch specific columns from the metric table.
+        Set<Tag> concrete = null;
+        if (null != tagIndex) {
+            if (null == first) {
+                concrete = tagIndex.expand(metric, null, null, false);
+            } else {
+                concrete = tagIndex.expand(metric, first.getKey(), first.getValue(), isTagValueRegex(first.getValue()));
+            }
+            if (null != concrete && concrete.isEmpty()) {
+                // the tags may have been written by another server since the
+                // index was loaded. A regular expression or a query without
+                // tags that matches some values is not read again, the values
+                // written by other servers are missed until the next reload.
+                concrete = null;
+            }
+        }
+        if (null == concrete) {
+            concrete = scanTagValues(metric, first);
+        }
+        if (concrete.size() == 0) {
+            throw new TimelyException(HttpResponseStatus.BAD_REQUEST.code(), "No matching tags", "No tags were found "
+                    + " that matched the submitted tags. Please fix and retry");
+        }
+        LOG.trace("Found matching tags: {}", concrete);
+        // Tags may also have been written with UIDs
+        boolean dictionary = uidDictionary.isInUse();
+        Map<String, Long> uids = Collections.emptyMap();
+        if (dictionary) {
+            Set<String> names = new HashSet<>();
+            concrete.forEach(t -> {
+                names.add(t.getKey());
+                names.add(t.getValue());
+            });
+            uids = uidDictionary.getUids(names);
+        }
+        for (Tag tag : concrete) {
+            Text colf = new Text(tag.getKey() + "=" + tag.getValue());
+            scanner.fetchColumnFamily(colf);
+            LOG.trace("Fetching metric table column family: {}", colf);
+            Long key = uids.get(tag.getKey());
+            Long value = uids.get(tag.getValue());
+            if (null != key && null != value) {
+                scanner.fetchColumnFamily(new Text(UidDictionary.encode(key, value)));
+            }
+        }
+        // Filter the other tags and the filters in one pass over each key
+        if (tagIter.hasNext() || !filters.isEmpty()) {
+            IteratorSetting setting = new IteratorSetting(100, "tag filter", TagFilter.class);
+            while (tagIter.hasNext()) {
+                Entry<String, String> tag = tagIter.next();
+                LOG.trace("Adding filter for tag {}", tag);
+                boolean regex = isTagValueRegex(tag.getValue());
+                Pair<String, List<String>> encoded = null;
+                if (dictionary) {
+                    encoded = regex ? getEncodedTag(metric, tag.getKey(), null, tag.getValue()) : getEncodedTag(metric,
+                            tag.getKey(), Collections.singleton(tag.getValue()), null);
+                }
+                if (null == encoded) {
+                    TagFilter.addTag(setting, tag.getKey(), tag.getValue(), regex);
+                } else {
+                    TagFilter.addTag(setting, tag.getKey(), tag.getValue(), regex, encoded.getFirst(),
+                            encoded.getSecond());
+                }
+            }
+            for (Filter filter : filters) {
+                LOG.trace("Adding filter {}", filter);
+                addFilter(setting, metric, filter, dictionary);
+            }
+            scanner.addScanIterator(setting);
+        }
+    }
+
+    /**
+     * Add an OpenTSDB tag value filter to the tag filter iterator. A regexp
+     * filter matches a value that contains a match, as in OpenTSDB.
+     */
+    private void addFilter(IteratorSetting setting, String metric, Filter filter, boolean dictionary)
+            throws TableNotFoundException, TimelyException {
+        String type = filter.getType();
+        String tagk = filter.getTagk();
+        String value = filter.getFilter();
+        if (null == type || null == tagk || null == value) {
+            throw new TimelyException(HttpResponseStatus.BAD_REQUEST.code(), "Incomplete filter",
+                    "Filters need a type, tagk and filter: " + filter);
+        }
+        List<String> literals = null;
+        String regex = null;
+        boolean negate = false;
+        switch (type) {
+            case "literal_or":
+                literals = Arrays.asList(value.split("\\|"));
+                break;
+            case "not_literal_or":
+                literals = Arrays.asList(value.split("\\|"));
+                negate = true;
+                break;
+            case "wildcard":
+                regex = wildcardToRegex(value);
+                break;
+            case "regexp":
+                regex = ".*(?:" + value + ").*";
+                break;
+            default:
+                throw new TimelyException(HttpResponseStatus.BAD_REQUEST.code(), "Unsupported filter type " + type,
+                        "Supported filter types are literal_or, not_literal_or, wildcard and regexp");
+        }
+        if (null != regex) {
+            try {
+                Pattern.compile(regex);
+            } catch (PatternSyntaxException e) {
+                throw new TimelyException(HttpResponseStatus.BAD_REQUEST.code(), "Invalid filter " + value,
+                        e.getMessage(), e);
+            }
+        }
+        Pair<String, List<String>> encoded = dictionary ? getEncodedTag(metric, tagk, literals, regex) : null;
+        String uidKey = null == encoded ? null : encoded.getFirst();
+        List<String> uidValues = null == encoded ? null : encoded.getSecond();
+        if (null == regex) {
+            TagFilter.addTag(setting, tagk, literals, negate, uidKey, uidValues);
+        } else {
+            TagFilter.addPattern(setting, tagk, regex, negate, uidKey, uidValues);
+        }
+    }
+
+    /**
+     * @return regular expression of a wildcard filter, where * matches any
+     *         characters
+     */
+    private static String wildcardToRegex(String wildcard) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        for (int i = wildcard.indexOf('*'); i >= 0; i = wildcard.indexOf('*', start)) {
+            if (i > start) {
+                regex.append(Pattern.quote(wildcard.substring(start, i)));
+            }
+            regex.append(".*");
+            start = i + 1;
+        }
+        if (start < wildcard.length()) {
+            regex.append(Pattern.quote(wildcard.substring(start)));
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Read the tags of the metric with the key of the first tag and a matching
+     * value from the meta table, or all values of the first tag key of the
+     * metric if there is no first tag
+     */
+    private Set<Tag> scanTagValues(String metric, Entry<String, String> first) throws TableNotFoundException {
         Scanner meta = connector.createScanner(metaTable, Authorizations.EMPTY);
         Text start = new Text(Meta.VALUE_PREFIX + metric);
         Text end = new Text(Meta.VALUE_PREFIX + metric + "\\x0000");
@@ -602,14 +1069,11 @@ public class DataStoreImpl implements DataStore {
         meta.setRange(new Range(start, end));
         // Only look for the meta entries that match our tags, if any
         boolean onlyFirstRow = false;
-        Entry<String, String> first = null;
         // Set the columns on the meta scanner based on the first tag
         // in the set of tags passed in the query. If no tags are present
         // then we are only going to return the first tag name present in the
         // meta table.
-        Iterator<Entry<String, String>> tagIter = tags.entrySet().iterator();
-        if (tagIter.hasNext()) {
-            first = tagIter.next();
+        if (null != first) {
             if (isTagValueRegex(first.getValue())) {
                 meta.fetchColumnFamily(new Text(first.getKey()));
             } else {
@@ -652,38 +1116,56 @@ public class DataStoreImpl implements DataStore {
                 return new Pair<>(tagName.toString(), tagValue.toString());
             }
         };
-        // Expand the list of tags in the meta table for this metric that
-        // matches
-        // the pattern of the first tag in the query. The resulting set of tags
-        // will be used to fetch specific columns from the metric table.
-        Set<Tag> concrete = expandTagValues(first, knownKeyValues);
-        if (concrete.size() == 0) {
-            throw new TimelyException(HttpResponseStatus.BAD_REQUEST.code(), "No matching tags", "No tags were found "
-                    + " that matched the submitted tags. Please fix and retry");
+        return expandTagValues(first, knownKeyValues);
+    }
+
+    /**
+     * Find the UIDs of a tag for the column qualifiers written with UIDs. The
+     * UIDs of the values of the tag that match the regular expression are
+     * looked up from the values of the tag in the tag index or the meta table.
+     * Values written by other servers since the tag index was loaded are missed
+     * until the next reload.
+     *
+     * @param literals
+     *            tag values, or null to match the regular expression
+     * @param regex
+     *            regular expression that matches the whole value
+     * @return UID of the key and the UIDs of the values, or null if the key has
+     *         no UID
+     */
+    private Pair<String, List<String>> getEncodedTag(String metric, String tagKey, Collection<String> literals,
+            String regex) throws TableNotFoundException, TimelyException {
+        Set<String> values = new HashSet<>();
+        Set<Tag> indexed = null;
+        if (null != tagIndex && null == literals) {
+            indexed = tagIndex.expand(metric, tagKey, regex, true);
         }
-        LOG.trace("Found matching tags: {}", concrete);
-        for (Tag tag : concrete) {
-            Text colf = new Text(tag.getKey() + "=" + tag.getValue());
-            scanner.fetchColumnFamily(colf);
-            LOG.trace("Fetching metric table column family: {}", colf);
+        if (null != indexed) {
+            indexed.forEach(t -> values.add(t.getValue()));
+        } else if (null == literals) {
+            Matcher matcher = Pattern.compile(regex).matcher("");
+            Scanner meta = connector.createScanner(metaTable, Authorizations.EMPTY);
+            meta.setRange(Range.exact(Meta.VALUE_PREFIX + metric));
+            meta.fetchColumnFamily(new Text(tagKey));
+            for (Entry<Key, Value> entry : meta) {
+                String value = entry.getKey().getColumnQualifier().toString();
+                if (matcher.reset(value).matches()) {
+                    values.add(value);
+                }
+            }
+        } else {
+            values.addAll(literals);
         }
-        // Add the regular expression to filter the other tags
-        int priority = 100;
-        while (tagIter.hasNext()) {
-            Entry<String, String> tag = tagIter.next();
-            LOG.trace("Adding regex filter for tag {}", tag);
-            StringBuffer pattern = new StringBuffer();
-            pattern.append("(^|.*,)");
-            pattern.append(tag.getKey());
-            pattern.append("=");
-            pattern.append(tag.getValue());
-            pattern.append("(,.*|$)");
-
-            IteratorSetting setting = new IteratorSetting(priority++, tag.getKey() + " tag filter", RegExFilter.class);
-            LOG.trace("Using {} additional filter on tag: {}", pattern, tag.getKey());
-            RegExFilter.setRegexs(setting, null, null, pattern.toString(), null, false, true);
-            scanner.addScanIterator(setting);
+        Set<String> names = new HashSet<>(values);
+        names.add(tagKey);
+        Map<String, Long> uids = uidDictionary.getUids(names);
+        Long key = uids.get(tagKey);
+        if (null == key) {
+            return null;
         }
+        List<String> encodedValues = values.stream().map(uids::get).filter(v -> null != v).map(UidDictionary::toString)
+                .collect(Collectors.toList());
+        return new Pair<>(UidDictionary.toString(key), encodedValues);
     }
 
     private Set<Tag> expandTagValues(Entry<String, String> firstTag, Iterator<Pair<String, String>> knownKeyValues) {
@@ -716,16 +1198,6 @@ public class DataStoreImpl implements DataStore {
         return result;
     }
 
-    private void setQueryRange(BatchScanner scanner, String metric, long start, long end) {
-        final byte[] start_row = MetricAdapter.encodeRowKey(metric, start);
-        LOG.trace("Start key for metric {} and time {} is {}", metric, start, start_row);
-        final byte[] end_row = MetricAdapter.encodeRowKey(metric, end);
-        LOG.trace("End key for metric {} and time {} is {}", metric, end, end_row);
-        Range range = new Range(new Text(start_row), new Text(end_row));
-        LOG.trace("Set query range to {}", range);
-        scanner.setRanges(Collections.singletonList(range));
-    }
-
     private Class<? extends Aggregator> getAggregator(SubQuery query) {
         String aggregatorName = "avg";
         if (query.getDownsample().isPresent()) {
@@ -771,6 +1243,11 @@ public class DataStoreImpl implements DataStore {
         }
     }
 
+    @Override
+    public Metric decode(Metric metric) throws TimelyException {
+        return uidDictionary.decode(metric);
+    }
+
     public Scanner createScannerForMetric(String sessionId, String metric, Map<String, String> tags, long startTime,
             int lag) throws TimelyException {
         try {
@@ -792,7 +1269,7 @@ public class DataStoreImpl implements DataStore {
             if (null == metric) {
                 throw new IllegalArgumentException("metric name must be specified");
             }
-            byte[] start = MetricAdapter.encodeRowKey(metric, startTime);
+            byte[] start = MetricAdapter.encodeRowKey(metric, getScanStart(startTime));
             long endTime = (System.currentTimeMillis() - (lag * 1000));
             byte[] end = MetricAdapter.encodeRowKey(metric, endTime);
             s.setRange(new Range(new Text(start), true, new Text(end), false));
@@ -804,7 +1281,7 @@ public class DataStoreImpl implements DataStore {
             query.setTags(tags);
             List<String> tagOrder = prioritizeTags(query);
             Map<String, String> orderedTags = orderTags(tagOrder, query.getTags());
-            setQueryColumns(s, metric, orderedTags);
+            setQueryColumns(s, metric, orderedTags, Collections.emptyList());
             return s;
         } catch (IllegalArgumentException | TableNotFoundException ex) {
             LOG.error("Error during lookup: " + ex.getMessage(), ex);
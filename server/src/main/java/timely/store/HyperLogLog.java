@@ -0,0 +1,112 @@
+package timely.store;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * HyperLogLog sketch that estimates the number of distinct values added to it,
+ * with 1024 registers and a standard error of about 3%. Sketches are written as
+ * the index and value of each register that is set, three bytes each, so that
+ * the sketch of a single value is small and sketches merge by taking the larger
+ * value of each register.
+ */
+public class HyperLogLog {
+
+    private static final int PRECISION = 10;
+    private static final int REGISTERS = 1 << PRECISION;
+    private static final double ALPHA = 0.7213 / (1 + 1.079 / REGISTERS);
+    private static final int ENTRY_LENGTH = 3;
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final byte[] registers = new byte[REGISTERS];
+
+    /**
+     * @param value
+     *            value
+     * @return encoded sketch of the single value
+     */
+    public static byte[] encode(String value) {
+        HyperLogLog sketch = new HyperLogLog();
+        sketch.add(value);
+        return sketch.encode();
+    }
+
+    /**
+     * @param encoded
+     *            encoded sketch
+     * @return sketch
+     */
+    public static HyperLogLog decode(byte[] encoded) {
+        HyperLogLog sketch = new HyperLogLog();
+        sketch.merge(encoded);
+        return sketch;
+    }
+
+    public synchronized void add(String value) {
+        long hash = HASH.hashString(value, UTF_8).asLong();
+        int index = (int) (hash >>> (Long.SIZE - PRECISION));
+        // position of the first set bit after the index bits, bounded by a
+        // set bit past the end of the hash
+        byte rank = (byte) (Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1);
+        if (registers[index] < rank) {
+            registers[index] = rank;
+        }
+    }
+
+    /**
+     * Add the values of an encoded sketch
+     *
+     * @param encoded
+     *            encoded sketch
+     */
+    public synchronized void merge(byte[] encoded) {
+        for (int i = 0; i + ENTRY_LENGTH <= encoded.length; i += ENTRY_LENGTH) {
+            int index = ((encoded[i] & 0xFF) << 8 | (encoded[i + 1] & 0xFF)) & (REGISTERS - 1);
+            byte rank = encoded[i + 2];
+            if (registers[index] < rank) {
+                registers[index] = rank;
+            }
+        }
+    }
+
+    public synchronized byte[] encode() {
+        int set = 0;
+        for (byte r : registers) {
+            if (r != 0) {
+                set++;
+            }
+        }
+        byte[] encoded = new byte[set * ENTRY_LENGTH];
+        int pos = 0;
+        for (int i = 0; i < REGISTERS; i++) {
+            if (registers[i] != 0) {
+                encoded[pos++] = (byte) (i >>> 8);
+                encoded[pos++] = (byte) i;
+                encoded[pos++] = registers[i];
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * @return estimated number of distinct values
+     */
+    public synchronized long estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (byte r : registers) {
+            sum += 1.0 / (1L << r);
+            if (r == 0) {
+                zeros++;
+            }
+        }
+        double estimate = ALPHA * REGISTERS * REGISTERS / sum;
+        if (estimate <= 2.5 * REGISTERS && zeros > 0) {
+            // linear counting is more accurate for small numbers of values
+            estimate = REGISTERS * Math.log((double) REGISTERS / zeros);
+        }
+        return Math.round(estimate);
+    }
+}
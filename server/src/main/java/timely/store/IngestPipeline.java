@@ -0,0 +1,297 @@
+package timely.store;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import timely.Configuration;
+import timely.api.response.TimelyException;
+import timely.model.Metric;
+import timely.model.Tag;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.BusySpinWaitStrategy;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.EventTranslatorOneArg;
+import com.lmax.disruptor.ExceptionHandler;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.SleepingWaitStrategy;
+import com.lmax.disruptor.TimeoutException;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.YieldingWaitStrategy;
+import com.lmax.disruptor.dsl.Disruptor;
+import com.lmax.disruptor.dsl.ProducerType;
+
+/**
+ * Passes metrics from the Netty I/O threads to a fixed set of writer threads
+ * through a ring buffer. Each writer thread stores the metrics of every n-th
+ * slot, and stores the metrics it has collected whenever it has caught up with
+ * the producers. Every writer reads every slot, so a slot is only reused once
+ * the slowest writer has passed it. Writers that are blocked adding mutations
+ * to a full BatchWriter of the shared {@link BatchWriterPool} therefore hold up
+ * all of the writers once the ring buffer has filled. The ring buffer absorbs
+ * short stalls only.
+ * <p>
+ * When the ring buffer is full the metrics are either dropped or the I/O thread
+ * waits, depending on the overflow policy. With the default
+ * {@link Configuration.IngestOverflowPolicy#BLOCK} policy, sustained Accumulo
+ * back-pressure still stalls the Netty I/O threads. Only the DROP policy keeps
+ * them reading, at the cost of the dropped metrics. When the pipeline is
+ * disabled the metrics are stored on the calling thread.
+ */
+public class IngestPipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IngestPipeline.class);
+
+    private static final long METRICS_PERIOD = 30000;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+    private static final int MAX_BATCH_SIZE = 10000;
+    private static final String DEPTH_METRIC = "timely.ingest.depth";
+    private static final String MAX_DEPTH_METRIC = "timely.ingest.depth.max";
+    private static final String PUBLISHED_METRIC = "timely.ingest.published";
+    private static final String DROPPED_METRIC = "timely.ingest.dropped";
+    private static final String HOSTNAME_TAG = "host";
+
+    /**
+     * Slot of the ring buffer
+     */
+    private static class MetricEvent {
+
+        private Metric metric;
+        private int writer;
+    }
+
+    /**
+     * Stores the metrics of the slots assigned to it
+     */
+    private class Writer implements EventHandler<MetricEvent> {
+
+        private final int ordinal;
+        private final List<Metric> batch = new ArrayList<>();
+
+        private Writer(int ordinal) {
+            this.ordinal = ordinal;
+        }
+
+        @Override
+        public void onEvent(MetricEvent event, long sequence, boolean endOfBatch) throws Exception {
+            if (event.writer == ordinal) {
+                batch.add(event.metric);
+                event.metric = null;
+            }
+            if (endOfBatch || batch.size() >= MAX_BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            try {
+                dataStore.store(batch);
+            } catch (Exception e) {
+                LOG.error("Error storing {} metrics", batch.size(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private final DataStore dataStore;
+    private final boolean enabled;
+    private final Configuration.IngestOverflowPolicy overflowPolicy;
+    private final int bufferSize;
+    private final int writers;
+    private final EventTranslatorOneArg<MetricEvent, Metric> translator = (event, sequence, metric) -> {
+        event.metric = metric;
+        event.writer = getWriter(metric);
+    };
+    private final ExecutorService executor;
+    private final Disruptor<MetricEvent> disruptor;
+    private final RingBuffer<MetricEvent> ringBuffer;
+    private final AtomicLong published = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong maxDepth = new AtomicLong(0);
+    private final Timer metricsTimer = new Timer(true);
+    private final List<Tag> tags = new ArrayList<>();
+
+    public IngestPipeline(Configuration conf, DataStore dataStore) {
+        this.dataStore = dataStore;
+        Configuration.Ingest ingestConf = conf.getIngest();
+        this.enabled = ingestConf.isEnabled();
+        this.overflowPolicy = ingestConf.getOverflowPolicy();
+        this.bufferSize = ingestConf.getRingBufferSize();
+        this.writers = Math.max(1, ingestConf.getWriterThreads());
+        if (enabled) {
+            // the disruptor needs one thread for each writer
+            executor = Executors.newFixedThreadPool(writers,
+                    new ThreadFactoryBuilder().setNameFormat("ingest-writer-%d").setDaemon(true).build());
+            disruptor = new Disruptor<>(MetricEvent::new, bufferSize, executor, ProducerType.MULTI,
+                    getWaitStrategy(ingestConf.getWaitStrategy()));
+            disruptor.handleExceptionsWith(new ExceptionHandler<MetricEvent>() {
+
+                @Override
+                public void handleEventException(Throwable ex, long sequence, MetricEvent event) {
+                    LOG.error("Error handling metric {}", event.metric, ex);
+                }
+
+                @Override
+                public void handleOnStartException(Throwable ex) {
+                    LOG.error("Error starting ingest writer", ex);
+                }
+
+                @Override
+                public void handleOnShutdownException(Throwable ex) {
+                    LOG.error("Error stopping ingest writer", ex);
+                }
+            });
+            Writer[] handlers = new Writer[writers];
+            for (int i = 0; i < writers; i++) {
+                handlers[i] = new Writer(i);
+            }
+            disruptor.handleEventsWith(handlers);
+            ringBuffer = disruptor.start();
+
+            String hostName = "localhost";
+            try {
+                hostName = InetAddress.getLocalHost().getHostName();
+            } catch (UnknownHostException e) {
+                LOG.error("Error getting hostname", e);
+            }
+            tags.add(new Tag(HOSTNAME_TAG, hostName));
+            metricsTimer.schedule(new TimerTask() {
+
+                @Override
+                public void run() {
+                    for (Metric m : getMetricsAndReset()) {
+                        try {
+                            dataStore.store(m);
+                        } catch (TimelyException e) {
+                            LOG.error("Error storing ingest pipeline metrics", e);
+                        }
+                    }
+                }
+
+            }, METRICS_PERIOD, METRICS_PERIOD);
+        } else {
+            executor = null;
+            disruptor = null;
+            ringBuffer = null;
+        }
+    }
+
+    /**
+     * All points of a series, the metric name with its tags in any order, go to
+     * the same writer so that they are written in order. The series of a metric
+     * are spread over the writers, so a metric with many series does not load
+     * one writer only. A meta key shared by series of different writers can be
+     * written by more than one of them until it is in the meta cache.
+     */
+    private int getWriter(Metric metric) {
+        int hash = metric.getName().hashCode();
+        for (Tag tag : metric.getTags()) {
+            hash += tag.hashCode();
+        }
+        return (hash & Integer.MAX_VALUE) % writers;
+    }
+
+    private static WaitStrategy getWaitStrategy(Configuration.IngestWaitStrategy strategy) {
+        switch (strategy) {
+            case SLEEPING:
+                return new SleepingWaitStrategy();
+            case YIELDING:
+                return new YieldingWaitStrategy();
+            case BUSY_SPIN:
+                return new BusySpinWaitStrategy();
+            case BLOCKING:
+            default:
+                return new BlockingWaitStrategy();
+        }
+    }
+
+    /**
+     * Pass the metrics to the writer threads, or store them if the pipeline is
+     * disabled
+     *
+     * @param metrics
+     *            metrics to store
+     * @return number of metrics dropped because the ring buffer was full
+     * @throws TimelyException
+     *             if the pipeline is disabled and the metrics can not be stored
+     */
+    public int store(Collection<Metric> metrics) throws TimelyException {
+        if (!enabled) {
+            dataStore.store(metrics);
+            return 0;
+        }
+        Metric[] array = metrics.toArray(new Metric[metrics.size()]);
+        int droppedMetrics = 0;
+        for (int start = 0; start < array.length; start += bufferSize) {
+            int count = Math.min(bufferSize, array.length - start);
+            if (overflowPolicy == Configuration.IngestOverflowPolicy.DROP) {
+                if (!ringBuffer.tryPublishEvents(translator, start, count, array)) {
+                    droppedMetrics += count;
+                }
+            } else {
+                ringBuffer.publishEvents(translator, start, count, array);
+            }
+        }
+        published.addAndGet(array.length - droppedMetrics);
+        if (droppedMetrics > 0) {
+            dropped.addAndGet(droppedMetrics);
+            LOG.warn("Ingest ring buffer is full, dropped {} metrics", droppedMetrics);
+        }
+        long depth = getDepth();
+        if (depth > maxDepth.get()) {
+            maxDepth.accumulateAndGet(depth, Math::max);
+        }
+        return droppedMetrics;
+    }
+
+    /**
+     * @return number of metrics waiting for a writer thread
+     */
+    public long getDepth() {
+        return enabled ? bufferSize - ringBuffer.remainingCapacity() : 0;
+    }
+
+    /**
+     * Stop accepting metrics and wait for the writer threads to store the ones
+     * in the ring buffer
+     */
+    public void shutdown() {
+        metricsTimer.cancel();
+        if (enabled) {
+            try {
+                disruptor.shutdown(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                LOG.error("Timed out waiting for {} metrics to be stored", getDepth());
+                disruptor.halt();
+            }
+            executor.shutdown();
+        }
+    }
+
+    public List<Metric> getMetricsAndReset() {
+        List<Metric> metrics = new ArrayList<>();
+        long ts = System.currentTimeMillis();
+        metrics.add(new Metric(DEPTH_METRIC, ts, getDepth(), tags));
+        metrics.add(new Metric(MAX_DEPTH_METRIC, ts, maxDepth.getAndSet(0), tags));
+        metrics.add(new Metric(PUBLISHED_METRIC, ts, published.getAndSet(0), tags));
+        metrics.add(new Metric(DROPPED_METRIC, ts, dropped.getAndSet(0), tags));
+        return metrics;
+    }
+}
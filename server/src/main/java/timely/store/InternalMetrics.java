@@ -20,6 +20,9 @@ public class InternalMetrics {
     private static final String METRICS_RECEIVED_METRIC = "timely.metrics.received";
     private static final String META_KEYS_METRIC = "timely.keys.meta.inserted";
     private static final String METRIC_KEYS_METRIC = "timely.keys.metric.inserted";
+    private static final String TAG_INDEX_HITS_METRIC = "timely.tagindex.hits";
+    private static final String TAG_INDEX_MISSES_METRIC = "timely.tagindex.misses";
+    private static final String TAG_INDEX_SIZE_METRIC = "timely.tagindex.size";
     private static final String HOSTNAME_TAG = "host";
 
     private String hostName = "localhost";
@@ -27,6 +30,7 @@ public class InternalMetrics {
     private AtomicDouble numMetaKeysInserted = new AtomicDouble(0);
     private AtomicDouble numMetricKeysInserted = new AtomicDouble(0);
     private List<Tag> tags = new ArrayList<Tag>();
+    private TagIndex tagIndex = null;
 
     public InternalMetrics() {
         super();
@@ -50,6 +54,16 @@ public class InternalMetrics {
         numMetricKeysInserted.addAndGet(num);
     }
 
+    /**
+     * Report the hits, misses and size of a tag index
+     *
+     * @param tagIndex
+     *            tag index
+     */
+    public void setTagIndex(TagIndex tagIndex) {
+        this.tagIndex = tagIndex;
+    }
+
     public List<Metric> getMetricsAndReset() {
         List<Metric> metrics = new ArrayList<Metric>();
         long ts = System.currentTimeMillis();
@@ -59,6 +73,11 @@ public class InternalMetrics {
         numMetaKeysInserted.set(0);
         metrics.add(new Metric(METRIC_KEYS_METRIC, ts, numMetricKeysInserted.get(), tags));
         numMetricKeysInserted.set(0);
+        if (null != tagIndex) {
+            metrics.add(new Metric(TAG_INDEX_HITS_METRIC, ts, tagIndex.getAndResetHits(), tags));
+            metrics.add(new Metric(TAG_INDEX_MISSES_METRIC, ts, tagIndex.getAndResetMisses(), tags));
+            metrics.add(new Metric(TAG_INDEX_SIZE_METRIC, ts, tagIndex.size(), tags));
+        }
         return metrics;
     }
 
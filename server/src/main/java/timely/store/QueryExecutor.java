@@ -0,0 +1,218 @@
+package timely.store;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.HttpHeaders.Names;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.core.Authentication;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import timely.Configuration;
+import timely.api.request.AuthenticatedRequest;
+import timely.api.response.TimelyException;
+import timely.auth.AuthCache;
+import timely.model.Metric;
+import timely.model.Tag;
+
+/**
+ * Runs the blocking {@link DataStore} calls of the HTTP and WebSocket query,
+ * lookup and suggest handlers so that they do not hold up the Netty event
+ * loops. The number of threads, the number of waiting calls and the number of
+ * calls each user may have waiting or running are bounded. Calls over any of
+ * these limits are rejected right away with a 503.
+ */
+public class QueryExecutor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryExecutor.class);
+
+    private static final long METRICS_PERIOD = 30000;
+    private static final String QUEUED_METRIC = "timely.query.executor.queued";
+    private static final String ACTIVE_METRIC = "timely.query.executor.active";
+    private static final String REJECTED_METRIC = "timely.query.executor.rejected";
+    private static final String HOSTNAME_TAG = "host";
+    private static final String ANONYMOUS_USER = "anonymous@";
+
+    /**
+     * Blocking work to run on the executor
+     */
+    @FunctionalInterface
+    public interface Call<T> {
+
+        T call() throws Exception;
+    }
+
+    /**
+     * Called on the event loop of the channel with the result of a {@link Call}
+     */
+    @FunctionalInterface
+    public interface Callback<T> {
+
+        void accept(T result) throws Exception;
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final int maxConcurrentPerUser;
+    private final ConcurrentHashMap<String, Integer> userCalls = new ConcurrentHashMap<>();
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final Timer metricsTimer = new Timer(true);
+    private final List<Tag> tags = new ArrayList<>();
+
+    public QueryExecutor(Configuration conf, DataStore dataStore) {
+        Configuration.Query queryConf = conf.getQuery();
+        int threads = queryConf.getExecutorThreads();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(
+                queryConf.getExecutorQueueSize()), new ThreadFactoryBuilder().setNameFormat("query-executor-%d")
+                .setDaemon(true).build());
+        executor.allowCoreThreadTimeOut(true);
+        maxConcurrentPerUser = queryConf.getMaxConcurrentPerUser();
+        String hostName = "localhost";
+        try {
+            hostName = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            LOG.error("Error getting hostname", e);
+        }
+        tags.add(new Tag(HOSTNAME_TAG, hostName));
+        metricsTimer.schedule(new TimerTask() {
+
+            @Override
+            public void run() {
+                for (Metric m : getMetricsAndReset()) {
+                    try {
+                        dataStore.store(m);
+                    } catch (TimelyException e) {
+                        LOG.error("Error storing query executor metrics", e);
+                    }
+                }
+            }
+
+        }, METRICS_PERIOD, METRICS_PERIOD);
+    }
+
+    /**
+     * Run call on the executor. onSuccess or onError is then called on the
+     * event loop of the channel. Exceptions other than {@link TimelyException}
+     * are passed to onError as an internal server error, exceptions thrown by
+     * the callbacks are fired down the pipeline.
+     *
+     * @param ctx
+     *            channel handler context
+     * @param request
+     *            request being run, used to find the user
+     * @param call
+     *            blocking work
+     * @param onSuccess
+     *            called with the result of call
+     * @param onError
+     *            called if call fails or is rejected
+     */
+    public <T> void execute(ChannelHandlerContext ctx, AuthenticatedRequest request, Call<T> call,
+            Callback<T> onSuccess, Callback<TimelyException> onError) {
+        String user = getUser(ctx, request);
+        if (userCalls.merge(user, 1, Integer::sum) > maxConcurrentPerUser) {
+            release(user);
+            reject(ctx, onError, "Too many concurrent requests for user");
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    T result = call.call();
+                    complete(ctx, onSuccess, result);
+                } catch (TimelyException e) {
+                    complete(ctx, onError, e);
+                } catch (Exception e) {
+                    complete(ctx, onError, new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(),
+                            "Error processing request: " + e.getMessage(), e.getMessage(), e));
+                } finally {
+                    release(user);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            release(user);
+            reject(ctx, onError, "Query executor is saturated");
+        }
+    }
+
+    public void shutdown() {
+        metricsTimer.cancel();
+        executor.shutdownNow();
+    }
+
+    public List<Metric> getMetricsAndReset() {
+        List<Metric> metrics = new ArrayList<>();
+        long ts = System.currentTimeMillis();
+        metrics.add(new Metric(QUEUED_METRIC, ts, executor.getQueue().size(), tags));
+        metrics.add(new Metric(ACTIVE_METRIC, ts, executor.getActiveCount(), tags));
+        metrics.add(new Metric(REJECTED_METRIC, ts, rejected.getAndSet(0), tags));
+        return metrics;
+    }
+
+    private void release(String user) {
+        userCalls.computeIfPresent(user, (k, v) -> v > 1 ? v - 1 : null);
+    }
+
+    private void reject(ChannelHandlerContext ctx, Callback<TimelyException> onError, String message) {
+        rejected.incrementAndGet();
+        LOG.warn("Rejecting request from {}: {}", ctx.channel().remoteAddress(), message);
+        TimelyException e = new TimelyException(HttpResponseStatus.SERVICE_UNAVAILABLE.code(), message,
+                "Try again later");
+        e.addResponseHeader(Names.RETRY_AFTER, "1");
+        try {
+            onError.accept(e);
+        } catch (Exception ex) {
+            ctx.fireExceptionCaught(ex);
+        }
+    }
+
+    private <T> void complete(ChannelHandlerContext ctx, Callback<T> callback, T value) {
+        try {
+            ctx.executor().execute(() -> {
+                try {
+                    callback.accept(value);
+                } catch (Exception e) {
+                    ctx.fireExceptionCaught(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Event loop shut down, dropping response to {}", ctx.channel().remoteAddress());
+        }
+    }
+
+    /**
+     * @return the principal of the session, or the remote host for anonymous
+     *         requests
+     */
+    private static String getUser(ChannelHandlerContext ctx, AuthenticatedRequest request) {
+        String sessionId = request.getSessionId();
+        if (!StringUtils.isEmpty(sessionId)) {
+            Authentication auth = AuthCache.getCache().getIfPresent(sessionId);
+            if (null != auth) {
+                return auth.getName();
+            }
+        }
+        SocketAddress remote = ctx.channel().remoteAddress();
+        if (remote instanceof InetSocketAddress) {
+            return ANONYMOUS_USER + ((InetSocketAddress) remote).getHostString();
+        }
+        return ANONYMOUS_USER + remote;
+    }
+}
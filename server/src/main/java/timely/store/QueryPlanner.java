@@ -0,0 +1,144 @@
+package timely.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.util.ComparablePair;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import timely.adapter.accumulo.MetricAdapter;
+import timely.api.response.timeseries.QueryPlan;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Splits the row range of a query at the tablet boundaries of the table, so
+ * that the batch scanner gets one range per tablet to read in parallel. The
+ * split points of each table are cached for a short time, as listing them reads
+ * the Accumulo metadata table.
+ */
+public class QueryPlanner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryPlanner.class);
+
+    private static final long SPLITS_EXPIRATION_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private final Connector connector;
+    private final Cache<String, NavigableSet<Text>> splits = Caffeine.newBuilder()
+            .expireAfterWrite(SPLITS_EXPIRATION_MS, TimeUnit.MILLISECONDS).build();
+
+    public QueryPlanner(Connector connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * @param table
+     *            table
+     * @param metric
+     *            metric
+     * @param start
+     *            start time, inclusive
+     * @param end
+     *            end time, inclusive
+     * @return ranges that cover the rows of the metric between the times, one
+     *         per tablet
+     */
+    public List<Range> getRanges(String table, String metric, long start, long end) {
+        Text startRow = new Text(MetricAdapter.encodeRowKey(metric, start));
+        Text endRow = new Text(MetricAdapter.encodeRowKey(metric, end));
+        NavigableSet<Text> tableSplits = splits.get(table, this::listSplits);
+        return split(null == tableSplits ? Collections.emptyNavigableSet() : tableSplits, startRow, endRow);
+    }
+
+    /**
+     * @return split points of the table, or null if they can not be listed
+     */
+    private NavigableSet<Text> listSplits(String table) {
+        try {
+            return new TreeSet<>(connector.tableOperations().listSplits(table));
+        } catch (TableNotFoundException | AccumuloSecurityException | AccumuloException e) {
+            LOG.warn("Unable to list the splits of table " + table + ", scanning a single range", e);
+            return null;
+        }
+    }
+
+    /**
+     * Split a range of rows at the split points within it. A tablet holds the
+     * rows after the previous split point up to and including its own.
+     *
+     * @param splits
+     *            split points of the table
+     * @param startRow
+     *            first row, inclusive
+     * @param endRow
+     *            last row, inclusive
+     * @return ranges in row order
+     */
+    public static List<Range> split(NavigableSet<Text> splits, Text startRow, Text endRow) {
+        NavigableSet<Text> inside = startRow.compareTo(endRow) < 0 ? splits.subSet(startRow, true, endRow, false)
+                : Collections.emptyNavigableSet();
+        List<Range> ranges = new ArrayList<>(inside.size() + 1);
+        Text rangeStart = startRow;
+        boolean startInclusive = true;
+        for (Text split : inside) {
+            ranges.add(new Range(rangeStart, startInclusive, split, true));
+            rangeStart = split;
+            startInclusive = false;
+        }
+        ranges.add(new Range(rangeStart, startInclusive, endRow, true));
+        return ranges;
+    }
+
+    /**
+     * Add the time ranges of the scan to a plan
+     *
+     * @param plan
+     *            plan
+     * @param metric
+     *            metric
+     * @param ranges
+     *            ranges returned by
+     *            {@link #getRanges(String, String, long, long)}
+     */
+    public static void describe(QueryPlan plan, String metric, List<Range> ranges) {
+        Long start = null;
+        for (int i = 0; i < ranges.size(); i++) {
+            Range range = ranges.get(i);
+            if (i == 0) {
+                start = getTime(range.getStartKey().getRow().copyBytes(), metric);
+            }
+            // each range ends with the key following its last row, which
+            // appends a zero byte to the row
+            byte[] row = range.getEndKey().getRow().copyBytes();
+            Long end = getTime(Arrays.copyOf(row, row.length - 1), metric);
+            plan.addRange(start, end);
+            start = end;
+        }
+    }
+
+    /**
+     * @return time of a row of the metric, or null if the row is not one
+     */
+    private static Long getTime(byte[] row, String metric) {
+        try {
+            ComparablePair<String, Long> pair = MetricAdapter.decodeRowKey(row);
+            return pair.getFirst().equals(metric) ? pair.getSecond() : null;
+        } catch (RuntimeException e) {
+            // split points do not have to be rows written by timely
+            return null;
+        }
+    }
+}
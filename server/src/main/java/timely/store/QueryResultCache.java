@@ -0,0 +1,285 @@
+package timely.store;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.security.Authorizations;
+
+import timely.Configuration;
+import timely.api.response.TimelyException;
+import timely.api.request.timeseries.QueryRequest.SubQuery;
+import timely.model.Tag;
+import timely.sample.Aggregator;
+import timely.sample.Downsample;
+import timely.sample.DownsampleFactory;
+import timely.sample.Sample;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Holds the per series downsample buckets of previous sub queries so that a
+ * query over a sliding window only scans the buckets that are not already
+ * known. Buckets start at the start of the window, as without the cache, and
+ * windows whose start times differ by a multiple of the downsample period share
+ * them. A bucket that ends more than the subscription lag in the past is not
+ * expected to change and is kept, newer buckets are always scanned again.
+ */
+public class QueryResultCache {
+
+    /**
+     * Identifies the scan of a sub query. The filters select and group the
+     * series that are scanned. Rate options are applied after the series are
+     * combined, only whether the rate is a counter is part of the key as it
+     * decides whether the series are grouped by the scan.
+     */
+    public static class Key {
+
+        private final String metric;
+        private final SortedMap<String, String> tags;
+        private final Set<List<Object>> filters;
+        private final boolean counter;
+        private final long period;
+        private final long offset;
+        private final String aggregator;
+        private final SortedSet<String> auths;
+
+        public Key(SubQuery query, long period, Class<? extends Aggregator> aggClass, Authorizations auths) {
+            this(query, 0, period, aggClass, auths);
+        }
+
+        /**
+         * The buckets of the key start at start plus multiples of the period
+         */
+        public Key(SubQuery query, long start, long period, Class<? extends Aggregator> aggClass, Authorizations auths) {
+            this.metric = query.getMetric();
+            this.tags = new TreeMap<>(query.getTags());
+            this.filters = new HashSet<>();
+            query.getFilters().forEach(
+                    f -> this.filters.add(Arrays.asList(f.getType(), f.getTagk(), f.getFilter(), f.isGroupBy())));
+            this.counter = null != query.getRateOptions() && query.getRateOptions().isCounter();
+            this.period = period;
+            this.offset = Math.floorMod(start, period);
+            this.aggregator = aggClass.getName();
+            this.auths = new TreeSet<>();
+            auths.getAuthorizations().forEach(a -> this.auths.add(new String(a, StandardCharsets.UTF_8)));
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(metric, tags, filters, counter, period, offset, aggregator, auths);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return period == other.period && offset == other.offset && counter == other.counter
+                    && metric.equals(other.metric) && tags.equals(other.tags) && filters.equals(other.filters)
+                    && aggregator.equals(other.aggregator) && auths.equals(other.auths);
+        }
+
+        @Override
+        public String toString() {
+            return metric + tags + " " + filters + " " + counter + " " + period + "+" + offset + " " + aggregator + " "
+                    + auths;
+        }
+    }
+
+    /**
+     * Complete buckets of each series from start (inclusive) to end
+     * (exclusive). The Downsample objects must not be modified once the entry
+     * has been cached.
+     */
+    public static class Entry {
+
+        private final long start;
+        private final long end;
+        private final Map<Set<Tag>, Downsample> series;
+        private final int weight;
+
+        public Entry(long start, long end, Map<Set<Tag>, Downsample> series) {
+            this.start = start;
+            this.end = end;
+            this.series = Collections.unmodifiableMap(series);
+            long samples = 0;
+            for (Downsample ds : series.values()) {
+                for (Iterator<Sample> iter = ds.iterator(); iter.hasNext(); iter.next()) {
+                    samples++;
+                }
+            }
+            this.weight = (int) Math.min(samples + series.size(), Integer.MAX_VALUE);
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public Map<Set<Tag>, Downsample> getSeries() {
+            return series;
+        }
+    }
+
+    private final Cache<Key, Entry> cache;
+    private final long lag;
+
+    public QueryResultCache(Configuration conf) {
+        Configuration.QueryCache cacheConf = conf.getQueryCache();
+        cache = Caffeine.newBuilder().expireAfterAccess(cacheConf.getExpirationMinutes(), TimeUnit.MINUTES)
+                .maximumWeight(cacheConf.getMaxSamples()).weigher((Key k, Entry e) -> e.weight).build();
+        lag = TimeUnit.SECONDS.toMillis(conf.getWebsocket().getSubscriptionLag());
+    }
+
+    /**
+     * @param ts
+     *            timestamp
+     * @param period
+     *            downsample period
+     * @return start of the bucket that contains ts
+     */
+    public static long align(long ts, long period) {
+        return align(ts, period, 0);
+    }
+
+    /**
+     * @param ts
+     *            timestamp
+     * @param period
+     *            downsample period
+     * @param offset
+     *            start of the buckets modulo the period
+     * @return start of the bucket that contains ts
+     */
+    public static long align(long ts, long period, long offset) {
+        return ts - Math.floorMod(ts - offset, period);
+    }
+
+    /**
+     * @param now
+     *            current time
+     * @param period
+     *            downsample period
+     * @return buckets that start before this time end at least the subscription
+     *         lag before now and can be cached
+     */
+    public long getImmutableBefore(long now, long period) {
+        return getImmutableBefore(now, period, 0);
+    }
+
+    /**
+     * @param now
+     *            current time
+     * @param period
+     *            downsample period
+     * @param offset
+     *            start of the buckets modulo the period
+     * @return buckets that start before this time end at least the subscription
+     *         lag before now and can be cached
+     */
+    public long getImmutableBefore(long now, long period, long offset) {
+        return align(now - lag, period, offset);
+    }
+
+    /**
+     * Cache the complete buckets of a window, from the entry that the window
+     * was answered from and from the buckets scanned after it. The new entry
+     * starts at the start of the window so that it follows a sliding window
+     * instead of holding every bucket since the first query.
+     *
+     * @param key
+     *            key of the sub query
+     * @param cached
+     *            entry that the window was answered from, or null
+     * @param scanned
+     *            series scanned after the cached entry
+     * @param start
+     *            start of the window, the start of a bucket of the key
+     * @param end
+     *            end of the window
+     * @param now
+     *            current time
+     * @param aggClass
+     *            aggregator
+     * @throws TimelyException
+     *             if the aggregator can not be created
+     */
+    public void update(Key key, Entry cached, Map<Set<Tag>, Downsample> scanned, long start, long end, long now,
+            Class<? extends Aggregator> aggClass) throws TimelyException {
+        long cacheEnd = Math.min(getImmutableBefore(now, key.period, key.offset),
+                align(end + 1, key.period, key.offset));
+        if (cacheEnd <= start || (null != cached && cacheEnd <= cached.getEnd())) {
+            return;
+        }
+        Map<Set<Tag>, Downsample> complete = new HashMap<>();
+        DownsampleFactory factory = new DownsampleFactory(start, cacheEnd - 1, key.period, aggClass);
+        if (null != cached) {
+            copyInto(complete, cached.getSeries(), factory);
+        }
+        copyInto(complete, scanned, factory);
+        put(key, new Entry(start, cacheEnd, complete));
+    }
+
+    /**
+     * Merge series into the series of the range of the factory, the buckets
+     * outside of the range are left out
+     *
+     * @param target
+     *            series to merge into
+     * @param source
+     *            series to merge
+     * @param factory
+     *            creates the series that are not in the target
+     * @throws TimelyException
+     *             if the aggregator can not be created
+     */
+    public static void copyInto(Map<Set<Tag>, Downsample> target, Map<Set<Tag>, Downsample> source,
+            DownsampleFactory factory) throws TimelyException {
+        for (Map.Entry<Set<Tag>, Downsample> entry : source.entrySet()) {
+            Downsample ds = target.get(entry.getKey());
+            if (null == ds) {
+                ds = factory.create();
+                ds.merge(entry.getValue());
+                // leave out series without samples in the range
+                if (ds.iterator().hasNext()) {
+                    target.put(entry.getKey(), ds);
+                }
+            } else {
+                ds.merge(entry.getValue());
+            }
+        }
+    }
+
+    public Entry get(Key key) {
+        return cache.getIfPresent(key);
+    }
+
+    public void put(Key key, Entry entry) {
+        cache.put(key, entry);
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+}
@@ -0,0 +1,38 @@
+package timely.store;
+
+import java.util.Iterator;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Combiner;
+
+import timely.adapter.accumulo.RollupCodec;
+
+/**
+ * Combines the entries of a rollup table that were written for the same series
+ * and period into one, see {@link RollupCodec}. Each point stored in the
+ * metrics table is also written as a period with one point to every rollup
+ * table, this iterator sums them up as they are scanned and compacted.
+ */
+public class RollupCombiner extends Combiner {
+
+    @Override
+    public Value reduce(Key key, Iterator<Value> iter) {
+        byte[] first = iter.next().get();
+        if (!iter.hasNext()) {
+            return new Value(first);
+        }
+        double sum = RollupCodec.getSum(first);
+        long count = RollupCodec.getCount(first);
+        double min = RollupCodec.getMin(first);
+        double max = RollupCodec.getMax(first);
+        while (iter.hasNext()) {
+            byte[] v = iter.next().get();
+            sum += RollupCodec.getSum(v);
+            count += RollupCodec.getCount(v);
+            min = Math.min(min, RollupCodec.getMin(v));
+            max = Math.max(max, RollupCodec.getMax(v));
+        }
+        return new Value(RollupCodec.encode(sum, count, min, max));
+    }
+}
@@ -0,0 +1,91 @@
+package timely.store;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import timely.api.request.timeseries.QueryRequest.SubQuery;
+import timely.api.response.TimelyException;
+
+/**
+ * Runs the sub queries of a query concurrently in a {@link ForkJoinPool}. Each
+ * sub query splits its per series work across the same pool, as parallel
+ * streams started in the pool run in it. The results are returned in the order
+ * of the sub queries. When a sub query fails its {@link TimelyException} is
+ * thrown unchanged and the other sub queries are cancelled, those that are
+ * already running finish but their results are dropped.
+ */
+public class SubQueryRunner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SubQueryRunner.class);
+
+    /**
+     * Work of one sub query
+     */
+    @FunctionalInterface
+    public interface Call<T> {
+
+        T call(SubQuery query) throws TimelyException;
+    }
+
+    private final ForkJoinPool pool;
+
+    public SubQueryRunner(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    public <T> List<T> run(Collection<SubQuery> queries, Call<T> call) throws TimelyException {
+        return join(submit(queries, call));
+    }
+
+    <T> List<ForkJoinTask<T>> submit(Collection<SubQuery> queries, Call<T> call) {
+        List<ForkJoinTask<T>> tasks = new ArrayList<>(queries.size());
+        for (SubQuery query : queries) {
+            tasks.add(pool.submit(() -> call.call(query)));
+        }
+        return tasks;
+    }
+
+    <T> List<T> join(List<ForkJoinTask<T>> tasks) throws TimelyException {
+        List<T> result = new ArrayList<>(tasks.size());
+        try {
+            for (ForkJoinTask<T> task : tasks) {
+                result.add(task.get());
+            }
+        } catch (InterruptedException e) {
+            tasks.forEach(t -> t.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), "Query interrupted",
+                    e.getMessage(), e);
+        } catch (ExecutionException e) {
+            tasks.forEach(t -> t.cancel(true));
+            // the pool wraps exceptions thrown by the task
+            Throwable cause = e;
+            while (cause.getCause() != null && !(cause instanceof TimelyException)) {
+                cause = cause.getCause();
+            }
+            if (cause instanceof TimelyException) {
+                throw (TimelyException) cause;
+            }
+            LOG.error("Error during query: " + cause.getMessage(), cause);
+            throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), "Error during query: "
+                    + cause.getMessage(), cause.getMessage(), cause);
+        }
+        return result;
+    }
+
+    /**
+     * Stop the threads of the pool once the running sub queries are done
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+}
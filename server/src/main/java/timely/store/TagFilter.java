@@ -0,0 +1,282 @@
+package timely.store;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Filter;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+
+/**
+ * Keeps the entries of the metrics table that have all of the configured tags.
+ * The column family and column qualifier of each key are split into tags once
+ * and every tag is checked against the tags with the same key, literal values
+ * are looked up in a set and only regular expressions are matched. A tag can
+ * also be matched in the form written with UIDs, see {@link UidDictionary}, and
+ * a negated tag matches a tag with the key and any other value.
+ */
+public class TagFilter extends Filter {
+
+    private static final String TAG_PREFIX = "tag.";
+    private static final String KEY = ".key";
+    private static final String VALUE = ".value";
+    private static final String REGEX = ".regex";
+    private static final String NEGATE = ".negate";
+    private static final String UID_KEY = ".uidKey";
+    private static final String UID_VALUES = ".uidValues";
+
+    // tag conditions by tag key
+    private Map<String, List<Condition>> conditions;
+    private boolean[] matched;
+    private int remaining;
+
+    @Override
+    public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env)
+            throws IOException {
+        super.init(source, options, env);
+        conditions = new HashMap<>();
+        int n = 0;
+        for (; options.containsKey(TAG_PREFIX + n + KEY); n++) {
+            String prefix = TAG_PREFIX + n;
+            String value = options.get(prefix + VALUE);
+            boolean negate = Boolean.parseBoolean(options.get(prefix + NEGATE));
+            Condition condition;
+            if (Boolean.parseBoolean(options.get(prefix + REGEX))) {
+                condition = new Condition(n, Pattern.compile(value).matcher(""), negate);
+            } else {
+                condition = new Condition(n, split(value), negate);
+            }
+            add(options.get(prefix + KEY), condition);
+            String uidKey = options.get(prefix + UID_KEY);
+            if (null != uidKey) {
+                add(UidDictionary.MARKER + uidKey, new Condition(n, split(options.get(prefix + UID_VALUES)), negate));
+            }
+        }
+        matched = new boolean[n];
+    }
+
+    private static Set<String> split(String values) {
+        Set<String> result = new HashSet<>();
+        for (String v : values.split(",")) {
+            if (!v.isEmpty()) {
+                result.add(v);
+            }
+        }
+        return result;
+    }
+
+    private void add(String key, Condition condition) {
+        List<Condition> list = conditions.get(key);
+        if (null == list) {
+            list = new ArrayList<>(1);
+            conditions.put(key, list);
+        }
+        list.add(condition);
+    }
+
+    @Override
+    public SortedKeyValueIterator<Key, Value> deepCopy(IteratorEnvironment env) {
+        TagFilter copy = (TagFilter) super.deepCopy(env);
+        copy.conditions = new HashMap<>();
+        conditions.forEach((key, list) -> {
+            List<Condition> copies = new ArrayList<>(list.size());
+            list.forEach(c -> copies.add(c.copy()));
+            copy.conditions.put(key, copies);
+        });
+        copy.matched = new boolean[matched.length];
+        return copy;
+    }
+
+    @Override
+    public boolean accept(Key k, Value v) {
+        Arrays.fill(matched, false);
+        remaining = matched.length;
+        check(k.getColumnFamilyData());
+        if (remaining > 0) {
+            check(k.getColumnQualifierData());
+        }
+        return remaining == 0;
+    }
+
+    /**
+     * Check the comma separated tags
+     */
+    private void check(ByteSequence tags) {
+        byte[] bytes = tags.getBackingArray();
+        int end = tags.offset() + tags.length();
+        int start = tags.offset();
+        while (start < end && remaining > 0) {
+            int equals = -1;
+            int i = start;
+            for (; i < end && bytes[i] != ','; i++) {
+                if (equals < 0 && bytes[i] == '=') {
+                    equals = i;
+                }
+            }
+            if (equals >= 0) {
+                List<Condition> list = conditions.get(new String(bytes, start, equals - start, UTF_8));
+                if (null != list) {
+                    String value = new String(bytes, equals + 1, i - equals - 1, UTF_8);
+                    for (Condition condition : list) {
+                        if (!matched[condition.index] && condition.matches(value)) {
+                            matched[condition.index] = true;
+                            remaining--;
+                        }
+                    }
+                }
+            }
+            start = i + 1;
+        }
+    }
+
+    /**
+     * Add a tag that the entries must have
+     *
+     * @param is
+     *            iterator setting
+     * @param key
+     *            tag key
+     * @param value
+     *            tag value, or a regular expression that matches the whole
+     *            value
+     * @param regex
+     *            true if value is a regular expression
+     */
+    public static void addTag(IteratorSetting is, String key, String value, boolean regex) {
+        addTag(is, key, value, regex, null, null);
+    }
+
+    /**
+     * Add a tag that the entries must have, either as given or with UIDs
+     *
+     * @param is
+     *            iterator setting
+     * @param key
+     *            tag key
+     * @param value
+     *            tag value, or a regular expression that matches the whole
+     *            value
+     * @param regex
+     *            true if value is a regular expression
+     * @param uidKey
+     *            UID of the key, or null if the tag is not matched with UIDs
+     * @param uidValues
+     *            UIDs of the matching values
+     */
+    public static void addTag(IteratorSetting is, String key, String value, boolean regex, String uidKey,
+            Collection<String> uidValues) {
+        addTag(is, key, value, regex, false, uidKey, uidValues);
+    }
+
+    /**
+     * Add a tag that the entries must have with one of the values, or with a
+     * value that is not one of them
+     *
+     * @param is
+     *            iterator setting
+     * @param key
+     *            tag key
+     * @param values
+     *            tag values
+     * @param negate
+     *            true if the value of the tag must not be one of the values
+     * @param uidKey
+     *            UID of the key, or null if the tag is not matched with UIDs
+     * @param uidValues
+     *            UIDs of the values
+     */
+    public static void addTag(IteratorSetting is, String key, Collection<String> values, boolean negate, String uidKey,
+            Collection<String> uidValues) {
+        addTag(is, key, String.join(",", values), false, negate, uidKey, uidValues);
+    }
+
+    /**
+     * Add a tag that the entries must have with a value that matches a regular
+     * expression, or with a value that does not
+     *
+     * @param is
+     *            iterator setting
+     * @param key
+     *            tag key
+     * @param regex
+     *            regular expression that matches the whole value
+     * @param negate
+     *            true if the value of the tag must not match
+     * @param uidKey
+     *            UID of the key, or null if the tag is not matched with UIDs
+     * @param uidValues
+     *            UIDs of the values that match
+     */
+    public static void addPattern(IteratorSetting is, String key, String regex, boolean negate, String uidKey,
+            Collection<String> uidValues) {
+        addTag(is, key, regex, true, negate, uidKey, uidValues);
+    }
+
+    private static void addTag(IteratorSetting is, String key, String value, boolean regex, boolean negate,
+            String uidKey, Collection<String> uidValues) {
+        int n = 0;
+        while (is.getOptions().containsKey(TAG_PREFIX + n + KEY)) {
+            n++;
+        }
+        String prefix = TAG_PREFIX + n;
+        is.addOption(prefix + KEY, key);
+        is.addOption(prefix + VALUE, value);
+        is.addOption(prefix + REGEX, Boolean.toString(regex));
+        if (negate) {
+            is.addOption(prefix + NEGATE, Boolean.TRUE.toString());
+        }
+        if (null != uidKey) {
+            is.addOption(prefix + UID_KEY, uidKey);
+            is.addOption(prefix + UID_VALUES, String.join(",", uidValues));
+        }
+    }
+
+    /**
+     * One of the tags that the entries must have, matched by a set of values or
+     * by a regular expression
+     */
+    private static final class Condition {
+
+        private final int index;
+        private final Set<String> values;
+        private final Matcher matcher;
+        private final boolean negate;
+
+        Condition(int index, Set<String> values, boolean negate) {
+            this.index = index;
+            this.values = values;
+            this.matcher = null;
+            this.negate = negate;
+        }
+
+        Condition(int index, Matcher matcher, boolean negate) {
+            this.index = index;
+            this.values = null;
+            this.matcher = matcher;
+            this.negate = negate;
+        }
+
+        boolean matches(String value) {
+            return negate != (null == matcher ? values.contains(value) : matcher.reset(value).matches());
+        }
+
+        Condition copy() {
+            return null == matcher ? this : new Condition(index, matcher.pattern().matcher(""), negate);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package timely.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import timely.api.model.Meta;
+import timely.model.Tag;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * In memory copy of the tag values of the meta table, metric to tag key to the
+ * sorted tag values, which expands the tags of a query without reading the meta
+ * table. The index is loaded from the meta table in the background and reloaded
+ * periodically, and the tags stored by this server are added as they are
+ * written.
+ *
+ * The number of tag values held is limited. Once the limit is reached no new
+ * metrics are added and a metric that gets a new tag value is dropped, as the
+ * index only holds metrics with all of their values. Metrics that are not in
+ * the index, including all of them before the first load, are a miss and the
+ * caller reads the meta table instead.
+ *
+ * Tag values written by other servers are only seen after the next reload. An
+ * expansion of a metric in the index can therefore leave out values that other
+ * servers have written since, and the series with those values are not queried
+ * until then.
+ */
+public class TagIndex {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TagIndex.class);
+
+    private static final int PATTERN_CACHE_SIZE = 1000;
+
+    private final long maxValues;
+    private final Cache<String, Pattern> patterns = Caffeine.newBuilder().maximumSize(PATTERN_CACHE_SIZE).build();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile Index current;
+    // tags added while the index is loaded, guarded by this
+    private List<Meta> recent = null;
+
+    /**
+     * @param maxValues
+     *            maximum number of tag values held
+     */
+    public TagIndex(long maxValues) {
+        this.maxValues = maxValues;
+        // nothing is known until loaded
+        this.current = new Index();
+        this.current.full = true;
+    }
+
+    /**
+     * Replace the index with the tag values of the meta table
+     *
+     * @param connector
+     *            connector
+     * @param metaTable
+     *            meta table
+     * @throws TableNotFoundException
+     *             if the meta table does not exist
+     */
+    public void load(Connector connector, String metaTable) throws TableNotFoundException {
+        synchronized (this) {
+            recent = new ArrayList<>();
+        }
+        Index loaded = new Index();
+        try {
+            Scanner meta = connector.createScanner(metaTable, Authorizations.EMPTY);
+            Text start = new Text(Meta.VALUE_PREFIX);
+            Text end = new Text(Meta.VALUE_PREFIX);
+            end.append(new byte[] { (byte) 0xff }, 0, 1);
+            meta.setRange(new Range(start, end));
+            for (Entry<Key, Value> entry : meta) {
+                Key key = entry.getKey();
+                String metric = key.getRow().toString().substring(Meta.VALUE_PREFIX.length());
+                loaded.add(metric, key.getColumnFamily().toString(), key.getColumnQualifier().toString());
+            }
+        } finally {
+            synchronized (this) {
+                // the tags written since the scan started may not have been
+                // flushed to the meta table
+                recent.forEach(m -> loaded.add(m.getMetric(), m.getTagKey(), m.getTagValue()));
+                recent = null;
+                current = loaded;
+            }
+        }
+        LOG.debug("Loaded {} tag values of {} metrics", loaded.size.get(), loaded.metrics.size());
+    }
+
+    /**
+     * Add tags that are written to the meta table
+     *
+     * @param metas
+     *            tags
+     */
+    public synchronized void addAll(Collection<Meta> metas) {
+        Index index = current;
+        for (Meta m : metas) {
+            index.add(m.getMetric(), m.getTagKey(), m.getTagValue());
+        }
+        if (null != recent) {
+            recent.addAll(metas);
+        }
+    }
+
+    /**
+     * Find the tags of a metric with a key and a matching value
+     *
+     * @param metric
+     *            metric
+     * @param tagKey
+     *            tag key, or null for all values of the first tag key of the
+     *            metric
+     * @param value
+     *            tag value, or a regular expression
+     * @param regex
+     *            true if value is a regular expression
+     * @return tags, or null if the metric is not in the index
+     */
+    public Set<Tag> expand(String metric, String tagKey, String value, boolean regex) {
+        ConcurrentSkipListMap<String, NavigableSet<String>> tags = current.metrics.get(metric);
+        if (null == tags) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        Set<Tag> result = new HashSet<>();
+        if (null == tagKey) {
+            Entry<String, NavigableSet<String>> first = tags.firstEntry();
+            if (null != first) {
+                first.getValue().forEach(v -> result.add(new Tag(first.getKey(), v)));
+            }
+            return result;
+        }
+        NavigableSet<String> values = tags.get(tagKey);
+        if (null == values) {
+            return result;
+        }
+        if (regex) {
+            Pattern pattern = patterns.get(value, Pattern::compile);
+            for (String v : values) {
+                if (pattern.matcher(v).matches()) {
+                    result.add(new Tag(tagKey, v));
+                }
+            }
+        } else if (values.contains(value)) {
+            result.add(new Tag(tagKey, value));
+        }
+        return result;
+    }
+
+    /**
+     * @return number of tag values held
+     */
+    public long size() {
+        return current.size.get();
+    }
+
+    /**
+     * @return number of expansions answered by the index since the last call
+     */
+    public long getAndResetHits() {
+        return hits.getAndSet(0);
+    }
+
+    /**
+     * @return number of expansions of metrics not in the index since the last
+     *         call
+     */
+    public long getAndResetMisses() {
+        return misses.getAndSet(0);
+    }
+
+    /**
+     * Tag values by tag key by metric, written by one thread at a time
+     */
+    private final class Index {
+
+        private final ConcurrentMap<String, ConcurrentSkipListMap<String, NavigableSet<String>>> metrics = new ConcurrentHashMap<>();
+        private final AtomicLong size = new AtomicLong();
+        private boolean full = false;
+
+        void add(String metric, String tagKey, String tagValue) {
+            ConcurrentSkipListMap<String, NavigableSet<String>> tags = metrics.get(metric);
+            if (null == tags) {
+                if (full) {
+                    return;
+                }
+                tags = new ConcurrentSkipListMap<>();
+                metrics.put(metric, tags);
+            }
+            NavigableSet<String> values = tags.get(tagKey);
+            if (null != values && values.contains(tagValue)) {
+                return;
+            }
+            if (size.get() >= maxValues) {
+                if (!full) {
+                    LOG.warn(
+                            "Tag index is full with {} values, metrics with new tags will be read from the meta table",
+                            maxValues);
+                }
+                full = true;
+                metrics.remove(metric);
+                for (NavigableSet<String> v : tags.values()) {
+                    size.addAndGet(-v.size());
+                }
+                return;
+            }
+            if (null == values) {
+                values = new ConcurrentSkipListSet<>();
+                tags.put(tagKey, values);
+            }
+            values.add(tagValue);
+            size.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package timely.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import timely.api.model.Meta;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Number of distinct values of each tag key of a metric, kept as
+ * {@link HyperLogLog} sketches in the meta table. Each new tag value written to
+ * the meta table also adds the sketch of the value to a row with the
+ * {@link Meta#STATISTICS_PREFIX}, which the {@link TagStatisticsCombiner}
+ * merges. The sketches of a metric are read on first use and kept for a short
+ * time, the values written by this server are added to them as they are
+ * written.
+ */
+public class TagStatistics {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TagStatistics.class);
+
+    private static final long EXPIRATION_MS = TimeUnit.MINUTES.toMillis(1);
+    private static final String EMPTY = "";
+
+    private final Connector connector;
+    private final String metaTable;
+    // tag key to sketch by metric
+    private final Cache<String, ConcurrentMap<String, HyperLogLog>> sketches = Caffeine.newBuilder()
+            .expireAfterWrite(EXPIRATION_MS, TimeUnit.MILLISECONDS).build();
+
+    public TagStatistics(Connector connector, String metaTable) {
+        this.connector = connector;
+        this.metaTable = metaTable;
+    }
+
+    /**
+     * Create the mutations that add new tag values to the sketches, one
+     * mutation per metric with one sketch per tag key
+     *
+     * @param metas
+     *            tag values that are new to the meta table
+     * @return mutations
+     */
+    public static List<Mutation> toMutations(Collection<Meta> metas) {
+        Map<String, Map<String, HyperLogLog>> byMetric = group(metas);
+        List<Mutation> mutations = new ArrayList<>(byMetric.size());
+        for (Entry<String, Map<String, HyperLogLog>> metric : byMetric.entrySet()) {
+            Mutation m = new Mutation(Meta.STATISTICS_PREFIX + metric.getKey());
+            for (Entry<String, HyperLogLog> tag : metric.getValue().entrySet()) {
+                m.put(tag.getKey(), EMPTY, new Value(tag.getValue().encode()));
+            }
+            mutations.add(m);
+        }
+        return mutations;
+    }
+
+    private static Map<String, Map<String, HyperLogLog>> group(Collection<Meta> metas) {
+        Map<String, Map<String, HyperLogLog>> byMetric = new HashMap<>();
+        for (Meta meta : metas) {
+            byMetric.computeIfAbsent(meta.getMetric(), k -> new HashMap<>())
+                    .computeIfAbsent(meta.getTagKey(), k -> new HyperLogLog()).add(meta.getTagValue());
+        }
+        return byMetric;
+    }
+
+    /**
+     * Add tag values written by this server to the sketches that are held
+     *
+     * @param metas
+     *            tag values
+     */
+    public void addAll(Collection<Meta> metas) {
+        for (Meta meta : metas) {
+            ConcurrentMap<String, HyperLogLog> tags = sketches.getIfPresent(meta.getMetric());
+            if (null != tags) {
+                tags.computeIfAbsent(meta.getTagKey(), k -> new HyperLogLog()).add(meta.getTagValue());
+            }
+        }
+    }
+
+    /**
+     * @param metric
+     *            metric
+     * @return estimated number of distinct values by tag key, the tag keys
+     *         without statistics are missing
+     */
+    public Map<String, Long> getCounts(String metric) {
+        Map<String, Long> counts = new HashMap<>();
+        ConcurrentMap<String, HyperLogLog> tags = sketches.get(metric, this::load);
+        if (null != tags) {
+            tags.forEach((tagKey, sketch) -> counts.put(tagKey, sketch.estimate()));
+        }
+        return counts;
+    }
+
+    private ConcurrentMap<String, HyperLogLog> load(String metric) {
+        ConcurrentMap<String, HyperLogLog> tags = new ConcurrentHashMap<>();
+        try {
+            Scanner scanner = connector.createScanner(metaTable, Authorizations.EMPTY);
+            scanner.setRange(Range.exact(Meta.STATISTICS_PREFIX + metric));
+            for (Entry<Key, Value> entry : scanner) {
+                // the combiner has merged the sketches of a tag key
+                tags.computeIfAbsent(entry.getKey().getColumnFamily().toString(), k -> new HyperLogLog()).merge(
+                        entry.getValue().get());
+            }
+        } catch (TableNotFoundException e) {
+            LOG.error("Unable to read the tag statistics of " + metric, e);
+        }
+        return tags;
+    }
+}
@@ -0,0 +1,47 @@
+package timely.store;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.Iterator;
+
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Combiner;
+
+import timely.api.model.Meta;
+
+/**
+ * Merges the {@link HyperLogLog} sketches written to the statistics rows of the
+ * meta table, see {@link TagStatistics}. The other rows of the meta table keep
+ * only their latest entry, as the versioning iterator would.
+ */
+public class TagStatisticsCombiner extends Combiner {
+
+    private static final byte[] STATISTICS_PREFIX = Meta.STATISTICS_PREFIX.getBytes(UTF_8);
+
+    @Override
+    public Value reduce(Key key, Iterator<Value> iter) {
+        Value first = new Value(iter.next().get());
+        if (!iter.hasNext() || !isStatistics(key.getRowData())) {
+            return first;
+        }
+        HyperLogLog sketch = HyperLogLog.decode(first.get());
+        while (iter.hasNext()) {
+            sketch.merge(iter.next().get());
+        }
+        return new Value(sketch.encode());
+    }
+
+    private static boolean isStatistics(ByteSequence row) {
+        if (row.length() < STATISTICS_PREFIX.length) {
+            return false;
+        }
+        for (int i = 0; i < STATISTICS_PREFIX.length; i++) {
+            if (row.byteAt(i) != STATISTICS_PREFIX[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,314 @@
+package timely.store;
+
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.IteratorUtil.IteratorScope;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.WrappingIterator;
+import org.apache.accumulo.core.util.ComparablePair;
+
+import timely.adapter.accumulo.MetricAdapter;
+import timely.adapter.accumulo.TimeBlockCodec;
+
+/**
+ * Packs the points of each series of the metrics table into one entry per block
+ * of time, encoded with the {@link TimeBlockCodec}. Blocks that ended more than
+ * the minimum age before the compaction started are packed, newer points are
+ * left as they are.
+ *
+ * The entries of a metric in a block are in consecutive rows and are read
+ * together, as the points of a series are spread over all of them. The packed
+ * entries are written in the first of those rows, which keeps them in the
+ * tablet and in sorted order, with the timestamp of the newest point so that
+ * the age off filter keeps a block while any of its points are kept. Points
+ * written into a block after it was packed, and the blocks packed separately by
+ * tablets on either side of a split, are merged the next time. The entries are
+ * written early, at the next row, once a block has more than the maximum number
+ * of points, which limits the memory used by metrics with many series.
+ *
+ * Only full major compactions are changed, they read every file of the tablet
+ * and deletes have been removed.
+ */
+public class TimeBlockIterator extends WrappingIterator {
+
+    private static final String PERIOD = "timeblock.period";
+    private static final String MIN_AGE = "timeblock.minAge";
+    private static final String MAX_POINTS = "timeblock.maxPoints";
+    private static final long DEFAULT_MAX_POINTS = 1000000;
+    private static final byte[] EMPTY = new byte[0];
+
+    private long period;
+    private long cutoff;
+    private long maxPoints = DEFAULT_MAX_POINTS;
+    private boolean enabled = false;
+
+    // row of the current source key
+    private byte[] row = null;
+    private String rowMetric;
+    private long rowBlock;
+    private boolean rowPacked;
+    // series of the block being read, keyed by column
+    private final SortedMap<Key, Points> group = new TreeMap<>();
+    private byte[] groupRow;
+    private String groupMetric;
+    private long groupBlock;
+    private long groupPoints;
+    private Iterator<Entry<Key, Value>> packed = Collections.emptyIterator();
+    private Key topKey;
+    private Value topValue;
+
+    @Override
+    public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env)
+            throws IOException {
+        super.init(source, options, env);
+        period = Long.parseLong(options.get(PERIOD));
+        cutoff = System.currentTimeMillis() - Long.parseLong(options.get(MIN_AGE));
+        if (options.containsKey(MAX_POINTS)) {
+            maxPoints = Long.parseLong(options.get(MAX_POINTS));
+        }
+        enabled = null != env && env.getIteratorScope() == IteratorScope.majc && env.isFullMajorCompaction();
+    }
+
+    @Override
+    public SortedKeyValueIterator<Key, Value> deepCopy(IteratorEnvironment env) {
+        TimeBlockIterator copy = new TimeBlockIterator();
+        copy.setSource(getSource().deepCopy(env));
+        copy.period = period;
+        copy.cutoff = cutoff;
+        copy.maxPoints = maxPoints;
+        copy.enabled = enabled;
+        return copy;
+    }
+
+    @Override
+    public void seek(Range range, Collection<ByteSequence> columnFamilies, boolean inclusive) throws IOException {
+        super.seek(range, columnFamilies, inclusive);
+        if (enabled) {
+            row = null;
+            group.clear();
+            packed = Collections.emptyIterator();
+            findTop();
+        }
+    }
+
+    @Override
+    public boolean hasTop() {
+        return enabled ? null != topKey : super.hasTop();
+    }
+
+    @Override
+    public Key getTopKey() {
+        return enabled ? topKey : super.getTopKey();
+    }
+
+    @Override
+    public Value getTopValue() {
+        return enabled ? topValue : super.getTopValue();
+    }
+
+    @Override
+    public void next() throws IOException {
+        if (enabled) {
+            findTop();
+        } else {
+            super.next();
+        }
+    }
+
+    private void findTop() throws IOException {
+        topKey = null;
+        topValue = null;
+        if (packed.hasNext()) {
+            setTop(packed.next());
+            return;
+        }
+        SortedKeyValueIterator<Key, Value> source = getSource();
+        while (source.hasTop()) {
+            Key key = source.getTopKey();
+            boolean newRow = setRow(key.getRowData());
+            if (!rowPacked) {
+                if (!group.isEmpty()) {
+                    pack();
+                } else {
+                    setTop(new SimpleImmutableEntry<>(new Key(key), new Value(source.getTopValue())));
+                    source.next();
+                }
+                return;
+            }
+            if (!group.isEmpty() && newRow
+                    && (rowBlock != groupBlock || !rowMetric.equals(groupMetric) || groupPoints >= maxPoints)) {
+                pack();
+                return;
+            }
+            if (group.isEmpty()) {
+                groupRow = row;
+                groupMetric = rowMetric;
+                groupBlock = rowBlock;
+                groupPoints = 0;
+            }
+            add(key, source.getTopValue());
+            source.next();
+        }
+        if (!group.isEmpty()) {
+            pack();
+        }
+    }
+
+    /**
+     * Parse the row if it differs from the last one
+     *
+     * @return true if the row changed
+     */
+    private boolean setRow(ByteSequence data) {
+        if (null != row && equals(data, row)) {
+            return false;
+        }
+        row = data.toArray();
+        try {
+            ComparablePair<String, Long> pair = MetricAdapter.decodeRowKey(row);
+            rowMetric = pair.getFirst();
+            rowBlock = pair.getSecond() - Math.floorMod(pair.getSecond(), period);
+            rowPacked = rowBlock + period <= cutoff;
+        } catch (RuntimeException e) {
+            // not a metric, leave it alone
+            rowPacked = false;
+        }
+        return true;
+    }
+
+    private static boolean equals(ByteSequence data, byte[] bytes) {
+        if (data.length() != bytes.length) {
+            return false;
+        }
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            if (data.byteAt(i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void add(Key key, Value value) {
+        Key column = new Key(EMPTY, key.getColumnFamilyData().toArray(), key.getColumnQualifierData().toArray(), key
+                .getColumnVisibilityData().toArray(), Long.MAX_VALUE);
+        Points points = group.get(column);
+        if (null == points) {
+            points = new Points();
+            group.put(column, points);
+        }
+        int size = points.size;
+        byte[] bytes = value.get();
+        if (TimeBlockCodec.isEncoded(bytes)) {
+            TimeBlockCodec.decode(bytes, points::add);
+        } else {
+            // the key timestamp is the metric timestamp
+            points.add(key.getTimestamp(), MetricAdapter.decodeValue(bytes));
+        }
+        groupPoints += points.size - size;
+    }
+
+    private void pack() {
+        List<Entry<Key, Value>> entries = new ArrayList<>(group.size());
+        for (Entry<Key, Points> entry : group.entrySet()) {
+            Key column = entry.getKey();
+            Points points = entry.getValue();
+            points.sort();
+            Key key = new Key(groupRow, column.getColumnFamilyData().toArray(), column.getColumnQualifierData()
+                    .toArray(), column.getColumnVisibilityData().toArray(), points.timestamps[points.size - 1]);
+            entries.add(new SimpleImmutableEntry<>(key, new Value(TimeBlockCodec.encode(points.timestamps,
+                    points.values, points.size))));
+        }
+        group.clear();
+        packed = entries.iterator();
+        setTop(packed.next());
+    }
+
+    private void setTop(Entry<Key, Value> entry) {
+        topKey = entry.getKey();
+        topValue = entry.getValue();
+    }
+
+    /**
+     * @param is
+     *            iterator setting
+     * @param period
+     *            length of a block in ms, blocks start at multiples of it
+     * @param minAge
+     *            time in ms after the end of a block before it is packed
+     */
+    public static void setOptions(IteratorSetting is, long period, long minAge) {
+        is.addOption(PERIOD, Long.toString(period));
+        is.addOption(MIN_AGE, Long.toString(minAge));
+    }
+
+    /**
+     * @param is
+     *            iterator setting
+     * @param maxPoints
+     *            number of points of a metric in a block after which the packed
+     *            entries are written
+     */
+    public static void setMaxPoints(IteratorSetting is, long maxPoints) {
+        is.addOption(MAX_POINTS, Long.toString(maxPoints));
+    }
+
+    /**
+     * Points of a series, in the order they were read
+     */
+    private static final class Points {
+
+        private long[] timestamps = new long[16];
+        private double[] values = new double[16];
+        private int size = 0;
+        private boolean sorted = true;
+
+        void add(long timestamp, double value) {
+            if (size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            if (size > 0 && timestamp <= timestamps[size - 1]) {
+                sorted = false;
+            }
+            timestamps[size] = timestamp;
+            values[size++] = value;
+        }
+
+        /**
+         * Sort by timestamp, a point read later replaces one with the same
+         * timestamp
+         */
+        void sort() {
+            if (sorted) {
+                return;
+            }
+            TreeMap<Long, Double> points = new TreeMap<>();
+            for (int i = 0; i < size; i++) {
+                points.put(timestamps[i], values[i]);
+            }
+            size = 0;
+            for (Entry<Long, Double> point : points.entrySet()) {
+                timestamps[size] = point.getKey();
+                values[size++] = point.getValue();
+            }
+            sorted = true;
+        }
+    }
+}
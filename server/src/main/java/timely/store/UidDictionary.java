@@ -0,0 +1,454 @@
+package timely.store;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.ConditionalWriter;
+import org.apache.accumulo.core.client.ConditionalWriter.Status;
+import org.apache.accumulo.core.client.ConditionalWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Condition;
+import org.apache.accumulo.core.data.ConditionalMutation;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import timely.api.model.Meta;
+import timely.api.response.TimelyException;
+import timely.model.Metric;
+import timely.model.Tag;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Dictionary of the UIDs that replace tag keys and tag values in the column
+ * family and column qualifier of the metrics table. An encoded tag is written
+ * as {@link #MARKER} followed by the base 36 UIDs of the key and the value,
+ * separated by '=', so encoded and plain tags can be parsed, filtered and
+ * grouped the same way and are told apart by the marker. The dictionary is kept
+ * in the meta table:
+ *
+ * <pre>
+ * u:name    uid:   UID of the name
+ * un:uid    name:  name of the UID
+ * ub:block  uid:   block of UIDs claimed by a server
+ * </pre>
+ *
+ * Servers hand out UIDs from blocks of {@link #BLOCK_SIZE} that they claim with
+ * a conditional mutation, and a name keeps the first UID written for it, so
+ * concurrent servers agree on the UIDs. Entries are written once with the
+ * maximum timestamp so that they are never aged off while metrics refer to
+ * them. Both directions are cached.
+ */
+public class UidDictionary {
+
+    private static final Logger LOG = LoggerFactory.getLogger(UidDictionary.class);
+
+    /**
+     * First character of the key of an encoded tag
+     */
+    public static final char MARKER = '\u0000';
+    static final long BLOCK_SIZE = 1000;
+
+    private static final int SCAN_THREADS = 4;
+    private static final long IN_USE_CHECK_PERIOD = TimeUnit.MINUTES.toMillis(1);
+    private static final Text UID_COLUMN = new Text("uid");
+    private static final Text NAME_COLUMN = new Text("name");
+    private static final Text EMPTY_TEXT = new Text();
+    private static final Value EMPTY_VALUE = new Value(new byte[0]);
+    private static final long TIMESTAMP = Long.MAX_VALUE;
+
+    private final Connector connector;
+    private final String metaTable;
+    private final Cache<String, Long> uids;
+    private final Cache<Long, String> names;
+    private volatile boolean inUse = false;
+    private volatile long lastInUseCheck = 0;
+    // the rest is guarded by this
+    private ConditionalWriter writer = null;
+    private long nextBlock = 0;
+    private long nextUid = 0;
+    private long blockEnd = 0;
+
+    public UidDictionary(Connector connector, String metaTable, long maxCapacity) {
+        this.connector = connector;
+        this.metaTable = metaTable;
+        this.uids = Caffeine.newBuilder().maximumSize(maxCapacity).build();
+        this.names = Caffeine.newBuilder().maximumSize(maxCapacity).build();
+    }
+
+    /**
+     * @param tag
+     *            tag
+     * @return true if the tag was read from a column written with
+     *         {@link #encode(Tag)}
+     */
+    public static boolean isEncoded(Tag tag) {
+        String key = tag.getKey();
+        return !key.isEmpty() && key.charAt(0) == MARKER;
+    }
+
+    /**
+     * @param uid
+     *            UID
+     * @return UID as written in the metrics and meta table
+     */
+    public static String toString(long uid) {
+        return Long.toString(uid, Character.MAX_RADIX);
+    }
+
+    /**
+     * Encode a tag for the column family or qualifier of the metrics table,
+     * assigning UIDs to its key and value if they do not have one yet
+     *
+     * @param tag
+     *            tag
+     * @return encoded tag
+     * @throws TimelyException
+     *             if the dictionary can not be read or written
+     */
+    public String encode(Tag tag) throws TimelyException {
+        return encode(getOrCreateUid(tag.getKey()), getOrCreateUid(tag.getValue()));
+    }
+
+    /**
+     * Encode a tag whose key and value have UIDs
+     *
+     * @param key
+     *            UID of the tag key
+     * @param value
+     *            UID of the tag value
+     * @return encoded tag
+     */
+    public static String encode(long key, long value) {
+        return MARKER + toString(key) + '=' + toString(value);
+    }
+
+    /**
+     * Look up the UIDs of names without assigning new ones
+     *
+     * @param names
+     *            names
+     * @return UIDs of the names that have one
+     * @throws TimelyException
+     *             if the dictionary can not be read
+     */
+    public Map<String, Long> getUids(Collection<String> names) throws TimelyException {
+        return lookup(names, uids, Meta.UID_PREFIX, UID_COLUMN, n -> n, (n, v) -> parseUid(new String(v.get(), UTF_8)));
+    }
+
+    /**
+     * Look up the names of UIDs
+     *
+     * @param uids
+     *            UIDs
+     * @return names of the UIDs found in the dictionary
+     * @throws TimelyException
+     *             if the dictionary can not be read
+     */
+    public Map<Long, String> getNames(Collection<Long> uids) throws TimelyException {
+        return lookup(uids, names, Meta.UID_NAME_PREFIX, NAME_COLUMN, UidDictionary::toString,
+                (u, v) -> new String(v.get(), UTF_8));
+    }
+
+    private interface ValueParser<K, V> {
+
+        V parse(K key, Value value) throws TimelyException;
+    }
+
+    /**
+     * Read the entries that are not cached with a single batch scan
+     */
+    private <K, V> Map<K, V> lookup(Collection<K> keys, Cache<K, V> cache, String prefix, Text column,
+            Function<K, String> rowSuffix, ValueParser<K, V> parser) throws TimelyException {
+        Map<K, V> result = new HashMap<>();
+        Map<String, K> missing = new HashMap<>();
+        for (K key : keys) {
+            V cached = cache.getIfPresent(key);
+            if (null != cached) {
+                result.put(key, cached);
+            } else {
+                missing.put(prefix + rowSuffix.apply(key), key);
+            }
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        List<Range> ranges = new ArrayList<>(missing.size());
+        missing.keySet().forEach(row -> ranges.add(Range.exact(row)));
+        try {
+            BatchScanner scanner = connector.createBatchScanner(metaTable, Authorizations.EMPTY, SCAN_THREADS);
+            try {
+                scanner.setRanges(ranges);
+                scanner.fetchColumnFamily(column);
+                for (Entry<Key, Value> entry : scanner) {
+                    K key = missing.get(entry.getKey().getRow().toString());
+                    if (null != key) {
+                        V value = parser.parse(key, entry.getValue());
+                        cache.put(key, value);
+                        result.put(key, value);
+                    }
+                }
+            } finally {
+                scanner.close();
+            }
+        } catch (TableNotFoundException | RuntimeException e) {
+            throw error("Error reading UID dictionary", e);
+        }
+        return result;
+    }
+
+    /**
+     * Replace the encoded tags with the tags they stand for
+     *
+     * @param tags
+     *            tags, encoded or not
+     * @return decoded tags, or the same set if none are encoded
+     * @throws TimelyException
+     *             if the dictionary can not be read or does not contain a UID
+     */
+    public Set<Tag> decode(Set<Tag> tags) throws TimelyException {
+        if (tags.stream().noneMatch(UidDictionary::isEncoded)) {
+            return tags;
+        }
+        return new HashSet<>(decodeTags(tags));
+    }
+
+    /**
+     * Replace the encoded tags of the metric with the tags they stand for
+     *
+     * @param metric
+     *            metric read from the metrics table
+     * @return metric with decoded tags, or the same metric if none are encoded
+     * @throws TimelyException
+     *             if the dictionary can not be read or does not contain a UID
+     */
+    public Metric decode(Metric metric) throws TimelyException {
+        if (metric.getTags().stream().noneMatch(UidDictionary::isEncoded)) {
+            return metric;
+        }
+        // @formatter:off
+        return Metric.newBuilder()
+                .name(metric.getName())
+                .value(metric.getValue().getTimestamp(), metric.getValue().getMeasure())
+                .tags(decodeTags(metric.getTags()))
+                .build();
+        // @formatter:on
+    }
+
+    private List<Tag> decodeTags(Collection<Tag> tags) throws TimelyException {
+        Set<Long> encoded = new LinkedHashSet<>();
+        for (Tag tag : tags) {
+            if (isEncoded(tag)) {
+                encoded.add(parseUid(tag.getKey().substring(1)));
+                encoded.add(parseUid(tag.getValue()));
+            }
+        }
+        Map<Long, String> found = getNames(encoded);
+        List<Tag> result = new ArrayList<>(tags.size());
+        for (Tag tag : tags) {
+            if (isEncoded(tag)) {
+                String key = found.get(parseUid(tag.getKey().substring(1)));
+                String value = found.get(parseUid(tag.getValue()));
+                if (null == key || null == value) {
+                    throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), "Unknown UID in tag",
+                            "No dictionary entry for " + tag.join().substring(1));
+                }
+                result.add(Tag.of(key, value));
+            } else {
+                result.add(tag);
+            }
+        }
+        return result;
+    }
+
+    private static long parseUid(String uid) throws TimelyException {
+        try {
+            return Long.parseLong(uid, Character.MAX_RADIX);
+        } catch (NumberFormatException e) {
+            throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), "Invalid UID", uid, e);
+        }
+    }
+
+    /**
+     * @return true if UIDs have been assigned, so that the metrics table may
+     *         contain encoded tags. Checked at most once a minute until true.
+     * @throws TimelyException
+     *             if the dictionary can not be read
+     */
+    public boolean isInUse() throws TimelyException {
+        if (!inUse) {
+            long now = System.currentTimeMillis();
+            if (now - lastInUseCheck > IN_USE_CHECK_PERIOD) {
+                lastInUseCheck = now;
+                try {
+                    inUse = exists(Meta.UID_BLOCK_PREFIX + toString(0));
+                } catch (TableNotFoundException | RuntimeException e) {
+                    throw error("Error reading UID dictionary", e);
+                }
+            }
+        }
+        return inUse;
+    }
+
+    private long getOrCreateUid(String name) throws TimelyException {
+        Long uid = uids.getIfPresent(name);
+        if (null == uid) {
+            uid = getUids(Collections.singletonList(name)).get(name);
+            if (null == uid) {
+                uid = assign(name);
+            }
+        }
+        return uid;
+    }
+
+    private synchronized long assign(String name) throws TimelyException {
+        Long uid = uids.getIfPresent(name);
+        if (null != uid) {
+            // assigned by another thread while waiting
+            return uid;
+        }
+        try {
+            long candidate = nextUid();
+            String encoded = toString(candidate);
+            // Write the name first so that every UID that can be found by name
+            // can be decoded. The block belongs to this server, so this only
+            // fails on errors.
+            Status status = write(Meta.UID_NAME_PREFIX + encoded, NAME_COLUMN, new Value(name.getBytes(UTF_8)));
+            if (status != Status.ACCEPTED) {
+                throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(),
+                        "Error writing UID dictionary", "Writing name of UID " + encoded + " returned " + status);
+            }
+            status = write(Meta.UID_PREFIX + name, UID_COLUMN, new Value(encoded.getBytes(UTF_8)));
+            if (status == Status.ACCEPTED) {
+                uid = candidate;
+                uids.put(name, uid);
+                names.put(uid, name);
+            } else {
+                // another server assigned a UID first, the candidate stays
+                // unused
+                uid = getUids(Collections.singletonList(name)).get(name);
+                if (null == uid) {
+                    throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(),
+                            "Error writing UID dictionary", "Writing UID of " + name + " returned " + status);
+                }
+            }
+            LOG.debug("UID of {} is {}", name, uid);
+            return uid;
+        } catch (AccumuloException | AccumuloSecurityException | TableNotFoundException | RuntimeException e) {
+            throw error("Error writing UID dictionary", e);
+        }
+    }
+
+    private long nextUid() throws AccumuloException, AccumuloSecurityException, TableNotFoundException, TimelyException {
+        if (nextUid == blockEnd) {
+            claimBlock();
+        }
+        return nextUid++;
+    }
+
+    private void claimBlock() throws AccumuloException, AccumuloSecurityException, TableNotFoundException,
+            TimelyException {
+        long block = firstUnclaimedBlock(nextBlock);
+        while (true) {
+            Status status = write(Meta.UID_BLOCK_PREFIX + toString(block), UID_COLUMN, EMPTY_VALUE);
+            if (status == Status.ACCEPTED) {
+                nextBlock = block + 1;
+                nextUid = block * BLOCK_SIZE;
+                blockEnd = nextUid + BLOCK_SIZE;
+                inUse = true;
+                LOG.info("Claimed UID block {}", block);
+                return;
+            }
+            if (status != Status.REJECTED && status != Status.UNKNOWN) {
+                throw new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(),
+                        "Error writing UID dictionary", "Claiming UID block " + block + " returned " + status);
+            }
+            // claimed by another server, or maybe by this write
+            block++;
+        }
+    }
+
+    /**
+     * Blocks are claimed in order, so the claimed blocks are the ones before
+     * the first unclaimed one. Search for it from a block known to be claimed
+     * or the first one.
+     */
+    private long firstUnclaimedBlock(long from) throws TableNotFoundException {
+        long claimed = from;
+        if (!exists(Meta.UID_BLOCK_PREFIX + toString(claimed))) {
+            return claimed;
+        }
+        long step = 1;
+        long unclaimed = claimed + step;
+        while (exists(Meta.UID_BLOCK_PREFIX + toString(unclaimed))) {
+            claimed = unclaimed;
+            step *= 2;
+            unclaimed = claimed + step;
+        }
+        while (unclaimed - claimed > 1) {
+            long mid = claimed + (unclaimed - claimed) / 2;
+            if (exists(Meta.UID_BLOCK_PREFIX + toString(mid))) {
+                claimed = mid;
+            } else {
+                unclaimed = mid;
+            }
+        }
+        return unclaimed;
+    }
+
+    private boolean exists(String row) throws TableNotFoundException {
+        Scanner scanner = connector.createScanner(metaTable, Authorizations.EMPTY);
+        try {
+            scanner.setRange(Range.exact(row));
+            return scanner.iterator().hasNext();
+        } finally {
+            scanner.close();
+        }
+    }
+
+    private Status write(String row, Text column, Value value) throws AccumuloException, AccumuloSecurityException,
+            TableNotFoundException {
+        if (null == writer) {
+            writer = connector.createConditionalWriter(metaTable, new ConditionalWriterConfig());
+        }
+        ConditionalMutation mutation = new ConditionalMutation(row, new Condition(column, EMPTY_TEXT));
+        mutation.put(column, EMPTY_TEXT, TIMESTAMP, value);
+        return writer.write(mutation).getStatus();
+    }
+
+    private static TimelyException error(String message, Exception e) {
+        LOG.error(message, e);
+        return new TimelyException(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), message, e.getMessage(), e);
+    }
+
+    public synchronized void close() {
+        if (null != writer) {
+            writer.close();
+            writer = null;
+        }
+    }
+}
@@ -32,6 +32,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 public class MetricScanner extends Thread implements UncaughtExceptionHandler {
 
     private static final Logger LOG = LoggerFactory.getLogger(MetricScanner.class);
+    private final DataStore store;
     private final Scanner scanner;
     private Iterator<Entry<Key, Value>> iter = null;
     private final ChannelHandlerContext ctx;
@@ -41,6 +42,7 @@ public class MetricScanner extends Thread implements UncaughtExceptionHandler {
     private final int lag;
     private final String subscriptionId;
     private final String metric;
+    private final long startTime;
 
     public MetricScanner(String subscriptionId, String sessionId, DataStore store, String metric,
             Map<String, String> tags, long startTime, long delay, int lag, ChannelHandlerContext ctx)
@@ -50,6 +52,8 @@ public class MetricScanner extends Thread implements UncaughtExceptionHandler {
         this.ctx = ctx;
         this.lag = lag;
         this.metric = metric;
+        this.startTime = startTime;
+        this.store = store;
         this.scanner = store.createScannerForMetric(sessionId, metric, tags, startTime, lag);
         this.iter = scanner.iterator();
         this.delay = delay;
@@ -70,19 +74,30 @@ public class MetricScanner extends Thread implements UncaughtExceptionHandler {
     @Override
     public void run() {
         Metric m = null;
+        Text lastRow = null;
         try {
             ObjectMapper om = JsonUtil.getObjectMapper();
             while (!closed) {
 
                 if (this.iter.hasNext()) {
                     Entry<Key, Value> e = this.iter.next();
-                    m = MetricAdapter.parse(e.getKey(), e.getValue());
-                    try {
-                        String json = om.writeValueAsString(MetricResponse.fromMetric(m, this.subscriptionId));
-                        LOG.trace("Returning {} for subscription", json);
-                        this.ctx.writeAndFlush(new TextWebSocketFrame(json));
-                    } catch (JsonProcessingException e1) {
-                        LOG.error("Error serializing metric: " + m, e1);
+                    lastRow = e.getKey().getRow();
+                    for (Metric metric : MetricAdapter.parseAll(e.getKey(), e.getValue())) {
+                        m = metric;
+                        // a block of points can start before the start time
+                        if (m.getValue().getTimestamp() < startTime) {
+                            continue;
+                        }
+                        try {
+                            String json = om.writeValueAsString(MetricResponse.fromMetric(store.decode(m),
+                                    this.subscriptionId));
+                            LOG.trace("Returning {} for subscription", json);
+                            this.ctx.writeAndFlush(new TextWebSocketFrame(json));
+                        } catch (JsonProcessingException e1) {
+                            LOG.error("Error serializing metric: " + m, e1);
+                        } catch (TimelyException e1) {
+                            LOG.error("Error decoding metric: " + m, e1);
+                        }
                     }
                 } else {
                     long endTime = (System.currentTimeMillis() - (lag * 1000));
@@ -90,7 +105,7 @@ public class MetricScanner extends Thread implements UncaughtExceptionHandler {
                     Text endRow = new Text(end);
                     this.scanner.close();
                     Range prevRange = this.scanner.getRange();
-                    if (null == m) {
+                    if (null == lastRow) {
                         LOG.debug("No results found, waiting {}ms to retry.", delay);
                         sleepUninterruptibly(delay, TimeUnit.MILLISECONDS);
                         this.scanner.setRange(new Range(prevRange.getStartKey().getRow(), prevRange
@@ -100,8 +115,7 @@ public class MetricScanner extends Thread implements UncaughtExceptionHandler {
                         // Reset the starting range to the last key returned
                         LOG.debug("Exhausted scanner, waiting {}ms to retry.", delay);
                         sleepUninterruptibly(delay, TimeUnit.MILLISECONDS);
-                        this.scanner.setRange(new Range(new Text(MetricAdapter.encodeRowKey(m)), false, endRow,
-                                prevRange.isEndKeyInclusive()));
+                        this.scanner.setRange(new Range(lastRow, false, endRow, prevRange.isEndKeyInclusive()));
                         this.iter = this.scanner.iterator();
                     }
                 }
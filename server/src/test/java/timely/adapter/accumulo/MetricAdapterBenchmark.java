@@ -0,0 +1,103 @@
+package timely.adapter.accumulo;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import timely.Configuration;
+import timely.auth.VisibilityCache;
+import timely.model.Metric;
+import timely.model.Tag;
+
+/**
+ * Compares building the column qualifiers of a mutation with one stream over
+ * the tags for each tag with {@link MetricAdapter#toMutation(Metric)}. Run from
+ * the server directory with:
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test -Dexec.args="-cp %classpath timely.adapter.accumulo.MetricAdapterBenchmark"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MetricAdapterBenchmark {
+
+    @Param({ "5", "10", "20" })
+    public int tags;
+
+    private Metric metric;
+
+    @Setup
+    public void setup() {
+        VisibilityCache.init(new Configuration());
+        List<Tag> list = new ArrayList<>();
+        for (int i = 0; i < tags - 1; i++) {
+            list.add(new Tag("tag" + i, "value" + i));
+        }
+        list.add(new Tag(MetricAdapter.VISIBILITY_TAG, "(a&b)|(c&d)"));
+        metric = Metric.newBuilder().name("sys.cpu.user").value(1472222222000L, 12.5D).tags(list).build();
+    }
+
+    @Benchmark
+    public Mutation streamQualifiers() {
+        // the previous implementation of MetricAdapter.toMutation
+        final Mutation mutation = new Mutation(MetricAdapter.encodeRowKey(metric));
+        List<Tag> tags = metric.getTags();
+        Collections.sort(tags);
+        for (final Tag entry : tags) {
+            if (entry.getKey().equals(MetricAdapter.VISIBILITY_TAG))
+                continue;
+            final String cf = entry.join();
+            String cq = tags.stream().filter(inner -> !inner.equals(entry))
+                    .filter(inner -> !inner.getKey().equals(MetricAdapter.VISIBILITY_TAG)).map(Tag::join)
+                    .collect(Collectors.joining(","));
+            mutation.put(cf, cq, extractVisibility(tags), metric.getValue().getTimestamp(), extractValue(metric));
+        }
+        return mutation;
+    }
+
+    @Benchmark
+    public Mutation slicedQualifiers() {
+        return MetricAdapter.toMutation(metric);
+    }
+
+    private static ColumnVisibility extractVisibility(List<Tag> tags) {
+        Optional<Tag> visTag = tags.stream().filter(t -> t.getKey().equals(MetricAdapter.VISIBILITY_TAG)).findFirst();
+        return visTag.isPresent() ? new ColumnVisibility(visTag.get().getValue()) : MetricAdapter.EMPTY_VISIBILITY;
+    }
+
+    private static Value extractValue(Metric metric) {
+        byte[] b = new byte[Double.BYTES];
+        ByteBuffer.wrap(b).putDouble(metric.getValue().getMeasure());
+        return new Value(b);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(MetricAdapterBenchmark.class.getSimpleName()).build()).run();
+    }
+}
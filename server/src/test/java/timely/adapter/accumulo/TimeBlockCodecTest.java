@@ -0,0 +1,95 @@
+package timely.adapter.accumulo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimeBlockCodecTest {
+
+    private static void assertRoundTrip(long[] timestamps, double[] values) {
+        byte[] block = TimeBlockCodec.encode(timestamps, values, timestamps.length);
+        Assert.assertTrue(TimeBlockCodec.isEncoded(block));
+        Assert.assertEquals(timestamps.length, TimeBlockCodec.count(block));
+        List<Long> decodedTimestamps = new ArrayList<>();
+        List<Double> decodedValues = new ArrayList<>();
+        TimeBlockCodec.decode(block, (ts, value) -> {
+            decodedTimestamps.add(ts);
+            decodedValues.add(value);
+        });
+        Assert.assertEquals(timestamps.length, decodedTimestamps.size());
+        for (int i = 0; i < timestamps.length; i++) {
+            Assert.assertEquals(timestamps[i], (long) decodedTimestamps.get(i));
+            Assert.assertEquals(Double.doubleToRawLongBits(values[i]), Double.doubleToRawLongBits(decodedValues.get(i)));
+        }
+    }
+
+    @Test
+    public void testSinglePoint() {
+        assertRoundTrip(new long[] { 1000L }, new double[] { 2.5D });
+        byte[] block = TimeBlockCodec.encode(new long[] { 0L }, new double[] { 0D }, 1);
+        // never mistaken for a single value
+        Assert.assertNotEquals(Double.BYTES, block.length);
+    }
+
+    @Test
+    public void testRegularInterval() {
+        int count = 360;
+        long[] timestamps = new long[count];
+        double[] values = new double[count];
+        long base = 1477000000000L;
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = base + i * 10000L;
+            values[i] = i % 10 == 0 ? 12.0D : 12.5D;
+        }
+        assertRoundTrip(timestamps, values);
+        byte[] block = TimeBlockCodec.encode(timestamps, values, count);
+        // a bit per timestamp and a few per value
+        Assert.assertTrue("encoded size " + block.length, block.length < count * 2);
+    }
+
+    @Test
+    public void testIrregular() {
+        Random random = new Random(42);
+        int count = 1000;
+        long[] timestamps = new long[count];
+        double[] values = new double[count];
+        long ts = 1477000000000L;
+        for (int i = 0; i < count; i++) {
+            // jitter, gaps and the occasional large jump
+            ts += 1 + random.nextInt(i % 100 == 0 ? Integer.MAX_VALUE : 20000);
+            timestamps[i] = ts;
+            values[i] = random.nextGaussian() * 1000;
+        }
+        assertRoundTrip(timestamps, values);
+    }
+
+    @Test
+    public void testLargeDeltas() {
+        assertRoundTrip(new long[] { Long.MIN_VALUE / 2, 0L, 1L, Long.MAX_VALUE / 2, Long.MAX_VALUE / 2 + 1 },
+                new double[] { 1D, 2D, 3D, 4D, 5D });
+        assertRoundTrip(new long[] { 0L, 64L, 64L + 63L, 64L + 63L + 320L, 64L + 63L + 320L + 2500L }, new double[] {
+                1D, 1D, 1D, 1D, 1D });
+    }
+
+    @Test
+    public void testSpecialValues() {
+        assertRoundTrip(new long[] { 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L }, new double[] { 0D, -0D, Double.NaN,
+                Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.MIN_VALUE, -Double.MAX_VALUE, 1D });
+    }
+
+    @Test
+    public void testSingleValueIsNotEncoded() {
+        Assert.assertFalse(TimeBlockCodec.isEncoded(new byte[Double.BYTES]));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownVersion() {
+        byte[] block = TimeBlockCodec.encode(new long[] { 1L }, new double[] { 1D }, 1);
+        block[0] = 99;
+        TimeBlockCodec.decode(block, (ts, value) -> {
+        });
+    }
+}
@@ -0,0 +1,56 @@
+package timely.api.annotation;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import timely.api.request.TcpRequest;
+
+/**
+ * Compares finding the request for a TCP operation by scanning the annotated
+ * classes and calling {@link Class#newInstance()}, as done for every message
+ * before the dispatch tables, with {@link AnnotationResolver}. Run from the
+ * server directory with:
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test -Dexec.args="-cp %classpath org.openjdk.jmh.Main timely.api.annotation.AnnotationResolverBenchmark"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AnnotationResolverBenchmark {
+
+    @Param({ "put", "version" })
+    public String operation;
+
+    @Benchmark
+    public Object scan() throws Exception {
+        for (Class<?> c : AnnotationResolver.getTcpClasses()) {
+            if (c.getAnnotation(Tcp.class).operation().equals(operation)) {
+                Object o = c.newInstance();
+                if (o instanceof TcpRequest) {
+                    return o;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public Object dispatchTable() throws Exception {
+        return AnnotationResolver.getClassForTcpOperation(operation);
+    }
+}
@@ -0,0 +1,49 @@
+package timely.api.annotation;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import timely.api.request.MetricRequest;
+import timely.api.request.VersionRequest;
+import timely.api.request.auth.BasicAuthLoginRequest;
+import timely.api.request.auth.X509LoginRequest;
+import timely.api.request.subscription.CreateSubscription;
+import timely.api.request.timeseries.QueryRequest;
+
+public class AnnotationResolverTest {
+
+    @Test
+    public void testTcpOperation() throws Exception {
+        Assert.assertEquals(MetricRequest.class, AnnotationResolver.getClassForTcpOperation("put").getClass());
+        Assert.assertEquals(VersionRequest.class, AnnotationResolver.getClassForTcpOperation("version").getClass());
+        Assert.assertNull(AnnotationResolver.getClassForTcpOperation("query"));
+    }
+
+    @Test
+    public void testNewInstancePerCall() throws Exception {
+        Assert.assertNotSame(AnnotationResolver.getClassForTcpOperation("put"),
+                AnnotationResolver.getClassForTcpOperation("put"));
+    }
+
+    @Test
+    public void testUdpOperation() throws Exception {
+        Assert.assertEquals(MetricRequest.class, AnnotationResolver.getClassForUdpOperation("put").getClass());
+        Assert.assertNull(AnnotationResolver.getClassForUdpOperation("version"));
+    }
+
+    @Test
+    public void testHttpPath() throws Exception {
+        Assert.assertEquals(QueryRequest.class, AnnotationResolver.getClassForHttpGet("/api/query").getClass());
+        Assert.assertEquals(QueryRequest.class, AnnotationResolver.getClassForHttpPost("/api/query").getClass());
+        Assert.assertEquals(X509LoginRequest.class, AnnotationResolver.getClassForHttpGet("/login").getClass());
+        Assert.assertEquals(BasicAuthLoginRequest.class, AnnotationResolver.getClassForHttpPost("/login").getClass());
+        Assert.assertNull(AnnotationResolver.getClassForHttpGet("/api/unknown"));
+    }
+
+    @Test
+    public void testWebSocketOperation() throws Exception {
+        Assert.assertEquals(CreateSubscription.class, AnnotationResolver.getClassForWebSocketOperation("create")
+                .getClass());
+        Assert.assertNull(AnnotationResolver.getClassForWebSocketOperation("unknown"));
+    }
+}
@@ -89,6 +89,33 @@ public class MetricAdapterTest {
         Assert.assertArrayEquals(value, up.getValue());
     }
 
+    @Test
+    public void testToMutationColumnQualifiers() throws Exception {
+        List<Tag> tags = new ArrayList<>();
+        tags.add(new Tag("tag4", "value4"));
+        tags.add(new Tag("tag2", "value2"));
+        tags.add(new Tag(MetricAdapter.VISIBILITY_TAG, "a&b"));
+        tags.add(new Tag("tag1", "value1"));
+        tags.add(new Tag("tag2", "value2"));
+        tags.add(new Tag("tag3", "value3"));
+        Metric m = Metric.newBuilder().name("sys.cpu.user").value(1000L, 2.0D).tags(tags).build();
+
+        Mutation mut = MetricAdapter.toMutation(m);
+
+        String[][] expected = { { "tag1=value1", "tag2=value2,tag2=value2,tag3=value3,tag4=value4" },
+                { "tag2=value2", "tag1=value1,tag3=value3,tag4=value4" },
+                { "tag2=value2", "tag1=value1,tag3=value3,tag4=value4" },
+                { "tag3=value3", "tag1=value1,tag2=value2,tag2=value2,tag4=value4" },
+                { "tag4=value4", "tag1=value1,tag2=value2,tag2=value2,tag3=value3" } };
+        Assert.assertEquals(expected.length, mut.getUpdates().size());
+        for (int i = 0; i < expected.length; i++) {
+            ColumnUpdate up = mut.getUpdates().get(i);
+            Assert.assertEquals(expected[i][0], new String(up.getColumnFamily()));
+            Assert.assertEquals(expected[i][1], new String(up.getColumnQualifier()));
+            Assert.assertEquals("a&b", new String(up.getColumnVisibility()));
+        }
+    }
+
     @Test
     public void testToMetricResponse() throws Exception {
         String subscriptionId = "12345";
@@ -101,4 +128,13 @@ public class MetricAdapterTest {
         String expected = "{\"metric\":\"sys.cpu.user\",\"timestamp\":1000,\"value\":2.0,\"tags\":[{\"tag1\":\"value1\"},{\"viz\":\"(a&b)|(c&d)\"}],\"subscriptionId\":\"12345\"}";
         Assert.assertEquals(expected, json);
     }
+
+    @Test
+    public void testDecodeValue() throws Exception {
+        for (double d : new double[] { 0D, 2.0D, -1.5D, Double.MAX_VALUE, Double.MIN_VALUE, Double.NaN }) {
+            byte[] value = new byte[Double.BYTES];
+            ByteBuffer.wrap(value).putDouble(d);
+            Assert.assertEquals(d, MetricAdapter.decodeValue(value), 0.0D);
+        }
+    }
 }
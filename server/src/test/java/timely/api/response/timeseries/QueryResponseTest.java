@@ -29,4 +29,58 @@ public class QueryResponseTest {
         String expected = "[{\"metric\":\"sys.cpu.user\",\"tags\":{\"rack\":\"r1\",\"host\":\"localhost\"},\"aggregatedTags\":[],\"dps\":{\"1234567890\":4.5,\"1234567900\":3.5,\"1234567910\":2.5}}]";
         Assert.assertEquals(expected, result);
     }
+
+    @Test
+    public void testDpsOrder() throws Exception {
+        QueryResponse r = new QueryResponse();
+        r.setMetric("sys.cpu.user");
+        for (long ts = 100; ts < 200; ts += 10) {
+            r.addDps(ts, ts);
+        }
+        r.addDps(55, 1.);
+        r.addDps(150, 2.);
+        r.addDps(105, 3.);
+        String result = JsonUtil.getObjectMapper().writeValueAsString(r);
+        String expected = "{\"metric\":\"sys.cpu.user\",\"tags\":{},\"aggregatedTags\":[],\"dps\":{\"55\":1.0,\"100\":100.0,\"105\":3.0,\"110\":110.0,\"120\":120.0,\"130\":130.0,\"140\":140.0,\"150\":2.0,\"160\":160.0,\"170\":170.0,\"180\":180.0,\"190\":190.0}}";
+        Assert.assertEquals(expected, result);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        QueryResponse r = new QueryResponse();
+        r.setMetric("sys.cpu.user");
+        r.putTag("host", "localhost");
+        r.addAggregatedTag("rack");
+        r.addDps(1234567890, 4.5);
+        r.addDps(1234567900, Double.NaN);
+        String json = JsonUtil.getObjectMapper().writeValueAsString(r);
+        QueryResponse result = JsonUtil.getObjectMapper().readValue(json, QueryResponse.class);
+        Assert.assertEquals("sys.cpu.user", result.getMetric());
+        Assert.assertEquals(Collections.singletonMap("host", "localhost"), result.getTags());
+        Assert.assertEquals(Collections.singletonList("rack"), result.getAggregatedTags());
+        Assert.assertEquals(2, result.getDps().size());
+        Assert.assertEquals(4.5, result.getDps().get("1234567890"));
+        Assert.assertEquals(Double.NaN, result.getDps().get("1234567900"));
+        Assert.assertEquals(json, JsonUtil.getObjectMapper().writeValueAsString(result));
+    }
+
+    @Test
+    public void testQueryPlan() throws Exception {
+        QueryResponse r = new QueryResponse();
+        r.setMetric("sys.cpu.user");
+        r.addDps(1234567890, 4.5);
+        QueryPlan plan = new QueryPlan();
+        plan.setMetric("sys.cpu.user");
+        plan.setTable("timely.metrics");
+        plan.addRange(1234567000L, 1234568000L);
+        plan.addRange(1234568000L, null);
+        r.setQuery(plan);
+        String json = JsonUtil.getObjectMapper().writeValueAsString(r);
+        Assert.assertTrue(json, json.contains("\"query\":{\"metric\":\"sys.cpu.user\""));
+        QueryResponse result = JsonUtil.getObjectMapper().readValue(json, QueryResponse.class);
+        Assert.assertEquals("timely.metrics", result.getQuery().getTable());
+        Assert.assertEquals(2, result.getQuery().getRanges().size());
+        Assert.assertNull(result.getQuery().getRanges().get(1).getEnd());
+        Assert.assertEquals(json, JsonUtil.getObjectMapper().writeValueAsString(result));
+    }
 }
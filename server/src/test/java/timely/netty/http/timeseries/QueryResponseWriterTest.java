@@ -0,0 +1,134 @@
+package timely.netty.http.timeseries;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.LastHttpContent;
+
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import timely.api.response.timeseries.QueryResponse;
+import timely.util.JsonUtil;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+public class QueryResponseWriterTest {
+
+    private EmbeddedChannel channel;
+    private ChannelHandlerContext ctx;
+
+    @Before
+    public void setup() {
+        channel = new EmbeddedChannel(new ChannelInboundHandlerAdapter() {
+
+            @Override
+            public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+                QueryResponseWriterTest.this.ctx = ctx;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        channel.close();
+    }
+
+    private QueryResponse response(String host, int n) {
+        QueryResponse response = new QueryResponse();
+        response.setMetric("sys.cpu.user");
+        response.putTag("host", host);
+        for (int i = 0; i < n; i++) {
+            response.putDps(Integer.toString(1000 + i), (double) i);
+        }
+        return response;
+    }
+
+    /**
+     * @return the number of content chunks before the last one
+     */
+    private int readResponse(StringBuilder body) throws Exception {
+        Object msg = channel.readOutbound();
+        assertTrue(msg instanceof HttpResponse);
+        HttpResponse response = (HttpResponse) msg;
+        assertEquals(HttpResponseStatus.OK, response.getStatus());
+        assertTrue(HttpHeaders.isTransferEncodingChunked(response));
+        int chunks = 0;
+        while (true) {
+            HttpContent content = (HttpContent) channel.readOutbound();
+            body.append(content.content().toString(StandardCharsets.UTF_8));
+            content.release();
+            if (content instanceof LastHttpContent) {
+                return chunks;
+            }
+            chunks++;
+        }
+    }
+
+    @Test
+    public void testChunkPerSeries() throws Exception {
+        QueryResponseWriter writer = new QueryResponseWriter(ctx, 1);
+        writer.accept(response("h1", 10));
+        assertTrue(writer.isStarted());
+        writer.accept(response("h2", 5));
+        writer.finish();
+        StringBuilder body = new StringBuilder();
+        assertEquals(2, readResponse(body));
+        assertNull(channel.readOutbound());
+        List<QueryResponse> result = JsonUtil.getObjectMapper().readValue(body.toString(),
+                new TypeReference<List<QueryResponse>>() {
+                });
+        assertEquals(2, result.size());
+        assertEquals("h1", result.get(0).getTags().get("host"));
+        assertEquals(10, result.get(0).getDps().size());
+        assertEquals("h2", result.get(1).getTags().get("host"));
+        assertEquals(5, result.get(1).getDps().size());
+    }
+
+    @Test
+    public void testHeadersWithFirstChunk() throws Exception {
+        QueryResponseWriter writer = new QueryResponseWriter(ctx, 65536);
+        writer.accept(response("h1", 10));
+        writer.accept(response("h2", 10));
+        // nothing sent yet, an error could still be returned
+        assertFalse(writer.isStarted());
+        assertNull(channel.readOutbound());
+        writer.finish();
+        StringBuilder body = new StringBuilder();
+        assertEquals(0, readResponse(body));
+        assertEquals(
+                JsonUtil.getObjectMapper().writeValueAsString(
+                        new QueryResponse[] { response("h1", 10), response("h2", 10) }), body.toString());
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        QueryResponseWriter writer = new QueryResponseWriter(ctx, 65536);
+        writer.finish();
+        StringBuilder body = new StringBuilder();
+        assertEquals(0, readResponse(body));
+        assertEquals("[]", body.toString());
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void testReleased() throws Exception {
+        QueryResponseWriter writer = new QueryResponseWriter(ctx, 65536);
+        writer.accept(response("h1", 10));
+        writer.release();
+        writer.accept(response("h2", 10));
+    }
+}
@@ -0,0 +1,81 @@
+package timely.netty.tcp;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import timely.api.annotation.AnnotationResolver;
+import timely.api.request.MetricRequest;
+import timely.api.request.TcpRequest;
+
+/**
+ * Compares decoding a put frame through a String, split and
+ * {@link timely.model.parse.MetricParser} with {@link PutLineParser}. Run from
+ * the server directory with:
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test -Dexec.args="-cp %classpath timely.netty.tcp.PutLineParserBenchmark"
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PutLineParserBenchmark {
+
+    @Param({ "heap", "direct" })
+    public String buffer;
+
+    private final PutLineParser parser = new PutLineParser();
+    private ByteBuf frame;
+
+    @Setup
+    public void setup() {
+        byte[] line = "put sys.cpu.user 1472222222000 12.5 host=r01n01.example.com rack=r01 instance=0 viz=public"
+                .getBytes(UTF_8);
+        frame = "direct".equals(buffer) ? Unpooled.directBuffer(line.length) : Unpooled.buffer(line.length);
+        frame.writeBytes(line);
+    }
+
+    @Benchmark
+    public Object stringParser() throws Exception {
+        // the steps of TcpDecoder before the byte level parser
+        ByteBuf buf = frame.duplicate().readBytes(frame.readableBytes());
+        try {
+            String input = buf.toString(UTF_8);
+            String[] parts = input.split(" ");
+            TcpRequest tcp = AnnotationResolver.getClassForTcpOperation(parts[0]);
+            tcp.parse(input);
+            return tcp;
+        } finally {
+            buf.release();
+        }
+    }
+
+    @Benchmark
+    public Object byteParser() {
+        return new MetricRequest(parser.parse(frame));
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(PutLineParserBenchmark.class.getSimpleName()).build()).run();
+    }
+}
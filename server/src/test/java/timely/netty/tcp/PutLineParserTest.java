@@ -0,0 +1,122 @@
+package timely.netty.tcp;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import timely.model.Metric;
+import timely.model.parse.MetricParser;
+
+public class PutLineParserTest {
+
+    private final PutLineParser parser = new PutLineParser();
+
+    private Metric parse(String line) {
+        return parser.parse(Unpooled.wrappedBuffer(line.getBytes(UTF_8)));
+    }
+
+    private void assertParsesLikeMetricParser(String line) {
+        assertEquals(new MetricParser().parse(line), parse(line));
+    }
+
+    @Test
+    public void testIsPut() throws Exception {
+        assertTrue(PutLineParser.isPut(Unpooled.wrappedBuffer("put a 1 1".getBytes(UTF_8))));
+        assertFalse(PutLineParser.isPut(Unpooled.wrappedBuffer("version".getBytes(UTF_8))));
+        assertFalse(PutLineParser.isPut(Unpooled.wrappedBuffer("pu".getBytes(UTF_8))));
+        assertFalse(PutLineParser.isPut(Unpooled.wrappedBuffer("putx a 1 1".getBytes(UTF_8))));
+    }
+
+    @Test
+    public void testPut() throws Exception {
+        assertParsesLikeMetricParser("put sys.cpu.user 1472222222000 1.0 tag1=value1 tag2=value2");
+        assertParsesLikeMetricParser("put sys.cpu.user 1472222222000 -42 viz=a&b tag1=value1");
+        assertParsesLikeMetricParser("put sys.cpu.user 1472222222000 2.5e-3");
+        assertParsesLikeMetricParser("put  sys.cpu.user   1472222222000  3.25   tag1=value1  tag2=  ");
+        assertParsesLikeMetricParser("put sys.cpu.user 1472222222000 3.25 tag1=välue1 täg2=value2");
+        assertParsesLikeMetricParser("put sys.cpu.user 1472222222000 3.25 tag1=value1\r");
+    }
+
+    @Test
+    public void testDirectBuffer() throws Exception {
+        String line = "put sys.cpu.user 1472222222000 1.0 tag1=value1 tag2=value2";
+        ByteBuf buf = Unpooled.directBuffer();
+        try {
+            buf.writeBytes("xx".getBytes(UTF_8));
+            buf.writeBytes(line.getBytes(UTF_8));
+            buf.skipBytes(2);
+            assertEquals(new MetricParser().parse(line), parser.parse(buf));
+            assertEquals(2, buf.readerIndex());
+        } finally {
+            buf.release();
+        }
+    }
+
+    private double parseDouble(String s) {
+        byte[] b = s.getBytes(UTF_8);
+        return PutLineParser.parseDouble(b, 0, b.length);
+    }
+
+    private long parseLong(String s) {
+        byte[] b = s.getBytes(UTF_8);
+        return PutLineParser.parseLong(b, 0, b.length);
+    }
+
+    @Test
+    public void testParseDouble() throws Exception {
+        String[] values = { "0", "-0", "0.0", "-0.0", "1", "+1", "1.", ".5", "-.5", "3.14159", "1e10", "1E-10",
+                "123456789012345678", "1234567890123456789", "0.1", "0.3", "2.2250738585072014E-308",
+                "1.7976931348623157E308", "4.9E-324", "1e400", "1e-400", "NaN", "-Infinity", "9007199254740993",
+                "1.0000000000000000000001" };
+        for (String v : values) {
+            assertEquals(v, Double.doubleToLongBits(Double.parseDouble(v)), Double.doubleToLongBits(parseDouble(v)));
+        }
+        Random r = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            String v = Double.toString((r.nextDouble() - 0.5) * Math.pow(10, r.nextInt(40) - 20));
+            assertEquals(v, Double.parseDouble(v), parseDouble(v), 0.0);
+            v = String.format("%.3f", r.nextDouble() * 1000);
+            assertEquals(v, Double.parseDouble(v), parseDouble(v), 0.0);
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testInvalidDouble() throws Exception {
+        parseDouble("1.0x");
+    }
+
+    @Test
+    public void testParseLong() throws Exception {
+        for (String v : new String[] { "0", "1", "-1", "+7", "1472222222000", Long.toString(Long.MAX_VALUE),
+                Long.toString(Long.MIN_VALUE) }) {
+            assertEquals(Long.parseLong(v), parseLong(v));
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testLongOverflow() throws Exception {
+        parseLong("9223372036854775808");
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testInvalidTimestamp() throws Exception {
+        parse("put sys.cpu.user 14722x22222000 1.0 tag1=value1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidTag() throws Exception {
+        parse("put sys.cpu.user 1472222222000 1.0 tag1=value1=value2");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMissingValue() throws Exception {
+        parse("put sys.cpu.user 1472222222000");
+    }
+}
@@ -0,0 +1,84 @@
+package timely.netty.tcp;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import timely.Configuration;
+import timely.api.request.MetricRequest;
+import timely.model.Metric;
+import timely.store.DataStore;
+import timely.store.IngestPipeline;
+
+public class TcpPutHandlerTest {
+
+    private final List<Collection<Metric>> batches = new ArrayList<>();
+    private IngestPipeline ingest;
+
+    @Before
+    public void setup() {
+        batches.clear();
+        DataStore store = (DataStore) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { DataStore.class }, (proxy, method, args) -> {
+                    if (method.getName().equals("store") && args[0] instanceof Collection) {
+                        @SuppressWarnings("unchecked")
+                        Collection<Metric> metrics = (Collection<Metric>) args[0];
+                        batches.add(new ArrayList<>(metrics));
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+        // store on the calling thread
+        ingest = new IngestPipeline(new Configuration().getIngest().setEnabled(false), store);
+    }
+
+    private static MetricRequest put(long ts) {
+        return new MetricRequest(new Metric("sys.cpu.user", ts, 1.0D));
+    }
+
+    @Test
+    public void testStoreOnReadComplete() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new TcpPutHandler(ingest));
+        channel.pipeline().fireChannelRead(put(1000L));
+        channel.pipeline().fireChannelRead(put(2000L));
+        channel.pipeline().fireChannelRead(put(3000L));
+        Assert.assertTrue(batches.isEmpty());
+        channel.pipeline().fireChannelReadComplete();
+        Assert.assertEquals(1, batches.size());
+        Assert.assertEquals(3, batches.get(0).size());
+
+        channel.pipeline().fireChannelRead(put(4000L));
+        channel.pipeline().fireChannelReadComplete();
+        channel.pipeline().fireChannelReadComplete();
+        Assert.assertEquals(2, batches.size());
+        Assert.assertEquals(4000L, (long) batches.get(1).iterator().next().getValue().getTimestamp());
+    }
+
+    @Test
+    public void testMaxBatchSize() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new TcpPutHandler(ingest));
+        for (int i = 0; i < TcpPutHandler.MAX_BATCH_SIZE + 1; i++) {
+            channel.pipeline().fireChannelRead(put(i));
+        }
+        Assert.assertEquals(1, batches.size());
+        Assert.assertEquals(TcpPutHandler.MAX_BATCH_SIZE, batches.get(0).size());
+        channel.pipeline().fireChannelReadComplete();
+        Assert.assertEquals(2, batches.size());
+        Assert.assertEquals(1, batches.get(1).size());
+    }
+
+    @Test
+    public void testStoreOnClose() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel(new TcpPutHandler(ingest));
+        channel.pipeline().fireChannelRead(put(1000L));
+        channel.close();
+        Assert.assertEquals(1, batches.size());
+    }
+}
@@ -0,0 +1,111 @@
+package timely.sample;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import timely.model.Tag;
+import timely.sample.aggregators.Avg;
+
+/**
+ * Compares Java serialization of DownsampleIterator results against
+ * {@link DownsampleCodec}. Run from the server directory with:
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test -Dexec.args="-cp %classpath timely.sample.DownsampleCodecBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DownsampleCodecBenchmark {
+
+    @Param({ "100", "1000" })
+    public int series;
+
+    @Param({ "1.0", "0.1" })
+    public double fill;
+
+    private Map<Set<Tag>, Downsample> samples;
+    private byte[] serialized;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        // one day at one minute buckets
+        long period = 60000;
+        long end = 86400000;
+        Random r = new Random(42);
+        samples = new HashMap<>();
+        for (int i = 0; i < series; i++) {
+            Set<Tag> tags = new HashSet<>();
+            tags.add(new Tag("host", "host" + i));
+            tags.add(new Tag("instance", Integer.toString(i % 8)));
+            Downsample ds = new Downsample(0, end, period, new Avg());
+            for (long ts = 0; ts < end; ts += period) {
+                if (r.nextDouble() < fill) {
+                    ds.add(ts, r.nextDouble());
+                }
+            }
+            samples.put(tags, ds);
+        }
+        serialized = javaSerialize();
+        encoded = codecEncode();
+    }
+
+    @Benchmark
+    public byte[] javaSerialize() throws IOException {
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(samples);
+            out.flush();
+            return bos.toByteArray();
+        }
+    }
+
+    @Benchmark
+    public byte[] codecEncode() {
+        return DownsampleCodec.encode(samples, true);
+    }
+
+    @Benchmark
+    public Object javaDeserialize() throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            return in.readObject();
+        }
+    }
+
+    @Benchmark
+    public Map<Set<Tag>, Downsample> codecDecode() throws IOException {
+        return DownsampleCodec.decode(encoded);
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder().include(DownsampleCodecBenchmark.class.getSimpleName()).build()).run();
+    }
+}
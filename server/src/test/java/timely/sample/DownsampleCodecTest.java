@@ -0,0 +1,71 @@
+package timely.sample;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import timely.model.Tag;
+import timely.sample.aggregators.Avg;
+import timely.sample.aggregators.Max;
+
+public class DownsampleCodecTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Map<Set<Tag>, Downsample> samples = new HashMap<>();
+        Set<Tag> tags1 = new HashSet<>();
+        tags1.add(new Tag("host", "host1"));
+        tags1.add(new Tag("instance", "0"));
+        Downsample ds1 = new Downsample(0, 1000, 100, new Avg());
+        for (int i = 0; i < 1000; i += 50) {
+            ds1.add(i, i * .1);
+        }
+        samples.put(tags1, ds1);
+        Set<Tag> tags2 = Collections.singleton(new Tag("host", "host2"));
+        Downsample ds2 = new Downsample(0, 1000, 100, new Max());
+        ds2.add(300, 3.);
+        ds2.add(350, 5.);
+        samples.put(tags2, ds2);
+
+        for (boolean skipEmpty : new boolean[] { true, false }) {
+            byte[] encoded = DownsampleCodec.encode(samples, skipEmpty);
+            assertTrue(DownsampleCodec.isEncoded(encoded));
+            Map<Set<Tag>, Downsample> decoded = DownsampleCodec.decode(encoded);
+            assertEquals(2, decoded.size());
+            DownsampleTest.assertSameSamples(ds1, decoded.get(tags1));
+            DownsampleTest.assertSameSamples(ds2, decoded.get(tags2));
+        }
+    }
+
+    @Test
+    public void testSkipEmptyBucketsIsSmaller() throws Exception {
+        Downsample ds = new Downsample(0, 100000, 1, new Avg());
+        ds.add(5, 1.);
+        ds.add(99999, 2.);
+        Map<Set<Tag>, Downsample> samples = Collections.singletonMap(Collections.singleton(new Tag("host", "h")), ds);
+        byte[] sparse = DownsampleCodec.encode(samples, true);
+        byte[] dense = DownsampleCodec.encode(samples, false);
+        assertTrue(sparse.length < 100);
+        assertTrue(dense.length > 100000);
+        Downsample decoded = DownsampleCodec.decode(sparse).values().iterator().next();
+        Iterator<Sample> iter = decoded.iterator();
+        assertTrue(iter.hasNext());
+        Sample s = iter.next();
+        assertEquals(5, s.timestamp);
+        assertEquals(1., s.value, 0.0);
+        assertTrue(iter.hasNext());
+        s = iter.next();
+        assertEquals(99999, s.timestamp);
+        assertEquals(2., s.value, 0.0);
+        assertFalse(iter.hasNext());
+    }
+}
@@ -2,11 +2,19 @@ package timely.sample;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -151,6 +159,54 @@ public class DownsampleTest {
         assertEquals(11, count);
     }
 
+    @Test
+    public void testMergeIntoEmptyBuckets() throws Exception {
+        Downsample ds1 = new Downsample(0, 1000, 100, new Max());
+        ds1.add(0, -2.);
+        Downsample ds2 = new Downsample(0, 1000, 100, new Max());
+        ds2.add(0, -3.);
+        ds2.add(500, -5.);
+        ds1.merge(ds2);
+        Iterator<Sample> iter = ds1.iterator();
+        assertTrue(iter.hasNext());
+        Sample s = iter.next();
+        assertEquals(0, s.timestamp);
+        assertEquals(-2., s.value, 0.0);
+        assertTrue(iter.hasNext());
+        s = iter.next();
+        assertEquals(500, s.timestamp);
+        assertEquals(-5., s.value, 0.0);
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void testMergeWithOffset() throws Exception {
+        Downsample ds1 = new Downsample(200, 600, 100, new Sum());
+        ds1.add(300, 1.);
+        // starts two buckets earlier and ends after ds1
+        Downsample ds2 = new Downsample(0, 1000, 100, new Sum());
+        ds2.add(0, 10.);
+        ds2.add(300, 2.);
+        ds2.add(600, 3.);
+        ds2.add(900, 4.);
+        ds1.merge(ds2);
+        Iterator<Sample> iter = ds1.iterator();
+        assertTrue(iter.hasNext());
+        Sample s = iter.next();
+        assertEquals(300, s.timestamp);
+        assertEquals(3., s.value, 0.0);
+        assertTrue(iter.hasNext());
+        s = iter.next();
+        assertEquals(600, s.timestamp);
+        assertEquals(3., s.value, 0.0);
+        assertFalse(iter.hasNext());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMergeUnaligned() throws Exception {
+        new Downsample(0, 1000, 100, new Sum()).merge(new Downsample(50, 1000, 100, new Sum()));
+    }
+
     @Test
     public void testCounterToRate() throws Exception {
         RateOption counter = new RateOption();
@@ -377,4 +433,90 @@ public class DownsampleTest {
         assertFalse(i.hasNext());
     }
 
+    @Test
+    public void testSparseMatchesDense() throws Exception {
+        Random r = new Random(7);
+        for (double fill : new double[] { .01, .3, .9 }) {
+            List<Downsample> dense = new ArrayList<>();
+            List<Downsample> sparse = new ArrayList<>();
+            for (int n = 0; n < 3; n++) {
+                Downsample d = new Downsample(0, 10000, 10, new Avg(), false);
+                Downsample s = new Downsample(0, 10000, 10, new Avg(), true);
+                for (long ts = 0; ts <= 10000; ts += 5) {
+                    if (r.nextDouble() < fill) {
+                        double v = r.nextDouble();
+                        d.add(ts, v);
+                        s.add(ts, v);
+                    }
+                }
+                // out of order values
+                d.add(5000, 1.);
+                s.add(5000, 1.);
+                d.add(15, 2.);
+                s.add(15, 2.);
+                assertSameSamples(d, s);
+                dense.add(d);
+                sparse.add(s);
+            }
+            RateOption counter = new RateOption();
+            counter.setCounter(true);
+            assertSameSamples(Downsample.combine(dense, null), Downsample.combine(sparse, null));
+            assertSameSamples(Downsample.combine(dense, counter), Downsample.combine(sparse, counter));
+        }
+    }
+
+    @Test
+    public void testSparsePromotedToDense() throws Exception {
+        Downsample ds = new Downsample(0, 1000, 1, new Sum(), true);
+        assertTrue(ds.isSparse());
+        for (int i = 0; i < 100; i++) {
+            ds.add(i * 10, 1.);
+        }
+        assertTrue(ds.isSparse());
+        for (int i = 0; i < 1000; i++) {
+            ds.add(i, 1.);
+        }
+        assertFalse(ds.isSparse());
+        int count = 0;
+        for (Sample s : ds) {
+            assertEquals(count, s.timestamp);
+            assertEquals(count % 10 == 0 ? 2. : 1., s.value, 0.0);
+            count++;
+        }
+        assertEquals(1000, count);
+    }
+
+    @Test
+    public void testJavaSerialization() throws Exception {
+        Downsample ds = new Downsample(0, 1000, 100, new Max(), true);
+        ds.add(100, -1.);
+        ds.add(700, 3.);
+        byte[] serialized;
+        try (ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(ds);
+            out.flush();
+            serialized = bos.toByteArray();
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+            assertSameSamples(ds, (Downsample) in.readObject());
+        }
+    }
+
+    /**
+     * Assert that both hold the same samples
+     */
+    static void assertSameSamples(Downsample expected, Downsample actual) {
+        assertNotNull(actual);
+        Iterator<Sample> e = expected.iterator();
+        Iterator<Sample> a = actual.iterator();
+        while (e.hasNext()) {
+            assertTrue(a.hasNext());
+            Sample es = e.next();
+            Sample as = a.next();
+            assertEquals(es.timestamp, as.timestamp);
+            assertEquals(es.value, as.value, 0.0);
+        }
+        assertFalse(a.hasNext());
+    }
 }
@@ -1,10 +1,15 @@
 package timely.sample.iterators;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -13,6 +18,8 @@ import java.util.SortedMap;
 import java.util.TreeMap;
 
 import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ArrayByteSequence;
+import org.apache.accumulo.core.data.ByteSequence;
 import org.apache.accumulo.core.data.ColumnUpdate;
 import org.apache.accumulo.core.data.Key;
 import org.apache.accumulo.core.data.Mutation;
@@ -20,17 +27,27 @@ import org.apache.accumulo.core.data.Range;
 import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
 import org.apache.accumulo.core.iterators.SortedMapIterator;
+import org.apache.accumulo.core.iterators.system.ColumnFamilySkippingIterator;
 import org.junit.Before;
 import org.junit.Test;
 
 import timely.Configuration;
 import timely.adapter.accumulo.MetricAdapter;
+import timely.adapter.accumulo.RollupCodec;
+import timely.adapter.accumulo.TimeBlockCodec;
 import timely.model.Metric;
 import timely.model.Tag;
 import timely.auth.VisibilityCache;
+import timely.sample.Aggregator;
 import timely.sample.Downsample;
 import timely.sample.Sample;
 import timely.sample.aggregators.Avg;
+import timely.sample.aggregators.Count;
+import timely.sample.aggregators.Dev;
+import timely.sample.aggregators.Max;
+import timely.sample.aggregators.Min;
+import timely.sample.aggregators.Sum;
+import timely.store.RollupCombiner;
 
 public class DownsampleIteratorTest {
 
@@ -149,10 +166,277 @@ public class DownsampleIteratorTest {
         }
     }
 
+    @Test
+    public void testMultipleColumnsForOneSeries() throws Exception {
+        // each metric is written once per tag, all columns are the same series
+        SortedMap<Key, Value> testData = new TreeMap<>();
+        List<Tag> tags = Arrays.asList(new Tag("host", "host1"), new Tag("instance", "0"), new Tag("rack", "r1"));
+        for (long i = 0; i < 1000; i += 100) {
+            put(testData, new Metric("sys.loadAvg", i, i * .001, new ArrayList<>(tags)));
+        }
+        assertEquals(30, testData.size());
+        DownsampleIterator iter = new DownsampleIterator();
+        Map<Set<Tag>, Downsample> samples = runQuery(iter, testData, 100);
+        assertEquals(1, samples.size());
+        Downsample dsample = samples.get(new HashSet<>(tags));
+        assertNotNull(dsample);
+        long ts = 0;
+        for (Sample sample : dsample) {
+            assertEquals(ts, sample.timestamp);
+            assertEquals(ts * .001, sample.value, 0.0001);
+            ts += 100;
+        }
+        assertEquals(1000, ts);
+    }
+
+    @Test
+    public void testBatchSize() throws Exception {
+        DownsampleIterator iter = new DownsampleIterator();
+        IteratorSetting is = new IteratorSetting(100, DownsampleIterator.class);
+        DownsampleIterator.setDownsampleOptions(is, 0, 1000, 100, Avg.class.getName());
+        DownsampleIterator.setBatchSize(is, 1);
+        iter.init(new SortedMapIterator(testData2), is.getOptions(), null);
+        iter.seek(new Range(), Collections.emptyList(), true);
+        Map<Set<Tag>, Downsample> merged = new HashMap<>();
+        int entries = 0;
+        Key prev = null;
+        while (iter.hasTop()) {
+            Key key = iter.getTopKey();
+            if (prev != null) {
+                assertTrue(prev.compareTo(key) < 0);
+            }
+            prev = key;
+            Map<Set<Tag>, Downsample> samples = DownsampleIterator.decodeValue(iter.getTopValue());
+            assertEquals(1, samples.size());
+            samples.forEach((tags, ds) -> merged.merge(tags, ds, (a, b) -> {
+                a.merge(b);
+                return a;
+            }));
+            entries++;
+            iter.next();
+        }
+        assertFalse(iter.hasTop());
+        assertEquals(testData2.lastKey(), prev);
+        // the two series are interleaved so each key starts a new entry
+        assertEquals(20, entries);
+        assertEquals(2, merged.size());
+        for (Tag tag : new Tag[] { new Tag("host", "host1"), new Tag("host", "host2") }) {
+            Downsample dsample = merged.get(Collections.singleton(tag));
+            assertNotNull(dsample);
+            double value = tag.getValue().equals("host2") ? .5 : .2;
+            int count = 0;
+            for (Sample sample : dsample) {
+                assertEquals(count * 100, sample.timestamp);
+                assertEquals(value, sample.value, 0.0001);
+                count++;
+            }
+            assertEquals(10, count);
+        }
+    }
+
+    @Test
+    public void testDevBatches() throws Exception {
+        // each bucket of a series is split across two entries
+        IteratorSetting is = new IteratorSetting(100, DownsampleIterator.class);
+        DownsampleIterator.setDownsampleOptions(is, 0, 1000, 200, Dev.class.getName());
+        DownsampleIterator.setBatchSize(is, 1);
+        DownsampleIterator iter = new DownsampleIterator();
+        iter.init(new SortedMapIterator(testData2), is.getOptions(), null);
+        iter.seek(new Range(), Collections.emptyList(), true);
+        Map<Set<Tag>, Downsample> merged = new HashMap<>();
+        while (iter.hasTop()) {
+            DownsampleIterator.decodeValue(iter.getTopValue()).forEach((tags, ds) -> merged.merge(tags, ds, (a, b) -> {
+                a.merge(b);
+                return a;
+            }));
+            iter.next();
+        }
+        Map<Set<Tag>, Downsample> single = runQuery(new DownsampleIterator(), testData2, 200, Dev.class, false);
+        assertEquals(single.keySet(), merged.keySet());
+        for (Entry<Set<Tag>, Downsample> entry : single.entrySet()) {
+            List<Sample> expected = new ArrayList<>();
+            entry.getValue().forEach(expected::add);
+            List<Sample> actual = new ArrayList<>();
+            merged.get(entry.getKey()).forEach(actual::add);
+            assertEquals(5, actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).timestamp, actual.get(i).timestamp);
+                assertEquals(expected.get(i).value, actual.get(i).value, 0.0001);
+            }
+        }
+        // two points of the same value in each bucket
+        Sample first = merged.get(Collections.singleton(new Tag("host", "host1"))).iterator().next();
+        assertEquals(Math.sqrt(.2 * .2 * 2), first.value, 0.0001);
+    }
+
+    @Test
+    public void testTimeBlock() throws Exception {
+        SortedMap<Key, Value> testData = new TreeMap<>();
+        // a block of host1 points that starts before the query
+        long[] timestamps = new long[11];
+        double[] values = new double[11];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = (i - 1) * 100;
+            values[i] = i == 0 ? 100 : .2;
+        }
+        testData.put(new Key(MetricAdapter.encodeRowKey("sys.loadAvg", -100L), "host=host1".getBytes(), new byte[0],
+                new byte[0], 900L), new Value(TimeBlockCodec.encode(timestamps, values, timestamps.length)));
+        List<Tag> tags2 = Collections.singletonList(new Tag("host", "host2"));
+        for (long i = 0; i < 1000; i += 100) {
+            put(testData, new Metric("sys.loadAvg", i + 50, .5, tags2));
+        }
+        DownsampleIterator iter = new DownsampleIterator();
+        Map<Set<Tag>, Downsample> samples = runQuery(iter, testData, 100);
+        assertEquals(2, samples.size());
+        for (Tag tag : new Tag[] { new Tag("host", "host1"), new Tag("host", "host2") }) {
+            Downsample dsample = samples.get(Collections.singleton(tag));
+            assertNotNull(dsample);
+            double value = tag.getValue().equals("host2") ? .5 : .2;
+            int count = 0;
+            for (Sample sample : dsample) {
+                assertEquals(count * 100, sample.timestamp);
+                assertEquals(value, sample.value, 0.0001);
+                count++;
+            }
+            assertEquals(10, count);
+        }
+    }
+
+    @Test
+    public void testPointsOutsideRange() throws Exception {
+        // the scan starts at the start of the time block period, before the
+        // query, and raw points outside of the range are skipped
+        SortedMap<Key, Value> testData = new TreeMap<>();
+        List<Tag> tags = Collections.singletonList(new Tag("host", "host1"));
+        put(testData, new Metric("sys.loadAvg", -50, 100, tags));
+        for (long i = 0; i < 1000; i += 100) {
+            put(testData, new Metric("sys.loadAvg", i, .2, tags));
+        }
+        put(testData, new Metric("sys.loadAvg", 1200, 100, tags));
+        Map<Set<Tag>, Downsample> samples = runQuery(new DownsampleIterator(), testData, 100);
+        assertEquals(1, samples.size());
+        assertValues(samples.get(new HashSet<>(tags)), .2);
+    }
+
+    @Test
+    public void testRollup() throws Exception {
+        SortedMap<Key, Value> points = new TreeMap<>();
+        SortedMap<Key, Value> rollups = new TreeMap<>();
+        RollupCombiner combiner = new RollupCombiner();
+        for (long i = 0; i < 1000; i += 10) {
+            for (String host : new String[] { "host1", "host2" }) {
+                Metric m = new Metric("sys.loadAvg", i, (i * 7 % 13) - 5, Collections.singletonList(new Tag("host",
+                        host)));
+                put(points, m);
+                Mutation mutation = MetricAdapter.toRollupMutation(m, Tag::join, 50);
+                for (ColumnUpdate cu : mutation.getUpdates()) {
+                    Key key = new Key(mutation.getRow(), cu.getColumnFamily(), cu.getColumnQualifier(),
+                            cu.getColumnVisibility(), cu.getTimestamp());
+                    Value value = new Value(cu.getValue());
+                    Value existing = rollups.get(key);
+                    if (null != existing) {
+                        value = combiner.reduce(key, Arrays.asList(existing, value).iterator());
+                    }
+                    rollups.put(key, value);
+                }
+            }
+        }
+        assertEquals(2 * 1000 / 50, rollups.size());
+        assertEquals(5, RollupCodec.getCount(rollups.get(rollups.firstKey()).get()));
+        for (Class<? extends Aggregator> aggClass : Arrays.asList(Avg.class, Sum.class, Min.class, Max.class,
+                Count.class)) {
+            Map<Set<Tag>, Downsample> expected = runQuery(new DownsampleIterator(), points, 100, aggClass, false);
+            Map<Set<Tag>, Downsample> samples = runQuery(new DownsampleIterator(), rollups, 100, aggClass, true);
+            assertEquals(2, samples.size());
+            for (Entry<Set<Tag>, Downsample> entry : expected.entrySet()) {
+                List<Sample> actual = new ArrayList<>();
+                for (Sample sample : samples.get(entry.getKey())) {
+                    // the iterator reuses its sample
+                    Sample copy = new Sample();
+                    copy.set(sample.timestamp, sample.value);
+                    actual.add(copy);
+                }
+                int i = 0;
+                for (Sample sample : entry.getValue()) {
+                    assertEquals(aggClass.getSimpleName(), sample.timestamp, actual.get(i).timestamp);
+                    assertEquals(aggClass.getSimpleName(), sample.value, actual.get(i).value, 0.0001);
+                    i++;
+                }
+                assertEquals(10, i);
+                assertEquals(10, actual.size());
+            }
+        }
+        assertFalse(DownsampleIterator.isRollupSupported(Dev.class));
+    }
+
+    @Test
+    public void testGroupBy() throws Exception {
+        SortedMap<Key, Value> data = new TreeMap<>();
+        String[][] series = { { "host1", "r1" }, { "host2", "r1" }, { "host3", "r2" } };
+        for (long i = 0; i < 1000; i += 100) {
+            for (int s = 0; s < series.length; s++) {
+                put(data,
+                        new Metric("sys.loadAvg", i + s, s + 1, Arrays.asList(new Tag("host", series[s][0]), new Tag(
+                                "rack", series[s][1]))));
+            }
+        }
+        Map<Set<Tag>, Downsample> samples = runGroupBy(data, Sum.class, Collections.singletonList("rack"));
+        assertEquals(2, samples.size());
+        assertValues(samples.get(Collections.singleton(new Tag("rack", "r1"))), 3.0);
+        assertValues(samples.get(Collections.singleton(new Tag("rack", "r2"))), 3.0);
+
+        samples = runGroupBy(data, Max.class, Collections.emptyList());
+        assertEquals(1, samples.size());
+        assertValues(samples.get(Collections.emptySet()), 3.0);
+        samples = runGroupBy(data, Min.class, Collections.emptyList());
+        assertValues(samples.get(Collections.emptySet()), 1.0);
+
+        // the group by keys are tag keys, not values
+        samples = runGroupBy(data, Avg.class, Arrays.asList("host", "dc"));
+        assertEquals(3, samples.size());
+        assertValues(samples.get(Collections.singleton(new Tag("host", "host2"))), 2.0);
+    }
+
+    private Map<Set<Tag>, Downsample> runGroupBy(SortedMap<Key, Value> data, Class<? extends Aggregator> aggClass,
+            List<String> groupBy) throws Exception {
+        IteratorSetting is = new IteratorSetting(100, DownsampleIterator.class);
+        DownsampleIterator.setDownsampleOptions(is, 0, 1000, 100, aggClass.getName());
+        DownsampleIterator.setGroupBy(is, groupBy);
+        DownsampleIterator iter = new DownsampleIterator();
+        iter.init(new ColumnFamilySkippingIterator(new SortedMapIterator(data)), is.getOptions(), null);
+        // one entry per point, as queries fetch the columns of one tag key
+        List<ByteSequence> columns = new ArrayList<>();
+        for (String host : new String[] { "host1", "host2", "host3" }) {
+            columns.add(new ArrayByteSequence("host=" + host));
+        }
+        iter.seek(new Range(), columns, true);
+        assertTrue(iter.hasTop());
+        return DownsampleIterator.decodeValue(iter.getTopValue());
+    }
+
+    private static void assertValues(Downsample ds, double expected) {
+        assertNotNull(ds);
+        int count = 0;
+        for (Sample sample : ds) {
+            assertEquals(count * 100, sample.timestamp);
+            assertEquals(expected, sample.value, 0.0001);
+            count++;
+        }
+        assertEquals(10, count);
+    }
+
     private Map<Set<Tag>, Downsample> runQuery(SortedKeyValueIterator<Key, Value> iter, SortedMap<Key, Value> testData,
             long period) throws Exception {
+        return runQuery(iter, testData, period, Avg.class, false);
+    }
+
+    private Map<Set<Tag>, Downsample> runQuery(SortedKeyValueIterator<Key, Value> iter, SortedMap<Key, Value> testData,
+            long period, Class<? extends Aggregator> aggClass, boolean rollup) throws Exception {
         IteratorSetting is = new IteratorSetting(100, DownsampleIterator.class);
-        DownsampleIterator.setDownsampleOptions(is, 0, 1000, period, Avg.class.getName());
+        DownsampleIterator.setDownsampleOptions(is, 0, 1000, period, aggClass.getName());
+        if (rollup) {
+            DownsampleIterator.setRollup(is);
+        }
         SortedKeyValueIterator<Key, Value> source = new SortedMapIterator(testData);
         iter.init(source, is.getOptions(), null);
         iter.seek(new Range(), Collections.emptyList(), true);
@@ -0,0 +1,102 @@
+package timely.store;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BatchWriterPoolTest {
+
+    private Connector connector;
+    private BatchWriterConfig bwConfig;
+
+    @Before
+    public void setup() throws Exception {
+        connector = new MockInstance(BatchWriterPoolTest.class.getName() + System.nanoTime()).getConnector("root",
+                new PasswordToken(""));
+        connector.tableOperations().create("metrics");
+        connector.tableOperations().create("meta");
+        bwConfig = new BatchWriterConfig();
+        bwConfig.setMaxMemory(4096);
+        bwConfig.setMaxLatency(1, TimeUnit.SECONDS);
+    }
+
+    private static Mutation mutation(String row) {
+        Mutation m = new Mutation(row);
+        m.put("cf", "cq", new Value(new byte[0]));
+        return m;
+    }
+
+    private int count(String table) throws Exception {
+        int count = 0;
+        for (@SuppressWarnings("unused")
+        Object e : connector.createScanner(table, Authorizations.EMPTY)) {
+            count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void testBorrowAndRelease() throws Exception {
+        BatchWriterPool pool = new BatchWriterPool(connector, "metrics", "meta", bwConfig, 2, false);
+        Assert.assertEquals(2, pool.size());
+        BatchWriterPool.Writers w1 = pool.borrow();
+        BatchWriterPool.Writers w2 = pool.borrow();
+        Assert.assertNotSame(w1, w2);
+        w1.getMetrics().addMutation(mutation("r1"));
+        w2.getMetrics().addMutation(mutation("r2"));
+        w2.getMeta().addMutation(mutation("m1"));
+        pool.release(w1);
+        Assert.assertSame(w1, pool.borrow());
+        pool.release(w1);
+        pool.release(w2);
+        pool.close();
+        Assert.assertEquals(2, count("metrics"));
+        Assert.assertEquals(1, count("meta"));
+    }
+
+    @Test
+    public void testReplace() throws Exception {
+        BatchWriterPool pool = new BatchWriterPool(connector, "metrics", "meta", bwConfig, 1, false);
+        BatchWriterPool.Writers w1 = pool.borrow();
+        w1.getMetrics().addMutation(mutation("r1"));
+        pool.replace(w1);
+        // the replaced writers are flushed on close
+        Assert.assertEquals(1, count("metrics"));
+        Assert.assertEquals(1, pool.size());
+        BatchWriterPool.Writers w2 = pool.borrow();
+        Assert.assertNotSame(w1, w2);
+        pool.release(w2);
+        pool.close();
+        Assert.assertEquals(0, pool.size());
+    }
+
+    @Test
+    public void testMultiTable() throws Exception {
+        BatchWriterPool pool = new BatchWriterPool(connector, "metrics", "meta", bwConfig, 2, true);
+        BatchWriterPool.Writers w = pool.borrow();
+        w.getMetrics().addMutation(mutation("r1"));
+        w.getMeta().addMutation(mutation("m1"));
+        w.getMeta().addMutation(mutation("m2"));
+        pool.release(w);
+        pool.replace(pool.borrow());
+        pool.close();
+        Assert.assertEquals(1, count("metrics"));
+        Assert.assertEquals(2, count("meta"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testBorrowAfterClose() throws Exception {
+        BatchWriterPool pool = new BatchWriterPool(connector, "metrics", "meta", bwConfig, 1, false);
+        pool.close();
+        pool.borrow();
+    }
+}
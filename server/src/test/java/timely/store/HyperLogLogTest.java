@@ -0,0 +1,41 @@
+package timely.store;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HyperLogLogTest {
+
+    @Test
+    public void testEstimate() {
+        HyperLogLog sketch = new HyperLogLog();
+        Assert.assertEquals(0, sketch.estimate());
+        for (int i = 0; i < 10; i++) {
+            sketch.add("host" + i);
+            // duplicates do not count
+            sketch.add("host" + i);
+        }
+        Assert.assertEquals(10, sketch.estimate());
+        for (int i = 10; i < 100000; i++) {
+            sketch.add("host" + i);
+        }
+        Assert.assertEquals(100000, sketch.estimate(), 10000);
+    }
+
+    @Test
+    public void testMerge() {
+        HyperLogLog sketch = new HyperLogLog();
+        for (int i = 0; i < 5000; i++) {
+            sketch.merge(HyperLogLog.encode("host" + i));
+        }
+        HyperLogLog other = new HyperLogLog();
+        for (int i = 2500; i < 7500; i++) {
+            other.add("host" + i);
+        }
+        sketch.merge(other.encode());
+        Assert.assertEquals(7500, sketch.estimate(), 750);
+        HyperLogLog copy = HyperLogLog.decode(sketch.encode());
+        Assert.assertEquals(sketch.estimate(), copy.estimate());
+        // one register per value
+        Assert.assertEquals(3, HyperLogLog.encode("host").length);
+    }
+}
@@ -0,0 +1,149 @@
+package timely.store;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import timely.Configuration;
+import timely.model.Metric;
+import timely.model.Tag;
+
+public class IngestPipelineTest {
+
+    private final Map<Long, String> stored = new ConcurrentHashMap<>();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private volatile boolean block = false;
+    private DataStore store;
+    private IngestPipeline pipeline;
+
+    @Before
+    public void setup() {
+        store = (DataStore) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] { DataStore.class }, (
+                proxy, method, args) -> {
+            if (method.getName().equals("store") && args[0] instanceof Collection) {
+                if (block) {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+                @SuppressWarnings("unchecked")
+                Collection<Metric> metrics = (Collection<Metric>) args[0];
+                metrics.forEach(m -> stored.put(m.getValue().getTimestamp(), Thread.currentThread().getName()));
+                return null;
+            }
+            if (method.getName().equals("store")) {
+                return null;
+            }
+            throw new UnsupportedOperationException(method.getName());
+        });
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if (null != pipeline) {
+            pipeline.shutdown();
+        }
+    }
+
+    private static List<Metric> metrics(int start, int count) {
+        List<Metric> metrics = new ArrayList<>();
+        for (int i = start; i < start + count; i++) {
+            metrics.add(new Metric("sys.cpu.user" + (i % 10), i, 1.0D));
+        }
+        return metrics;
+    }
+
+    @Test
+    public void testWriterThreads() throws Exception {
+        Configuration conf = new Configuration();
+        conf.getIngest().setWriterThreads(3).getIngest().setRingBufferSize(64);
+        pipeline = new IngestPipeline(conf, store);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(0, pipeline.store(metrics(i * 100, 100)));
+        }
+        pipeline.shutdown();
+        Assert.assertEquals(1000, stored.size());
+        Assert.assertEquals(0, pipeline.getDepth());
+        stored.values().forEach(t -> Assert.assertTrue(t, t.startsWith("ingest-writer-")));
+        // each series is stored by one writer
+        for (int i = 0; i < 10; i++) {
+            String thread = stored.get((long) i);
+            for (long ts = i; ts < 1000; ts += 10) {
+                Assert.assertEquals(thread, stored.get(ts));
+            }
+        }
+    }
+
+    @Test
+    public void testSeriesWriters() throws Exception {
+        Configuration conf = new Configuration();
+        conf.getIngest().setWriterThreads(3).getIngest().setRingBufferSize(64);
+        pipeline = new IngestPipeline(conf, store);
+        // one metric with ten series, the tags in either order
+        List<Metric> metrics = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Tag host = new Tag("host", "r01n" + (i % 10));
+            Tag rack = new Tag("rack", "r01");
+            List<Tag> tags = (i / 10) % 2 == 0 ? Arrays.asList(host, rack) : Arrays.asList(rack, host);
+            metrics.add(new Metric("sys.cpu.user", i, 1.0D, tags));
+        }
+        Assert.assertEquals(0, pipeline.store(metrics));
+        pipeline.shutdown();
+        Assert.assertEquals(1000, stored.size());
+        // each series is stored by one writer
+        for (int i = 0; i < 10; i++) {
+            String thread = stored.get((long) i);
+            for (long ts = i; ts < 1000; ts += 10) {
+                Assert.assertEquals(thread, stored.get(ts));
+            }
+        }
+        // and the series of the metric by more than one
+        Assert.assertTrue(new HashSet<>(stored.values()).size() > 1);
+    }
+
+    @Test
+    public void testDropWhenFull() throws Exception {
+        Configuration conf = new Configuration();
+        conf.getIngest().setWriterThreads(1).getIngest().setRingBufferSize(4).getIngest()
+                .setOverflowPolicy(Configuration.IngestOverflowPolicy.DROP);
+        block = true;
+        pipeline = new IngestPipeline(conf, store);
+        Assert.assertEquals(0, pipeline.store(metrics(0, 4)));
+        Assert.assertEquals(4, pipeline.getDepth());
+        Assert.assertEquals(2, pipeline.store(metrics(4, 2)));
+
+        List<Metric> internal = pipeline.getMetricsAndReset();
+        Assert.assertEquals(4.0D, value(internal, "timely.ingest.depth"), 0.0D);
+        Assert.assertEquals(4.0D, value(internal, "timely.ingest.depth.max"), 0.0D);
+        Assert.assertEquals(4.0D, value(internal, "timely.ingest.published"), 0.0D);
+        Assert.assertEquals(2.0D, value(internal, "timely.ingest.dropped"), 0.0D);
+
+        release.countDown();
+        pipeline.shutdown();
+        Assert.assertEquals(4, stored.size());
+        Assert.assertFalse(stored.containsKey(4L));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        pipeline = new IngestPipeline(new Configuration().getIngest().setEnabled(false), store);
+        Assert.assertEquals(0, pipeline.store(Collections.singletonList(new Metric("sys.cpu.user", 1L, 1.0D))));
+        Assert.assertEquals(Thread.currentThread().getName(), stored.get(1L));
+    }
+
+    private static double value(List<Metric> metrics, String name) {
+        return metrics.stream().filter(m -> m.getName().equals(name)).findFirst().get().getValue().getMeasure();
+    }
+}
@@ -0,0 +1,140 @@
+package timely.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+import io.netty.handler.codec.http.HttpResponseStatus;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import timely.Configuration;
+import timely.api.request.timeseries.QueryRequest;
+import timely.api.response.TimelyException;
+import timely.model.Metric;
+
+public class QueryExecutorTest {
+
+    private QueryExecutor executor;
+    private EventLoopGroup eventLoop;
+    private Channel channel;
+    private ChannelHandlerContext ctx;
+
+    @Before
+    public void setup() throws Exception {
+        Configuration conf = new Configuration();
+        conf.getQuery().setExecutorThreads(1).getQuery().setExecutorQueueSize(1).getQuery().setMaxConcurrentPerUser(2);
+        executor = new QueryExecutor(conf, null);
+        // the callbacks run on a real event loop thread
+        eventLoop = new LocalEventLoopGroup(1);
+        channel = new LocalChannel();
+        channel.pipeline().addLast(new ChannelInboundHandlerAdapter());
+        eventLoop.register(channel).sync();
+        ctx = channel.pipeline().firstContext();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+        channel.close().sync();
+        eventLoop.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+    }
+
+    @Test
+    public void testResultOnEventLoop() throws Exception {
+        AtomicReference<String> result = new AtomicReference<>();
+        AtomicReference<TimelyException> error = new AtomicReference<>();
+        AtomicBoolean inEventLoop = new AtomicBoolean();
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute(ctx, new QueryRequest(), () -> "done", r -> {
+            inEventLoop.set(ctx.executor().inEventLoop());
+            result.set(r);
+            done.countDown();
+        }, error::set);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals("done", result.get());
+        assertTrue(inEventLoop.get());
+        assertNull(error.get());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        List<TimelyException> errors = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(2);
+        executor.execute(ctx, new QueryRequest(), () -> {
+            throw new TimelyException(400, "bad", "bad");
+        }, r -> {
+        }, e -> {
+            errors.add(e);
+            done.countDown();
+        });
+        executor.execute(ctx, new QueryRequest(), () -> {
+            throw new IllegalStateException("broken");
+        }, r -> {
+        }, e -> {
+            errors.add(e);
+            done.countDown();
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(400, errors.get(0).getCode());
+        assertEquals(HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), errors.get(1).getCode());
+    }
+
+    @Test
+    public void testRejection() throws Exception {
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> results = new CopyOnWriteArrayList<>();
+        List<TimelyException> errors = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(2);
+        executor.execute(ctx, new QueryRequest(), () -> {
+            running.countDown();
+            release.await();
+            return "first";
+        }, r -> {
+            results.add(r);
+            done.countDown();
+        }, errors::add);
+        assertTrue(running.await(10, TimeUnit.SECONDS));
+        // queued
+        executor.execute(ctx, new QueryRequest(), () -> "second", r -> {
+            results.add(r);
+            done.countDown();
+        }, errors::add);
+        // over the per user limit, rejected on the calling thread
+        executor.execute(ctx, new QueryRequest(), () -> "third", results::add, errors::add);
+        assertEquals(1, errors.size());
+        assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE.code(), errors.get(0).getCode());
+        List<Metric> metrics = executor.getMetricsAndReset();
+        assertEquals(1, metrics.get(0).getValue().getMeasure(), 0.0);
+        assertEquals(1, metrics.get(2).getValue().getMeasure(), 0.0);
+        release.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals("first", results.get(0));
+        assertEquals("second", results.get(1));
+        // limits are released once the calls complete
+        CountDownLatch fourth = new CountDownLatch(1);
+        executor.execute(ctx, new QueryRequest(), () -> "fourth", r -> {
+            results.add(r);
+            fourth.countDown();
+        }, errors::add);
+        assertTrue(fourth.await(10, TimeUnit.SECONDS));
+        assertEquals(3, results.size());
+        assertEquals(1, errors.size());
+    }
+}
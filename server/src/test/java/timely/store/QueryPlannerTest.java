@@ -0,0 +1,64 @@
+package timely.store;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.hadoop.io.Text;
+import org.junit.Assert;
+import org.junit.Test;
+
+import timely.adapter.accumulo.MetricAdapter;
+import timely.api.response.timeseries.QueryPlan;
+
+public class QueryPlannerTest {
+
+    private static Text row(String metric, long ts) {
+        return new Text(MetricAdapter.encodeRowKey(metric, ts));
+    }
+
+    @Test
+    public void testSplit() throws Exception {
+        TreeSet<Text> splits = new TreeSet<>(Arrays.asList(row("sys.cpu.idle", 500), row("sys.cpu.user", 100),
+                row("sys.cpu.user", 200), row("sys.cpu.user", 300), new Text("sys.mem")));
+        List<Range> ranges = QueryPlanner.split(splits, row("sys.cpu.user", 150), row("sys.cpu.user", 300));
+        Assert.assertEquals(2, ranges.size());
+        Range first = ranges.get(0);
+        Range second = ranges.get(1);
+        Assert.assertTrue(first.contains(new Key(row("sys.cpu.user", 150))));
+        Assert.assertTrue(first.contains(new Key(row("sys.cpu.user", 200))));
+        Assert.assertFalse(first.contains(new Key(row("sys.cpu.user", 149))));
+        Assert.assertFalse(second.contains(new Key(row("sys.cpu.user", 200))));
+        Assert.assertTrue(second.contains(new Key(row("sys.cpu.user", 201))));
+        Assert.assertTrue(second.contains(new Key(row("sys.cpu.user", 300))));
+        Assert.assertFalse(second.contains(new Key(row("sys.cpu.user", 301))));
+
+        QueryPlan plan = new QueryPlan();
+        QueryPlanner.describe(plan, "sys.cpu.user", ranges);
+        Assert.assertEquals("[[150, 200], [200, 300]]", plan.getRanges().toString());
+
+        // no split points in the range
+        ranges = QueryPlanner.split(splits, row("sys.cpu.user", 301), row("sys.cpu.user", 400));
+        Assert.assertEquals(1, ranges.size());
+        Assert.assertTrue(ranges.get(0).contains(new Key(row("sys.cpu.user", 400))));
+    }
+
+    @Test
+    public void testGetRanges() throws Exception {
+        Connector connector = new MockInstance(QueryPlannerTest.class.getName() + System.nanoTime()).getConnector(
+                "root", new PasswordToken(""));
+        connector.tableOperations().create("metrics");
+        connector.tableOperations().addSplits("metrics",
+                new TreeSet<>(Arrays.asList(row("sys.cpu.user", 1000), row("sys.cpu.user", 2000))));
+        QueryPlanner planner = new QueryPlanner(connector);
+        Assert.assertEquals(3, planner.getRanges("metrics", "sys.cpu.user", 0, 3000).size());
+        Assert.assertEquals(1, planner.getRanges("metrics", "sys.cpu.idle", 0, 3000).size());
+        // a missing table is scanned as one range and fails in the scanner
+        Assert.assertEquals(1, planner.getRanges("missing", "sys.cpu.user", 0, 3000).size());
+    }
+}
@@ -0,0 +1,173 @@
+package timely.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import org.apache.accumulo.core.security.Authorizations;
+import org.junit.Test;
+
+import timely.Configuration;
+import timely.api.request.timeseries.QueryRequest.Filter;
+import timely.api.request.timeseries.QueryRequest.RateOption;
+import timely.api.request.timeseries.QueryRequest.SubQuery;
+import timely.model.Tag;
+import timely.sample.Downsample;
+import timely.sample.DownsampleFactory;
+import timely.sample.Sample;
+import timely.sample.aggregators.Avg;
+import timely.sample.aggregators.Max;
+import timely.test.TestConfiguration;
+
+public class QueryResultCacheTest {
+
+    private SubQuery subQuery(String... tags) {
+        SubQuery query = new SubQuery();
+        query.setMetric("sys.cpu.user");
+        query.setDownsample(Optional.of("1m-avg"));
+        Map<String, String> t = new LinkedHashMap<>();
+        for (int i = 0; i < tags.length; i += 2) {
+            t.put(tags[i], tags[i + 1]);
+        }
+        query.setTags(t);
+        return query;
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        QueryResultCache.Key key = new QueryResultCache.Key(subQuery("host", "h1", "rack", "r1"), 60000, Avg.class,
+                new Authorizations("A", "B"));
+        // tag and authorization order does not matter
+        QueryResultCache.Key same = new QueryResultCache.Key(subQuery("rack", "r1", "host", "h1"), 60000, Avg.class,
+                new Authorizations("B", "A"));
+        assertEquals(key, same);
+        assertEquals(key.hashCode(), same.hashCode());
+        assertNotEquals(key, new QueryResultCache.Key(subQuery("host", "h1", "rack", "r2"), 60000, Avg.class,
+                new Authorizations("A", "B")));
+        assertNotEquals(key, new QueryResultCache.Key(subQuery("host", "h1", "rack", "r1"), 1000, Avg.class,
+                new Authorizations("A", "B")));
+        assertNotEquals(key, new QueryResultCache.Key(subQuery("host", "h1", "rack", "r1"), 60000, Max.class,
+                new Authorizations("A", "B")));
+        assertNotEquals(key, new QueryResultCache.Key(subQuery("host", "h1", "rack", "r1"), 60000, Avg.class,
+                new Authorizations("A")));
+        // buckets that start at another time of the period
+        assertEquals(key, new QueryResultCache.Key(subQuery("host", "h1", "rack", "r1"), 120000, 60000, Avg.class,
+                new Authorizations("A", "B")));
+        assertNotEquals(key, new QueryResultCache.Key(subQuery("host", "h1", "rack", "r1"), 120500, 60000, Avg.class,
+                new Authorizations("A", "B")));
+    }
+
+    @Test
+    public void testKeyFilters() throws Exception {
+        SubQuery query = subQuery("host", "h1");
+        query.addFilter(filter("literal_or", "rack", "r1|r2", false));
+        query.addFilter(filter("wildcard", "dc", "d*", true));
+        QueryResultCache.Key key = new QueryResultCache.Key(query, 60000, Avg.class, Authorizations.EMPTY);
+        // filter order does not matter
+        SubQuery same = subQuery("host", "h1");
+        same.addFilter(filter("wildcard", "dc", "d*", true));
+        same.addFilter(filter("literal_or", "rack", "r1|r2", false));
+        assertEquals(key, new QueryResultCache.Key(same, 60000, Avg.class, Authorizations.EMPTY));
+        assertEquals(key.hashCode(), new QueryResultCache.Key(same, 60000, Avg.class, Authorizations.EMPTY).hashCode());
+        assertNotEquals(key, new QueryResultCache.Key(subQuery("host", "h1"), 60000, Avg.class, Authorizations.EMPTY));
+
+        SubQuery other = subQuery("host", "h1");
+        other.addFilter(filter("literal_or", "rack", "r1|r2", false));
+        other.addFilter(filter("wildcard", "dc", "d*", false));
+        assertNotEquals(key, new QueryResultCache.Key(other, 60000, Avg.class, Authorizations.EMPTY));
+        other = subQuery("host", "h1");
+        other.addFilter(filter("not_literal_or", "rack", "r1|r2", false));
+        other.addFilter(filter("wildcard", "dc", "d*", true));
+        assertNotEquals(key, new QueryResultCache.Key(other, 60000, Avg.class, Authorizations.EMPTY));
+        other = subQuery("host", "h1");
+        other.addFilter(filter("literal_or", "rack", "r1", false));
+        other.addFilter(filter("wildcard", "dc", "d*", true));
+        assertNotEquals(key, new QueryResultCache.Key(other, 60000, Avg.class, Authorizations.EMPTY));
+
+        // counters are not grouped by the scan
+        RateOption counter = new RateOption();
+        counter.setCounter(true);
+        same.setRateOptions(counter);
+        assertNotEquals(key, new QueryResultCache.Key(same, 60000, Avg.class, Authorizations.EMPTY));
+    }
+
+    private Filter filter(String type, String tagk, String value, boolean groupBy) {
+        Filter filter = new Filter();
+        filter.setType(type);
+        filter.setTagk(tagk);
+        filter.setFilter(value);
+        filter.setGroupBy(groupBy);
+        return filter;
+    }
+
+    @Test
+    public void testAlign() throws Exception {
+        assertEquals(0, QueryResultCache.align(0, 1000));
+        assertEquals(0, QueryResultCache.align(999, 1000));
+        assertEquals(1000, QueryResultCache.align(1000, 1000));
+        assertEquals(-1000, QueryResultCache.align(-1, 1000));
+        assertEquals(-750, QueryResultCache.align(0, 1000, 250));
+        assertEquals(250, QueryResultCache.align(250, 1000, 250));
+        assertEquals(250, QueryResultCache.align(1249, 1000, 1250));
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        Configuration conf = TestConfiguration.createMinimalConfigurationForTest();
+        conf.getWebsocket().setSubscriptionLag(60);
+        QueryResultCache cache = new QueryResultCache(conf);
+        // buckets that end at least a minute before now
+        assertEquals(3660000, cache.getImmutableBefore(3725000, 60000));
+        assertEquals(3660000, cache.getImmutableBefore(3720000, 60000));
+
+        QueryResultCache.Key key = new QueryResultCache.Key(subQuery("host", "h1"), 60000, Avg.class,
+                Authorizations.EMPTY);
+        assertNull(cache.get(key));
+        QueryResultCache.Entry entry = new QueryResultCache.Entry(0, 60000, Collections.emptyMap());
+        cache.put(key, entry);
+        assertSame(entry, cache.get(key));
+        cache.clear();
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    public void testSlidingWindow() throws Exception {
+        Configuration conf = TestConfiguration.createMinimalConfigurationForTest();
+        conf.getWebsocket().setSubscriptionLag(60);
+        QueryResultCache cache = new QueryResultCache(conf);
+        QueryResultCache.Key key = new QueryResultCache.Key(subQuery("host", "h1"), 60000, Avg.class,
+                Authorizations.EMPTY);
+        Set<Tag> tags = Collections.singleton(new Tag("host", "h1"));
+        long window = 10 * 60000;
+        long now = 3600000;
+        for (int i = 0; i < 5; i++) {
+            long start = now - window;
+            QueryResultCache.Entry cached = cache.get(key);
+            long scanStart = null == cached ? start : cached.getEnd();
+            // one point in each scanned bucket
+            Downsample scanned = new DownsampleFactory(scanStart, now, 60000, Avg.class).create();
+            for (long ts = scanStart; ts < now; ts += 60000) {
+                scanned.add(ts, 1.0);
+            }
+            cache.update(key, cached, Collections.singletonMap(tags, scanned), start, now, now, Avg.class);
+            QueryResultCache.Entry entry = cache.get(key);
+            // the entry follows the window and holds the complete buckets
+            assertEquals(start, entry.getStart());
+            assertEquals(now - 60000, entry.getEnd());
+            int buckets = 0;
+            for (Iterator<Sample> iter = entry.getSeries().get(tags).iterator(); iter.hasNext(); iter.next()) {
+                buckets++;
+            }
+            assertEquals(9, buckets);
+            now += 2 * 60000;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package timely.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Combiner;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.SortedMapIterator;
+import org.apache.accumulo.core.iterators.system.MultiIterator;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import timely.Configuration;
+import timely.adapter.accumulo.MetricAdapter;
+import timely.adapter.accumulo.RollupCodec;
+import timely.auth.VisibilityCache;
+import timely.model.Metric;
+import timely.model.Tag;
+
+public class RollupCombinerTest {
+
+    private static final long PERIOD = 60000;
+
+    @Before
+    public void before() {
+        VisibilityCache.init(new Configuration());
+    }
+
+    private static void put(SortedMap<Key, Value> data, String host, long ts, double value) {
+        Metric m = new Metric("sys.cpu.user", ts, value, new ArrayList<>(Arrays.asList(new Tag("host", host), new Tag(
+                "rack", "r1"))));
+        Mutation mutation = MetricAdapter.toRollupMutation(m, Tag::join, PERIOD);
+        for (ColumnUpdate cu : mutation.getUpdates()) {
+            Key key = new Key(mutation.getRow(), cu.getColumnFamily(), cu.getColumnQualifier(),
+                    cu.getColumnVisibility(), cu.getTimestamp());
+            data.put(key, new Value(cu.getValue()));
+        }
+    }
+
+    @Test
+    public void testRollupMutation() {
+        SortedMap<Key, Value> data = new TreeMap<>();
+        put(data, "h1", 5 * PERIOD + 1234, 2.5);
+        // one entry per tag in the row and at the time of the period start
+        Assert.assertEquals(2, data.size());
+        for (Key key : data.keySet()) {
+            Assert.assertEquals(5 * PERIOD, key.getTimestamp());
+            Assert.assertEquals(5 * PERIOD, (long) MetricAdapter.decodeRowKey(key.getRow().getBytes()).getSecond());
+        }
+        byte[] value = data.values().iterator().next().get();
+        Assert.assertEquals(RollupCodec.LENGTH, value.length);
+        Assert.assertEquals(2.5, RollupCodec.getSum(value), 0.0);
+        Assert.assertEquals(1, RollupCodec.getCount(value));
+        Assert.assertEquals(2.5, RollupCodec.getMin(value), 0.0);
+        Assert.assertEquals(2.5, RollupCodec.getMax(value), 0.0);
+    }
+
+    @Test
+    public void testCombine() throws Exception {
+        // each point of a period in a separate file, as written
+        List<SortedKeyValueIterator<Key, Value>> files = new ArrayList<>();
+        double[] values = { 3.0, -1.0, 7.5, 2.0 };
+        for (int i = 0; i < values.length; i++) {
+            SortedMap<Key, Value> data = new TreeMap<>();
+            put(data, "h1", i * 1000, values[i]);
+            put(data, "h2", i * 1000, 1.0);
+            put(data, "h1", PERIOD + i * 1000, 1.0);
+            files.add(new SortedMapIterator(data));
+        }
+        IteratorSetting is = new IteratorSetting(10, RollupCombiner.class);
+        Combiner.setCombineAllColumns(is, true);
+        RollupCombiner combiner = new RollupCombiner();
+        combiner.init(new MultiIterator(files, true), is.getOptions(), null);
+        combiner.seek(new Range(), Collections.emptyList(), false);
+        int entries = 0;
+        while (combiner.hasTop()) {
+            Key key = combiner.getTopKey();
+            byte[] value = combiner.getTopValue().get();
+            Assert.assertEquals(4, RollupCodec.getCount(value));
+            boolean first = key.getTimestamp() == 0;
+            boolean h1 = key.getColumnFamily().toString().equals("host=h1")
+                    || key.getColumnQualifier().toString().startsWith("host=h1");
+            if (first && h1) {
+                Assert.assertEquals(11.5, RollupCodec.getSum(value), 0.0);
+                Assert.assertEquals(-1.0, RollupCodec.getMin(value), 0.0);
+                Assert.assertEquals(7.5, RollupCodec.getMax(value), 0.0);
+            } else {
+                Assert.assertEquals(4.0, RollupCodec.getSum(value), 0.0);
+                Assert.assertEquals(1.0, RollupCodec.getMin(value), 0.0);
+                Assert.assertEquals(1.0, RollupCodec.getMax(value), 0.0);
+            }
+            entries++;
+            combiner.next();
+        }
+        // 3 series with 2 columns each
+        Assert.assertEquals(6, entries);
+    }
+}
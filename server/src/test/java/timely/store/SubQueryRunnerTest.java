@@ -0,0 +1,103 @@
+package timely.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import timely.api.request.timeseries.QueryRequest.SubQuery;
+import timely.api.response.TimelyException;
+
+public class SubQueryRunnerTest {
+
+    private SubQueryRunner runner;
+
+    @Before
+    public void setup() {
+        runner = new SubQueryRunner(4);
+    }
+
+    @After
+    public void tearDown() {
+        runner.shutdown();
+    }
+
+    private static List<SubQuery> subQueries(String... metrics) {
+        List<SubQuery> queries = new ArrayList<>();
+        for (String metric : metrics) {
+            SubQuery query = new SubQuery();
+            query.setMetric(metric);
+            queries.add(query);
+        }
+        return queries;
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        // each sub query waits until all of them have started
+        CountDownLatch started = new CountDownLatch(3);
+        List<String> result = runner.run(subQueries("sys.cpu.user", "sys.cpu.idle", "sys.mem.free"), query -> {
+            started.countDown();
+            try {
+                if (!started.await(10, TimeUnit.SECONDS)) {
+                    throw new TimelyException(500, "Sub queries did not run concurrently", query.getMetric());
+                }
+            } catch (InterruptedException e) {
+                throw new TimelyException(500, "Interrupted", e.getMessage(), e);
+            }
+            return query.getMetric();
+        });
+        // in the order of the sub queries
+        Assert.assertEquals(Arrays.asList("sys.cpu.user", "sys.cpu.idle", "sys.mem.free"), result);
+    }
+
+    @Test
+    public void testException() throws Exception {
+        TimelyException error = new TimelyException(400, "No such metric", "sys.cpu.idle");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<ForkJoinTask<String>> tasks = runner.submit(subQueries("sys.cpu.idle", "sys.cpu.user"), query -> {
+            try {
+                if (query.getMetric().equals("sys.cpu.idle")) {
+                    started.await(10, TimeUnit.SECONDS);
+                    throw error;
+                }
+                // still running when the other sub query fails
+                started.countDown();
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new TimelyException(500, "Interrupted", e.getMessage(), e);
+            }
+            return query.getMetric();
+        });
+        try {
+            runner.join(tasks);
+            Assert.fail("Expected the sub query exception");
+        } catch (TimelyException e) {
+            Assert.assertSame(error, e);
+        } finally {
+            release.countDown();
+        }
+        Assert.assertTrue(tasks.get(1).isCancelled());
+    }
+
+    @Test
+    public void testRuntimeException() throws Exception {
+        try {
+            runner.run(subQueries("sys.cpu.user"), query -> {
+                throw new IllegalStateException("broken");
+            });
+            Assert.fail("Expected the sub query exception");
+        } catch (TimelyException e) {
+            Assert.assertEquals(500, e.getCode());
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package timely.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.SortedMapIterator;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import timely.Configuration;
+import timely.adapter.accumulo.MetricAdapter;
+import timely.auth.VisibilityCache;
+import timely.model.Metric;
+import timely.model.Tag;
+
+public class TagFilterTest {
+
+    private SortedMap<Key, Value> data;
+
+    @Before
+    public void before() {
+        VisibilityCache.init(new Configuration());
+        data = new TreeMap<>();
+    }
+
+    private void put(long ts, Tag... tags) {
+        put(ts, Tag::join, tags);
+    }
+
+    private void put(long ts, Function<Tag, String> encoder, Tag... tags) {
+        Metric m = new Metric("sys.cpu.user", ts, 1.0, new ArrayList<>(Arrays.asList(tags)));
+        Mutation mutation = MetricAdapter.toMutation(m, encoder);
+        for (ColumnUpdate cu : mutation.getUpdates()) {
+            data.put(new Key(mutation.getRow(), cu.getColumnFamily(), cu.getColumnQualifier(),
+                    cu.getColumnVisibility(), cu.getTimestamp()), new Value(cu.getValue()));
+        }
+    }
+
+    /**
+     * @return timestamps of the accepted entries
+     */
+    private List<Long> filter(IteratorSetting is) throws Exception {
+        TagFilter filter = new TagFilter();
+        filter.init(new SortedMapIterator(data), is.getOptions(), null);
+        SortedKeyValueIterator<Key, Value> iter = filter.deepCopy(null);
+        iter.seek(new Range(), Collections.emptyList(), false);
+        List<Long> result = new ArrayList<>();
+        while (iter.hasTop()) {
+            result.add(iter.getTopKey().getTimestamp());
+            iter.next();
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    @Test
+    public void testLiteralAndRegex() throws Exception {
+        put(1, new Tag("host", "r01n01"), new Tag("rack", "r01"));
+        put(2, new Tag("host", "r01n02"), new Tag("rack", "r01"));
+        put(3, new Tag("host", "r02n01"), new Tag("rack", "r02"));
+        put(4, new Tag("host", "r01n01x"), new Tag("rack", "r01"));
+
+        IteratorSetting is = new IteratorSetting(100, TagFilter.class);
+        TagFilter.addTag(is, "host", "r01n01", false);
+        // each entry of the series, the tag is in the column family of one
+        // and in the column qualifier of the other
+        Assert.assertEquals(Arrays.asList(1L, 1L), filter(is));
+
+        is = new IteratorSetting(100, TagFilter.class);
+        TagFilter.addTag(is, "host", "r01n0.", true);
+        // the pattern matches the whole value
+        Assert.assertEquals(Arrays.asList(1L, 1L, 2L, 2L), filter(is));
+
+        is = new IteratorSetting(100, TagFilter.class);
+        TagFilter.addTag(is, "host", "r01n01|r02n01", true);
+        Assert.assertEquals(Arrays.asList(1L, 1L, 3L, 3L), filter(is));
+    }
+
+    @Test
+    public void testMultipleTags() throws Exception {
+        put(1, new Tag("dc", "d1"), new Tag("host", "r01n01"), new Tag("rack", "r01"));
+        put(2, new Tag("dc", "d2"), new Tag("host", "r01n02"), new Tag("rack", "r01"));
+        put(3, new Tag("dc", "d1"), new Tag("host", "r02n01"), new Tag("rack", "r02"));
+        put(4, new Tag("dc", "d1"), new Tag("host", "r01n03"));
+
+        IteratorSetting is = new IteratorSetting(100, TagFilter.class);
+        TagFilter.addTag(is, "dc", "d1", false);
+        TagFilter.addTag(is, "rack", "r0[12]", true);
+        Assert.assertEquals(Arrays.asList(1L, 1L, 1L, 3L, 3L, 3L), filter(is));
+
+        // two conditions on the same key
+        is = new IteratorSetting(100, TagFilter.class);
+        TagFilter.addTag(is, "host", "r01.*", true);
+        TagFilter.addTag(is, "host", ".*n01", true);
+        Assert.assertEquals(Arrays.asList(1L, 1L, 1L), filter(is));
+
+        // missing tag
+        is = new IteratorSetting(100, TagFilter.class);
+        TagFilter.addTag(is, "instance", "0", false);
+        Assert.assertEquals(Collections.emptyList(), filter(is));
+    }
+
+    @Test
+    public void testUids() throws Exception {
+        Function<Tag, String> encoder = t -> {
+            if (t.getKey().equals("host")) {
+                return UidDictionary.MARKER + "a=" + (t.getValue().equals("r01n01") ? "b" : "c");
+            }
+            return t.join();
+        };
+        put(1, encoder, new Tag("host", "r01n01"), new Tag("rack", "r01"));
+        put(2, encoder, new Tag("host", "r01n02"), new Tag("rack", "r01"));
+        put(3, new Tag("host", "r01n01"), new Tag("rack", "r01"));
+
+        IteratorSetting is = new IteratorSetting(100, TagFilter.class);
+        TagFilter.addTag(is, "host", "r01n01", false, "a", Collections.singletonList("b"));
+        TagFilter.addTag(is, "rack", "r01", false);
+        // both the encoded and the plain form
+        Assert.assertEquals(Arrays.asList(1L, 1L, 3L, 3L), filter(is));
+    }
+
+    @Test
+    public void testLiteralsAndNegation() throws Exception {
+        put(1, new Tag("host", "r01n01"), new Tag("rack", "r01"));
+        put(2, new Tag("host", "r01n02"), new Tag("rack", "r01"));
+        put(3, new Tag("host", "r02n01"), new Tag("rack", "r02"));
+        put(4, new Tag("rack", "r02"));
+
+        IteratorSetting is = new IteratorSetting(100, TagFilter.class);
+        TagFilter.addTag(is, "host", Arrays.asList("r01n01", "r02n01"), false, null, null);
+        Assert.assertEquals(Arrays.asList(1L, 1L, 3L, 3L), filter(is));
+
+        // the tag has to be there with another value
+        is = new IteratorSetting(100, TagFilter.class);
+        TagFilter.addTag(is, "host", Arrays.asList("r01n01", "r02n01"), true, null, null);
+        Assert.assertEquals(Arrays.asList(2L, 2L), filter(is));
+
+        is = new IteratorSetting(100, TagFilter.class);
+        TagFilter.addPattern(is, "host", "r01.*", true, null, null);
+        TagFilter.addTag(is, "rack", "r02", false);
+        Assert.assertEquals(Arrays.asList(3L, 3L), filter(is));
+
+        // with UIDs, a key without values with UIDs matches no encoded tag
+        Function<Tag, String> encoder = t -> t.getKey().equals("host") ? UidDictionary.MARKER + "a=b" : t.join();
+        put(5, encoder, new Tag("host", "r01n01"), new Tag("rack", "r03"));
+        is = new IteratorSetting(100, TagFilter.class);
+        TagFilter.addTag(is, "host", Collections.singletonList("r01n02"), true, "a", Collections.emptyList());
+        Assert.assertEquals(Arrays.asList(1L, 1L, 3L, 3L, 5L, 5L), filter(is));
+        is = new IteratorSetting(100, TagFilter.class);
+        TagFilter.addTag(is, "host", Collections.singletonList("r01n02"), false, "a", Collections.emptyList());
+        Assert.assertEquals(Arrays.asList(2L, 2L), filter(is));
+    }
+}
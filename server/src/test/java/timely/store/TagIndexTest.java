@@ -0,0 +1,103 @@
+package timely.store;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import timely.api.model.Meta;
+import timely.model.Tag;
+
+public class TagIndexTest {
+
+    private Connector connector;
+
+    @Before
+    public void setup() throws Exception {
+        connector = new MockInstance(TagIndexTest.class.getName() + System.nanoTime()).getConnector("root",
+                new PasswordToken(""));
+        connector.tableOperations().create("meta");
+        BatchWriter writer = connector.createBatchWriter("meta", new BatchWriterConfig());
+        for (Meta meta : Arrays.asList(new Meta("sys.cpu.user", "host", "r01n01"), new Meta("sys.cpu.user", "host",
+                "r01n02"), new Meta("sys.cpu.user", "host", "r02n01"), new Meta("sys.cpu.user", "rack", "r01"),
+                new Meta("sys.cpu.idle", "host", "r01n01"))) {
+            for (Key key : meta.toKeys()) {
+                Mutation m = new Mutation(key.getRow());
+                m.put(key.getColumnFamily(), key.getColumnQualifier(), new Value(new byte[0]));
+                writer.addMutation(m);
+            }
+        }
+        writer.close();
+    }
+
+    private static Set<Tag> tags(String key, String... values) {
+        Set<Tag> tags = new HashSet<>();
+        for (String value : values) {
+            tags.add(new Tag(key, value));
+        }
+        return tags;
+    }
+
+    @Test
+    public void testExpand() throws Exception {
+        TagIndex index = new TagIndex(100);
+        index.load(connector, "meta");
+        Assert.assertEquals(5, index.size());
+        Assert.assertEquals(tags("host", "r01n01", "r01n02"), index.expand("sys.cpu.user", "host", "r01.*", true));
+        Assert.assertEquals(tags("host", "r01n02"), index.expand("sys.cpu.user", "host", "r01n02", false));
+        Assert.assertEquals(tags("host"), index.expand("sys.cpu.user", "host", "r03n01", false));
+        Assert.assertEquals(tags("rack"), index.expand("sys.cpu.user", "rack", "r02", false));
+        Assert.assertEquals(tags("host"), index.expand("sys.cpu.user", "dc", "dc1", false));
+        // all values of the first tag key
+        Assert.assertEquals(tags("host", "r01n01", "r01n02", "r02n01"), index.expand("sys.cpu.user", null, null, false));
+        Assert.assertEquals(tags("host", "r01n01"), index.expand("sys.cpu.idle", "host", ".*", true));
+        Assert.assertNull(index.expand("sys.cpu.system", "host", ".*", true));
+        Assert.assertEquals(7, index.getAndResetHits());
+        Assert.assertEquals(1, index.getAndResetMisses());
+        Assert.assertEquals(0, index.getAndResetHits());
+    }
+
+    @Test
+    public void testNotLoaded() throws Exception {
+        TagIndex index = new TagIndex(100);
+        index.addAll(Collections.singletonList(new Meta("sys.cpu.user", "host", "r01n01")));
+        Assert.assertNull(index.expand("sys.cpu.user", "host", "r01n01", false));
+        Assert.assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testAdd() throws Exception {
+        TagIndex index = new TagIndex(100);
+        index.load(connector, "meta");
+        index.addAll(Arrays.asList(new Meta("sys.cpu.user", "host", "r03n01"), new Meta("sys.cpu.user", "host",
+                "r01n01"), new Meta("sys.cpu.system", "host", "r01n01")));
+        Assert.assertEquals(7, index.size());
+        Assert.assertEquals(tags("host", "r03n01"), index.expand("sys.cpu.user", "host", "r03.*", true));
+        Assert.assertEquals(tags("host", "r01n01"), index.expand("sys.cpu.system", "host", "r01n01", false));
+    }
+
+    @Test
+    public void testMaxValues() throws Exception {
+        // the values of sys.cpu.idle fit, sys.cpu.user does not
+        TagIndex index = new TagIndex(3);
+        index.load(connector, "meta");
+        Assert.assertEquals(1, index.size());
+        Assert.assertEquals(tags("host", "r01n01"), index.expand("sys.cpu.idle", "host", ".*", true));
+        Assert.assertNull(index.expand("sys.cpu.user", "host", ".*", true));
+        // no new metrics once full
+        index.addAll(Collections.singletonList(new Meta("sys.cpu.system", "host", "r01n01")));
+        Assert.assertNull(index.expand("sys.cpu.system", "host", ".*", true));
+    }
+}
@@ -0,0 +1,94 @@
+package timely.store;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.Combiner;
+import org.apache.accumulo.core.iterators.IteratorUtil.IteratorScope;
+import org.apache.accumulo.core.security.Authorizations;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import timely.api.model.Meta;
+
+public class TagStatisticsTest {
+
+    private Connector connector;
+
+    @Before
+    public void setup() throws Exception {
+        connector = new MockInstance(TagStatisticsTest.class.getName() + System.nanoTime()).getConnector("root",
+                new PasswordToken(""));
+        connector.tableOperations().create("meta");
+        IteratorSetting setting = new IteratorSetting(10, "tagstats", TagStatisticsCombiner.class);
+        Combiner.setCombineAllColumns(setting, true);
+        connector.tableOperations().attachIterator("meta", setting, EnumSet.allOf(IteratorScope.class));
+    }
+
+    private void write(Meta... metas) throws Exception {
+        BatchWriter writer = connector.createBatchWriter("meta", new BatchWriterConfig());
+        for (Meta meta : metas) {
+            for (Key key : meta.toKeys()) {
+                Mutation m = new Mutation(key.getRow());
+                m.put(key.getColumnFamily(), key.getColumnQualifier(), new Value(new byte[0]));
+                writer.addMutation(m);
+            }
+        }
+        writer.addMutations(TagStatistics.toMutations(Arrays.asList(metas)));
+        writer.close();
+    }
+
+    @Test
+    public void testCounts() throws Exception {
+        // each value in a separate write, merged by the combiner
+        for (int i = 0; i < 20; i++) {
+            write(new Meta("sys.cpu.user", "host", "r01n" + i), new Meta("sys.cpu.user", "rack", "r0" + (i % 2)));
+        }
+        write(new Meta("sys.cpu.idle", "host", "r01n01"));
+        TagStatistics stats = new TagStatistics(connector, "meta");
+        Map<String, Long> counts = stats.getCounts("sys.cpu.user");
+        Assert.assertEquals(2, counts.size());
+        Assert.assertEquals(20, (long) counts.get("host"));
+        Assert.assertEquals(2, (long) counts.get("rack"));
+        Assert.assertEquals(Collections.singletonMap("host", 1L), stats.getCounts("sys.cpu.idle"));
+        Assert.assertEquals(Collections.emptyMap(), stats.getCounts("sys.cpu.system"));
+
+        // the values written by this server are added to the sketches held
+        stats.addAll(Arrays.asList(new Meta("sys.cpu.user", "rack", "r02"), new Meta("sys.cpu.user", "dc", "d1"),
+                new Meta("sys.cpu.system", "host", "r01n01")));
+        counts = stats.getCounts("sys.cpu.user");
+        Assert.assertEquals(3, (long) counts.get("rack"));
+        Assert.assertEquals(1, (long) counts.get("dc"));
+        Assert.assertEquals(Collections.singletonMap("host", 1L), stats.getCounts("sys.cpu.system"));
+        // metrics that are not held are read from the meta table
+        stats.addAll(Collections.singletonList(new Meta("sys.mem.free", "host", "r01n01")));
+        Assert.assertEquals(Collections.emptyMap(), stats.getCounts("sys.mem.free"));
+    }
+
+    @Test
+    public void testOtherRows() throws Exception {
+        write(new Meta("sys.cpu.user", "host", "r01n01"));
+        write(new Meta("sys.cpu.user", "host", "r01n01"));
+        List<Key> keys = new ArrayList<>();
+        for (Entry<Key, Value> entry : connector.createScanner("meta", Authorizations.EMPTY)) {
+            keys.add(entry.getKey());
+        }
+        // one entry for each meta key and for the sketch
+        Assert.assertEquals(4, keys.size());
+    }
+}
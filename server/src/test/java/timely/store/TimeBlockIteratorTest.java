@@ -0,0 +1,205 @@
+package timely.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.conf.AccumuloConfiguration;
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.IteratorUtil.IteratorScope;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.SortedMapIterator;
+import org.apache.accumulo.core.security.Authorizations;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import timely.Configuration;
+import timely.adapter.accumulo.MetricAdapter;
+import timely.adapter.accumulo.TimeBlockCodec;
+import timely.auth.VisibilityCache;
+import timely.model.Metric;
+import timely.model.Tag;
+
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Multiset;
+
+public class TimeBlockIteratorTest {
+
+    private static final long ONE_HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long BASE = System.currentTimeMillis() - (System.currentTimeMillis() % ONE_HOUR) - 5
+            * ONE_HOUR;
+
+    private final SortedMap<Key, Value> testData = new TreeMap<>();
+
+    @Before
+    public void before() {
+        VisibilityCache.init(new Configuration());
+    }
+
+    private static void put(SortedMap<Key, Value> data, Metric m) {
+        Mutation mutation = MetricAdapter.toMutation(m);
+        for (ColumnUpdate cu : mutation.getUpdates()) {
+            Key key = new Key(mutation.getRow(), cu.getColumnFamily(), cu.getColumnQualifier(),
+                    cu.getColumnVisibility(), cu.getTimestamp());
+            data.put(key, new Value(cu.getValue()));
+        }
+    }
+
+    private static Metric metric(String name, long ts, double value, String host) {
+        return new Metric(name, ts, value, new ArrayList<>(Arrays.asList(new Tag("host", host), new Tag("rack", "r1"))));
+    }
+
+    private static Multiset<Metric> points(SortedMap<Key, Value> data) {
+        Multiset<Metric> points = HashMultiset.create();
+        data.forEach((k, v) -> points.addAll(MetricAdapter.parseAll(k, v)));
+        return points;
+    }
+
+    private static SortedMap<Key, Value> compact(SortedMap<Key, Value> data, long maxPoints, boolean full)
+            throws IOException {
+        IteratorSetting is = new IteratorSetting(200, TimeBlockIterator.class);
+        TimeBlockIterator.setOptions(is, ONE_HOUR, ONE_HOUR);
+        if (maxPoints > 0) {
+            TimeBlockIterator.setMaxPoints(is, maxPoints);
+        }
+        TimeBlockIterator iter = new TimeBlockIterator();
+        iter.init(new SortedMapIterator(data), is.getOptions(), new CompactionEnvironment(full));
+        iter.seek(new Range(), Collections.emptyList(), false);
+        SortedMap<Key, Value> result = new TreeMap<>();
+        Key prev = null;
+        while (iter.hasTop()) {
+            Key key = iter.getTopKey();
+            if (null != prev) {
+                Assert.assertTrue(prev + " before " + key, prev.compareTo(key) < 0);
+            }
+            prev = key;
+            result.put(key, iter.getTopValue());
+            iter.next();
+        }
+        return result;
+    }
+
+    @Before
+    public void createTestData() {
+        for (long ts = BASE; ts < BASE + 2 * ONE_HOUR; ts += 60000) {
+            put(testData, metric("sys.cpu.user", ts, ts % 7, "h1"));
+            put(testData, metric("sys.cpu.user", ts + 500, 1.0, "h2"));
+            put(testData, metric("sys.cpu.idle", ts, 2.0, "h1"));
+        }
+        // not old enough
+        long now = System.currentTimeMillis();
+        put(testData, metric("sys.cpu.user", now, 3.0, "h1"));
+        put(testData, metric("sys.cpu.user", now + 1, 4.0, "h2"));
+    }
+
+    @Test
+    public void testPack() throws Exception {
+        SortedMap<Key, Value> result = compact(testData, 0, true);
+        Assert.assertEquals(points(testData), points(result));
+        // 3 series with 2 columns each in 2 hours and the new points
+        Assert.assertEquals(2 * 6 + 4, result.size());
+        int blocks = 0;
+        for (Entry<Key, Value> entry : result.entrySet()) {
+            Metric first = MetricAdapter.parseAll(entry.getKey(), entry.getValue()).get(0);
+            if (TimeBlockCodec.isEncoded(entry.getValue().get())) {
+                blocks++;
+                Assert.assertEquals(60, TimeBlockCodec.count(entry.getValue().get()));
+                // in the first row of the block
+                long row = MetricAdapter.decodeRowKey(entry.getKey().getRow().getBytes()).getSecond();
+                Assert.assertEquals(0, row % ONE_HOUR);
+                Assert.assertTrue(first.getValue().getTimestamp() < entry.getKey().getTimestamp());
+            } else {
+                Assert.assertEquals(entry.getKey().getTimestamp(), (long) first.getValue().getTimestamp());
+            }
+        }
+        Assert.assertEquals(result.size() - 4, blocks);
+    }
+
+    @Test
+    public void testMergeLatePoints() throws Exception {
+        SortedMap<Key, Value> packed = compact(testData, 0, true);
+        int size = packed.size();
+        // a point that was missing and one that replaces a packed point
+        Metric missing = metric("sys.cpu.user", BASE + 30000, 5.0, "h1");
+        Metric replaced = metric("sys.cpu.user", BASE + 60000, 6.0, "h1");
+        put(packed, missing);
+        put(packed, replaced);
+        SortedMap<Key, Value> result = compact(packed, 0, true);
+        Assert.assertEquals(size, result.size());
+        put(testData, missing);
+        put(testData, replaced);
+        Assert.assertEquals(points(testData), points(result));
+    }
+
+    @Test
+    public void testMaxPoints() throws Exception {
+        SortedMap<Key, Value> result = compact(testData, 100, true);
+        Assert.assertEquals(points(testData), points(result));
+        List<Integer> counts = new ArrayList<>();
+        result.forEach((k, v) -> {
+            if (TimeBlockCodec.isEncoded(v.get())) {
+                counts.add(TimeBlockCodec.count(v.get()));
+            }
+        });
+        Assert.assertTrue(counts.size() > 2 * 6);
+        Assert.assertTrue(counts.stream().allMatch(c -> c < 60));
+    }
+
+    @Test
+    public void testOnlyFullMajorCompactions() throws Exception {
+        SortedMap<Key, Value> result = compact(testData, 0, false);
+        Assert.assertEquals(testData, result);
+    }
+
+    private static class CompactionEnvironment implements IteratorEnvironment {
+
+        private final boolean full;
+
+        CompactionEnvironment(boolean full) {
+            this.full = full;
+        }
+
+        @Override
+        public SortedKeyValueIterator<Key, Value> reserveMapFileReader(String mapFileName) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public AccumuloConfiguration getConfig() {
+            return AccumuloConfiguration.getDefaultConfiguration();
+        }
+
+        @Override
+        public IteratorScope getIteratorScope() {
+            return IteratorScope.majc;
+        }
+
+        @Override
+        public boolean isFullMajorCompaction() {
+            return full;
+        }
+
+        @Override
+        public void registerSideChannel(SortedKeyValueIterator<Key, Value> iter) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Authorizations getAuthorizations() {
+            return Authorizations.EMPTY;
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package timely.store;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import timely.adapter.accumulo.MetricAdapter;
+import timely.api.model.Meta;
+import timely.api.response.TimelyException;
+import timely.model.Metric;
+import timely.model.Tag;
+
+public class UidDictionaryTest {
+
+    private Connector connector;
+    private UidDictionary dictionary;
+
+    @Before
+    public void setup() throws Exception {
+        connector = new MockInstance(UidDictionaryTest.class.getName() + System.nanoTime()).getConnector("root",
+                new PasswordToken(""));
+        connector.tableOperations().create("meta");
+        dictionary = new UidDictionary(connector, "meta", 100);
+    }
+
+    private void addUids(String... names) throws Exception {
+        BatchWriter writer = connector.createBatchWriter("meta", new BatchWriterConfig());
+        Mutation block = new Mutation(Meta.UID_BLOCK_PREFIX + "0");
+        block.put("uid", "", Long.MAX_VALUE, new Value(new byte[0]));
+        writer.addMutation(block);
+        for (int i = 0; i < names.length; i++) {
+            String uid = UidDictionary.toString(i);
+            Mutation forward = new Mutation(Meta.UID_PREFIX + names[i]);
+            forward.put("uid", "", Long.MAX_VALUE, new Value(uid.getBytes(UTF_8)));
+            writer.addMutation(forward);
+            Mutation reverse = new Mutation(Meta.UID_NAME_PREFIX + uid);
+            reverse.put("name", "", Long.MAX_VALUE, new Value(names[i].getBytes(UTF_8)));
+            writer.addMutation(reverse);
+        }
+        writer.close();
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        addUids("host", "r01n01", "rack", "r01");
+        Map<String, Long> uids = dictionary.getUids(Arrays.asList("host", "rack", "r02"));
+        Assert.assertEquals(2, uids.size());
+        Assert.assertEquals(0L, (long) uids.get("host"));
+        Assert.assertEquals(2L, (long) uids.get("rack"));
+        Map<Long, String> names = dictionary.getNames(Arrays.asList(1L, 3L, 4L));
+        Assert.assertEquals(2, names.size());
+        Assert.assertEquals("r01n01", names.get(1L));
+        Assert.assertEquals("r01", names.get(3L));
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        addUids("host", "r01n01", "rack", "r01");
+        Set<Tag> tags = new HashSet<>();
+        tags.add(new Tag("instance", "0"));
+        tags.add(new Tag(UidDictionary.encode(0, 1)));
+        Set<Tag> decoded = dictionary.decode(tags);
+        Assert.assertEquals(2, decoded.size());
+        Assert.assertTrue(decoded.contains(new Tag("host", "r01n01")));
+        Assert.assertTrue(decoded.contains(new Tag("instance", "0")));
+
+        Set<Tag> plain = new HashSet<>();
+        plain.add(new Tag("instance", "0"));
+        Assert.assertSame(plain, dictionary.decode(plain));
+    }
+
+    @Test
+    public void testDecodeMetric() throws Exception {
+        addUids("host", "r01n01", "rack", "r01");
+        List<Tag> tags = new ArrayList<>();
+        tags.add(new Tag("host", "r01n01"));
+        tags.add(new Tag("rack", "r01"));
+        Metric m = Metric.newBuilder().name("sys.cpu.user").value(1000L, 2.0D).tags(tags).build();
+        Mutation mutation = MetricAdapter.toMutation(m,
+                t -> UidDictionary.encode(t.getKey().equals("host") ? 0 : 2, t.getKey().equals("host") ? 1 : 3));
+        Key key = new Key(mutation.getRow(), mutation.getUpdates().get(0).getColumnFamily(), mutation.getUpdates()
+                .get(0).getColumnQualifier(), new byte[0], 1000L);
+        Metric read = MetricAdapter.parse(key, new Value(mutation.getUpdates().get(0).getValue()));
+        Assert.assertTrue(read.getTags().stream().allMatch(UidDictionary::isEncoded));
+        Assert.assertEquals(m, dictionary.decode(read));
+    }
+
+    @Test(expected = TimelyException.class)
+    public void testDecodeUnknownUid() throws Exception {
+        addUids("host", "r01n01");
+        Set<Tag> tags = new HashSet<>();
+        tags.add(new Tag(UidDictionary.encode(0, 5)));
+        dictionary.decode(tags);
+    }
+
+    @Test
+    public void testIsInUse() throws Exception {
+        Assert.assertFalse(dictionary.isInUse());
+        addUids("host");
+        Assert.assertTrue(new UidDictionary(connector, "meta", 100).isInUse());
+        Assert.assertFalse(UidDictionary.isEncoded(new Tag("host", "r01n01")));
+        Assert.assertEquals(UidDictionary.MARKER + "a=z", UidDictionary.encode(10, 35));
+    }
+}
@@ -2,20 +2,39 @@ package timely.test.integration;
 
 import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterruptibly;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.SortedSet;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.hadoop.io.Text;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 
 import timely.Server;
+import timely.adapter.accumulo.MetricAdapter;
+import timely.adapter.accumulo.RollupCodec;
+import timely.adapter.accumulo.TimeBlockCodec;
 import timely.api.request.timeseries.QueryRequest;
+import timely.api.request.timeseries.QueryRequest.Filter;
 import timely.api.request.timeseries.QueryRequest.SubQuery;
+import timely.api.response.timeseries.QueryPlan;
 import timely.api.response.timeseries.QueryResponse;
+import timely.auth.AuthCache;
+import timely.store.QueryResultCache;
+import timely.store.UidDictionary;
 import timely.test.IntegrationTest;
 
 @Category(IntegrationTest.class)
@@ -23,6 +42,7 @@ public class DataStoreIT extends OneWaySSLBase {
 
     private static final long ONE_DAY = TimeUnit.DAYS.toMillis(1);
     private static final long ONE_HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long ONE_MINUTE = TimeUnit.MINUTES.toMillis(1);
     private static final long TEST_TIME = System.currentTimeMillis() - ONE_DAY;
 
     @Test
@@ -109,4 +129,493 @@ public class DataStoreIT extends OneWaySSLBase {
         }
     }
 
+    @Test
+    public void testQueryCache() throws Exception {
+        conf.getQueryCache().setEnabled(true);
+
+        final Server s = new Server(conf);
+        s.run();
+        try {
+            long base = QueryResultCache.align(TEST_TIME, ONE_HOUR);
+            put("sys.cpu.user " + (base + 1000) + " 1.0 tag1=value1", "sys.cpu.user " + (base + ONE_HOUR + 1000)
+                    + " 2.0 tag1=value1");
+            // Latency in TestConfiguration is 2s, wait for it
+            sleepUninterruptibly(4, TimeUnit.SECONDS);
+            Map<String, Object> dps = queryCpuUser(base + 500, base + (2 * ONE_HOUR) + 499);
+            assertEquals(2, dps.size());
+            // buckets start at the start of the query
+            assertEquals(1.0, dps.get(Long.toString(base + 500)));
+            assertEquals(2.0, dps.get(Long.toString(base + ONE_HOUR + 500)));
+
+            // a late value in a cached bucket and a value in a new bucket
+            put("sys.cpu.user " + (base + ONE_HOUR + 2000) + " 5.0 tag1=value1", "sys.cpu.user "
+                    + (base + (2 * ONE_HOUR) + 1000) + " 3.0 tag1=value1");
+            sleepUninterruptibly(4, TimeUnit.SECONDS);
+            dps = queryCpuUser(base + ONE_HOUR + 500, base + (3 * ONE_HOUR) + 499);
+            assertEquals(2, dps.size());
+            // only the new bucket was scanned
+            assertEquals(2.0, dps.get(Long.toString(base + ONE_HOUR + 500)));
+            assertEquals(3.0, dps.get(Long.toString(base + (2 * ONE_HOUR) + 500)));
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    @Test
+    public void testUnalignedStart() throws Exception {
+        testUnalignedStart(false);
+    }
+
+    @Test
+    public void testUnalignedStartCached() throws Exception {
+        testUnalignedStart(true);
+    }
+
+    private void testUnalignedStart(boolean cache) throws Exception {
+        conf.getQueryCache().setEnabled(cache);
+
+        final Server s = new Server(conf);
+        s.run();
+        try {
+            long base = QueryResultCache.align(TEST_TIME, ONE_HOUR);
+            put("sys.cpu.user " + (base + 1000) + " 4.0 tag1=value1", "sys.cpu.user " + (base + 2000)
+                    + " 1.0 tag1=value1", "sys.cpu.user " + (base + ONE_HOUR + 1000) + " 2.0 tag1=value1",
+                    "sys.cpu.user " + (base + ONE_HOUR + 2000) + " 3.0 tag1=value1");
+            // Latency in TestConfiguration is 2s, wait for it
+            sleepUninterruptibly(4, TimeUnit.SECONDS);
+            // the buckets start at the start of the query, the second query
+            // is answered from the cache when it is enabled
+            for (int i = 0; i < 2; i++) {
+                Map<String, Object> dps = queryCpuUser(base + 1500, base + (2 * ONE_HOUR) + 1499);
+                assertEquals(2, dps.size());
+                assertEquals(2.0, dps.get(Long.toString(base + 1500)));
+                assertEquals(3.0, dps.get(Long.toString(base + ONE_HOUR + 1500)));
+            }
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    @Test
+    public void testMultiTableWriter() throws Exception {
+        conf.getAccumulo().getWrite().setMultiTable(true);
+
+        final Server s = new Server(conf);
+        s.run();
+        try {
+            long base = TEST_TIME - (TEST_TIME % ONE_HOUR);
+            put("sys.cpu.user " + (base + 1000) + " 1.0 tag1=value1", "sys.cpu.user " + (base + ONE_HOUR + 1000)
+                    + " 2.0 tag1=value1");
+            // Latency in TestConfiguration is 2s, wait for it
+            sleepUninterruptibly(4, TimeUnit.SECONDS);
+            // the query needs the meta table entries as well as the metrics
+            Map<String, Object> dps = queryCpuUser(base, base + (2 * ONE_HOUR) - 1);
+            assertEquals(2, dps.size());
+            assertEquals(1.0, dps.get(Long.toString(base)));
+            assertEquals(2.0, dps.get(Long.toString(base + ONE_HOUR)));
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    @Test
+    public void testUidDictionary() throws Exception {
+        long base = TEST_TIME - (TEST_TIME % ONE_HOUR);
+        Server s = new Server(conf);
+        s.run();
+        try {
+            put("sys.cpu.user " + (base + 1000) + " 1.0 tag1=value1 tag2=value2");
+            // Latency in TestConfiguration is 2s, wait for it
+            sleepUninterruptibly(4, TimeUnit.SECONDS);
+        } finally {
+            s.shutdown();
+            AuthCache.resetSessionMaxAge();
+        }
+        // restart with the dictionary, the metrics table now has both formats
+        conf.getUidDictionary().setEnabled(true);
+        s = new Server(conf);
+        s.run();
+        try {
+            put("sys.cpu.user " + (base + ONE_HOUR + 1000) + " 2.0 tag1=value1 tag2=value2", "sys.cpu.user "
+                    + (base + ONE_HOUR + 1000) + " 5.0 tag1=value1 tag2=value3");
+            sleepUninterruptibly(4, TimeUnit.SECONDS);
+
+            Connector con = mac.getConnector(MAC_ROOT_USER, MAC_ROOT_PASSWORD);
+            int encoded = 0;
+            int plain = 0;
+            for (Entry<Key, Value> e : con.createScanner(conf.getMetricsTable(), Authorizations.EMPTY)) {
+                if (e.getKey().getColumnFamily().charAt(0) == UidDictionary.MARKER) {
+                    encoded++;
+                } else {
+                    plain++;
+                }
+            }
+            assertEquals(4, encoded);
+            assertEquals(2, plain);
+
+            // the series is read from both formats
+            Map<String, String> tags = new HashMap<>();
+            tags.put("tag1", "value1");
+            tags.put("tag2", "value2");
+            List<QueryResponse> response = queryCpuUser(base, base + (2 * ONE_HOUR) - 1, tags);
+            assertEquals(1, response.size());
+            assertEquals(tags, response.get(0).getTags());
+            Map<String, Object> dps = response.get(0).getDps();
+            assertEquals(2, dps.size());
+            assertEquals(1.0, dps.get(Long.toString(base)));
+            assertEquals(2.0, dps.get(Long.toString(base + ONE_HOUR)));
+
+            // the tag filter matches the UIDs of the values
+            tags.put("tag2", "value[23]");
+            response = queryCpuUser(base, base + (2 * ONE_HOUR) - 1, tags);
+            assertEquals(2, response.size());
+            for (QueryResponse r : response) {
+                if (r.getTags().get("tag2").equals("value2")) {
+                    assertEquals(2, r.getDps().size());
+                } else {
+                    assertEquals("value3", r.getTags().get("tag2"));
+                    assertEquals(1, r.getDps().size());
+                    assertEquals(5.0, r.getDps().get(Long.toString(base + ONE_HOUR)));
+                }
+            }
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    @Test
+    public void testTimeBlocks() throws Exception {
+        conf.getTimeBlocks().setEnabled(true);
+
+        final Server s = new Server(conf);
+        s.run();
+        try {
+            long base = TEST_TIME - (TEST_TIME % ONE_HOUR);
+            String[] lines = new String[60];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = "sys.cpu.user " + (base + i * ONE_MINUTE) + " " + i + " tag1=value1 tag2=value2";
+            }
+            put(lines);
+            // Latency in TestConfiguration is 2s, wait for it
+            sleepUninterruptibly(4, TimeUnit.SECONDS);
+
+            Connector con = mac.getConnector(MAC_ROOT_USER, MAC_ROOT_PASSWORD);
+            con.tableOperations().compact(conf.getMetricsTable(), null, null, true, true);
+            int entries = 0;
+            for (Entry<Key, Value> e : con.createScanner(conf.getMetricsTable(), Authorizations.EMPTY)) {
+                assertTrue(TimeBlockCodec.isEncoded(e.getValue().get()));
+                entries++;
+            }
+            // one block for each tag
+            assertEquals(2, entries);
+
+            // the query starts in the middle of the block
+            QueryRequest request = new QueryRequest();
+            request.setStart(base + 30 * ONE_MINUTE);
+            request.setEnd(base + ONE_HOUR - 1);
+            request.setMsResolution(true);
+            SubQuery subQuery = new SubQuery();
+            subQuery.setMetric("sys.cpu.user");
+            subQuery.addTag("tag1", ".*");
+            subQuery.setDownsample(Optional.of("1m-max"));
+            request.addQuery(subQuery);
+            List<QueryResponse> response = query("https://127.0.0.1:54322/api/query", request);
+            assertEquals(1, response.size());
+            Map<String, Object> dps = response.get(0).getDps();
+            assertEquals(30, dps.size());
+            assertEquals(30.0, dps.get(Long.toString(base + 30 * ONE_MINUTE)));
+            assertEquals(59.0, dps.get(Long.toString(base + 59 * ONE_MINUTE)));
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    @Test
+    public void testTimeBlocksNotCompacted() throws Exception {
+        conf.getTimeBlocks().setEnabled(true);
+
+        final Server s = new Server(conf);
+        s.run();
+        try {
+            long base = TEST_TIME - (TEST_TIME % ONE_HOUR);
+            String[] lines = new String[60];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = "sys.cpu.user " + (base + i * ONE_MINUTE) + " " + i + " tag1=value1 tag2=value2";
+            }
+            put(lines);
+            // Latency in TestConfiguration is 2s, wait for it
+            sleepUninterruptibly(4, TimeUnit.SECONDS);
+
+            // the raw points before the start are in the scanned block period
+            QueryRequest request = new QueryRequest();
+            request.setStart(base + 30 * ONE_MINUTE + 1);
+            request.setEnd(base + ONE_HOUR - 1);
+            request.setMsResolution(true);
+            SubQuery subQuery = new SubQuery();
+            subQuery.setMetric("sys.cpu.user");
+            subQuery.addTag("tag1", ".*");
+            subQuery.setDownsample(Optional.of("1m-max"));
+            request.addQuery(subQuery);
+            List<QueryResponse> response = query("https://127.0.0.1:54322/api/query", request);
+            assertEquals(1, response.size());
+            Map<String, Object> dps = response.get(0).getDps();
+            assertEquals(29, dps.size());
+            assertEquals(31.0, dps.get(Long.toString(base + 30 * ONE_MINUTE + 1)));
+            assertEquals(59.0, dps.get(Long.toString(base + 58 * ONE_MINUTE + 1)));
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    @Test
+    public void testRollups() throws Exception {
+        conf.getRollups().setEnabled(true);
+
+        final Server s = new Server(conf);
+        s.run();
+        try {
+            long base = TEST_TIME - (TEST_TIME % ONE_HOUR);
+            String[] lines = new String[120];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = "sys.cpu.user " + (base + i * ONE_MINUTE) + " " + i + " tag1=value1 tag2=value2";
+            }
+            put(lines);
+            // Latency in TestConfiguration is 2s, wait for it
+            sleepUninterruptibly(4, TimeUnit.SECONDS);
+
+            Connector con = mac.getConnector(MAC_ROOT_USER, MAC_ROOT_PASSWORD);
+            int entries = 0;
+            for (Entry<Key, Value> e : con.createScanner(conf.getMetricsTable() + "_1h", Authorizations.EMPTY)) {
+                assertEquals(60, RollupCodec.getCount(e.getValue().get()));
+                entries++;
+            }
+            // two hours for each tag
+            assertEquals(4, entries);
+
+            // the hourly rollup answers the query without the points, from
+            // the start of the hour
+            con.tableOperations().deleteRows(conf.getMetricsTable(), null, null);
+            Map<String, Object> dps = queryCpuUser(base + 500, base + (2 * ONE_HOUR) - 1);
+            assertEquals(2, dps.size());
+            assertEquals(59.0, dps.get(Long.toString(base)));
+            assertEquals(119.0, dps.get(Long.toString(base + ONE_HOUR)));
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    @Test
+    public void testRollupsAdded() throws Exception {
+        // rollups added to an existing metrics table, the hourly rollup
+        // already holds the earlier points
+        Connector con = mac.getConnector(MAC_ROOT_USER, MAC_ROOT_PASSWORD);
+        con.tableOperations().create(conf.getMetricsTable());
+        con.tableOperations().create(conf.getMetricsTable() + "_1h");
+        con.tableOperations().setProperty(conf.getMetricsTable() + "_1h", "table.custom.timely.rollup.start", "0");
+        long added = System.currentTimeMillis();
+        conf.getRollups().setEnabled(true);
+
+        final Server s = new Server(conf);
+        s.run();
+        try {
+            long base = TEST_TIME - (TEST_TIME % ONE_HOUR);
+            String[] lines = new String[120];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = "sys.cpu.user " + (base + i * ONE_MINUTE) + " " + i + " tag1=value1 tag2=value2";
+            }
+            put(lines);
+            // Latency in TestConfiguration is 2s, wait for it
+            sleepUninterruptibly(4, TimeUnit.SECONDS);
+
+            // the other rollups hold the points written from now on
+            String start = getProperty(con, conf.getMetricsTable() + "_5m", "table.custom.timely.rollup.start");
+            assertTrue(Long.parseLong(start) >= added);
+            QueryResponse response = queryCpuUser(base, base + (2 * ONE_HOUR) - 1, "1h-max");
+            assertEquals(conf.getMetricsTable() + "_1h", response.getQuery().getTable());
+            assertEquals(2, response.getDps().size());
+            assertEquals(119.0, response.getDps().get(Long.toString(base + ONE_HOUR)));
+            // the earlier points are read instead of the 5m rollup
+            response = queryCpuUser(base, base + (2 * ONE_HOUR) - 1, "10m-max");
+            assertEquals(conf.getMetricsTable(), response.getQuery().getTable());
+            assertEquals(12, response.getDps().size());
+            assertEquals(119.0, response.getDps().get(Long.toString(base + 110 * ONE_MINUTE)));
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    @Test
+    public void testQueryPlan() throws Exception {
+        final Server s = new Server(conf);
+        s.run();
+        try {
+            long base = TEST_TIME - (TEST_TIME % ONE_HOUR);
+            put("sys.cpu.user " + (base + 1000) + " 1.0 tag1=value1", "sys.cpu.user " + (base + ONE_HOUR + 1000)
+                    + " 2.0 tag1=value1", "sys.cpu.user " + (base + (2 * ONE_HOUR) + 1000) + " 3.0 tag1=value1");
+            // Latency in TestConfiguration is 2s, wait for it
+            sleepUninterruptibly(4, TimeUnit.SECONDS);
+            Connector con = mac.getConnector(MAC_ROOT_USER, MAC_ROOT_PASSWORD);
+            SortedSet<Text> splits = new TreeSet<>();
+            splits.add(new Text(MetricAdapter.encodeRowKey("sys.cpu.user", base + ONE_HOUR)));
+            splits.add(new Text(MetricAdapter.encodeRowKey("sys.cpu.user", base + (2 * ONE_HOUR))));
+            con.tableOperations().addSplits(conf.getMetricsTable(), splits);
+
+            QueryRequest request = new QueryRequest();
+            request.setStart(base);
+            request.setEnd(base + (3 * ONE_HOUR) - 1);
+            request.setMsResolution(true);
+            request.setShowQuery(true);
+            SubQuery subQuery = new SubQuery();
+            subQuery.setMetric("sys.cpu.user");
+            subQuery.addTag("tag1", "value1");
+            subQuery.setDownsample(Optional.of("1h-max"));
+            request.addQuery(subQuery);
+            List<QueryResponse> response = query("https://127.0.0.1:54322/api/query", request);
+            assertEquals(1, response.size());
+            assertEquals(3, response.get(0).getDps().size());
+            // one range per tablet
+            QueryPlan plan = response.get(0).getQuery();
+            assertEquals(conf.getMetricsTable(), plan.getTable());
+            assertEquals(ONE_HOUR, plan.getDownsample());
+            assertEquals(3, plan.getRanges().size());
+            assertEquals(Long.valueOf(base + ONE_HOUR), plan.getRanges().get(0).getEnd());
+            assertEquals(Long.valueOf(base + ONE_HOUR), plan.getRanges().get(1).getStart());
+            assertEquals(Long.valueOf(base + (3 * ONE_HOUR) - 1), plan.getRanges().get(2).getEnd());
+
+            // no plan unless requested
+            request.setShowQuery(false);
+            response = query("https://127.0.0.1:54322/api/query", request);
+            assertNull(response.get(0).getQuery());
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        testFilters(false);
+    }
+
+    @Test
+    public void testFiltersWithUids() throws Exception {
+        testFilters(true);
+    }
+
+    private void testFilters(boolean uids) throws Exception {
+        conf.getUidDictionary().setEnabled(uids);
+        final Server s = new Server(conf);
+        s.run();
+        try {
+            long base = TEST_TIME - (TEST_TIME % ONE_HOUR);
+            put("sys.cpu.user " + (base + 1000) + " 1.0 host=h1 rack=r1", "sys.cpu.user " + (base + 1000)
+                    + " 2.0 host=h2 rack=r1", "sys.cpu.user " + (base + 1000) + " 3.0 host=h3 rack=r2", "sys.cpu.user "
+                    + (base + 1000) + " 4.0 host=x4 rack=r2");
+            // Latency in TestConfiguration is 2s, wait for it
+            sleepUninterruptibly(4, TimeUnit.SECONDS);
+
+            // aggregated into one series without group by
+            Map<Map<String, String>, Object> result = queryFilters(base, filter("literal_or", "host", "h1|h3", false));
+            assertEquals(Collections.singletonMap(Collections.emptyMap(), 3.0), result);
+
+            result = queryFilters(base, filter("wildcard", "host", "h*", true));
+            assertEquals(3, result.size());
+            assertEquals(2.0, result.get(Collections.singletonMap("host", "h2")));
+
+            result = queryFilters(base, filter("not_literal_or", "host", "h1|h2", false),
+                    filter("regexp", "rack", "r", true));
+            assertEquals(Collections.singletonMap(Collections.singletonMap("rack", "r2"), 4.0), result);
+
+            // a regexp matches part of the value
+            result = queryFilters(base, filter("regexp", "host", "^x", false), filter("literal_or", "rack", "r2", true));
+            assertEquals(Collections.singletonMap(Collections.singletonMap("rack", "r2"), 4.0), result);
+        } finally {
+            s.shutdown();
+        }
+    }
+
+    private static Filter filter(String type, String tagk, String value, boolean groupBy) {
+        Filter filter = new Filter();
+        filter.setType(type);
+        filter.setTagk(tagk);
+        filter.setFilter(value);
+        filter.setGroupBy(groupBy);
+        return filter;
+    }
+
+    /**
+     * @return maximum value of the hour at base by the tags of each series
+     */
+    private Map<Map<String, String>, Object> queryFilters(long base, Filter... filters) throws Exception {
+        QueryRequest request = new QueryRequest();
+        request.setStart(base);
+        request.setEnd(base + ONE_HOUR - 1);
+        request.setMsResolution(true);
+        SubQuery subQuery = new SubQuery();
+        subQuery.setMetric("sys.cpu.user");
+        for (Filter filter : filters) {
+            subQuery.addFilter(filter);
+        }
+        subQuery.setDownsample(Optional.of("1h-max"));
+        request.addQuery(subQuery);
+        Map<Map<String, String>, Object> result = new HashMap<>();
+        for (QueryResponse response : query("https://127.0.0.1:54322/api/query", request)) {
+            assertEquals(1, response.getDps().size());
+            result.put(response.getTags(), response.getDps().get(Long.toString(base)));
+        }
+        return result;
+    }
+
+    private List<QueryResponse> queryCpuUser(long start, long end, Map<String, String> tags) throws Exception {
+        QueryRequest request = new QueryRequest();
+        request.setStart(start);
+        request.setEnd(end);
+        request.setMsResolution(true);
+        SubQuery subQuery = new SubQuery();
+        subQuery.setMetric("sys.cpu.user");
+        tags.forEach(subQuery::addTag);
+        subQuery.setDownsample(Optional.of("1h-max"));
+        request.addQuery(subQuery);
+        return query("https://127.0.0.1:54322/api/query", request);
+    }
+
+    private QueryResponse queryCpuUser(long start, long end, String downsample) throws Exception {
+        QueryRequest request = new QueryRequest();
+        request.setStart(start);
+        request.setEnd(end);
+        request.setMsResolution(true);
+        request.setShowQuery(true);
+        SubQuery subQuery = new SubQuery();
+        subQuery.setMetric("sys.cpu.user");
+        subQuery.addTag("tag1", ".*");
+        subQuery.setDownsample(Optional.of(downsample));
+        request.addQuery(subQuery);
+        List<QueryResponse> response = query("https://127.0.0.1:54322/api/query", request);
+        assertEquals(1, response.size());
+        return response.get(0);
+    }
+
+    private static String getProperty(Connector con, String table, String name) throws Exception {
+        for (Entry<String, String> property : con.tableOperations().getProperties(table)) {
+            if (property.getKey().equals(name)) {
+                return property.getValue();
+            }
+        }
+        return null;
+    }
+
+    private Map<String, Object> queryCpuUser(long start, long end) throws Exception {
+        QueryRequest request = new QueryRequest();
+        request.setStart(start);
+        request.setEnd(end);
+        request.setMsResolution(true);
+        SubQuery subQuery = new SubQuery();
+        subQuery.setMetric("sys.cpu.user");
+        subQuery.addTag("tag1", ".*");
+        subQuery.setDownsample(Optional.of("1h-max"));
+        request.addQuery(subQuery);
+        List<QueryResponse> response = query("https://127.0.0.1:54322/api/query", request);
+        assertEquals(1, response.size());
+        return response.get(0).getDps();
+    }
+
 }
@@ -280,7 +280,8 @@ public class TimelyTcpIT extends MacITBase {
             LOG.info("Meta entry: " + entry);
             count++;
         }
-        assertEquals(10, count);
+        // 10 meta keys and a tag statistics entry for each tag key
+        assertEquals(14, count);
         // count w/out versioning iterator to make sure that the optimization
         // for writing is working
         connector.tableOperations().removeIterator("timely.meta", "vers", EnumSet.of(IteratorScope.scan));
@@ -291,7 +292,7 @@ public class TimelyTcpIT extends MacITBase {
             LOG.info("Meta no vers iter: " + entry);
             count++;
         }
-        assertEquals(10, count);
+        assertEquals(14, count);
     }
 
     @Test
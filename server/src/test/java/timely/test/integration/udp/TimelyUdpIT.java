@@ -272,7 +272,8 @@ public class TimelyUdpIT extends MacITBase {
             LOG.info("Meta entry: " + entry);
             count++;
         }
-        assertEquals(10, count);
+        // 10 meta keys and a tag statistics entry for each tag key
+        assertEquals(14, count);
         // count w/out versioning iterator to make sure that the optimization
         // for writing is working
         connector.tableOperations().removeIterator("timely.meta", "vers", EnumSet.of(IteratorScope.scan));
@@ -283,7 +284,7 @@ public class TimelyUdpIT extends MacITBase {
             LOG.info("Meta no vers iter: " + entry);
             count++;
         }
-        assertEquals(10, count);
+        assertEquals(14, count);
     }
 
     @Test